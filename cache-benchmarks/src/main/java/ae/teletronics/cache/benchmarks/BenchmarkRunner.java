@@ -0,0 +1,32 @@
+package ae.teletronics.cache.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread-count, with the GC/allocation profiler enabled. Thread-counts are taken from system-property
+ * "benchmark.threads" (comma-separated, default {@value #DEFAULT_THREADS}). Arguments are ordinary JMH command-line arguments, e.g.
+ * <pre>
+ * java -Dbenchmark.threads=1,8 -jar target/benchmarks.jar ChangingValueCacheBenchmark.modify -p skew=ZIPFIAN
+ * </pre>
+ */
+public class BenchmarkRunner {
+	
+	public static final String DEFAULT_THREADS = "1,2,4,8,16,32,64";
+	
+	public static void main(String[] args) throws Exception {
+		Options commandLineOptions = new CommandLineOptions(args);
+		for (String threads : System.getProperty("benchmark.threads", DEFAULT_THREADS).split(",")) {
+			Options options = new OptionsBuilder()
+					.parent(commandLineOptions)
+					.threads(Integer.parseInt(threads.trim()))
+					.addProfiler(GCProfiler.class)
+					.build();
+			new Runner(options).run();
+		}
+	}
+	
+}
@@ -0,0 +1,166 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.ChangingValueAndLevelMultiCache;
+import ae.teletronics.cache.Pair;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link ChangingValueAndLevelMultiCache} operations with a configurable number of tiers. The level of an entry is the number of
+ * times it has been modified (modulo the level-range covered by the tiers), so modifying an entry moves it to the next tier
+ * every {@link #LEVELS_PER_TIER} modifications
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangingValueAndLevelMultiCacheBenchmark {
+	
+	public static final int LEVELS_PER_TIER = 4;
+	
+	public static class Counter {
+		public long count;
+	}
+	
+	@Param({"1024", "1048576"})
+	public int keySpace;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	@Param({"1", "4", "16", "64"})
+	public int tiers;
+
+	@Param({"INTERNING", "STRIPED"})
+	public String keyLocks;
+	
+	/**
+	 * Whether the internal caches are provided as cache-builders, making the cache track the location of cache-entries
+	 */
+	@Param({"false", "true"})
+	public boolean trackLocations;
+	
+	public String[] keys;
+	public ChangingValueAndLevelMultiCache<String, Counter> cache;
+	
+	private final Function<Counter, Counter> increment = new Function<Counter, Counter>() {
+
+		@Override
+		public Counter apply(Counter input) {
+			input.count++;
+			return input;
+		}
+		
+	};
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(ChangingValueAndLevelMultiCacheBenchmark benchmark) {
+			sequence = new KeySequence(benchmark.skew, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() {
+		keys = KeySequence.keys("key", keySpace);
+		final int levels = tiers * LEVELS_PER_TIER;
+		ChangingValueAndLevelMultiCache.Builder<String, Counter> builder = ChangingValueAndLevelMultiCache.builder();
+		if (trackLocations) builder.cache(CacheBuilder.newBuilder().maximumSize(keySpace));
+		else builder.cache(CacheBuilder.newBuilder().maximumSize(keySpace).<String, Counter>build());
+		builder
+				.defaultNewCreator(new Supplier<Counter>() {
+
+					@Override
+					public Counter get() {
+						return new Counter();
+					}
+					
+				})
+				.defaultModifier(increment)
+				.keyLocks(ChangingValueCacheBenchmark.keyLocks(keyLocks))
+				.levelCalculator(new ChangingValueAndLevelMultiCache.BiFunction<String, Counter, Integer>() {
+
+					@Override
+					public Integer apply(String key, Counter value) {
+						return (int)(value.count % levels);
+					}
+					
+				});
+		for (int tier = 0; tier < tiers; tier++) {
+			if (trackLocations) {
+				builder.addCache(CacheBuilder.newBuilder().maximumSize(keySpace), tier * LEVELS_PER_TIER, (tier + 1) * LEVELS_PER_TIER - 1, "Tier " + tier);
+			} else {
+				Cache<String, Counter> tierCache = CacheBuilder.newBuilder().maximumSize(keySpace).build();
+				builder.addCache(tierCache, tier * LEVELS_PER_TIER, (tier + 1) * LEVELS_PER_TIER - 1, "Tier " + tier);
+			}
+		}
+		cache = builder.build();
+		for (int i = 0; i < keySpace; i += 2) {
+			cache.getAddIfNotPresent(keys[i]);
+		}
+	}
+	
+	/**
+	 * Every {@link #LEVELS_PER_TIER}th modify of an entry moves it to another tier
+	 */
+	@Benchmark
+	public Counter modify(ThreadKeys threadKeys) {
+		return cache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+	/**
+	 * Every modify of an entry moves it to another tier
+	 */
+	@Benchmark
+	public Counter modifyMovingTier(ThreadKeys threadKeys) {
+		return cache.modify(keys[threadKeys.sequence.next()], new Function<Counter, Counter>() {
+
+			@Override
+			public Counter apply(Counter input) {
+				input.count += LEVELS_PER_TIER;
+				return input;
+			}
+			
+		}, true);
+	}
+	
+	@Benchmark
+	public Counter getIfPresent(ThreadKeys threadKeys) {
+		return cache.getIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	@Benchmark
+	public Pair<Cache<String, Counter>, Counter> getCacheAndValueIfPresent(ThreadKeys threadKeys) {
+		return cache.getCacheAndValueIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	@Benchmark
+	public Counter getAddIfNotPresent(ThreadKeys threadKeys) {
+		return cache.getAddIfNotPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+}
@@ -0,0 +1,186 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ae.teletronics.cache.ChangingValueCache;
+import ae.teletronics.cache.KeyLocks;
+import ae.teletronics.cache.ModifyAllResult;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Single-tier {@link ChangingValueCache} operations. The cache is big enough to hold the entire key-space, and is pre-filled with
+ * half of it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangingValueCacheBenchmark {
+	
+	public static final Supplier<Long> ZERO = new Supplier<Long>() {
+
+		@Override
+		public Long get() {
+			return 0L;
+		}
+		
+	};
+
+	public static final Function<Long, Long> ADD_ONE = new Function<Long, Long>() {
+
+		@Override
+		public Long apply(Long input) {
+			return input + 1;
+		}
+		
+	};
+	
+	public static final int BATCH_SIZE = 64;
+	
+	@Param({"1024", "1048576"})
+	public int keySpace;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	@Param({"INTERNING", "STRIPED"})
+	public String keyLocks;
+	
+	public String[] keys;
+	public ChangingValueCache<String, Long> cache;
+	public ExecutorService modifyAllExecutor;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(ChangingValueCacheBenchmark benchmark) {
+			sequence = new KeySequence(benchmark.skew, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() {
+		keys = KeySequence.keys("key", keySpace);
+		ChangingValueCache.Builder<String, Long> builder = ChangingValueCache.builder();
+		cache = builder
+				.cache(CacheBuilder.newBuilder().maximumSize(keySpace).<String, Long>build())
+				.defaultNewCreator(ZERO)
+				.defaultModifier(ADD_ONE)
+				.keyLocks(keyLocks(keyLocks))
+				.build();
+		for (int i = 0; i < keySpace; i += 2) {
+			cache.getAddIfNotPresent(keys[i]);
+		}
+		modifyAllExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		modifyAllExecutor.shutdown();
+	}
+	
+	static KeyLocks keyLocks(String keyLocks) {
+		if ("STRIPED".equals(keyLocks)) return KeyLocks.striped(1024);
+		return KeyLocks.interning();
+	}
+	
+	@Benchmark
+	public Long modify(ThreadKeys threadKeys) {
+		return cache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+	@Benchmark
+	public Long getIfPresent(ThreadKeys threadKeys) {
+		return cache.getIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	@Benchmark
+	public Long getAddIfNotPresent(ThreadKeys threadKeys) {
+		return cache.getAddIfNotPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	/**
+	 * Modify {@link #BATCH_SIZE} keys one by one - baseline for {@link #modifyBatch(ThreadKeys)}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void modifyBatchOneByOne(ThreadKeys threadKeys, Blackhole blackhole) {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			blackhole.consume(cache.modify(keys[threadKeys.sequence.next()], true));
+		}
+	}
+	
+	/**
+	 * Modify {@link #BATCH_SIZE} keys in one batch
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public Map<String, Long> modifyBatch(ThreadKeys threadKeys) {
+		List<String> batch = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batch.add(keys[threadKeys.sequence.next()]);
+		}
+		return cache.modifyBatch(batch, null, null, true);
+	}
+	
+	/**
+	 * Modify every 16th entry - the selection of entries has to visit every entry
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void modifyAll(Blackhole blackhole) {
+		cache.modifyAll(EVERY_16TH, null);
+		blackhole.consume(cache.size());
+	}
+	
+	/**
+	 * Same as {@link #modifyAll(Blackhole)}, but partitioned over a thread per available processor
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public ModifyAllResult parallelModifyAll() {
+		return cache.parallelModifyAll(EVERY_16TH, null, null, false, modifyAllExecutor);
+	}
+	
+	private static final Predicate<String> EVERY_16TH = new Predicate<String>() {
+
+		@Override
+		public boolean apply(String input) {
+			return (input.hashCode() & 15) == 0;
+		}
+		
+	};
+	
+}
@@ -0,0 +1,90 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pre-computed sequence of key-indexes following a {@link KeySkew}. Generated up front so that random number generation
+ * does not end up in the measurements. Not thread-safe - give each benchmark thread its own
+ */
+public class KeySequence {
+
+	public static final double ZIPFIAN_THETA = 0.99;
+	
+	private static final int LENGTH = 1 << 16;
+	private static final int MASK = LENGTH - 1;
+	
+	private static final ConcurrentMap<Integer, Double> ZETAS = new ConcurrentHashMap<Integer, Double>();
+	
+	private final int[] indexes;
+	private int next;
+	
+	public KeySequence(KeySkew skew, int keySpace, long seed) {
+		Random random = new Random(seed);
+		indexes = new int[LENGTH];
+		if (skew == KeySkew.UNIFORM) {
+			for (int i = 0; i < LENGTH; i++) {
+				indexes[i] = random.nextInt(keySpace);
+			}
+		} else {
+			// Gray et al., "Quickly Generating Billion-Record Synthetic Databases" (same as YCSB)
+			double zetan = zeta(keySpace);
+			double zeta2 = 1 + Math.pow(0.5, ZIPFIAN_THETA);
+			double alpha = 1 / (1 - ZIPFIAN_THETA);
+			double eta = (1 - Math.pow(2.0 / keySpace, 1 - ZIPFIAN_THETA)) / (1 - zeta2 / zetan);
+			for (int i = 0; i < LENGTH; i++) {
+				double u = random.nextDouble();
+				double uz = u * zetan;
+				int rank;
+				if (uz < 1) rank = 0;
+				else if (uz < zeta2) rank = 1;
+				else rank = Math.min(keySpace - 1, (int)(keySpace * Math.pow(eta * u - eta + 1, alpha)));
+				indexes[i] = scatter(rank, keySpace);
+			}
+		}
+	}
+	
+	/**
+	 * @return The next key-index in the sequence. Wraps around when the end is reached
+	 */
+	public int next() {
+		int index = indexes[next];
+		next = (next + 1) & MASK;
+		return index;
+	}
+	
+	/**
+	 * @param keyPrefix Prefix of all keys
+	 * @param keySpace Number of keys
+	 * @return keyPrefix0, keyPrefix1, ... pre-allocated so that key creation does not end up in the measurements
+	 */
+	public static String[] keys(String keyPrefix, int keySpace) {
+		String[] keys = new String[keySpace];
+		for (int i = 0; i < keySpace; i++) {
+			keys[i] = keyPrefix + i;
+		}
+		return keys;
+	}
+	
+	private static double zeta(int keySpace) {
+		Double zeta = ZETAS.get(keySpace);
+		if (zeta == null) {
+			double sum = 0;
+			for (int i = 1; i <= keySpace; i++) {
+				sum += 1 / Math.pow(i, ZIPFIAN_THETA);
+			}
+			zeta = sum;
+			ZETAS.putIfAbsent(keySpace, zeta);
+		}
+		return zeta;
+	}
+	
+	// Hot ranks would otherwise be neighbours in the key-space (and in hash-code)
+	private static int scatter(int rank, int keySpace) {
+		long hash = rank * 0x9E3779B97F4A7C15L;
+		hash ^= (hash >>> 32);
+		return (int)((hash & Long.MAX_VALUE) % keySpace);
+	}
+	
+}
@@ -0,0 +1,19 @@
+package ae.teletronics.cache.benchmarks;
+
+/**
+ * How accesses are distributed over the key-space of a benchmark
+ */
+public enum KeySkew {
+	
+	/**
+	 * All keys equally likely
+	 */
+	UNIFORM,
+	
+	/**
+	 * Few keys are hot, most keys are cold. Zipfian with exponent {@link KeySequence#ZIPFIAN_THETA}. Hot keys are scattered
+	 * over the key-space
+	 */
+	ZIPFIAN
+	
+}
@@ -0,0 +1,136 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.ChangingValueCache;
+import ae.teletronics.cache.LongModifier;
+import ae.teletronics.cache.LongNewCreator;
+import ae.teletronics.cache.LongValueChangingValueCache;
+import ae.teletronics.cache.OffHeapLongValueChangingValueCache;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link LongValueChangingValueCache} and {@link OffHeapLongValueChangingValueCache} versus a {@link ChangingValueCache} with boxed Long
+ * cache-values, all holding the entire key-space. See {@link VersionCacheFootprint} for the memory used by each
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LongValueChangingValueCacheBenchmark {
+	
+	private static final LongNewCreator ZERO = new LongNewCreator() {
+
+		@Override
+		public long get() {
+			return 0;
+		}
+		
+	};
+	
+	private static final LongModifier ADD_ONE = new LongModifier() {
+
+		@Override
+		public long apply(long value) {
+			return value + 1;
+		}
+		
+	};
+	
+	@Param({"1024", "1048576"})
+	public int keySpace;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	public String[] keys;
+	public ChangingValueCache<String, Long> boxedCache;
+	public LongValueChangingValueCache<String> primitiveCache;
+	public OffHeapLongValueChangingValueCache offHeapCache;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(LongValueChangingValueCacheBenchmark benchmark) {
+			sequence = new KeySequence(benchmark.skew, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() {
+		keys = KeySequence.keys("key", keySpace);
+		ChangingValueCache.Builder<String, Long> boxedBuilder = ChangingValueCache.builder();
+		boxedCache = boxedBuilder
+				.cache(CacheBuilder.newBuilder().maximumSize(keySpace).<String, Long>build())
+				.defaultNewCreator(ChangingValueCacheBenchmark.ZERO)
+				.defaultModifier(ChangingValueCacheBenchmark.ADD_ONE)
+				.build();
+		LongValueChangingValueCache.Builder<String> primitiveBuilder = LongValueChangingValueCache.builder();
+		primitiveCache = primitiveBuilder
+				.maximumSize(keySpace)
+				.defaultNewCreator(ZERO)
+				.defaultModifier(ADD_ONE)
+				.build();
+		offHeapCache = OffHeapLongValueChangingValueCache.builder()
+				.maximumSize(keySpace)
+				.expectedKeyLength(16)
+				.defaultNewCreator(ZERO)
+				.defaultModifier(ADD_ONE)
+				.build();
+		for (String key : keys) {
+			boxedCache.getAddIfNotPresent(key);
+			primitiveCache.getAddIfNotPresent(key);
+			offHeapCache.getAddIfNotPresent(key);
+		}
+	}
+	
+	@Benchmark
+	public Long boxedModify(ThreadKeys threadKeys) {
+		return boxedCache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+	@Benchmark
+	public long primitiveModify(ThreadKeys threadKeys) {
+		return primitiveCache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+	@Benchmark
+	public long offHeapModify(ThreadKeys threadKeys) {
+		return offHeapCache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+	@Benchmark
+	public Long boxedGetIfPresent(ThreadKeys threadKeys) {
+		return boxedCache.getIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	@Benchmark
+	public long primitiveGetIfPresent(ThreadKeys threadKeys) {
+		return primitiveCache.getIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+	@Benchmark
+	public long offHeapGetIfPresent(ThreadKeys threadKeys) {
+		return offHeapCache.getIfPresent(keys[threadKeys.sequence.next()]);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.ChangingValueCache;
+import ae.teletronics.cache.KeyLocks;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * {@link ChangingValueCache#modify(Object, boolean)} throughput for lock-free modify versus the monitor-based modify. Run it with
+ * 1 to 64 writer threads (the {@link BenchmarkRunner} default)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModifyModeBenchmark {
+	
+	@Param({"16", "1024", "1048576"})
+	public int keySpace;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	@Param({"MONITOR_INTERNING", "MONITOR_STRIPED", "LOCK_FREE"})
+	public String modifyMode;
+	
+	@Param({"false", "true"})
+	public boolean recordMetrics;
+	
+	public String[] keys;
+	public ChangingValueCache<String, Long> cache;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(ModifyModeBenchmark benchmark) {
+			sequence = new KeySequence(benchmark.skew, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() {
+		keys = KeySequence.keys("key", keySpace);
+		ChangingValueCache.Builder<String, Long> builder = ChangingValueCache.builder();
+		builder
+				.cache(CacheBuilder.newBuilder().maximumSize(keySpace).<String, Long>build())
+				.defaultNewCreator(ChangingValueCacheBenchmark.ZERO)
+				.defaultModifier(ChangingValueCacheBenchmark.ADD_ONE);
+		if ("LOCK_FREE".equals(modifyMode)) builder.lockFreeModify();
+		else if ("MONITOR_STRIPED".equals(modifyMode)) builder.keyLocks(KeyLocks.striped(1024));
+		if (recordMetrics) builder.recordMetrics();
+		cache = builder.build();
+		for (String key : keys) {
+			cache.getAddIfNotPresent(key);
+		}
+	}
+	
+	@Benchmark
+	public Long modify(ThreadKeys threadKeys) {
+		return cache.modify(keys[threadKeys.sequence.next()], true);
+	}
+	
+}
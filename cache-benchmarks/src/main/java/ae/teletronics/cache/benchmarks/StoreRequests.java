@@ -0,0 +1,46 @@
+package ae.teletronics.cache.benchmarks;
+
+import ae.teletronics.cache.examples.dbversioncache.KeyValueOptimisticLockingDBWithPluggableCache.StoreRequest;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+
+/**
+ * Creating {@link StoreRequest}s for the example DBs
+ */
+public class StoreRequests {
+	
+	private StoreRequests() {}
+	
+	/**
+	 * @param text Value of the new entry
+	 * @return Request creating a new entry
+	 */
+	public static StoreRequest<String, StringValueContainer> create(String text) {
+		return request(new StringValueContainer(-1L, text), StoreRequest.Operation.NEW);
+	}
+	
+	/**
+	 * @param current The current value-container of the entry - as fetched from the DB
+	 * @param text New value of the entry
+	 * @return Request updating an existing entry
+	 */
+	public static StoreRequest<String, StringValueContainer> update(StringValueContainer current, String text) {
+		return request(new StringValueContainer(current.getVersion(), text), StoreRequest.Operation.UPDATE);
+	}
+	
+	private static StoreRequest<String, StringValueContainer> request(final StringValueContainer valueContainer, final StoreRequest.Operation operation) {
+		return new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return valueContainer;
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return operation;
+			}
+			
+		};
+	}
+
+}
@@ -0,0 +1,77 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import ae.teletronics.cache.examples.dbversioncache.InMemoryStore;
+import ae.teletronics.cache.examples.dbversioncache.MemoryMappedLogStore;
+import ae.teletronics.cache.examples.dbversioncache.Store;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+
+/**
+ * Which {@link Store} the example DBs of a benchmark run on
+ */
+public enum StoreType {
+	
+	/**
+	 * {@link InMemoryStore} - store reads are map lookups
+	 */
+	MEMORY {
+		
+		@Override
+		public Store<String, StringValueContainer> open(File directory) {
+			return new InMemoryStore<String, StringValueContainer>();
+		}
+		
+	},
+	
+	/**
+	 * {@link MemoryMappedLogStore} - store reads are record reads and decoding
+	 */
+	LOG {
+		
+		@Override
+		public Store<String, StringValueContainer> open(File directory) throws IOException {
+			MemoryMappedLogStore.Builder<String, StringValueContainer> builder = MemoryMappedLogStore.builder();
+			return builder
+					.directory(directory)
+					.keyCodec(MemoryMappedLogStore.STRING_CODEC)
+					.valueCodec(StringValueContainer.CODEC)
+					.build();
+		}
+		
+	};
+	
+	/**
+	 * @param directory Directory for the store to keep its files in (if any)
+	 * @return The opened store
+	 * @throws IOException If the store could not be opened
+	 */
+	public abstract Store<String, StringValueContainer> open(File directory) throws IOException;
+	
+	/**
+	 * Close the store, print how much it was read and delete its files
+	 */
+	public static void close(Store<String, StringValueContainer> store, File directory) throws IOException {
+		store.close();
+		if (store instanceof MemoryMappedLogStore) {
+			MemoryMappedLogStore<?, ?> logStore = (MemoryMappedLogStore<?, ?>)store;
+			System.out.println("Store reads: " + logStore.getReads() + " records, " + logStore.getBytesRead() + " bytes");
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	public static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("benchmark-store", "");
+		directory.delete();
+		if (!directory.mkdir()) throw new IOException("Could not create " + directory);
+		return directory;
+	}
+	
+}
@@ -0,0 +1,130 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.examples.dbversioncache.StringStringOptimisticLockingDBWithKeyStartsWithCache;
+import ae.teletronics.cache.examples.dbversioncache.Store;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+
+/**
+ * End to end {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} reads, prefix-reads and optimistic updates. Keys are
+ * prefix!suffix with {@link #suffixesPerPrefix} suffixes per prefix. The store ({@link #storeType}) is pre-filled with the entire
+ * key-space. Each of the two level-tiers of the cache holds {@link #cacheSizePercent}% of the prefixes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringStringOptimisticLockingDBWithKeyStartsWithCacheBenchmark {
+	
+	private static final String SPLIT = "!";
+	private static final int PAGE_SIZE = 16;
+	
+	@Param({"1024", "65536"})
+	public int prefixes;
+	
+	@Param({"4", "256"})
+	public int suffixesPerPrefix;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	@Param({"10", "100"})
+	public int cacheSizePercent;
+	
+	@Param({"MEMORY", "LOG"})
+	public StoreType storeType;
+	
+	public String[] prefixKeys;
+	public String[] keys;
+	public StringStringOptimisticLockingDBWithKeyStartsWithCache db;
+	
+	public File storeDirectory;
+	public Store<String, StringValueContainer> store;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence prefixSequence;
+		public KeySequence keySequence;
+		
+		@Setup
+		public void setup(StringStringOptimisticLockingDBWithKeyStartsWithCacheBenchmark benchmark) {
+			prefixSequence = new KeySequence(benchmark.skew, benchmark.prefixes, System.identityHashCode(this));
+			keySequence = new KeySequence(benchmark.skew, benchmark.prefixes * benchmark.suffixesPerPrefix, System.identityHashCode(this) + 1);
+		}
+		
+	}
+	
+	@Setup
+	public void setup() throws Exception {
+		prefixKeys = KeySequence.keys("prefix", prefixes);
+		keys = new String[prefixes * suffixesPerPrefix];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = prefixKeys[i / suffixesPerPrefix] + SPLIT + "suffix" + (i % suffixesPerPrefix);
+		}
+		storeDirectory = StoreType.createTempDirectory();
+		store = storeType.open(storeDirectory);
+		db = new StringStringOptimisticLockingDBWithKeyStartsWithCache(Math.max(1, (int)((long)prefixes * cacheSizePercent / 100)), new int[]{suffixesPerPrefix / 2, Integer.MAX_VALUE}, store);
+		for (String key : keys) {
+			db.put(key, StoreRequests.create(key));
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		StoreType.close(store, storeDirectory);
+	}
+	
+	@Benchmark
+	public StringValueContainer get(ThreadKeys threadKeys) {
+		return db.get(keys[threadKeys.keySequence.next()]);
+	}
+	
+	@Benchmark
+	public Map<String, StringValueContainer> getAllWithKeyStartingWith(ThreadKeys threadKeys) {
+		return db.getAllWithKeyStartingWith(prefixKeys[threadKeys.prefixSequence.next()]);
+	}
+	
+	/**
+	 * First page of {@link #PAGE_SIZE} entries - the latency to first results for a large key-prefix
+	 */
+	@Benchmark
+	public StringStringOptimisticLockingDBWithKeyStartsWithCache.Page getPageWithKeyStartingWith(ThreadKeys threadKeys) {
+		return db.getPageWithKeyStartingWith(prefixKeys[threadKeys.prefixSequence.next()], PAGE_SIZE);
+	}
+	
+	/**
+	 * Read and write back. Returns whether the write succeeded - it fails on version-conflict with another thread
+	 */
+	@Benchmark
+	public boolean update(ThreadKeys threadKeys) throws Exception {
+		String key = keys[threadKeys.keySequence.next()];
+		StringValueContainer current = db.get(key);
+		try {
+			db.put(key, StoreRequests.update(current, current.getValue()));
+			return true;
+		} catch (StringStringOptimisticLockingDBWithKeyStartsWithCache.VersionConflictException e) {
+			return false;
+		}
+	}
+	
+}
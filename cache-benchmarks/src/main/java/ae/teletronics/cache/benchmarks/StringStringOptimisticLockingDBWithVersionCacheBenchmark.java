@@ -0,0 +1,102 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.examples.dbversioncache.StringStringOptimisticLockingDBWithVersionCache;
+import ae.teletronics.cache.examples.dbversioncache.Store;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+
+/**
+ * End to end {@link StringStringOptimisticLockingDBWithVersionCache} reads and optimistic updates. The store ({@link #storeType}) is
+ * pre-filled with the entire key-space, the version-cache holds {@link #cacheSizePercent}% of it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringStringOptimisticLockingDBWithVersionCacheBenchmark {
+	
+	@Param({"1024", "1048576"})
+	public int keySpace;
+	
+	@Param({"UNIFORM", "ZIPFIAN"})
+	public KeySkew skew;
+	
+	@Param({"10", "100"})
+	public int cacheSizePercent;
+	
+	@Param({"MEMORY", "LOG"})
+	public StoreType storeType;
+	
+	public String[] keys;
+	public StringStringOptimisticLockingDBWithVersionCache db;
+	
+	public File storeDirectory;
+	public Store<String, StringValueContainer> store;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(StringStringOptimisticLockingDBWithVersionCacheBenchmark benchmark) {
+			sequence = new KeySequence(benchmark.skew, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() throws Exception {
+		keys = KeySequence.keys("key", keySpace);
+		storeDirectory = StoreType.createTempDirectory();
+		store = storeType.open(storeDirectory);
+		db = new StringStringOptimisticLockingDBWithVersionCache(Math.max(1, (int)((long)keySpace * cacheSizePercent / 100)), store);
+		for (String key : keys) {
+			db.put(key, StoreRequests.create(key));
+		}
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		StoreType.close(store, storeDirectory);
+	}
+	
+	@Benchmark
+	public StringValueContainer get(ThreadKeys threadKeys) {
+		return db.get(keys[threadKeys.sequence.next()]);
+	}
+	
+	/**
+	 * Read and write back. Returns whether the write succeeded - it fails on version-conflict with another thread
+	 */
+	@Benchmark
+	public boolean update(ThreadKeys threadKeys) throws Exception {
+		String key = keys[threadKeys.sequence.next()];
+		StringValueContainer current = db.get(key);
+		try {
+			db.put(key, StoreRequests.update(current, current.getValue()));
+			return true;
+		} catch (StringStringOptimisticLockingDBWithVersionCache.VersionConflictException e) {
+			return false;
+		}
+	}
+	
+}
@@ -0,0 +1,102 @@
+package ae.teletronics.cache.benchmarks;
+
+import ae.teletronics.cache.ChangingValueCache;
+import ae.teletronics.cache.LongNewCreator;
+import ae.teletronics.cache.LongValueChangingValueCache;
+import ae.teletronics.cache.OffHeapLongValueChangingValueCache;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Memory used per cache-entry by the version-cache backends - {@link ChangingValueCache} with boxed Long cache-values,
+ * {@link LongValueChangingValueCache} and {@link OffHeapLongValueChangingValueCache}. Heap is measured after full GCs, and does not
+ * include the cache-key strings themselves (they are held by the caller as well). Usage
+ * <pre>
+ * java -cp target/benchmarks.jar ae.teletronics.cache.benchmarks.VersionCacheFootprint [number of entries, default 1000000]
+ * </pre>
+ */
+public class VersionCacheFootprint {
+	
+	private static final Supplier<Long> VERSION = new Supplier<Long>() {
+
+		@Override
+		public Long get() {
+			// Not a small Long - those would be shared
+			return System.nanoTime();
+		}
+		
+	};
+	
+	private static final LongNewCreator PRIMITIVE_VERSION = new LongNewCreator() {
+
+		@Override
+		public long get() {
+			return System.nanoTime();
+		}
+		
+	};
+	
+	private static final Function<Long, Long> NO_MODIFICATION = new Function<Long, Long>() {
+
+		@Override
+		public Long apply(Long input) {
+			return input;
+		}
+		
+	};
+	
+	public static void main(String[] args) {
+		int entries = (args.length > 0)?Integer.parseInt(args[0]):1000000;
+		String[] keys = KeySequence.keys("key", entries);
+		
+		long before = usedHeap();
+		long heapBytes;
+		ChangingValueCache.Builder<String, Long> boxedBuilder = ChangingValueCache.builder();
+		ChangingValueCache<String, Long> boxedCache = boxedBuilder
+				.cache(CacheBuilder.newBuilder().maximumSize(entries).<String, Long>build())
+				.defaultNewCreator(VERSION)
+				.defaultModifier(NO_MODIFICATION)
+				.build();
+		for (String key : keys) {
+			boxedCache.getAddIfNotPresent(key);
+		}
+		heapBytes = usedHeap() - before;
+		report("ChangingValueCache<String, Long>", boxedCache.size(), heapBytes, 0);
+		boxedCache = null;
+		
+		before = usedHeap();
+		LongValueChangingValueCache<String> primitiveCache = LongValueChangingValueCache.<String>builder().maximumSize(entries).build();
+		for (String key : keys) {
+			primitiveCache.getAddIfNotPresent(key, PRIMITIVE_VERSION);
+		}
+		heapBytes = usedHeap() - before;
+		report("LongValueChangingValueCache<String>", primitiveCache.size(), heapBytes, 0);
+		primitiveCache = null;
+		
+		before = usedHeap();
+		OffHeapLongValueChangingValueCache offHeapCache = OffHeapLongValueChangingValueCache.builder().maximumSize(entries).expectedKeyLength(10).build();
+		for (String key : keys) {
+			offHeapCache.getAddIfNotPresent(key, PRIMITIVE_VERSION);
+		}
+		heapBytes = usedHeap() - before;
+		report("OffHeapLongValueChangingValueCache", offHeapCache.size(), heapBytes, offHeapCache.getOffHeapBytes());
+		
+		// Keys held until here, so that they are not part of any measurement
+		System.out.println(keys.length + " keys");
+	}
+	
+	private static void report(String backend, long entries, long heapBytes, long offHeapBytes) {
+		System.out.println(String.format("%-40s heap %6.1f bytes/entry, off-heap %6.1f bytes/entry", backend, (double)heapBytes / entries, (double)offHeapBytes / entries));
+	}
+	
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+}
@@ -0,0 +1,220 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ae.teletronics.cache.ChangingValueCache;
+import ae.teletronics.cache.KeyLocks;
+import ae.teletronics.cache.examples.dbversioncache.InMemoryStore;
+import ae.teletronics.cache.examples.dbversioncache.StringStringOptimisticLockingDBWithKeyStartsWithCache;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Drives {@link ChangingValueCache#modify(Object, boolean)}, {@link ChangingValueCache#getAddIfNotPresent(Object)} and
+ * {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} puts and reads from one virtual thread per simulated request, and reports
+ * throughput and latency percentiles with monitors ({@link KeyLocks#striped(int)}) versus {@link KeyLocks#reentrantLocks(int)}.
+ * Modifiers, new-creators and store puts sleep, as if doing I/O, holding the key-lock - a virtual thread holding a monitor stays pinned
+ * to its carrier thread meanwhile (on JDKs before 24). Latency is reported per operation, and per simulated request from when all
+ * requests were started - only the latter includes waiting for a carrier thread, so compare that one when carrier threads are pinned.
+ * Not a JMH benchmark, since JMH does not run its threads as virtual threads. Usage
+ * <pre>
+ * java -cp target/benchmarks.jar ae.teletronics.cache.benchmarks.VirtualThreadLoadHarness [threads, default 100000] [operations per thread, default 10] [key space, default 4096] [I/O micros, default 200]
+ * </pre>
+ * Needs JDK 21 or later for virtual threads. On older JDKs it falls back to a pool of {@value #FALLBACK_PLATFORM_THREADS} platform threads
+ */
+public class VirtualThreadLoadHarness {
+
+	public static final int FALLBACK_PLATFORM_THREADS = 256;
+	private static final int STRIPES = 1024;
+
+	private enum LockMode {
+		MONITOR,
+		REENTRANT_LOCK;
+
+		private KeyLocks keyLocks() {
+			return (this == MONITOR)?KeyLocks.striped(STRIPES):KeyLocks.reentrantLocks(STRIPES);
+		}
+	}
+
+	// One operation of a simulated request
+	private interface Operation {
+
+		void run(int thread, int operation) throws Exception;
+
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = (args.length > 0)?Integer.parseInt(args[0]):100000;
+		int operationsPerThread = (args.length > 1)?Integer.parseInt(args[1]):10;
+		final int keySpace = (args.length > 2)?Integer.parseInt(args[2]):4096;
+		final long ioMicros = (args.length > 3)?Long.parseLong(args[3]):200;
+		final String[] keys = KeySequence.keys("key", keySpace);
+
+		System.out.println(String.format("%d threads (%s), %d operations each, %d keys, %d us I/O", threads, (virtualThreadExecutor() != null)?"virtual":"platform fallback", operationsPerThread, keySpace, ioMicros));
+		for (LockMode lockMode : LockMode.values()) {
+			ChangingValueCache.Builder<String, Long> modifyBuilder = ChangingValueCache.builder();
+			final ChangingValueCache<String, Long> modifyCache = modifyBuilder
+					.cache(CacheBuilder.newBuilder().maximumSize(keySpace).<String, Long>build())
+					.defaultNewCreator(ChangingValueCacheBenchmark.ZERO)
+					.defaultModifier(new Function<Long, Long>() {
+
+						@Override
+						public Long apply(Long input) {
+							io(ioMicros);
+							return input + 1;
+						}
+
+					})
+					.keyLocks(lockMode.keyLocks())
+					.build();
+			run("modify", lockMode, threads, operationsPerThread, new Operation() {
+
+				@Override
+				public void run(int thread, int operation) {
+					modifyCache.modify(keys[(thread + operation * 31) % keys.length], true);
+				}
+
+			});
+
+			ChangingValueCache.Builder<String, Long> getAddBuilder = ChangingValueCache.builder();
+			// Half the key space, so that new-creators keep running
+			final ChangingValueCache<String, Long> getAddCache = getAddBuilder
+					.cache(CacheBuilder.newBuilder().maximumSize(Math.max(1, keySpace / 2)).<String, Long>build())
+					.defaultNewCreator(new Supplier<Long>() {
+
+						@Override
+						public Long get() {
+							io(ioMicros);
+							return 0L;
+						}
+
+					})
+					.defaultModifier(ChangingValueCacheBenchmark.ADD_ONE)
+					.keyLocks(lockMode.keyLocks())
+					.build();
+			run("getAddIfNotPresent", lockMode, threads, operationsPerThread, new Operation() {
+
+				@Override
+				public void run(int thread, int operation) {
+					getAddCache.getAddIfNotPresent(keys[(thread + operation * 31) % keys.length]);
+				}
+
+			});
+
+			final StringStringOptimisticLockingDBWithKeyStartsWithCache db = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder()
+					.cacheSize(keySpace)
+					.levelSplitAfter(10, Integer.MAX_VALUE)
+					.keyLocks(lockMode.keyLocks())
+					.store(new InMemoryStore<String, StringValueContainer>() {
+
+						@Override
+						public void put(String key, StringValueContainer valueContainer) {
+							io(ioMicros);
+							super.put(key, valueContainer);
+						}
+
+					})
+					.build();
+			final int keyPrefixes = Math.max(1, keySpace / 16);
+			run("DB put/getAllWithKeyStartingWith", lockMode, threads, operationsPerThread, new Operation() {
+
+				@Override
+				public void run(int thread, int operation) throws Exception {
+					String keyPrefix = "p" + ((thread + operation * 31) % keyPrefixes);
+					if ((operation & 1) == 0) {
+						db.put(keyPrefix + "!" + thread + "-" + operation, StoreRequests.create("value"));
+					} else {
+						db.getAllWithKeyStartingWith(keyPrefix);
+					}
+				}
+
+			});
+		}
+	}
+
+	private static void run(String workload, LockMode lockMode, final int threads, final int operationsPerThread, final Operation operation) throws Exception {
+		final long[] latencies = new long[threads * operationsPerThread];
+		// Per simulated request, from when all were started - including waiting for a (carrier) thread to run on
+		final long[] completions = new long[threads];
+		final AtomicLong startedAt = new AtomicLong();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		ExecutorService executor = virtualThreadExecutor();
+		if (executor == null) executor = Executors.newFixedThreadPool(FALLBACK_PLATFORM_THREADS);
+		try {
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							started.await();
+							for (int o = 0; o < operationsPerThread; o++) {
+								long start = System.nanoTime();
+								operation.run(thread, o);
+								latencies[thread * operationsPerThread + o] = System.nanoTime() - start;
+							}
+							completions[thread] = System.nanoTime() - startedAt.get();
+						} catch (Exception e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							done.countDown();
+						}
+					}
+
+				});
+			}
+			startedAt.set(System.nanoTime());
+			started.countDown();
+			done.await();
+			long elapsed = System.nanoTime() - startedAt.get();
+			if (failure.get() != null) throw failure.get();
+
+			Arrays.sort(latencies);
+			Arrays.sort(completions);
+			System.out.println(String.format("%-34s %-14s %10.0f ops/s  operation p50/p99/p999 %9.1f %9.1f %9.1f us  request p50/p99/p999 %8.1f %8.1f %8.1f ms", workload, lockMode,
+					latencies.length / (elapsed / 1e9), percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3,
+					percentile(completions, 0.5) / 1e6, percentile(completions, 0.99) / 1e6, percentile(completions, 0.999) / 1e6));
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		int index = (int)Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+		return sorted[Math.max(index, 0)];
+	}
+
+	/**
+	 * @return An executor running each task in a new virtual thread, or null if the JDK has no virtual threads (before 21). Found by
+	 * reflection, since the benchmarks are compiled for older JDKs
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static void io(long micros) {
+		try {
+			Thread.sleep(micros / 1000, (int)(micros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
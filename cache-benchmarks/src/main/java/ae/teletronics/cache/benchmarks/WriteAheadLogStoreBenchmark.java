@@ -0,0 +1,108 @@
+package ae.teletronics.cache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ae.teletronics.cache.examples.dbversioncache.InMemoryStore;
+import ae.teletronics.cache.examples.dbversioncache.MemoryMappedLogStore;
+import ae.teletronics.cache.examples.dbversioncache.StringValueContainer;
+import ae.teletronics.cache.examples.dbversioncache.WriteAheadLogStore;
+
+/**
+ * Durable puts to a {@link WriteAheadLogStore} (on an {@link InMemoryStore}). Throughput should grow with the number of threads, while
+ * forces per second - printed after each iteration - should stay flat
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteAheadLogStoreBenchmark {
+	
+	@Param({"1024"})
+	public int keySpace;
+	
+	@Param({"0", "1000"})
+	public int batchWindowMicros;
+	
+	@Param({"1024"})
+	public int maxBatchSize;
+	
+	public String[] keys;
+	public File storeDirectory;
+	public WriteAheadLogStore<String, StringValueContainer> store;
+	
+	private long iterationStartNanos;
+	private long iterationStartForces;
+	private long iterationStartRecords;
+	
+	@State(Scope.Thread)
+	public static class ThreadKeys {
+		
+		public KeySequence sequence;
+		
+		@Setup
+		public void setup(WriteAheadLogStoreBenchmark benchmark) {
+			sequence = new KeySequence(KeySkew.UNIFORM, benchmark.keySpace, System.identityHashCode(this));
+		}
+		
+	}
+	
+	@Setup
+	public void setup() throws IOException {
+		keys = KeySequence.keys("key", keySpace);
+		storeDirectory = StoreType.createTempDirectory();
+		WriteAheadLogStore.Builder<String, StringValueContainer> storeBuilder = WriteAheadLogStore.builder();
+		store = storeBuilder
+				.store(new InMemoryStore<String, StringValueContainer>())
+				.file(new File(storeDirectory, "wal.log"))
+				.keyCodec(MemoryMappedLogStore.STRING_CODEC)
+				.valueCodec(StringValueContainer.CODEC)
+				.batchWindow(batchWindowMicros, TimeUnit.MICROSECONDS)
+				.maxBatchSize(maxBatchSize)
+				.build();
+	}
+	
+	@Setup(Level.Iteration)
+	public void startIteration() {
+		iterationStartNanos = System.nanoTime();
+		iterationStartForces = store.getForces();
+		iterationStartRecords = store.getRecordsForced();
+	}
+	
+	@TearDown(Level.Iteration)
+	public void endIteration() {
+		double seconds = (System.nanoTime() - iterationStartNanos) / 1e9;
+		long forces = store.getForces() - iterationStartForces;
+		long records = store.getRecordsForced() - iterationStartRecords;
+		System.out.println(String.format("Forces per second: %.0f, records per force: %.1f", forces / seconds, (forces > 0)?((double)records / forces):0.0));
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		StoreType.close(store, storeDirectory);
+	}
+	
+	@Benchmark
+	public void put(ThreadKeys threadKeys) {
+		String key = keys[threadKeys.sequence.next()];
+		store.put(key, new StringValueContainer(0L, key));
+	}
+	
+}
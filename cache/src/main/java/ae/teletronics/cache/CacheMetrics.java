@@ -0,0 +1,247 @@
+package ae.teletronics.cache;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Snapshot of the metrics of a cache recording metrics. See {@link ChangingValueCache.Builder#recordMetrics()}
+ *
+ * Lookups are counted per internal cache (tier) looked in. A lookup that finds the cache-entry in no internal cache also counts
+ * as a miss for the entire cache. Tiers are named by the names given when adding them (the default cache is named
+ * {@link ChangingValueCache#DEFAULT_TIER_NAME})
+ */
+@Immutable
+public class CacheMetrics {
+
+	/**
+	 * Snapshot of the metrics of one internal cache (tier)
+	 */
+	@Immutable
+	public static class TierMetrics {
+
+		private final String name;
+		private final long size;
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long estimatedRetainedBytes;
+		private final CacheStats cacheStats;
+
+		TierMetrics(String name, long size, long hits, long misses, long evictions, long estimatedRetainedBytes, CacheStats cacheStats) {
+			this.name = name;
+			this.size = size;
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.estimatedRetainedBytes = estimatedRetainedBytes;
+			this.cacheStats = cacheStats;
+		}
+
+		/**
+		 * @return Name of the internal cache
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Number of cache-entries in the internal cache
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Number of lookups finding the cache-entry in the internal cache
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return Number of lookups looking for the cache-entry in the internal cache, but not finding it there
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return Number of cache-entries evicted from the internal cache. For internal caches provided as Guava caches (instead of cache-builders)
+		 * this is the eviction-count of their {@link #getCacheStats()}, which is always 0 unless built with recordStats
+		 */
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return Estimated bytes retained by the cache-entries of the internal cache, or -1 if cache-entries are not weighed. See
+		 * {@link ChangingValueAndLevelMultiCache.Builder#weigher(com.google.common.cache.Weigher)}
+		 */
+		public long getEstimatedRetainedBytes() {
+			return estimatedRetainedBytes;
+		}
+
+		/**
+		 * @return Statistics recorded by the internal Guava cache itself. All zeros unless it was built with recordStats
+		 */
+		public CacheStats getCacheStats() {
+			return cacheStats;
+		}
+
+	}
+
+	private final List<TierMetrics> tiers;
+	private final long[][] moves;
+	private final int firstLevelTier;
+	private final long misses;
+	private final long creations;
+	private final long modifications;
+	private final long invalidations;
+
+	CacheMetrics(List<TierMetrics> tiers, long[][] moves, int firstLevelTier, long misses, long creations, long modifications, long invalidations) {
+		this.tiers = Collections.unmodifiableList(tiers);
+		this.moves = moves;
+		this.firstLevelTier = firstLevelTier;
+		this.misses = misses;
+		this.creations = creations;
+		this.modifications = modifications;
+		this.invalidations = invalidations;
+	}
+
+	/**
+	 * @return Metrics of the internal caches - the default cache first, then the level-caches in level-order
+	 */
+	public List<TierMetrics> getTiers() {
+		return tiers;
+	}
+
+	/**
+	 * @param name Name of the internal cache
+	 * @return Metrics of the (first) internal cache with the provided name (or null if no such internal cache)
+	 */
+	public TierMetrics getTier(String name) {
+		int tier = tierIndex(name);
+		return (tier >= 0)?tiers.get(tier):null;
+	}
+
+	private int tierIndex(String name) {
+		for (int i = 0; i < tiers.size(); i++) {
+			if (tiers.get(i).getName().equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Number of cache-entries in the cache
+	 */
+	public long getSize() {
+		long size = 0;
+		for (TierMetrics tier : tiers) {
+			size += tier.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of lookups finding the cache-entry (in any internal cache)
+	 */
+	public long getHits() {
+		long hits = 0;
+		for (TierMetrics tier : tiers) {
+			hits += tier.getHits();
+		}
+		return hits;
+	}
+
+	/**
+	 * @return Number of lookups not finding the cache-entry in any internal cache
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of cache-values created by a new-creator during modify
+	 */
+	public long getCreations() {
+		return creations;
+	}
+
+	/**
+	 * @return Number of times a modifier was applied to a cache-value
+	 */
+	public long getModifications() {
+		return modifications;
+	}
+
+	/**
+	 * @return Number of cache-entries removed because a modifier returned null
+	 */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return Number of cache-entries evicted from all internal caches. See {@link TierMetrics#getEvictions()}
+	 */
+	public long getEvictions() {
+		long evictions = 0;
+		for (TierMetrics tier : tiers) {
+			evictions += tier.getEvictions();
+		}
+		return evictions;
+	}
+
+	/**
+	 * @param fromTier Name of the internal cache
+	 * @param toTier Name of another internal cache
+	 * @return Number of cache-entries moved by modify from one internal cache to the other
+	 */
+	public long getMoves(String fromTier, String toTier) {
+		int from = tierIndex(fromTier);
+		int to = tierIndex(toTier);
+		return (from >= 0 && to >= 0)?moves[from][to]:0;
+	}
+
+	/**
+	 * @return Number of cache-entries moved from a level-cache to a level-cache for higher levels
+	 */
+	public long getPromotions() {
+		long promotions = 0;
+		for (int from = firstLevelTier; from < moves.length; from++) {
+			for (int to = from + 1; to < moves.length; to++) {
+				promotions += moves[from][to];
+			}
+		}
+		return promotions;
+	}
+
+	/**
+	 * @return Number of cache-entries moved from a level-cache to a level-cache for lower levels
+	 */
+	public long getDemotions() {
+		long demotions = 0;
+		for (int from = firstLevelTier; from < moves.length; from++) {
+			for (int to = firstLevelTier; to < from; to++) {
+				demotions += moves[from][to];
+			}
+		}
+		return demotions;
+	}
+
+	/**
+	 * @return Statistics recorded by the internal Guava caches themselves, added up. All zeros unless they were built with recordStats
+	 */
+	public CacheStats getCacheStats() {
+		CacheStats cacheStats = new CacheStats(0, 0, 0, 0, 0, 0);
+		for (TierMetrics tier : tiers) {
+			cacheStats = cacheStats.plus(tier.getCacheStats());
+		}
+		return cacheStats;
+	}
+
+}
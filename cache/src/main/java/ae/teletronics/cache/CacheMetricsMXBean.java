@@ -0,0 +1,68 @@
+package ae.teletronics.cache;
+
+/**
+ * JMX view of the {@link CacheMetrics} of a cache. See {@link ChangingValueCache#registerMBeans(String)}
+ */
+public interface CacheMetricsMXBean {
+
+	/**
+	 * See {@link CacheMetrics#getSize()}
+	 */
+	long getSize();
+
+	/**
+	 * See {@link CacheMetrics#getHits()}
+	 */
+	long getHits();
+
+	/**
+	 * See {@link CacheMetrics#getMisses()}
+	 */
+	long getMisses();
+
+	/**
+	 * See {@link CacheMetrics#getCreations()}
+	 */
+	long getCreations();
+
+	/**
+	 * See {@link CacheMetrics#getModifications()}
+	 */
+	long getModifications();
+
+	/**
+	 * See {@link CacheMetrics#getInvalidations()}
+	 */
+	long getInvalidations();
+
+	/**
+	 * See {@link CacheMetrics#getEvictions()}
+	 */
+	long getEvictions();
+
+	/**
+	 * See {@link CacheMetrics#getPromotions()}
+	 */
+	long getPromotions();
+
+	/**
+	 * See {@link CacheMetrics#getDemotions()}
+	 */
+	long getDemotions();
+
+	/**
+	 * Hit-count of {@link CacheMetrics#getCacheStats()}
+	 */
+	long getRecordedHitCount();
+
+	/**
+	 * Miss-count of {@link CacheMetrics#getCacheStats()}
+	 */
+	long getRecordedMissCount();
+
+	/**
+	 * Eviction-count of {@link CacheMetrics#getCacheStats()}
+	 */
+	long getRecordedEvictionCount();
+
+}
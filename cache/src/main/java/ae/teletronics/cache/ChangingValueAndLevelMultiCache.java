@@ -1,8 +1,23 @@
 package ae.teletronics.cache;
 
-import java.util.Collection;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.ThreadSafe;
 
@@ -12,6 +27,15 @@ import net.jcip.annotations.ThreadSafe;
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Same as {@link ChangingValueCache}, but with prioritization of the cache-entries. Cache-entries are given a priority (level) and non-overlapping
@@ -47,6 +71,14 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 			return (ChangingValueAndLevelMultiCache<K, V>)instance;
 		}
 		
+		// Location of cache-entries can only be tracked if we get removal-notifications from all internal caches
+		private boolean defaultCacheTracked = true;
+		private boolean addedCachesTracked = true;
+		// Tracked locations hold cache-keys and cache-values strongly, and are not told which ones a weak or soft reference lost
+		private boolean weakOrSoftDefaultCache;
+		private boolean weakOrSoftAddedCaches;
+		private long levelTuningPeriodNanos;
+		
 		/**
 		 * See {@link ChangingValueCache.Builder#defaultNewCreator(Supplier)}
 		 */
@@ -66,9 +98,54 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 		 * in case a cache-entry has a level that does not fit any of the explicitly defined level-intervals
 		 */
 		public Builder<K, V> cache(Cache<K, V> cache) {
+			defaultCacheTracked = false;
+			weakOrSoftDefaultCache = false;
 			return (Builder<K, V>)super.cache(cache);
 		}
 		
+		/**
+		 * Same as {@link #cache(Cache)}, but with the internal cache built from the provided Guava cache-builder. When all internal caches
+		 * are provided as cache-builders, the built cache keeps track of which internal cache each cache-entry lives in, so that lookups
+		 * only have to look in one of them. Cache-builders with weakKeys, weakValues or softValues can then not be used - {@link #build()}
+		 * fails if they are
+		 * @param cacheBuilder Guava cache-builder for the internal cache. Must not have a removal-listener
+		 * @return This builder
+		 */
+		public Builder<K, V> cache(CacheBuilder<Object, Object> cacheBuilder) {
+			defaultCacheTracked = true;
+			weakOrSoftDefaultCache = isWeakOrSoft(cacheBuilder);
+			return (Builder<K, V>)super.cache(buildTrackedCache(cacheBuilder));
+		}
+		
+		/**
+		 * See {@link ChangingValueCache.Builder#keyLocks(KeyLocks)}
+		 */
+		public Builder<K, V> keyLocks(KeyLocks keyLocks) {
+			return (Builder<K, V>)super.keyLocks(keyLocks);
+		}
+		
+		/**
+		 * See {@link ChangingValueCache.Builder#asyncExecutor(Executor)}
+		 */
+		public Builder<K, V> asyncExecutor(Executor asyncExecutor) {
+			return (Builder<K, V>)super.asyncExecutor(asyncExecutor);
+		}
+		
+		/**
+		 * See {@link ChangingValueCache.Builder#maxMailboxDepth(int)}
+		 */
+		public Builder<K, V> maxMailboxDepth(int maxMailboxDepth) {
+			return (Builder<K, V>)super.maxMailboxDepth(maxMailboxDepth);
+		}
+		
+		/**
+		 * See {@link ChangingValueCache.Builder#recordMetrics()}. Internal caches are reported by the names given in {@link #addCache(Cache, int, int, String)}.
+		 * Evictions are recorded for internal caches provided as cache-builders
+		 */
+		public Builder<K, V> recordMetrics() {
+			return (Builder<K, V>)super.recordMetrics();
+		}
+		
 		/**
 		 * Set the calculator used to calculate the level of a particular cache-entry
 		 * @param levelCalculator Given the cache-key and cache-level calculate the level of the cache-entry
@@ -79,12 +156,32 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 			return this;
 		}
 		
+		/**
+		 * Weigh cache-entries, so that internal caches can have capacities in bytes instead of cache-entries. The weigher estimates the
+		 * bytes retained by a cache-entry, and is re-evaluated on every modify - a cache-entry whose weight changes is re-weighed in the
+		 * internal cache it lives in (a Guava put of the same cache-value), also when its cache-value is modified in place. The estimated
+		 * bytes retained per internal cache are reported by {@link ChangingValueAndLevelMultiCache#getEstimatedRetainedBytes()}.
+		 * 
+		 * Must be set before internal caches are added, and all internal caches must be provided as cache-builders with a maximumWeight
+		 * (the capacity in bytes) instead of a maximumSize - {@link #build()} fails otherwise. The weigher must be fast, it is called
+		 * holding the key-lock
+		 * @param weigher Given the cache-key and cache-value estimate the bytes retained by the cache-entry
+		 * @return This builder
+		 */
+		public Builder<K, V> weigher(Weigher<? super K, ? super V> weigher) {
+			if (!getInstance().trackedCaches.isEmpty())
+				throw new RuntimeException("Weigher must be set before internal caches are added");
+			getInstance().weigher = weigher;
+			return this;
+		}
+		
 		/**
 		 * Add an additional internal cache to be used for cache-entries with level within a specific interval.
 		 * When a cache-entry is modified so that its level changes to be within levelFrom (inclusive) and
 		 * levelTo (inclusive), the cache-entry will be moved to the provided cache. If when level afterwards
 		 * moves outside the interval, it will be removed from the provided cache and into another internal
-		 * cache - either another cache added using this addCache method, or the default cache
+		 * cache - either another cache added using this addCache method, or the default cache. Level-intervals of the added caches
+		 * must not overlap - {@link #build()} fails if they do
 		 * @param cache The Guava cache to be used internally
 		 * @param levelFrom The lower boundary on cache-entry-level for this cache to be used
 		 * @param levelTo The higher boundary on cache-entry-level for this cache to be used
@@ -92,11 +189,79 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 		 * @return This builder
 		 */
 		public Builder<K,V> addCache(Cache<K,V> cache, int levelFrom, int levelTo, String name) {
+			addedCachesTracked = false;
+			return addCacheImpl(cache, levelFrom, levelTo, name);
+		}
+		
+		/**
+		 * Same as {@link #addCache(Cache, int, int, String)}, but with the internal cache built from the provided Guava cache-builder.
+		 * See {@link #cache(CacheBuilder)}
+		 * @param cacheBuilder Guava cache-builder for the internal cache. Must not have a removal-listener
+		 * @param levelFrom The lower boundary on cache-entry-level for this cache to be used
+		 * @param levelTo The higher boundary on cache-entry-level for this cache to be used
+		 * @param name A logical name for the cache
+		 * @return This builder
+		 */
+		public Builder<K,V> addCache(CacheBuilder<Object, Object> cacheBuilder, int levelFrom, int levelTo, String name) {
+			if (isWeakOrSoft(cacheBuilder)) weakOrSoftAddedCaches = true;
+			return addCacheImpl(buildTrackedCache(cacheBuilder), levelFrom, levelTo, name);
+		}
+		
+		private Builder<K,V> addCacheImpl(Cache<K,V> cache, int levelFrom, int levelTo, String name) {
 			getInstance().caches.put(new Interval(levelFrom, levelTo), cache);
 			getInstance().names.put(cache, name);
 			return this;
 		}
 		
+		// CacheBuilder does not expose key- and value-strength, but lists them in toString if not strong
+		private boolean isWeakOrSoft(CacheBuilder<Object, Object> cacheBuilder) {
+			String description = cacheBuilder.toString();
+			return description.contains("keyStrength=") || description.contains("valueStrength=");
+		}
+		
+		private Cache<K, V> buildTrackedCache(CacheBuilder<Object, Object> cacheBuilder) {
+			ChangingValueAndLevelMultiCache<K, V>.LocationRemovalListener removalListener = getInstance().new LocationRemovalListener();
+			Cache<K, V> cache;
+			if (getInstance().weigher != null) {
+				removalListener.tierWeigher = getInstance().new TierWeigher();
+				cache = cacheBuilder.weigher(removalListener.tierWeigher).removalListener(removalListener).build();
+				removalListener.tierWeigher.cache = cache;
+				getInstance().tierWeighers.put(cache, removalListener.tierWeigher);
+			} else {
+				cache = cacheBuilder.removalListener(removalListener).build();
+			}
+			removalListener.cache = cache;
+			getInstance().trackedCaches.add(cache);
+			return cache;
+		}
+		
+		/**
+		 * Tune the level-intervals of the added caches to the workload, periodically in the background. Accesses are recorded per level
+		 * (hits, and misses when cache-entries are created), and each period the boundaries between the level-intervals are moved to
+		 * where they are expected to give the most hits with the given capacities - recent accesses weighing the most. Cache-entries
+		 * are then moved to the internal caches of their new level-intervals, each holding only its own key-lock, so modify is never
+		 * blocked by tuning. Only the boundaries between the level-intervals move - the first level of the first and the last level
+		 * of the last stay, as do the names of the internal caches.
+		 * 
+		 * The level-intervals of the added caches must be adjacent, and start at level 0 or above - {@link #build()} fails otherwise.
+		 * When tuning the level-calculator (and the weigher) are called for all cache-entries, without holding their key-locks
+		 * @param period Time between tunings
+		 * @param unit Unit of period
+		 * @param levelCacheCapacities Capacity of each of the added caches, in level-order - in cache-entries, or in bytes when a
+		 * {@link #weigher(Weigher)} is set
+		 * @return This builder
+		 */
+		public Builder<K, V> autoTuneLevels(long period, TimeUnit unit, long... levelCacheCapacities) {
+			if (period <= 0) throw new IllegalArgumentException("Period must be positive, was " + period);
+			for (long capacity : levelCacheCapacities) {
+				if (capacity < 1) throw new IllegalArgumentException("Level-cache capacities must be at least 1, was " + capacity);
+			}
+			getInstance().levelTuner = new LevelTuner();
+			getInstance().levelCacheCapacities = levelCacheCapacities.clone();
+			levelTuningPeriodNanos = unit.toNanos(period);
+			return this;
+		}
+		
 		/**
 		 * Build the {@link ChangingValueAndLevelMultiCache} instance
 		 * @return The built {@link ChangingValueAndLevelMultiCache} instance
@@ -104,8 +269,33 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 		public ChangingValueAndLevelMultiCache<K,V> build() {
 			if (getInstance().levelCalculator == null) 
 				throw new RuntimeException("No levelCalculator set");
+			if (getInstance().lockFreeModify)
+				throw new RuntimeException("Lock-free modify not supported with multiple internal caches");
+			if (getInstance().weigher != null && !(defaultCacheTracked && addedCachesTracked))
+				throw new RuntimeException("Weigher requires all internal caches to be provided as cache-builders");
+			getInstance().cacheIndex = new IntervalIndex<Cache<K, V>>(getInstance().caches);
+			if (getInstance().levelTuner != null) checkLevelTuning();
+			if (defaultCacheTracked && addedCachesTracked) {
+				if (weakOrSoftDefaultCache || weakOrSoftAddedCaches)
+					throw new RuntimeException("Weak keys, weak values and soft values not supported when all internal caches are provided as cache-builders");
+				getInstance().locations = new ConcurrentHashMap<K, Pair<Cache<K, V>, V>>();
+			}
 
-			return (ChangingValueAndLevelMultiCache<K, V>)super.build();
+			ChangingValueAndLevelMultiCache<K, V> built = (ChangingValueAndLevelMultiCache<K, V>)super.build();
+			if (built.levelTuner != null) scheduleLevelTuning(built, levelTuningPeriodNanos);
+			return built;
+		}
+		
+		private void checkLevelTuning() {
+			List<Interval> intervals = getInstance().cacheIndex.getIntervals();
+			if (intervals.size() != getInstance().levelCacheCapacities.length)
+				throw new RuntimeException(intervals.size() + " level-caches added, but " + getInstance().levelCacheCapacities.length + " level-cache capacities given");
+			if (intervals.isEmpty() || intervals.get(0).getFrom() < 0)
+				throw new RuntimeException("Level-tuning requires level-caches starting at level 0 or above");
+			for (int i = 1; i < intervals.size(); i++) {
+				if (intervals.get(i).getFrom() != intervals.get(i-1).getTo() + 1)
+					throw new RuntimeException("Level-tuning requires adjacent level-intervals, not " + intervals.get(i-1) + " and " + intervals.get(i));
+			}
 		}
 		
 	}
@@ -132,11 +322,212 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 			return value >= from && value <= to;
 		}
 		
+		@Override
+		public String toString() {
+			return from + "-" + to;
+		}
+		
+	}
+	
+	/**
+	 * Immutable index finding the value of the interval a level belongs in. Levels are looked up in a table when the intervals
+	 * start within {@link #MAX_TABLE_SIZE} levels of each other, and using binary search on the interval boundaries otherwise
+	 *
+	 * @param <T> Type of the values of the intervals
+	 */
+	public static class IntervalIndex<T> {
+		
+		public static final int MAX_TABLE_SIZE = 1024;
+		
+		private final int[] froms;
+		private final int[] tos;
+		private final Object[] values;
+		private final Object[] table;
+		
+		/**
+		 * @param intervals Intervals and their values
+		 * @throws RuntimeException If any of the intervals are empty or overlap
+		 */
+		public IntervalIndex(Map<Interval, T> intervals) {
+			List<Map.Entry<Interval, T>> sorted = new ArrayList<Map.Entry<Interval, T>>(intervals.entrySet());
+			Collections.sort(sorted, new Comparator<Map.Entry<Interval, T>>() {
+
+				@Override
+				public int compare(Map.Entry<Interval, T> o1, Map.Entry<Interval, T> o2) {
+					int from1 = o1.getKey().getFrom();
+					int from2 = o2.getKey().getFrom();
+					return (from1 < from2)?-1:((from1 == from2)?0:1);
+				}
+				
+			});
+			froms = new int[sorted.size()];
+			tos = new int[sorted.size()];
+			values = new Object[sorted.size()];
+			for (int i = 0; i < sorted.size(); i++) {
+				Interval interval = sorted.get(i).getKey();
+				if (interval.getFrom() > interval.getTo())
+					throw new RuntimeException("Empty level-interval " + interval);
+				if (i > 0 && interval.getFrom() <= tos[i-1])
+					throw new RuntimeException("Overlapping level-intervals " + sorted.get(i-1).getKey() + " and " + interval);
+				froms[i] = interval.getFrom();
+				tos[i] = interval.getTo();
+				values[i] = sorted.get(i).getValue();
+			}
+			
+			// Table covering levels from the start of the first interval to the start of the last interval
+			if (froms.length > 0 && ((long)froms[froms.length-1] - froms[0]) < MAX_TABLE_SIZE) {
+				table = new Object[froms[froms.length-1] - froms[0] + 1];
+				for (int i = 0; i < froms.length; i++) {
+					int tableTo = (int)Math.min((long)tos[i] - froms[0], table.length - 1);
+					for (int j = froms[i] - froms[0]; j <= tableTo; j++) {
+						table[j] = values[i];
+					}
+				}
+			} else {
+				table = null;
+			}
+		}
+		
+		/**
+		 * @return The intervals, ordered by level
+		 */
+		public List<Interval> getIntervals() {
+			List<Interval> intervals = new ArrayList<Interval>(froms.length);
+			for (int i = 0; i < froms.length; i++) {
+				intervals.add(new Interval(froms[i], tos[i]));
+			}
+			return intervals;
+		}
+		
+		/**
+		 * @return The values of the intervals, ordered by level
+		 */
+		@SuppressWarnings("unchecked")
+		public List<T> getValues() {
+			return (List<T>)Collections.unmodifiableList(Arrays.asList(values));
+		}
+		
+		/**
+		 * @param level The level
+		 * @return The value of the interval the level belongs in (or null if it belongs in none of them)
+		 */
+		@SuppressWarnings("unchecked")
+		public T get(int level) {
+			if (froms.length == 0 || level < froms[0]) return null;
+			if (table != null) {
+				long tableIndex = (long)level - froms[0];
+				if (tableIndex < table.length) return (T)table[(int)tableIndex];
+				return (level <= tos[tos.length-1])?(T)values[values.length-1]:null;
+			}
+			int low = 0;
+			int high = froms.length - 1;
+			// Find last interval starting at or before level
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (froms[middle] <= level) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return (level <= tos[low])?(T)values[low]:null;
+		}
+		
 	}
 	
 	protected Map<Interval, Cache<K, V>> caches = new HashMap<Interval, Cache<K ,V>>();
 	protected Map<Cache<K, V>, String> names = new HashMap<Cache<K ,V>, String>();
 	protected BiFunction<K, V, Integer> levelCalculator;
+	// Replaced when level-intervals are tuned
+	protected volatile IntervalIndex<Cache<K, V>> cacheIndex;
+	// Cache-key to internal cache and cache-value (null if locations are not tracked)
+	protected ConcurrentMap<K, Pair<Cache<K, V>, V>> locations;
+	// Internal caches built from cache-builders, with a LocationRemovalListener
+	protected Set<Cache<K, V>> trackedCaches = Collections.newSetFromMap(new IdentityHashMap<Cache<K, V>, Boolean>());
+	protected Weigher<? super K, ? super V> weigher;
+	// Weighers of the internal caches (empty if no weigher)
+	protected Map<Cache<K, V>, TierWeigher> tierWeighers = new IdentityHashMap<Cache<K, V>, TierWeigher>();
+	// Null if level-intervals are not tuned
+	private LevelTuner levelTuner;
+	private long[] levelCacheCapacities;
+	
+	/**
+	 * Guava weigher of an internal cache, keeping the sum of the weights of its cache-entries - the estimated bytes retained by the
+	 * internal cache. Weights are added when the internal cache weighs a put, and subtracted when a cache-entry is removed or replaced.
+	 * The weight a cache-entry was given is kept in its tracked location (see {@link WeighedLocation}), since a cache-value modified in
+	 * place can weigh something else by the time it is removed
+	 */
+	protected class TierWeigher implements Weigher<K, V> {
+		
+		// The internal cache weighed
+		private volatile Cache<K, V> cache;
+		private final AtomicLong retainedBytes = new AtomicLong();
+		// Weight already calculated by the thread putting, so that the weigher is not called again when the internal cache weighs the put
+		private final ThreadLocal<Integer> nextWeight = new ThreadLocal<Integer>();
+
+		@Override
+		public int weigh(K key, V value) {
+			Integer weight = nextWeight.get();
+			if (weight == null) weight = weigher.weigh(key, value);
+			retainedBytes.addAndGet(weight);
+			return weight;
+		}
+		
+		// The weight of a removed cache-entry is the one in its location, if it is still located here. Otherwise (removed while being
+		// moved or replaced) the removed cache-value is weighed again
+		private void removed(K key, V value, Pair<Cache<K, V>, V> location) {
+			int weight = (location instanceof WeighedLocation && location._1 == cache && location._2 == value)?((WeighedLocation<K, V>)location).weight:weigher.weigh(key, value);
+			retainedBytes.addAndGet(-weight);
+		}
+		
+		public long getRetainedBytes() {
+			return retainedBytes.get();
+		}
+		
+	}
+	
+	/**
+	 * Location of a cache-entry, with the weight it was given by the internal cache it lives in
+	 */
+	protected static class WeighedLocation<K, V> extends Pair<Cache<K, V>, V> {
+		
+		private final int weight;
+		
+		protected WeighedLocation(Cache<K, V> cache, V value, int weight) {
+			super(cache, value);
+			this.weight = weight;
+		}
+		
+	}
+	
+	/**
+	 * Forgets the location of a cache-entry when Guava removes it from the internal cache it is tracked to live in. Does not need
+	 * to know which internal cache the notification comes from - the location is only dropped if it no longer holds the value.
+	 * Also records evictions from the internal cache
+	 */
+	private class LocationRemovalListener implements RemovalListener<K, V> {
+		
+		// The internal cache notifying
+		private volatile Cache<K, V> cache;
+		// Weigher of the internal cache (null if no weigher)
+		private volatile TierWeigher tierWeigher;
+
+		@Override
+		public void onRemoval(RemovalNotification<K, V> notification) {
+			if (metrics != null && notification.wasEvicted() && cache != null) metrics.evicted(cache);
+			// Explicit removals and replacements are accounted for by the one doing them, holding the key-lock
+			if (tierWeigher != null && notification.wasEvicted() && notification.getKey() != null) {
+				tierWeigher.removed(notification.getKey(), notification.getValue(), (locations != null)?locations.get(notification.getKey()):null);
+			}
+			if (locations == null || notification.getCause() == RemovalCause.REPLACED || notification.getKey() == null) return;
+			K key = notification.getKey();
+			Pair<Cache<K, V>, V> location = locations.get(key);
+			if (location != null && location._2 == notification.getValue() && location._1.asMap().get(key) != location._2) {
+				locations.remove(key, location);
+			}
+		}
+		
+	}
 	
 	/**
 	 * Get a builder for building a {@link ChangingValueAndLevelMultiCache} instance
@@ -151,77 +542,468 @@ public class ChangingValueAndLevelMultiCache<K, V> extends ChangingValueCache<K,
 	}
 	
 	@Override
-	protected V modifyImpl(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
-		V value = alreadyWorkingOn.get();
-		if (value != null) {
-			V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
-			if (newValue != value) throw new RuntimeException("Modifier called modify with a modifier that replaced value object with another value object");
+	protected V modifyEntry(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
+		Pair<Cache<K, V>, V> cacheAndValue = getCacheAndValueForModify(key);
+		
+		V value = null;
+		Cache<K, V> oldCache = null;
+		if (cacheAndValue == null) {
+			if (createIfNotExists) value = ((newCreator != null)?newCreator:defaultNewCreator).get();
 		} else {
-			Pair<Cache<K, V>, V> cacheAndValue = getCacheAndValueIfPresent(key);
-			
-			Cache<K, V> oldCache = null;
-			if (cacheAndValue == null) {
-				if (createIfNotExists) value = ((newCreator != null)?newCreator:defaultNewCreator).get();
-			} else {
-				oldCache = cacheAndValue._1;
-				value = cacheAndValue._2;
-			}
-	
-			if (value != null) {
-				if (supportRecursiveCalls) alreadyWorkingOn.set(value);
-				try {
-					V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
-					if (newValue == null) {
-						if (oldCache != null) oldCache.invalidate(key);
-					} else {
-						Cache<K, V> newCache = cacheForLevel(levelCalculator.apply(key, newValue));
-						if (oldCache != newCache || newValue != value) {
-							if (oldCache != null && oldCache != newCache) oldCache.invalidate(key);
-							if (newCache != null) newCache.put(key, newValue);
+			oldCache = cacheAndValue._1;
+			value = cacheAndValue._2;
+		}
+
+		if (value != null) {
+			if (supportRecursiveCalls) alreadyWorkingOn.set(value);
+			try {
+				V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+				if (metrics != null) metrics.modified(oldCache == null, oldCache != null && newValue == null);
+				if (levelTuner != null && newValue != null) recordAccess(key, newValue, oldCache != null);
+				if (newValue == null) {
+					if (oldCache != null) remove(oldCache, key, cacheAndValue);
+					if (locations != null) locations.remove(key);
+				} else {
+					Cache<K, V> newCache = cacheForLevel(levelCalculator.apply(key, newValue));
+					if (metrics != null && oldCache != null && newCache != null && oldCache != newCache) metrics.moved(oldCache, newCache);
+					Pair<Cache<K, V>, V> newLocation = (newCache != null)?createLocation(newCache, key, newValue):null;
+					if (oldCache != newCache || newValue != value || weightChanged(cacheAndValue, newLocation)) {
+						// Add to new before removing from old, so that readers following the tracked location always find it
+						if (newCache != null) put(newLocation, key, cacheAndValue);
+						if (locations != null) {
+							if (newCache != null) locations.put(key, newLocation);
+							else locations.remove(key);
 						}
+						if (oldCache != null && oldCache != newCache) remove(oldCache, key, cacheAndValue);
 					}
-					value = newValue;
-				} finally {
-					if (supportRecursiveCalls) alreadyWorkingOn.remove();
 				}
+				value = newValue;
+			} finally {
+				if (supportRecursiveCalls) alreadyWorkingOn.remove();
 			}
 		}
 		
 		return value;
 	}
 	
+	// Same as modifyEntry for each key, but additions to and removals from the internal caches are collected and done per internal cache
 	@Override
-	protected Collection<Cache<K, V>> getAllCaches() {
-		Collection<Cache<K, V>> allCaches = super.getAllCaches();
-		for (Cache<K, V> cache : caches.values()) {
-			allCaches.add(cache);
+	protected void modifyGroup(List<K> keys, Map<K, Function<V, V>> modifiers, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, Map<K, V> results) {
+		Map<Cache<K, V>, Map<K, Pair<Cache<K, V>, V>>> additions = new LinkedHashMap<Cache<K, V>, Map<K, Pair<Cache<K, V>, V>>>();
+		Map<Cache<K, V>, List<K>> removals = new LinkedHashMap<Cache<K, V>, List<K>>();
+		List<K> locationRemovals = new ArrayList<K>();
+		// Locations before modifying, of the cache-entries replaced or removed
+		Map<K, Pair<Cache<K, V>, V>> oldLocations = new HashMap<K, Pair<Cache<K, V>, V>>();
+		try {
+			for (int i = 0; i < keys.size(); i++) {
+				K key = keys.get(i);
+				Function<V, V> keyModifier = modifierFor(key, modifiers, modifier);
+				Pair<Cache<K, V>, V> cacheAndValue = getCacheAndValueForModify(key);
+				
+				V value = null;
+				Cache<K, V> oldCache = null;
+				if (cacheAndValue == null) {
+					if (createIfNotExists) value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				} else {
+					oldCache = cacheAndValue._1;
+					value = cacheAndValue._2;
+				}
+				if (value == null) continue;
+				
+				V newValue = ((keyModifier != null)?keyModifier:defaultModifier).apply(value);
+				results.put(key, newValue);
+				Cache<K, V> newCache = (newValue != null)?cacheForLevel(levelCalculator.apply(key, newValue)):null;
+				if (levelTuner != null && newValue != null) recordAccess(key, newValue, oldCache != null);
+				if (metrics != null) {
+					metrics.modified(oldCache == null, oldCache != null && newValue == null);
+					if (oldCache != null && newCache != null && oldCache != newCache) metrics.moved(oldCache, newCache);
+				}
+				Pair<Cache<K, V>, V> newLocation = (newCache != null)?createLocation(newCache, key, newValue):null;
+				if (newValue != null && oldCache == newCache && newValue == value && !weightChanged(cacheAndValue, newLocation)) continue;
+				
+				if (oldCache != null) oldLocations.put(key, cacheAndValue);
+				if (newCache != null) {
+					Map<K, Pair<Cache<K, V>, V>> cacheAdditions = additions.get(newCache);
+					if (cacheAdditions == null) {
+						cacheAdditions = new LinkedHashMap<K, Pair<Cache<K, V>, V>>();
+						additions.put(newCache, cacheAdditions);
+					}
+					cacheAdditions.put(key, newLocation);
+				} else {
+					locationRemovals.add(key);
+				}
+				if (oldCache != null && oldCache != newCache) {
+					List<K> cacheRemovals = removals.get(oldCache);
+					if (cacheRemovals == null) {
+						cacheRemovals = new ArrayList<K>();
+						removals.put(oldCache, cacheRemovals);
+					}
+					cacheRemovals.add(key);
+				}
+			}
+		} finally {
+			// Also when a modifier fails, so that the modifications already done are not lost
+			for (Map.Entry<Cache<K, V>, Map<K, Pair<Cache<K, V>, V>>> cacheAdditions : additions.entrySet()) {
+				Cache<K, V> cache = cacheAdditions.getKey();
+				if (tierWeighers.containsKey(cache)) {
+					// One at a time, to account for the weight of each cache-entry replaced
+					for (Map.Entry<K, Pair<Cache<K, V>, V>> addition : cacheAdditions.getValue().entrySet()) {
+						put(addition.getValue(), addition.getKey(), oldLocations.get(addition.getKey()));
+					}
+				} else {
+					Map<K, V> cacheValues = new LinkedHashMap<K, V>();
+					for (Map.Entry<K, Pair<Cache<K, V>, V>> addition : cacheAdditions.getValue().entrySet()) {
+						cacheValues.put(addition.getKey(), addition.getValue()._2);
+					}
+					cache.putAll(cacheValues);
+				}
+				if (locations != null) locations.putAll(cacheAdditions.getValue());
+			}
+			if (locations != null) {
+				for (int i = 0; i < locationRemovals.size(); i++) {
+					locations.remove(locationRemovals.get(i));
+				}
+			}
+			for (Map.Entry<Cache<K, V>, List<K>> cacheRemovals : removals.entrySet()) {
+				Cache<K, V> cache = cacheRemovals.getKey();
+				if (tierWeighers.containsKey(cache)) {
+					for (K key : cacheRemovals.getValue()) {
+						remove(cache, key, oldLocations.get(key));
+					}
+				} else {
+					cache.invalidateAll(cacheRemovals.getValue());
+				}
+			}
+		}
+	}
+	
+	// Whether a cache-entry staying in the same internal cache must be put again to be re-weighed
+	private boolean weightChanged(Pair<Cache<K, V>, V> oldLocation, Pair<Cache<K, V>, V> newLocation) {
+		if (!(newLocation instanceof WeighedLocation)) return false;
+		return !(oldLocation instanceof WeighedLocation) || ((WeighedLocation<K, V>)oldLocation).weight != ((WeighedLocation<K, V>)newLocation).weight;
+	}
+	
+	// The location of a cache-entry put in an internal cache. When weighing, the weigher is called here, and only here, on modify
+	private Pair<Cache<K, V>, V> createLocation(Cache<K, V> cache, K key, V value) {
+		return (tierWeighers.containsKey(cache))?new WeighedLocation<K, V>(cache, value, weigher.weigh(key, value)):createCacheAndValuePair(cache, value);
+	}
+	
+	// Called holding the key-lock. The internal cache of the location adds the weight of the cache-entry, the one it replaces is subtracted
+	private void put(Pair<Cache<K, V>, V> location, K key, Pair<Cache<K, V>, V> oldLocation) {
+		TierWeigher tierWeigher = tierWeighers.get(location._1);
+		if (tierWeigher == null) {
+			location._1.put(key, location._2);
+			return;
 		}
+		V replaced;
+		tierWeigher.nextWeight.set(((WeighedLocation<K, V>)location).weight);
+		try {
+			replaced = location._1.asMap().put(key, location._2);
+		} finally {
+			tierWeigher.nextWeight.remove();
+		}
+		if (replaced != null) tierWeigher.removed(key, replaced, oldLocation);
+	}
+	
+	// Called holding the key-lock
+	private void remove(Cache<K, V> cache, K key, Pair<Cache<K, V>, V> oldLocation) {
+		TierWeigher tierWeigher = tierWeighers.get(cache);
+		if (tierWeigher == null) {
+			cache.invalidate(key);
+			return;
+		}
+		V removed = cache.asMap().remove(key);
+		if (removed != null) tierWeigher.removed(key, removed, oldLocation);
+	}
+	
+	private String tierName(Cache<K, V> cache) {
+		return (names.containsKey(cache))?names.get(cache):DEFAULT_TIER_NAME;
+	}
+	
+	/**
+	 * @return Estimated bytes retained by the cache-entries of each internal cache, by name of the internal cache, the default cache first,
+	 * then the level-caches in level-order. Empty if the cache was not built with a {@link Builder#weigher(Weigher)}
+	 */
+	public Map<String, Long> getEstimatedRetainedBytes() {
+		Map<String, Long> retainedBytes = new LinkedHashMap<String, Long>();
+		for (Cache<K, V> cache : allCaches) {
+			TierWeigher tierWeigher = tierWeighers.get(cache);
+			if (tierWeigher != null) {
+				Long sameNameBytes = retainedBytes.get(tierName(cache));
+				retainedBytes.put(tierName(cache), ((sameNameBytes != null)?sameNameBytes:0) + tierWeigher.getRetainedBytes());
+			}
+		}
+		return retainedBytes;
+	}
+	
+	@Override
+	MetricsRecorder createMetricsRecorder() {
+		List<String> tierNames = new ArrayList<String>(allCaches.size());
+		Map<Cache<?, ?>, AtomicLong> retainedBytes = new IdentityHashMap<Cache<?, ?>, AtomicLong>();
+		for (Cache<K, V> cache : allCaches) {
+			tierNames.add(tierName(cache));
+			if (tierWeighers.containsKey(cache)) retainedBytes.put(cache, tierWeighers.get(cache).retainedBytes);
+		}
+		// Level-caches come last, see collectAllCaches
+		return new MetricsRecorder(allCaches, tierNames, allCaches.size() - cacheIndex.getValues().size(), trackedCaches, retainedBytes);
+	}
+	
+	@Override
+	protected List<Cache<K, V>> collectAllCaches() {
+		List<Cache<K, V>> allCaches = super.collectAllCaches();
+		allCaches.addAll(cacheIndex.getValues());
 		return allCaches;
 	}
+	
+	@Override
+	protected Iterable<Map.Entry<K, V>> getAllEntries() {
+		if (locations != null) {
+			return Iterables.transform(locations.entrySet(), new Function<Map.Entry<K, Pair<Cache<K, V>, V>>, Map.Entry<K, V>>() {
+
+				@Override
+				public Map.Entry<K, V> apply(Map.Entry<K, Pair<Cache<K, V>, V>> input) {
+					return Maps.immutableEntry(input.getKey(), input.getValue()._2);
+				}
+				
+			});
+		}
+		// A cache-entry moving to another internal cache while iterating can be seen twice (or not at all)
+		List<Iterable<Map.Entry<K, V>>> entries = new ArrayList<Iterable<Map.Entry<K, V>>>();
+		for (Cache<K, V> cache : getAllCaches()) {
+			entries.add(cache.asMap().entrySet());
+		}
+		return Iterables.concat(entries);
+	}
 
+	@Override
+	public V getIfPresent(K key) {
+		V value;
+		if (locations == null) {
+			value = super.getIfPresent(key);
+		} else {
+			Pair<Cache<K, V>, V> location = locations.get(key);
+			value = (location != null)?location._1.getIfPresent(key):null;
+			if (metrics != null) recordLookup(location, value);
+		}
+		if (levelTuner != null && value != null) recordAccess(key, value, true);
+		return value;
+	}
+	
+	/**
+	 * See {@link ChangingValueCache#getAllPresent(Iterable)}. When the location of cache-entries is tracked, each internal cache is
+	 * looked up once, in bulk, for the keys located in it
+	 */
+	@Override
+	public Map<K, V> getAllPresent(Iterable<? extends K> keys) {
+		Map<K, V> values;
+		if (locations == null) {
+			values = super.getAllPresent(keys);
+		} else {
+			Map<Cache<K, V>, List<K>> keysByCache = new IdentityHashMap<Cache<K, V>, List<K>>();
+			int notLocated = 0;
+			for (K key : Sets.newLinkedHashSet(keys)) {
+				Pair<Cache<K, V>, V> location = locations.get(key);
+				if (location == null) {
+					notLocated++;
+					continue;
+				}
+				List<K> cacheKeys = keysByCache.get(location._1);
+				if (cacheKeys == null) {
+					cacheKeys = new ArrayList<K>();
+					keysByCache.put(location._1, cacheKeys);
+				}
+				cacheKeys.add(key);
+			}
+			values = new HashMap<K, V>();
+			int misses = notLocated;
+			for (Map.Entry<Cache<K, V>, List<K>> cacheKeys : keysByCache.entrySet()) {
+				Map<K, V> found = cacheKeys.getKey().getAllPresent(cacheKeys.getValue());
+				values.putAll(found);
+				// Moved or removed since located
+				int notFound = cacheKeys.getValue().size() - found.size();
+				misses += notFound;
+				if (metrics != null) {
+					metrics.hits(cacheKeys.getKey(), found.size());
+					metrics.tierMisses(cacheKeys.getKey(), notFound);
+				}
+			}
+			if (metrics != null) metrics.misses(misses);
+		}
+		if (levelTuner != null) {
+			for (Map.Entry<K, V> entry : values.entrySet()) {
+				recordAccess(entry.getKey(), entry.getValue(), true);
+			}
+		}
+		return values;
+	}
+	
+	private void recordLookup(Pair<Cache<K, V>, V> location, V value) {
+		if (value != null) {
+			metrics.hit(location._1);
+		} else {
+			if (location != null) metrics.tierMiss(location._1);
+			metrics.miss();
+		}
+	}
+	
 	/**
 	 * Get a cache-value and the internal cache it currently lives in of a cache-entry with a provided key
 	 * @param key The key of the cache-entry
 	 * @return The cache-value and the internal cache (or null if not present in cache)
 	 */
 	public Pair<Cache<K, V>, V> getCacheAndValueIfPresent(K key) {
-		for (Cache<K, V> cache : getAllCaches()) {
+		if (locations != null) {
+			Pair<Cache<K, V>, V> location = locations.get(key);
+			V value = (location != null)?location._1.getIfPresent(key):null;
+			if (metrics != null) recordLookup(location, value);
+			if (value == null) return null;
+			return (value == location._2)?location:createCacheAndValuePair(location._1, value);
+		}
+		
+		return probeCacheAndValue(key, metrics);
+	}
+	
+	private Pair<Cache<K, V>, V> probeCacheAndValue(K key, MetricsRecorder metrics) {
+		for (int i = 0; i < allCaches.size(); i++) {
+			Cache<K, V> cache = allCaches.get(i);
 			V value = cache.getIfPresent(key);
-			if (value != null) return createCacheAndValuePair(cache, value);
+			if (value != null) {
+				if (metrics != null) metrics.hit(i);
+				return createCacheAndValuePair(cache, value);
+			}
+			if (metrics != null) metrics.tierMiss(i);
 		}
 		
+		if (metrics != null) metrics.miss();
 		return null;
 	}
 	
+	// Called holding the key-lock. A missing location is double-checked against all internal caches (and repaired), because a
+	// removal-notification for an earlier stay in an internal cache can in rare cases be handled after the cache-entry moved back in
+	private Pair<Cache<K, V>, V> getCacheAndValueForModify(K key) {
+		Pair<Cache<K, V>, V> cacheAndValue = getCacheAndValueIfPresent(key);
+		if (cacheAndValue == null && locations != null) {
+			// Not a lookup of its own
+			cacheAndValue = probeCacheAndValue(key, null);
+			if (cacheAndValue != null) locations.put(key, cacheAndValue);
+		}
+		return cacheAndValue;
+	}
+	
 	protected Pair<Cache<K, V>, V> createCacheAndValuePair(Cache<K, V> cache, V value) {
 		return new Pair<Cache<K, V>, V>(cache, value);
 	}
 	
-	protected Cache<K, V> cacheForLevel(int level) {
-		for (Map.Entry<Interval, Cache<K,V>> entry : caches.entrySet()) {
-			if (entry.getKey().belongsIn(level)) return entry.getValue();
+	// Misses are only recorded when the cache-entry is created - the level of a missing cache-entry is not known before
+	private void recordAccess(K key, V value, boolean hit) {
+		int level = levelCalculator.apply(key, value);
+		if (hit) {
+			levelTuner.hit(level);
+		} else {
+			levelTuner.miss(level);
+		}
+	}
+	
+	/**
+	 * @return The current level-intervals of the added caches, ordered by level
+	 */
+	public List<Interval> getLevelIntervals() {
+		return cacheIndex.getIntervals();
+	}
+	
+	// Tuning holds no reference to the cache between tunings, so that it stops when the cache is no longer used
+	private static <K, V> void scheduleLevelTuning(ChangingValueAndLevelMultiCache<K, V> cache, long periodNanos) {
+		final WeakReference<ChangingValueAndLevelMultiCache<K, V>> cacheReference = new WeakReference<ChangingValueAndLevelMultiCache<K, V>>(cache);
+		final ScheduledExecutorService tuner = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("levelTuner-%d").build());
+		tuner.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				ChangingValueAndLevelMultiCache<K, V> cache = cacheReference.get();
+				if (cache == null) {
+					tuner.shutdown();
+					return;
+				}
+				try {
+					cache.tuneLevels();
+				} catch (RuntimeException e) {
+					// A failing level-calculator or weigher - keep the level-intervals, and try again next period
+				}
+			}
+			
+		}, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Tune the level-intervals now, as done periodically in the background. See {@link Builder#autoTuneLevels(long, TimeUnit, long...)}
+	 * @return Whether the level-intervals changed
+	 */
+	public boolean tuneLevels() {
+		if (levelTuner == null) throw new IllegalStateException("Level-tuning not enabled");
+		synchronized(levelTuner) {
+			double[] sizes = new double[LevelTuner.BUCKETS];
+			long[] entries = new long[LevelTuner.BUCKETS];
+			for (Map.Entry<K, V> entry : getAllEntries()) {
+				int bucket = LevelTuner.bucket(levelCalculator.apply(entry.getKey(), entry.getValue()));
+				entries[bucket]++;
+				sizes[bucket] += (weigher != null)?weigher.weigh(entry.getKey(), entry.getValue()):1;
+			}
+			
+			IntervalIndex<Cache<K, V>> index = cacheIndex;
+			List<Interval> intervals = index.getIntervals();
+			int[] currentLevelFroms = new int[intervals.size() - 1];
+			for (int i = 1; i < intervals.size(); i++) {
+				currentLevelFroms[i-1] = intervals.get(i).getFrom();
+			}
+			int[] levelFroms = levelTuner.tune(intervals.get(0).getFrom(), intervals.get(intervals.size() - 1).getTo(), levelCacheCapacities, sizes, entries, currentLevelFroms);
+			if (levelFroms == null || Arrays.equals(levelFroms, currentLevelFroms)) return false;
+			
+			Map<Interval, Cache<K, V>> newCaches = new HashMap<Interval, Cache<K, V>>();
+			List<Cache<K, V>> levelCaches = index.getValues();
+			for (int i = 0; i < levelCaches.size(); i++) {
+				int from = (i == 0)?intervals.get(0).getFrom():levelFroms[i-1];
+				int to = (i == levelCaches.size() - 1)?intervals.get(i).getTo():(levelFroms[i] - 1);
+				newCaches.put(new Interval(from, to), levelCaches.get(i));
+			}
+			cacheIndex = new IntervalIndex<Cache<K, V>>(newCaches);
+			caches = newCaches;
+			
+			for (Map.Entry<K, V> entry : getAllEntries()) {
+				rehome(entry.getKey());
+			}
+			return true;
 		}
-		return cache;
+	}
+	
+	// Move a cache-entry to the internal cache of its level, if it is not already there. Not a lookup or modification of its own
+	private void rehome(final K key) {
+		keyLocks.withKeyLock(key, new Runnable() {
+			
+			@Override
+			public void run() {
+				rehomeHoldingLock(key);
+			}
+			
+		});
+	}
+	
+	private void rehomeHoldingLock(K key) {
+		Pair<Cache<K, V>, V> cacheAndValue = probeCacheAndValue(key, null);
+		if (cacheAndValue == null) return;
+		Cache<K, V> oldCache = cacheAndValue._1;
+		Cache<K, V> newCache = cacheForLevel(levelCalculator.apply(key, cacheAndValue._2));
+		if (newCache == oldCache) return;
+		if (metrics != null) metrics.moved(oldCache, newCache);
+		Pair<Cache<K, V>, V> oldLocation = (locations != null)?locations.get(key):null;
+		Pair<Cache<K, V>, V> newLocation = createLocation(newCache, key, cacheAndValue._2);
+		put(newLocation, key, null);
+		if (locations != null) locations.put(key, newLocation);
+		remove(oldCache, key, oldLocation);
+	}
+	
+	protected Cache<K, V> cacheForLevel(int level) {
+		Cache<K, V> levelCache = cacheIndex.get(level);
+		return (levelCache != null)?levelCache:cache;
 	}
 
 
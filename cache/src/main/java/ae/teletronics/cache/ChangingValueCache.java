@@ -2,7 +2,30 @@ package ae.teletronics.cache;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.ThreadSafe;
 
@@ -12,9 +35,16 @@ import net.jcip.annotations.ThreadSafe;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
-import com.google.common.collect.Interner;
-import com.google.common.collect.Interners;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Key-value cache, where values can change. Several threads can collaborate in building the values. Therefore put operation has been replaced by
@@ -80,13 +110,102 @@ public class ChangingValueCache<K, V> {
 			return this;
 		}
 		
+		/**
+		 * Set the strategy deciding what modifications of a cache-entry synchronize on (or lock). Default is {@link KeyLocks#interning()}.
+		 * Use {@link KeyLocks#reentrantLocks(int)} when modifying from virtual threads
+		 * @param keyLocks The key-locks to be used
+		 * @return This builder
+		 */
+		public Builder<K, V> keyLocks(KeyLocks keyLocks) {
+			instance.keyLocks = keyLocks;
+			return this;
+		}
+		
+		/**
+		 * Modify without taking any lock. Instead the cache-entry is read, (created,) modified and written back using
+		 * compare-and-set on the internal cache, retrying if another thread changed the cache-entry in the meantime. Only
+		 * supported by the single-tier {@link ChangingValueCache}
+		 * 
+		 * Only use it if values are immutable:
+		 * * Modifiers must return a new value object instead of changing the one they are given
+		 * * New-creators and modifiers may be called several times for the same modify, and must not have side-effects
+		 * 
+		 * @return This builder
+		 */
+		public Builder<K, V> lockFreeModify() {
+			instance.lockFreeModify = true;
+			return this;
+		}
+		
+		/**
+		 * Run new-creators without holding the key-lock, so that a slow new-creator (e.g. loading from a store) does not block modifications
+		 * of other cache-keys sharing the synch-object (see {@link KeyLocks}). Concurrent modifies missing the same cache-key share one load,
+		 * run by the first of them. Each then takes the key-lock, installs the loaded value if the cache-entry is still not present, and
+		 * applies its modifier. If the cache-entry was modified during the load (which may have missed the modification), the loaded value is
+		 * not installed - the new-creator is called again, holding the key-lock, if the cache-entry is not present by then. A load failing
+		 * fails all the modifies sharing it. A modify waiting for a load run by another fails with {@link UncheckedTimeoutException} if the
+		 * load is not done within the timeout - the load goes on, and the modify running it installs its value and applies its modifier.
+		 * Only applies to {@link ChangingValueCache#modify(Object, Supplier, Function, boolean, boolean)} with createIfNotExists, and not
+		 * supported together with {@link #lockFreeModify()}. {@link ChangingValueCache#modifyBatch(Collection, Map, Supplier, Function, boolean)}
+		 * still calls new-creators holding the key-lock, and does not share loads - it only marks loads in flight as possibly having missed
+		 * its modifications
+		 * @param loadTimeout Maximum time a modify waits for a load run by another modify
+		 * @param unit Unit of loadTimeout
+		 * @return This builder
+		 */
+		public Builder<K, V> singleFlightLoads(long loadTimeout, TimeUnit unit) {
+			if (unit.toNanos(loadTimeout) <= 0) throw new IllegalArgumentException("Load timeout must be positive, was " + loadTimeout + " " + unit);
+			instance.loadTimeoutNanos = unit.toNanos(loadTimeout);
+			return this;
+		}
+		
+		/**
+		 * Set the executor running the modifications queued by {@link ChangingValueCache#modifyAsync(Object, Supplier, Function, boolean)}.
+		 * Default is a pool of daemon threads, one per available processor, created when first needed - idle threads end after a minute.
+		 * Set an executor of your own if the modifiers block (e.g. on I/O)
+		 * @param asyncExecutor The executor to be used
+		 * @return This builder
+		 */
+		public Builder<K, V> asyncExecutor(Executor asyncExecutor) {
+			instance.asyncExecutor = asyncExecutor;
+			return this;
+		}
+		
+		/**
+		 * Set the maximum number of modifications queued by {@link ChangingValueCache#modifyAsync(Object, Supplier, Function, boolean)}
+		 * (including the one running) for the same cache-key. Further modifications of the cache-key are rejected until the queue drains.
+		 * Default is no maximum
+		 * @param maxMailboxDepth The maximum number of queued modifications per cache-key
+		 * @return This builder
+		 */
+		public Builder<K, V> maxMailboxDepth(int maxMailboxDepth) {
+			if (maxMailboxDepth < 1) throw new IllegalArgumentException("Max mailbox depth must be at least 1, was " + maxMailboxDepth);
+			instance.maxMailboxDepth = maxMailboxDepth;
+			return this;
+		}
+		
+		/**
+		 * Record metrics - hits, misses, creations, modifications etc. - readable through {@link ChangingValueCache#getMetrics()} and JMX
+		 * (see {@link ChangingValueCache#registerMBeans(String)}). Counters are striped per thread, so that modifying threads do not contend on them.
+		 * Default is not to record metrics
+		 * @return This builder
+		 */
+		public Builder<K, V> recordMetrics() {
+			instance.recordMetrics = true;
+			return this;
+		}
+		
 		/**
 		 * Build the {@link ChangingValueCache} instance
 		 * @return The built {@link ChangingValueCache} instance
 		 */
 		public ChangingValueCache<K, V> build() {
-			if (instance.getAllCaches().size() < 1)
+			instance.allCaches = ImmutableList.copyOf(instance.collectAllCaches());
+			if (instance.allCaches.size() < 1)
 				throw new RuntimeException("No inner cache(s) set");
+			if (instance.lockFreeModify && instance.loadTimeoutNanos > 0)
+				throw new RuntimeException("Single-flight loads not supported with lock-free modify");
+			if (instance.recordMetrics) instance.metrics = instance.createMetricsRecorder();
 			
 			return instance;
 		}
@@ -96,13 +215,29 @@ public class ChangingValueCache<K, V> {
 	protected Supplier<V> defaultNewCreator;
 	protected Function<V, V> defaultModifier;
 	protected Cache<K, V> cache;
-	
-	protected final Interner<Integer> newOrMovingCacheEntryInterner;
+	protected List<Cache<K, V>> allCaches;
+	protected KeyLocks keyLocks = KeyLocks.interning();
+	protected boolean lockFreeModify;
+	protected volatile Executor asyncExecutor;
+	protected int maxMailboxDepth = Integer.MAX_VALUE;
+	protected boolean recordMetrics;
+	// Zero if not doing single-flight loads
+	protected long loadTimeoutNanos;
+	// Loads in flight, see Builder.singleFlightLoads
+	private final ConcurrentMap<K, Load> loads = new ConcurrentHashMap<K, Load>();
+	// Null if not recording metrics
+	MetricsRecorder metrics;
+	private MetricsMBeans mbeans;
+	private final ConcurrentMap<K, Mailbox> mailboxes = new ConcurrentHashMap<K, Mailbox>();
 	
 	protected ChangingValueCache() {
-		newOrMovingCacheEntryInterner = Interners.newWeakInterner();
 	}
 	
+	/**
+	 * Name of the default internal cache in {@link CacheMetrics}
+	 */
+	public static final String DEFAULT_TIER_NAME = "default";
+	
 	/**
 	 * Get a builder for building a {@link ChangingValueCache} instance
 	 * 
@@ -192,10 +327,271 @@ public class ChangingValueCache<K, V> {
 	 * * Will add a small performance-hit
 	 * @return The value now on the cache-entry
 	 */
-	public final V modify(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
-		synchronized(newOrMovingCacheEntryInterner.intern(key.hashCode())) {
-			return modifyImpl(key, newCreator, modifier, createIfNotExists, supportRecursiveCalls);
+	public final V modify(final K key, final Supplier<V> newCreator, final Function<V, V> modifier, final boolean createIfNotExists, final boolean supportRecursiveCalls) {
+		if (lockFreeModify) return modifyLockFree(key, newCreator, modifier, createIfNotExists, supportRecursiveCalls);
+		if (loadTimeoutNanos > 0 && createIfNotExists && alreadyWorkingOn.get() == null && !isPresent(key)) return loadAndModify(key, newCreator, modifier, supportRecursiveCalls);
+		return withKeyLock(key, new Callable<V>() {
+			
+			@Override
+			public V call() {
+				return modifyHoldingLock(key, newCreator, modifier, createIfNotExists, supportRecursiveCalls);
+			}
+			
+		});
+	}
+	
+	// Only unchecked exceptions are thrown by the callables, modifiers and new-creators
+	private V withKeyLock(K key, Callable<V> callable) {
+		try {
+			return keyLocks.withKeyLock(key, callable);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private V modifyHoldingLock(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
+		V value = modifyImpl(key, newCreator, modifier, createIfNotExists, supportRecursiveCalls);
+		if (loadTimeoutNanos > 0) markLoadStale(key);
+		return value;
+	}
+	
+	// See Builder.singleFlightLoads. Called when the cache-entry was not present
+	private V loadAndModify(final K key, final Supplier<V> newCreator, final Function<V, V> modifier, final boolean supportRecursiveCalls) {
+		Load load = loads.get(key);
+		boolean loading = false;
+		if (load == null) {
+			Load newLoad = new Load();
+			load = loads.putIfAbsent(key, newLoad);
+			if (load == null) {
+				load = newLoad;
+				loading = true;
+			}
+		}
+		final V loaded = (loading)?load.run(key, (newCreator != null)?newCreator:defaultNewCreator):load.await(key);
+		final Load sharedLoad = load;
+		return withKeyLock(key, new Callable<V>() {
+			
+			@Override
+			public V call() {
+				return installHoldingLock(key, sharedLoad, loaded, newCreator, modifier, supportRecursiveCalls);
+			}
+			
+		});
+	}
+	
+	private V installHoldingLock(K key, Load load, V loaded, Supplier<V> newCreator, Function<V, V> modifier, boolean supportRecursiveCalls) {
+		// Installed already by another modify sharing the load, or the load may have missed a modification
+		Supplier<V> creator = (load.stale)?newCreator:Suppliers.ofInstance(loaded);
+		load.stale = true;
+		loads.remove(key, load);
+		return modifyEntry(key, creator, modifier, true, supportRecursiveCalls);
+	}
+	
+	// A load in flight may have missed a modification of the cache-entry. Called holding the key-lock
+	private void markLoadStale(K key) {
+		Load load = loads.get(key);
+		if (load != null) load.stale = true;
+	}
+	
+	// Without recording metrics - the modify following records the lookup
+	private boolean isPresent(K key) {
+		for (int i = 0; i < allCaches.size(); i++) {
+			if (allCaches.get(i).getIfPresent(key) != null) return true;
 		}
+		return false;
+	}
+	
+	private class Load {
+		
+		private final SettableFuture<V> result = SettableFuture.create();
+		// Changed holding the key-lock
+		private volatile boolean stale;
+		
+		// The one running the load gets its own result or failure, however long it takes
+		private V run(K key, Supplier<V> creator) {
+			try {
+				V loaded = creator.get();
+				result.set(loaded);
+				return loaded;
+			} catch (RuntimeException e) {
+				failed(key, e);
+				throw e;
+			} catch (Error e) {
+				failed(key, e);
+				throw e;
+			}
+		}
+		
+		private void failed(K key, Throwable t) {
+			loads.remove(key, this);
+			result.setException(t);
+		}
+		
+		private V await(K key) {
+			try {
+				return Uninterruptibles.getUninterruptibly(result, loadTimeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// Only this modify gives up - the load goes on
+				throw new UncheckedTimeoutException("Load for cache-key " + key + " not done within " + TimeUnit.NANOSECONDS.toMillis(loadTimeoutNanos) + " ms");
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof Error) throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Calling {@link #modifyAsync(Object, Supplier, Function, boolean)} (and returning value from) with
+	 * * key (K) Provided key
+	 * * newCreator (Supplier{@literal <V>}) Provided new-creator
+	 * * modifier (Function{@literal <V, V>}) Provided modifier
+	 * * createIfNotExists (boolean) true
+	 * 
+	 * @param key To be forwarded to modifyAsync call
+	 * @param newCreator To be forwarded to modifyAsync call
+	 * @param modifier To be forwarded to modifyAsync call
+	 * @return The future value on the cache-entry
+	 */
+	public final ListenableFuture<V> modifyAsync(K key, Supplier<V> newCreator, Function<V, V> modifier) {
+		return modifyAsync(key, newCreator, modifier, true);
+	}
+	
+	/**
+	 * Queue a {@link #modify(Object, Supplier, Function, boolean)} of a cache-entry, without waiting for it to happen. Queued modifications
+	 * of the same cache-key are done one at a time, in the order they were queued, on the executor set by {@link Builder#asyncExecutor(Executor)}.
+	 * If the executor rejects running them, the modifications queued for the cache-key are failed with its {@link RejectedExecutionException}
+	 * @param key To be forwarded to modify call
+	 * @param newCreator To be forwarded to modify call
+	 * @param modifier To be forwarded to modify call
+	 * @param createIfNotExists To be forwarded to modify call
+	 * @return The future value on the cache-entry - when modified. Failed with {@link RejectedExecutionException} if already
+	 * {@link Builder#maxMailboxDepth(int)} modifications are queued for the cache-key, or if the executor rejects running it
+	 */
+	public final ListenableFuture<V> modifyAsync(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists) {
+		AsyncModification modification = new AsyncModification(key, newCreator, modifier, createIfNotExists);
+		while (true) {
+			Mailbox mailbox = mailboxes.get(key);
+			if (mailbox == null) {
+				Mailbox newMailbox = new Mailbox(key);
+				mailbox = mailboxes.putIfAbsent(key, newMailbox);
+				if (mailbox == null) mailbox = newMailbox;
+			}
+			
+			int size = mailbox.size.get();
+			if (size < 0) {
+				// Closed by its last drain - make room for a new one
+				mailboxes.remove(key, mailbox);
+			} else if (size >= maxMailboxDepth) {
+				return Futures.immediateFailedFuture(new RejectedExecutionException(size + " modifications already queued for cache-key " + key));
+			} else if (mailbox.size.compareAndSet(size, size + 1)) {
+				mailbox.queue.add(modification);
+				// Unless a drain is already scheduled - it sees the modification before it ends
+				if (mailbox.scheduled.compareAndSet(false, true)) mailbox.schedule();
+				return modification.result;
+			}
+		}
+	}
+	
+	private Executor getAsyncExecutor() {
+		Executor executor = asyncExecutor;
+		if (executor == null) {
+			synchronized(mailboxes) {
+				executor = asyncExecutor;
+				if (executor == null) {
+					int threads = Runtime.getRuntime().availableProcessors();
+					// At most one drain per mailbox is queued, so the queue is bounded by the number of cache-keys with modifications queued
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("modifyAsync-%d").build());
+					pool.allowCoreThreadTimeOut(true);
+					executor = pool;
+					asyncExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	private class AsyncModification {
+		
+		private final K key;
+		private final Supplier<V> newCreator;
+		private final Function<V, V> modifier;
+		private final boolean createIfNotExists;
+		private final SettableFuture<V> result = SettableFuture.create();
+		
+		private AsyncModification(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists) {
+			this.key = key;
+			this.newCreator = newCreator;
+			this.modifier = modifier;
+			this.createIfNotExists = createIfNotExists;
+		}
+		
+		private void run() {
+			try {
+				result.set(modify(key, newCreator, modifier, createIfNotExists));
+			} catch (Throwable t) {
+				result.setException(t);
+			}
+		}
+		
+	}
+	
+	// Queued modifications of a cache-key. Size counts modifications queued (counted before added to the queue) and running, and is -1
+	// when closed (removed from mailboxes). Only one drain of a mailbox is scheduled at a time - by the one setting scheduled, or by the
+	// drain itself to give other mailboxes a turn
+	private class Mailbox implements Runnable {
+		
+		private static final int MAX_DRAIN = 64;
+		
+		private final K key;
+		private final Queue<AsyncModification> queue = new ConcurrentLinkedQueue<AsyncModification>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		
+		private Mailbox(K key) {
+			this.key = key;
+		}
+		
+		private void schedule() {
+			try {
+				getAsyncExecutor().execute(this);
+			} catch (RejectedExecutionException e) {
+				// Not run by the scheduling thread - it may be queueing a modification of another cache-key, or be a drain itself
+				drain(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			drain(null);
+		}
+
+		// Runs the queued modifications - or fails them, if the executor rejected running them
+		private void drain(RejectedExecutionException rejection) {
+			int drained = 0;
+			while (true) {
+				AsyncModification modification;
+				while ((modification = queue.poll()) != null) {
+					if (rejection == null) modification.run();
+					else modification.result.setException(rejection);
+					size.decrementAndGet();
+					if (rejection == null && ++drained == MAX_DRAIN) {
+						schedule();
+						return;
+					}
+				}
+				scheduled.set(false);
+				// Added after the queue was found empty, but before scheduled was cleared - the one adding it did not schedule a drain.
+				// Counted but not yet added ones will schedule a drain themselves
+				if (queue.isEmpty() || !scheduled.compareAndSet(false, true)) break;
+			}
+			if (size.compareAndSet(0, -1)) mailboxes.remove(key, this);
+		}
+		
 	}
 	
 	/**
@@ -253,66 +649,397 @@ public class ChangingValueCache<K, V> {
 		}
 	}
 	
+	/**
+	 * Same as {@link #modifyAll(Predicate, Predicate, Function, boolean)}, but the selected set of cache-entries is partitioned by
+	 * cache-key hash (the same way {@link KeyLocks#striped(int)} spreads them over stripes), and the partitions are modified in parallel.
+	 * The selected set is collected before anything is modified, so each cache-entry in it is modified at most once, also if it moves
+	 * between internal caches meanwhile. The value-predicate is evaluated again just before modifying, and the cache-entry is left alone
+	 * if it no longer accepts
+	 * 
+	 * @param keyPredicate See {@link #modifyAll(Predicate, Predicate, Function, boolean)}
+	 * @param valuePredicate See {@link #modifyAll(Predicate, Predicate, Function, boolean)}
+	 * @param modifier See {@link #modifyAll(Predicate, Predicate, Function, boolean)}
+	 * @param supportRecursiveCalls See {@link #modifyAll(Predicate, Predicate, Function, boolean)}
+	 * @param executor Executes the modification of the partitions. Should not be one that the modifier itself waits for - the calling
+	 * thread waits for all partitions to complete
+	 * @return How many cache-entries were selected and modified
+	 */
+	public final ModifyAllResult parallelModifyAll(Predicate<K> keyPredicate, final Predicate<V> valuePredicate, final Function<V, V> modifier, final boolean supportRecursiveCalls, Executor executor) {
+		int partitions = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 4;
+		// Select cache-keys before modifying anything. Sets, because a cache-entry moving between internal caches can be seen twice
+		List<Set<K>> partitionKeys = new ArrayList<Set<K>>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			partitionKeys.add(new LinkedHashSet<K>());
+		}
+		long matched = 0;
+		for (Map.Entry<K, V> entry : getAllEntries()) {
+			if ((keyPredicate == null || keyPredicate.apply(entry.getKey())) &&
+				(valuePredicate == null || valuePredicate.apply(entry.getValue()))) {
+				if (partitionKeys.get(KeyLocks.spread(entry.getKey().hashCode()) & (partitions - 1)).add(entry.getKey())) matched++;
+			}
+		}
+		
+		final AtomicLong modified = new AtomicLong();
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(partitions);
+		for (final Set<K> keys : partitionKeys) {
+			if (keys.isEmpty()) continue;
+			FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+
+				@Override
+				public void run() {
+					StillMatchingModifier stillMatchingModifier = new StillMatchingModifier(valuePredicate, modifier);
+					for (K key : keys) {
+						stillMatchingModifier.applied = false;
+						modify(key, null, stillMatchingModifier, false, supportRecursiveCalls);
+						if (stillMatchingModifier.applied) modified.incrementAndGet();
+					}
+				}
+				
+			}, null);
+			tasks.add(task);
+			executor.execute(task);
+		}
+		
+		RuntimeException failure = null;
+		for (FutureTask<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (ExecutionException e) {
+				if (failure == null) failure = (e.getCause() instanceof RuntimeException)?(RuntimeException)e.getCause():new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) failure = new RuntimeException(e);
+			}
+		}
+		if (failure != null) throw failure;
+		
+		return new ModifyAllResult(matched, modified.get());
+	}
+	
+	private class StillMatchingModifier implements Function<V, V> {
+		
+		private final Predicate<V> valuePredicate;
+		private final Function<V, V> modifier;
+		private boolean applied;
+		
+		private StillMatchingModifier(Predicate<V> valuePredicate, Function<V, V> modifier) {
+			this.valuePredicate = valuePredicate;
+			this.modifier = modifier;
+		}
+
+		@Override
+		public V apply(V input) {
+			applied = valuePredicate == null || valuePredicate.apply(input);
+			if (!applied) return input;
+			return ((modifier != null)?modifier:defaultModifier).apply(input);
+		}
+		
+	}
+	
+	/**
+	 * @return All cache-entries. A cache-entry present (in the same internal cache) during the entire iteration is seen exactly once
+	 */
+	protected Iterable<Map.Entry<K, V>> getAllEntries() {
+		return cache.asMap().entrySet();
+	}
+	
 	protected ThreadLocal<V> alreadyWorkingOn = new ThreadLocal<V>();
 	protected V modifyImpl(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
 		V value = alreadyWorkingOn.get();
 		if (value != null) {
 			V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
 			if (newValue != value) throw new RuntimeException("Modifier called modify with a modifier that replaced value object with another value object");
-		} else {
-			value = getIfPresent(key);
-			
-			boolean created = false;
-			if (value == null) {
-				if (createIfNotExists) {
-					value = ((newCreator != null)?newCreator:defaultNewCreator).get();
-					created = true;
-				}
-			}
+			return value;
+		}
+		
+		return modifyEntry(key, newCreator, modifier, createIfNotExists, supportRecursiveCalls);
+	}
 	
-			if (value != null) {
-				if (supportRecursiveCalls) alreadyWorkingOn.set(value);
-				try {
-					V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
-					
-					if (newValue == null) {
-						cache.invalidate(key);
-					} else {
-						if (created || newValue != value) {
-							cache.put(key, newValue);
-						}
+	// Called holding the key-lock, when not called recursively from a modifier
+	protected V modifyEntry(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
+		V value = getIfPresent(key);
+		
+		boolean created = false;
+		if (value == null) {
+			if (createIfNotExists) {
+				value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				created = true;
+			}
+		}
+
+		if (value != null) {
+			if (supportRecursiveCalls) alreadyWorkingOn.set(value);
+			try {
+				V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+				
+				if (newValue == null) {
+					cache.invalidate(key);
+				} else {
+					if (created || newValue != value) {
+						cache.put(key, newValue);
 					}
-					value = newValue;
-				} finally {
-					if (supportRecursiveCalls) alreadyWorkingOn.remove();
 				}
+				if (metrics != null) metrics.modified(created, !created && newValue == null);
+				value = newValue;
+			} finally {
+				if (supportRecursiveCalls) alreadyWorkingOn.remove();
 			}
 		}
 		
 		return value;
 	}
 	
+	/**
+	 * Calling {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)} (and returning value from) with
+	 * * keys (Collection{@literal <K>}) Provided keys
+	 * * modifiers (Map{@literal <K, Function<V, V>>}) null
+	 * * newCreator (Supplier{@literal <V>}) Provided new-creator
+	 * * modifier (Function{@literal <V, V>}) Provided modifier
+	 * * createIfNotExists (boolean) Provided createIfNotExists
+	 * 
+	 * @param keys To be forwarded to modifyBatch call
+	 * @param newCreator To be forwarded to modifyBatch call
+	 * @param modifier To be forwarded to modifyBatch call
+	 * @param createIfNotExists To be forwarded to modifyBatch call
+	 * @return The values now on the cache-entries
+	 */
+	public final Map<K, V> modifyBatch(Collection<K> keys, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists) {
+		return modifyBatch(keys, null, newCreator, modifier, createIfNotExists);
+	}
+	
+	/**
+	 * Calling {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)} (and returning value from) with
+	 * * keys (Collection{@literal <K>}) The keys of provided modifiers
+	 * * modifiers (Map{@literal <K, Function<V, V>>}) Provided modifiers
+	 * * newCreator (Supplier{@literal <V>}) Provided new-creator
+	 * * modifier (Function{@literal <V, V>}) null
+	 * * createIfNotExists (boolean) Provided createIfNotExists
+	 * 
+	 * @param modifiers To be forwarded to modifyBatch call
+	 * @param newCreator To be forwarded to modifyBatch call
+	 * @param createIfNotExists To be forwarded to modifyBatch call
+	 * @return The values now on the cache-entries
+	 */
+	public final Map<K, V> modifyBatch(Map<K, Function<V, V>> modifiers, Supplier<V> newCreator, boolean createIfNotExists) {
+		return modifyBatch(modifiers.keySet(), modifiers, newCreator, null, createIfNotExists);
+	}
+	
+	/**
+	 * Same as calling {@link #modify(Object, Supplier, Function, boolean)} for each of the provided keys, but keys sharing synch-object
+	 * (see {@link KeyLocks}) are modified together under one lock acquisition. Only makes a real difference with {@link KeyLocks#striped(int)},
+	 * where many keys share synch-object. Cache-entries are not modified in any particular order
+	 * 
+	 * @param keys Keys for cache-entries. Each distinct key is modified once
+	 * @param modifiers Per-key modifiers. A key without one (or if null) uses provided modifier
+	 * @param newCreator Used to generate new cache-values, for those that do not already exist (if null default new-creator will be used)
+	 * @param modifier Used to modify cache-values (if null default modifier will be used)
+	 * @param createIfNotExists Create the entries if they do not already exist
+	 * @return The values now on the cache-entries, in the order of provided keys (null for cache-entries not present)
+	 */
+	public final Map<K, V> modifyBatch(Collection<K> keys, final Map<K, Function<V, V>> modifiers, final Supplier<V> newCreator, final Function<V, V> modifier, final boolean createIfNotExists) {
+		final Map<K, V> results = new LinkedHashMap<K, V>();
+		if (lockFreeModify || alreadyWorkingOn.get() != null) {
+			// Nothing to amortize
+			for (K key : keys) {
+				if (!results.containsKey(key)) results.put(key, modify(key, newCreator, modifierFor(key, modifiers, modifier), createIfNotExists, false));
+			}
+			return results;
+		}
+		
+		Map<Object, List<K>> groups = new IdentityHashMap<Object, List<K>>();
+		for (K key : keys) {
+			if (results.containsKey(key)) continue;
+			results.put(key, null);
+			Object synchObject = keyLocks.getSynchObject(key);
+			List<K> group = groups.get(synchObject);
+			if (group == null) {
+				group = new ArrayList<K>();
+				groups.put(synchObject, group);
+			}
+			group.add(key);
+		}
+		
+		for (Map.Entry<Object, List<K>> group : groups.entrySet()) {
+			final List<K> groupKeys = group.getValue();
+			keyLocks.withKeyLock(groupKeys.get(0), new Runnable() {
+				
+				@Override
+				public void run() {
+					modifyGroupHoldingLock(groupKeys, modifiers, newCreator, modifier, createIfNotExists, results);
+				}
+				
+			});
+		}
+		return results;
+	}
+	
+	private void modifyGroupHoldingLock(List<K> keys, Map<K, Function<V, V>> modifiers, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, Map<K, V> results) {
+		modifyGroup(keys, modifiers, newCreator, modifier, createIfNotExists, results);
+		if (loadTimeoutNanos > 0) {
+			for (K key : keys) {
+				markLoadStale(key);
+			}
+		}
+	}
+	
+	/**
+	 * Modify a group of cache-entries, called holding their (shared) key-lock
+	 * @param keys Keys for the cache-entries
+	 * @param modifiers See {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)}
+	 * @param newCreator See {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)}
+	 * @param modifier See {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)}
+	 * @param createIfNotExists See {@link #modifyBatch(Collection, Map, Supplier, Function, boolean)}
+	 * @param results The value now on each of the cache-entries is to be put here
+	 */
+	protected void modifyGroup(List<K> keys, Map<K, Function<V, V>> modifiers, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, Map<K, V> results) {
+		for (int i = 0; i < keys.size(); i++) {
+			K key = keys.get(i);
+			results.put(key, modifyEntry(key, newCreator, modifierFor(key, modifiers, modifier), createIfNotExists, false));
+		}
+	}
+	
+	protected static <K, V> Function<V, V> modifierFor(K key, Map<K, Function<V, V>> modifiers, Function<V, V> modifier) {
+		Function<V, V> keyModifier = (modifiers != null)?modifiers.get(key):null;
+		return (keyModifier != null)?keyModifier:modifier;
+	}
+	
+	// See Builder.lockFreeModify
+	private V modifyLockFree(K key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists, boolean supportRecursiveCalls) {
+		V value = alreadyWorkingOn.get();
+		if (value != null) {
+			V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+			if (newValue != value) throw new RuntimeException("Modifier called modify with a modifier that replaced value object with another value object");
+			return value;
+		}
+		
+		ConcurrentMap<K, V> map = cache.asMap();
+		while (true) {
+			V currentValue = getIfPresent(key);
+			value = currentValue;
+			if (value == null) {
+				if (!createIfNotExists) return null;
+				value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				if (value == null) return null;
+			}
+			
+			V newValue;
+			if (supportRecursiveCalls) alreadyWorkingOn.set(value);
+			try {
+				newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+			} finally {
+				if (supportRecursiveCalls) alreadyWorkingOn.remove();
+			}
+			
+			boolean written;
+			if (currentValue == null) {
+				written = newValue == null || map.putIfAbsent(key, newValue) == null;
+			} else if (newValue == null) {
+				written = map.remove(key, currentValue);
+			} else {
+				written = newValue == currentValue || map.replace(key, currentValue, newValue);
+			}
+			if (written) {
+				if (metrics != null) metrics.modified(currentValue == null, currentValue != null && newValue == null);
+				return newValue;
+			}
+			// Another thread changed the cache-entry in the meantime - start over
+		}
+	}
+	
+	/**
+	 * @return The internal caches, collected when the cache is built. Immutable
+	 */
 	protected Collection<Cache<K, V>> getAllCaches() {
-		Collection<Cache<K, V>> allCaches = new ArrayList<Cache<K, V>>();
+		return allCaches;
+	}
+	
+	/**
+	 * @return The internal caches - called once when the cache is built
+	 */
+	protected List<Cache<K, V>> collectAllCaches() {
+		List<Cache<K, V>> allCaches = new ArrayList<Cache<K, V>>();
 		if (cache != null) {
 			allCaches.add(cache);
 		}
 		return allCaches;
 	}
 	
+	MetricsRecorder createMetricsRecorder() {
+		return new MetricsRecorder(allCaches, ImmutableList.of(DEFAULT_TIER_NAME), allCaches.size(), Collections.<Cache<?, ?>>emptySet(), Collections.<Cache<?, ?>, AtomicLong>emptyMap());
+	}
+	
+	/**
+	 * @return Snapshot of the metrics recorded. See {@link Builder#recordMetrics()}
+	 */
+	public CacheMetrics getMetrics() {
+		if (metrics == null) throw new RuntimeException("Metrics not recorded");
+		return metrics.snapshot();
+	}
+	
+	/**
+	 * Register {@link CacheMetricsMXBean} for the cache, and {@link TierMetricsMXBean} for each of its internal caches, on the platform MBean-server:
+	 * * ae.teletronics.cache:type=ChangingValueCache,name=[name]
+	 * * ae.teletronics.cache:type=ChangingValueCache,name=[name],tier=[tier-name]
+	 * 
+	 * Only possible when recording metrics. See {@link Builder#recordMetrics()}
+	 * @param name Name of the cache
+	 */
+	public synchronized void registerMBeans(String name) {
+		if (metrics == null) throw new RuntimeException("Metrics not recorded");
+		if (mbeans != null) throw new RuntimeException("MBeans already registered");
+		mbeans = new MetricsMBeans(this, name);
+	}
+	
+	/**
+	 * Unregister the MBeans registered by {@link #registerMBeans(String)}
+	 */
+	public synchronized void unregisterMBeans() {
+		if (mbeans != null) {
+			mbeans.unregister();
+			mbeans = null;
+		}
+	}
+	
 	/**
 	 * Get a cache-value of a cache-entry with a provided key
 	 * @param key The key of the cache-entry
 	 * @return The cache-value (or null if not present in cache)
 	 */
 	public V getIfPresent(K key) {
-		for (Cache<K, V> cache : getAllCaches()) {
-			V value = cache.getIfPresent(key);
-			if (value != null) return value;
+		for (int i = 0; i < allCaches.size(); i++) {
+			V value = allCaches.get(i).getIfPresent(key);
+			if (value != null) {
+				if (metrics != null) metrics.hit(i);
+				return value;
+			}
+			if (metrics != null) metrics.tierMiss(i);
 		}
+		if (metrics != null) metrics.miss();
 		return null;
 	}
 
+	/**
+	 * Get the cache-values of cache-entries with provided keys. Each internal cache is looked up once, in bulk, for the keys not found
+	 * in the internal caches before it
+	 * @param keys The keys of the cache-entries
+	 * @return The keys and cache-values of the cache-entries present in cache
+	 */
+	public Map<K, V> getAllPresent(Iterable<? extends K> keys) {
+		Map<K, V> values = new HashMap<K, V>();
+		Set<K> remaining = Sets.newLinkedHashSet(keys);
+		for (int i = 0; i < allCaches.size() && !remaining.isEmpty(); i++) {
+			Map<K, V> found = allCaches.get(i).getAllPresent(remaining);
+			if (metrics != null) {
+				metrics.hits(i, found.size());
+				metrics.tierMisses(i, remaining.size() - found.size());
+			}
+			values.putAll(found);
+			remaining.removeAll(found.keySet());
+		}
+		if (metrics != null) metrics.misses(remaining.size());
+		return values;
+	}
+
 	/**
 	 * @return Number of cache-entries in the cache
 	 */
@@ -0,0 +1,94 @@
+package ae.teletronics.cache;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * Segment of an open-addressing (linear probing) hash-table holding a bounded number of entries. When full, an entry is evicted using
+ * the CLOCK algorithm - an approximation of LRU, where the clock-hand spares entries used since it last passed them. Removing an entry
+ * shifts the entries following it back, so that no tombstones are needed
+ *
+ * Subclasses hold keys and values in arrays of their own, indexed by slot. Callers synchronize on the segment
+ */
+@NotThreadSafe
+abstract class ClockSegment {
+
+	protected final int mask;
+	protected final int maxSize;
+	protected final boolean[] referenced;
+	protected int size;
+	private int hand;
+
+	/**
+	 * @param maxSize Maximum number of entries. The table is sized to be at most 75% full
+	 */
+	ClockSegment(int maxSize) {
+		this.maxSize = maxSize;
+		int minimumCapacity = Math.max(2, maxSize + maxSize / 3 + 1);
+		int capacity = Integer.highestOneBit(minimumCapacity);
+		if (capacity < minimumCapacity) capacity <<= 1;
+		mask = capacity - 1;
+		referenced = new boolean[capacity];
+	}
+
+	protected abstract boolean isEmpty(int slot);
+
+	/**
+	 * @return Hash of the key in the (non-empty) slot
+	 */
+	protected abstract int hash(int slot);
+
+	/**
+	 * Copy key and value from one slot to another
+	 */
+	protected abstract void move(int fromSlot, int toSlot);
+
+	protected abstract void clear(int slot);
+
+	/**
+	 * Make room for one more entry, evicting one if full
+	 */
+	protected final void ensureRoom() {
+		while (size >= maxSize) {
+			int slot = hand;
+			hand = (hand + 1) & mask;
+			if (isEmpty(slot)) continue;
+			if (referenced[slot]) {
+				referenced[slot] = false;
+			} else {
+				remove(slot);
+			}
+		}
+	}
+
+	/**
+	 * @param hash Hash of a key not in the segment
+	 * @return The slot to put the key in. Call {@link #ensureRoom()} first
+	 */
+	protected final int emptySlot(int hash) {
+		int slot = hash & mask;
+		while (!isEmpty(slot)) {
+			slot = (slot + 1) & mask;
+		}
+		size++;
+		return slot;
+	}
+
+	protected final void remove(int slot) {
+		clear(slot);
+		referenced[slot] = false;
+		size--;
+		int empty = slot;
+		for (int i = (slot + 1) & mask; !isEmpty(i); i = (i + 1) & mask) {
+			// Entries that would not be found from their home-slot with the empty slot in between are moved into it
+			int home = hash(i) & mask;
+			if (((i - home) & mask) >= ((i - empty) & mask)) {
+				move(i, empty);
+				referenced[empty] = referenced[i];
+				clear(i);
+				referenced[i] = false;
+				empty = i;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package ae.teletronics.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Strategy deciding which object a modification of a particular cache-key synchronizes on. Two cache-keys getting the same
+ * synch-object will never be modified concurrently
+ *
+ * Use {@link #interning()} for one synch-object per distinct cache-key hash-code, or {@link #striped(int)} for a fixed set
+ * of synch-objects shared among all cache-keys. Both are synchronized on (monitors). Use {@link #reentrantLocks(int)} for a fixed
+ * set of {@link ReentrantLock}s instead - e.g. when modifying from virtual threads, which a monitor pins to their carrier thread
+ * (on JDKs before 24) while held, so that modifiers blocking on I/O stall the carrier pool
+ */
+@ThreadSafe
+public abstract class KeyLocks {
+
+	/**
+	 * Synch-objects are Integers representing the hash-code of the cache-key, interned using a weak interner. Cache-keys only
+	 * share synch-object if they have the same hash-code, but every lookup boxes the hash-code and goes through the interner
+	 *
+	 * @return The key-locks
+	 */
+	public static KeyLocks interning() {
+		return new InterningKeyLocks();
+	}
+
+	/**
+	 * A fixed number of pre-allocated synch-objects (stripes). Getting the synch-object for a cache-key allocates nothing,
+	 * but cache-keys with different hash-codes can share stripe. Remember that when modifiers (directly or indirectly) modify
+	 * other cache-keys
+	 *
+	 * @param minimumStripes Minimum number of stripes. Rounded up to the nearest power of two
+	 * @return The key-locks
+	 */
+	public static KeyLocks striped(int minimumStripes) {
+		return new StripedKeyLocks(minimumStripes);
+	}
+
+	/**
+	 * Same striping as {@link #striped(int)}, but the stripes are {@link ReentrantLock}s, to be locked instead of synchronized on.
+	 * Threads waiting for a lock park instead of blocking on a monitor, so virtual threads holding or waiting for one are not pinned
+	 * to their carrier thread
+	 *
+	 * @param minimumStripes Minimum number of stripes. Rounded up to the nearest power of two
+	 * @return The key-locks
+	 */
+	public static KeyLocks reentrantLocks(int minimumStripes) {
+		return new ReentrantKeyLocks(minimumStripes);
+	}
+
+	/**
+	 * @param key The cache-key
+	 * @return The object to synchronize on when modifying the cache-entry with the provided key - the lock, if {@link #getLock(Object)}
+	 * returns one
+	 */
+	public abstract Object getSynchObject(Object key);
+
+	/**
+	 * @param key The cache-key
+	 * @return The lock to lock when modifying the cache-entry with the provided key, or null if modifications synchronize on
+	 * {@link #getSynchObject(Object)}
+	 */
+	public Lock getLock(Object key) {
+		return null;
+	}
+
+	/**
+	 * Call provided callable holding the key-lock of provided cache-key - locking {@link #getLock(Object)}, or synchronizing on
+	 * {@link #getSynchObject(Object)} if there is no lock
+	 * @param key The cache-key
+	 * @param callable To be called holding the key-lock
+	 * @return The value returned by provided callable
+	 * @throws Exception The exception thrown by provided callable
+	 */
+	public final <T> T withKeyLock(Object key, Callable<T> callable) throws Exception {
+		Lock lock = getLock(key);
+		if (lock == null) {
+			synchronized(getSynchObject(key)) {
+				return callable.call();
+			}
+		}
+		lock.lock();
+		try {
+			return callable.call();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #withKeyLock(Object, Callable)}, but running a runnable
+	 * @param key The cache-key
+	 * @param runnable To be run holding the key-lock
+	 */
+	public final void withKeyLock(Object key, Runnable runnable) {
+		Lock lock = getLock(key);
+		if (lock == null) {
+			synchronized(getSynchObject(key)) {
+				runnable.run();
+			}
+			return;
+		}
+		lock.lock();
+		try {
+			runnable.run();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Spreads the bits of a hash-code, so that hash-codes differing only in their high bits still end up in different stripes
+	 * (murmur3 finalizer)
+	 */
+	static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int numberOfStripes(int minimumStripes) {
+		if (minimumStripes < 1 || minimumStripes > (1 << 30)) throw new IllegalArgumentException("Number of stripes must be between 1 and 2^30, was " + minimumStripes);
+		int numberOfStripes = Integer.highestOneBit(minimumStripes);
+		return (numberOfStripes < minimumStripes)?(numberOfStripes << 1):numberOfStripes;
+	}
+
+	private static class InterningKeyLocks extends KeyLocks {
+
+		private final Interner<Integer> interner = Interners.newWeakInterner();
+
+		@Override
+		public Object getSynchObject(Object key) {
+			return interner.intern(key.hashCode());
+		}
+
+	}
+
+	private static class StripedKeyLocks extends KeyLocks {
+
+		// Padded so that neighbouring stripes do not end up sharing cache-line when locked
+		@SuppressWarnings("unused")
+		private static class Stripe {
+			private long p1, p2, p3, p4, p5, p6, p7;
+		}
+
+		private final Stripe[] stripes;
+		private final int mask;
+
+		private StripedKeyLocks(int minimumStripes) {
+			int numberOfStripes = numberOfStripes(minimumStripes);
+			stripes = new Stripe[numberOfStripes];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new Stripe();
+			}
+			mask = numberOfStripes - 1;
+		}
+
+		@Override
+		public Object getSynchObject(Object key) {
+			return stripes[spread(key.hashCode()) & mask];
+		}
+
+	}
+
+	private static class ReentrantKeyLocks extends KeyLocks {
+
+		// Padded so that neighbouring stripes do not end up sharing cache-line when locked
+		@SuppressWarnings({"serial", "unused"})
+		private static class Stripe extends ReentrantLock {
+			private long p1, p2, p3, p4, p5, p6, p7;
+		}
+
+		private final Stripe[] stripes;
+		private final int mask;
+
+		private ReentrantKeyLocks(int minimumStripes) {
+			int numberOfStripes = numberOfStripes(minimumStripes);
+			stripes = new Stripe[numberOfStripes];
+			for (int i = 0; i < stripes.length; i++) {
+				stripes[i] = new Stripe();
+			}
+			mask = numberOfStripes - 1;
+		}
+
+		@Override
+		public Object getSynchObject(Object key) {
+			return getLock(key);
+		}
+
+		@Override
+		public Lock getLock(Object key) {
+			return stripes[spread(key.hashCode()) & mask];
+		}
+
+	}
+
+}
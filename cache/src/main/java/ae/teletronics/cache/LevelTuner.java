@@ -0,0 +1,181 @@
+package ae.teletronics.cache;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Records accesses per level, and from those (and the current number of cache-entries per level) calculates the level-intervals
+ * of a number of level-caches with given capacities, that maximize the expected number of hits. See
+ * {@link ChangingValueAndLevelMultiCache.Builder#autoTuneLevels(long, java.util.concurrent.TimeUnit, long...)}
+ *
+ * Levels are grouped in buckets - one per level below {@link #EXACT_LEVELS}, and above that four per power of two - so that
+ * histograms stay small, and level-intervals start at bucket boundaries
+ */
+@ThreadSafe
+class LevelTuner {
+
+	static final int EXACT_LEVELS = 16;
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int FIRST_LOG_BUCKET_EXPONENT = 4;
+	static final int BUCKETS = EXACT_LEVELS + (31 - FIRST_LOG_BUCKET_EXPONENT) * SUB_BUCKETS;
+	// Weight of accesses recorded before the previous tuning, relative to those recorded since
+	private static final double DECAY = 0.5;
+	// Level-intervals only change if expected to give this many more hits, so that they do not change back and forth on noise
+	private static final double MIN_IMPROVEMENT = 0.02;
+
+	static int bucket(int level) {
+		if (level < EXACT_LEVELS) return Math.max(level, 0);
+		int exponent = 31 - Integer.numberOfLeadingZeros(level);
+		int subBucket = (level >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return EXACT_LEVELS + (exponent - FIRST_LOG_BUCKET_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return The lowest level in the bucket
+	 */
+	static int bucketFrom(int bucket) {
+		if (bucket < EXACT_LEVELS) return bucket;
+		int exponent = FIRST_LOG_BUCKET_EXPONENT + (bucket - EXACT_LEVELS) / SUB_BUCKETS;
+		int subBucket = (bucket - EXACT_LEVELS) % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	// Per bucket: hits, then misses
+	private final StripedCounters counters = new StripedCounters(2 * BUCKETS);
+	// Guarded by this
+	private final long[] countedAtLastTuning = new long[2 * BUCKETS];
+	private final double[] decayedAccesses = new double[BUCKETS];
+	private final double[] decayedMisses = new double[BUCKETS];
+
+	void hit(int level) {
+		counters.increment(bucket(level));
+	}
+
+	void miss(int level) {
+		counters.increment(BUCKETS + bucket(level));
+	}
+
+	/**
+	 * @param from Lowest level of the first level-cache
+	 * @param to Highest level of the last level-cache
+	 * @param capacities Capacities of the level-caches, in level-order
+	 * @param sizes Per bucket, the sum of the sizes of the cache-entries currently in cache - in the unit of capacities
+	 * @param entries Per bucket, the number of cache-entries currently in cache
+	 * @param currentLevelFroms The current lowest level of each level-cache but the first
+	 * @return The lowest level of each level-cache but the first, or null if they should not change - no accesses recorded, not enough
+	 * improvement, or fewer buckets than level-caches
+	 */
+	synchronized int[] tune(int from, int to, long[] capacities, double[] sizes, long[] entries, int[] currentLevelFroms) {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			long hits = counters.sum(bucket);
+			long misses = counters.sum(BUCKETS + bucket);
+			decayedAccesses[bucket] = DECAY * decayedAccesses[bucket] + (hits - countedAtLastTuning[bucket]) + (misses - countedAtLastTuning[BUCKETS + bucket]);
+			decayedMisses[bucket] = DECAY * decayedMisses[bucket] + (misses - countedAtLastTuning[BUCKETS + bucket]);
+			countedAtLastTuning[bucket] = hits;
+			countedAtLastTuning[BUCKETS + bucket] = misses;
+		}
+
+		int firstBucket = bucket(from);
+		int endBucket = bucket(to) + 1;
+		int tiers = capacities.length;
+		if (endBucket - firstBucket < tiers) return null;
+		double totalAccesses = 0;
+		for (int bucket = firstBucket; bucket < endBucket; bucket++) {
+			totalAccesses += decayedAccesses[bucket];
+		}
+		if (totalAccesses == 0) return null;
+
+		// Cache-entries missed are not in cache, but would have to fit for their accesses to be hits. Their size is estimated as the
+		// average size of the cache-entries in cache at that level (or at all levels) - one miss per cache-entry, so over-estimated if
+		// missed repeatedly
+		double totalSize = 0;
+		long totalEntries = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			totalSize += sizes[bucket];
+			totalEntries += entries[bucket];
+		}
+		double overallAverageSize = (totalEntries > 0)?(totalSize / totalEntries):1;
+		final double[] demand = new double[BUCKETS];
+		for (int bucket = firstBucket; bucket < endBucket; bucket++) {
+			double averageSize = (entries[bucket] > 0)?(sizes[bucket] / entries[bucket]):overallAverageSize;
+			demand[bucket] = sizes[bucket] + decayedMisses[bucket] * averageSize;
+		}
+
+		// best[t][end] is the most hits level-caches 0..t can give, with level-cache t ending at bucket end (exclusive)
+		int buckets = endBucket - firstBucket;
+		double[][] best = new double[tiers][buckets + 1];
+		int[][] bestStart = new int[tiers][buckets + 1];
+		for (double[] row : best) {
+			Arrays.fill(row, Double.NEGATIVE_INFINITY);
+		}
+		for (int end = 1; end <= buckets; end++) {
+			best[0][end] = expectedHits(capacities[0], firstBucket, firstBucket + end, demand);
+		}
+		for (int t = 1; t < tiers; t++) {
+			// Room for at least one bucket per remaining level-cache
+			for (int end = t + 1; end <= buckets - (tiers - 1 - t); end++) {
+				for (int start = t; start < end; start++) {
+					if (best[t - 1][start] == Double.NEGATIVE_INFINITY) continue;
+					double hits = best[t - 1][start] + expectedHits(capacities[t], firstBucket + start, firstBucket + end, demand);
+					if (hits > best[t][end]) {
+						best[t][end] = hits;
+						bestStart[t][end] = start;
+					}
+				}
+			}
+		}
+
+		double currentHits = 0;
+		for (int t = 0; t < tiers; t++) {
+			int start = (t == 0)?firstBucket:bucket(currentLevelFroms[t - 1]);
+			int end = (t == tiers - 1)?endBucket:bucket(currentLevelFroms[t]);
+			if (end > start) currentHits += expectedHits(capacities[t], start, end, demand);
+		}
+		if (best[tiers - 1][buckets] <= currentHits * (1 + MIN_IMPROVEMENT)) return null;
+		
+		int[] levelFroms = new int[tiers - 1];
+		int end = buckets;
+		for (int t = tiers - 1; t > 0; t--) {
+			int start = bestStart[t][end];
+			levelFroms[t - 1] = bucketFrom(firstBucket + start);
+			end = start;
+		}
+		return levelFroms;
+	}
+
+	/**
+	 * Expected hits of a level-cache with the buckets from (inclusive) to end (exclusive), if it keeps the cache-entries accessed most
+	 * per size-unit
+	 */
+	private double expectedHits(long capacity, int from, int end, final double[] demand) {
+		Integer[] buckets = new Integer[end - from];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = from + i;
+		}
+		Arrays.sort(buckets, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(density(o2, demand), density(o1, demand));
+			}
+
+		});
+		double room = capacity;
+		double hits = 0;
+		for (int bucket : buckets) {
+			if (room <= 0) break;
+			if (demand[bucket] <= 0) continue;
+			hits += decayedAccesses[bucket] * Math.min(1, room / demand[bucket]);
+			room -= demand[bucket];
+		}
+		return hits;
+	}
+
+	private double density(int bucket, double[] demand) {
+		return (demand[bucket] > 0)?(decayedAccesses[bucket] / demand[bucket]):0;
+	}
+
+}
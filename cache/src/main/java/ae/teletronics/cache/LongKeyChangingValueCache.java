@@ -0,0 +1,307 @@
+package ae.teletronics.cache;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+/**
+ * Same as {@link ChangingValueCache}, but with primitive long cache-keys - e.g. numeric ids. Modify and lookup do not allocate
+ * (no boxing of cache-keys), as long as the same new-creator and modifier objects are reused
+ *
+ * Cache-entries live in a bounded open-addressing hash-table, split into segments. When a segment is full, an entry is evicted
+ * (CLOCK - approximately least recently used). The segment of the cache-key is synchronized on only while reading or writing the
+ * cache-entry, never while new-creator and modifier run. If the cache-entry changed meanwhile (another cache-value instance), they
+ * are run again on the new cache-value (compare-and-set) - so they can be called more than once
+ *
+ * @param <V> Type of the cache-value
+ */
+@ThreadSafe
+public class LongKeyChangingValueCache<V> {
+
+	/**
+	 * Builder for building {@link LongKeyChangingValueCache} instances
+	 *
+	 * @param <V> Type of the cache-value of the built cache
+	 */
+	public static class Builder<V> {
+
+		private int maximumSize = -1;
+		private int concurrencyLevel = 16;
+		private Supplier<V> defaultNewCreator;
+		private Function<V, V> defaultModifier;
+
+		protected Builder() {
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#maximumSize(int)}
+		 */
+		public Builder<V> maximumSize(int maximumSize) {
+			if (maximumSize < 1) throw new IllegalArgumentException("Maximum size must be at least 1, was " + maximumSize);
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#concurrencyLevel(int)}
+		 */
+		public Builder<V> concurrencyLevel(int concurrencyLevel) {
+			if (concurrencyLevel < 1 || concurrencyLevel > (1 << 16)) throw new IllegalArgumentException("Concurrency level must be between 1 and 2^16, was " + concurrencyLevel);
+			this.concurrencyLevel = concurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * See {@link ChangingValueCache.Builder#defaultNewCreator(Supplier)}
+		 */
+		public Builder<V> defaultNewCreator(Supplier<V> newCreator) {
+			this.defaultNewCreator = newCreator;
+			return this;
+		}
+
+		/**
+		 * See {@link ChangingValueCache.Builder#defaultModifier(Function)}
+		 */
+		public Builder<V> defaultModifier(Function<V, V> modifier) {
+			this.defaultModifier = modifier;
+			return this;
+		}
+
+		/**
+		 * Build the {@link LongKeyChangingValueCache} instance
+		 * @return The built {@link LongKeyChangingValueCache} instance
+		 */
+		public LongKeyChangingValueCache<V> build() {
+			if (maximumSize < 0)
+				throw new RuntimeException("No maximum size set");
+
+			return new LongKeyChangingValueCache<V>(maximumSize, concurrencyLevel, defaultNewCreator, defaultModifier);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link LongKeyChangingValueCache} instance
+	 *
+	 * @param <V> Type of the cache-value of the built cache
+	 *
+	 * @return The builder to be used
+	 */
+	public static <V> Builder<V> builder() {
+		return new Builder<V>();
+	}
+
+	private static class Segment extends ClockSegment {
+
+		private final long[] keys;
+		// Null for empty slots
+		private final Object[] values;
+
+		private Segment(int maxSize) {
+			super(maxSize);
+			keys = new long[mask + 1];
+			values = new Object[mask + 1];
+		}
+
+		private int find(long key, int hash) {
+			for (int slot = hash & mask; values[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) return slot;
+			}
+			return -1;
+		}
+
+		private void insert(long key, int hash, Object value) {
+			ensureRoom();
+			int slot = emptySlot(hash);
+			keys[slot] = key;
+			values[slot] = value;
+		}
+
+		@Override
+		protected boolean isEmpty(int slot) {
+			return values[slot] == null;
+		}
+
+		@Override
+		protected int hash(int slot) {
+			return LongKeyChangingValueCache.hash(keys[slot]);
+		}
+
+		@Override
+		protected void move(int fromSlot, int toSlot) {
+			keys[toSlot] = keys[fromSlot];
+			values[toSlot] = values[fromSlot];
+		}
+
+		@Override
+		protected void clear(int slot) {
+			values[slot] = null;
+		}
+
+	}
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final Supplier<V> defaultNewCreator;
+	private final Function<V, V> defaultModifier;
+
+	protected LongKeyChangingValueCache(int maximumSize, int concurrencyLevel, Supplier<V> defaultNewCreator, Function<V, V> defaultModifier) {
+		int numberOfSegments = Integer.highestOneBit(Math.min(concurrencyLevel, maximumSize));
+		if (numberOfSegments < Math.min(concurrencyLevel, maximumSize)) numberOfSegments <<= 1;
+		segments = new Segment[numberOfSegments];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment((maximumSize + numberOfSegments - 1) / numberOfSegments);
+		}
+		// Segment selected by the high bits of the hash, slot within segment by the low bits
+		segmentShift = 32 - Integer.numberOfTrailingZeros(numberOfSegments);
+		this.defaultNewCreator = defaultNewCreator;
+		this.defaultModifier = defaultModifier;
+	}
+
+	private static int hash(long key) {
+		return KeyLocks.spread((int)(key ^ (key >>> 32)));
+	}
+
+	private Segment segmentFor(int hash) {
+		return (segments.length == 1)?segments[0]:segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Calling {@link #modify(long, Supplier, Function, boolean)} (and returning value from) with
+	 * * key (long) Provided key
+	 * * newCreator (Supplier{@literal <V>}) null
+	 * * modifier (Function{@literal <V, V>}) null
+	 * * createIfNotExists (boolean) Provided createIfNotExist
+	 *
+	 * @param key To be forwarded to modify call
+	 * @param createIfNotExists To be forwarded to modify call
+	 * @return The value now on the cache-entry
+	 */
+	public final V modify(long key, boolean createIfNotExists) {
+		return modify(key, null, null, createIfNotExists);
+	}
+
+	/**
+	 * Calling {@link #modify(long, Supplier, Function, boolean)} (and returning value from) with
+	 * * key (long) Provided key
+	 * * newCreator (Supplier{@literal <V>}) null
+	 * * modifier (Function{@literal <V, V>}) Provided modifier
+	 * * createIfNotExists (boolean) Provided createIfNotExist
+	 *
+	 * @param key To be forwarded to modify call
+	 * @param modifier To be forwarded to modify call
+	 * @param createIfNotExists To be forwarded to modify call
+	 * @return The value now on the cache-entry
+	 */
+	public final V modify(long key, Function<V, V> modifier, boolean createIfNotExists) {
+		return modify(key, null, modifier, createIfNotExists);
+	}
+
+	/**
+	 * Modify cache-entry using provided new-creator and modifier
+	 * @param key Key for cache-entry
+	 * @param newCreator Used to generate the new cache-value, if it does not already exist (if null default new-creator will be used)
+	 * @param modifier Used to modify the cache-value (if null default modifier will be used). Returning null removes the cache-entry
+	 * @param createIfNotExists Create the entry if it does not already exist
+	 * @return The value now on the cache-entry (null if none)
+	 */
+	public final V modify(long key, Supplier<V> newCreator, Function<V, V> modifier, boolean createIfNotExists) {
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		while (true) {
+			V currentValue = get(segment, key, hash);
+			V value = currentValue;
+			if (value == null) {
+				if (!createIfNotExists) return null;
+				value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				if (value == null) return null;
+			}
+
+			V newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+			synchronized(segment) {
+				int slot = segment.find(key, hash);
+				if (((slot >= 0)?segment.values[slot]:null) == currentValue) {
+					if (newValue == null) {
+						if (slot >= 0) segment.remove(slot);
+					} else if (slot >= 0) {
+						segment.values[slot] = newValue;
+						segment.referenced[slot] = true;
+					} else {
+						segment.insert(key, hash, newValue);
+					}
+					return newValue;
+				}
+			}
+			// Another thread changed the cache-entry in the meantime - start over
+		}
+	}
+
+	/**
+	 * Get a cache-value of a cache-entry with a provided key
+	 * @param key The key of the cache-entry
+	 * @return The cache-value (or null if not present in cache)
+	 */
+	public V getIfPresent(long key) {
+		int hash = hash(key);
+		return get(segmentFor(hash), key, hash);
+	}
+
+	private V get(Segment segment, long key, int hash) {
+		synchronized(segment) {
+			int slot = segment.find(key, hash);
+			if (slot < 0) return null;
+			segment.referenced[slot] = true;
+			@SuppressWarnings("unchecked")
+			V value = (V)segment.values[slot];
+			return value;
+		}
+	}
+
+	/**
+	 * Calling {@link #getAddIfNotPresent(long, Supplier)} (and returning value from) with
+	 * * key (long) Provided key
+	 * * newCreator (Supplier{@literal <V>}) null
+	 *
+	 * @param key To be forwarded to getAddIfNotPresent call
+	 * @return The cache-value
+	 */
+	public final V getAddIfNotPresent(long key) {
+		return getAddIfNotPresent(key, null);
+	}
+
+	/**
+	 * Get a cache-value of a cache-entry with a provided key, adding the cache-entry if not already present
+	 * @param key The key of the cache entry
+	 * @param newCreator Used to generate the new cache-value, if it does not already exist (if null default new-creator will be used)
+	 * @return The cache-value
+	 */
+	public final V getAddIfNotPresent(long key, Supplier<V> newCreator) {
+		V value = getIfPresent(key);
+		if (value != null) return value;
+		return modify(key, newCreator, noModificationModifier, true);
+	}
+
+	private final Function<V, V> noModificationModifier = new Function<V, V>() {
+
+		@Override
+		public V apply(V input) {
+			return input;
+		}
+
+	};
+
+	/**
+	 * @return Number of cache-entries in the cache
+	 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized(segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+}
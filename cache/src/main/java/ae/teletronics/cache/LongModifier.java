@@ -0,0 +1,14 @@
+package ae.teletronics.cache;
+
+/**
+ * Modifier of primitive long cache-values. See {@link LongValueCache}
+ */
+public interface LongModifier {
+
+	/**
+	 * @param value The current cache-value
+	 * @return The new cache-value ({@link LongValueCache#NO_VALUE} to remove the cache-entry)
+	 */
+	long apply(long value);
+
+}
@@ -0,0 +1,13 @@
+package ae.teletronics.cache;
+
+/**
+ * Creator of primitive long cache-values. See {@link LongValueCache}
+ */
+public interface LongNewCreator {
+
+	/**
+	 * @return The new cache-value ({@link LongValueCache#NO_VALUE} to not create the cache-entry)
+	 */
+	long get();
+
+}
@@ -0,0 +1,62 @@
+package ae.teletronics.cache;
+
+/**
+ * Changing-value cache with primitive long cache-values. See {@link LongValueChangingValueCache} (on heap) and
+ * {@link OffHeapLongValueChangingValueCache} (off heap)
+ *
+ * @param <K> Type of the cache-key
+ */
+public interface LongValueCache<K> {
+
+	/**
+	 * Returned when there is no cache-value. Returned by a modifier to remove the cache-entry, or by a new-creator to not create it
+	 */
+	long NO_VALUE = Long.MIN_VALUE;
+
+	/**
+	 * Modify cache-entry using provided new-creator and modifier
+	 * @param key Key for cache-entry
+	 * @param newCreator Used to generate the new cache-value, if it does not already exist (if null default new-creator will be used)
+	 * @param modifier Used to modify the cache-value (if null default modifier will be used)
+	 * @param createIfNotExists Create the entry if it does not already exist
+	 * @return The value now on the cache-entry ({@link #NO_VALUE} if none)
+	 */
+	long modify(K key, LongNewCreator newCreator, LongModifier modifier, boolean createIfNotExists);
+
+	/**
+	 * Same as {@link #modify(Object, LongNewCreator, LongModifier, boolean)} with null new-creator and modifier
+	 */
+	long modify(K key, boolean createIfNotExists);
+
+	/**
+	 * Same as {@link #modify(Object, LongNewCreator, LongModifier, boolean)} with null new-creator
+	 */
+	long modify(K key, LongModifier modifier, boolean createIfNotExists);
+
+	/**
+	 * Set the cache-value of a cache-entry, without calling a new-creator or modifier - does not allocate
+	 * @param key Key for cache-entry
+	 * @param value The new cache-value. {@link #NO_VALUE} removes the cache-entry
+	 */
+	void put(K key, long value);
+
+	/**
+	 * Get a cache-value of a cache-entry with a provided key
+	 * @param key The key of the cache-entry
+	 * @return The cache-value ({@link #NO_VALUE} if not present in cache)
+	 */
+	long getIfPresent(K key);
+
+	/**
+	 * Get a cache-value of a cache-entry with a provided key, adding the cache-entry with the default new-creator if not already present
+	 * @param key The key of the cache-entry
+	 * @return The cache-value
+	 */
+	long getAddIfNotPresent(K key);
+
+	/**
+	 * @return Number of cache-entries in the cache
+	 */
+	long size();
+
+}
@@ -0,0 +1,310 @@
+package ae.teletronics.cache;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Same as {@link ChangingValueCache}, but with primitive long cache-values - e.g. versions or counters. Modify and lookup do not
+ * allocate (no boxing), as long as the same new-creator and modifier objects are reused
+ *
+ * Cache-entries live in a bounded open-addressing hash-table, split into segments. When a segment is full, an entry is evicted
+ * (CLOCK - approximately least recently used). The segment of the cache-key is synchronized on only while reading or writing the
+ * cache-entry, never while new-creator and modifier run. If the cache-entry changed meanwhile, they are run again on the new
+ * cache-value (compare-and-set) - so they can be called more than once, unless the caller holds a lock of its own on the cache-key
+ *
+ * {@link #NO_VALUE} is used to represent no cache-value, and can therefore not be a cache-value itself
+ *
+ * @param <K> Type of the cache-key
+ */
+@ThreadSafe
+public class LongValueChangingValueCache<K> implements LongValueCache<K> {
+
+	private static final LongModifier NO_MODIFICATION = new LongModifier() {
+
+		@Override
+		public long apply(long value) {
+			return value;
+		}
+
+	};
+
+	/**
+	 * Builder for building {@link LongValueChangingValueCache} instances
+	 *
+	 * @param <K> Type of the cache-key of the built cache
+	 */
+	public static class Builder<K> {
+
+		private int maximumSize = -1;
+		private int concurrencyLevel = 16;
+		private LongNewCreator defaultNewCreator;
+		private LongModifier defaultModifier;
+
+		protected Builder() {
+		}
+
+		/**
+		 * Set the maximum number of cache-entries. Each segment holds an equal share, so a segment can start evicting slightly
+		 * before the cache as a whole is full
+		 * @param maximumSize The maximum number of cache-entries
+		 * @return This builder
+		 */
+		public Builder<K> maximumSize(int maximumSize) {
+			if (maximumSize < 1) throw new IllegalArgumentException("Maximum size must be at least 1, was " + maximumSize);
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Set the number of segments. Rounded up to the nearest power of two. Default is 16
+		 * @param concurrencyLevel The number of segments
+		 * @return This builder
+		 */
+		public Builder<K> concurrencyLevel(int concurrencyLevel) {
+			if (concurrencyLevel < 1 || concurrencyLevel > (1 << 16)) throw new IllegalArgumentException("Concurrency level must be between 1 and 2^16, was " + concurrencyLevel);
+			this.concurrencyLevel = concurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * See {@link ChangingValueCache.Builder#defaultNewCreator(com.google.common.base.Supplier)}
+		 */
+		public Builder<K> defaultNewCreator(LongNewCreator newCreator) {
+			this.defaultNewCreator = newCreator;
+			return this;
+		}
+
+		/**
+		 * See {@link ChangingValueCache.Builder#defaultModifier(com.google.common.base.Function)}
+		 */
+		public Builder<K> defaultModifier(LongModifier modifier) {
+			this.defaultModifier = modifier;
+			return this;
+		}
+
+		/**
+		 * Build the {@link LongValueChangingValueCache} instance
+		 * @return The built {@link LongValueChangingValueCache} instance
+		 */
+		public LongValueChangingValueCache<K> build() {
+			if (maximumSize < 0)
+				throw new RuntimeException("No maximum size set");
+
+			return new LongValueChangingValueCache<K>(maximumSize, concurrencyLevel, defaultNewCreator, defaultModifier);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link LongValueChangingValueCache} instance
+	 *
+	 * @param <K> Type of the cache-key of the built cache
+	 *
+	 * @return The builder to be used
+	 */
+	public static <K> Builder<K> builder() {
+		return new Builder<K>();
+	}
+
+	private static class Segment extends ClockSegment {
+
+		private final Object[] keys;
+		private final int[] hashes;
+		private final long[] values;
+
+		private Segment(int maxSize) {
+			super(maxSize);
+			keys = new Object[mask + 1];
+			hashes = new int[mask + 1];
+			values = new long[mask + 1];
+		}
+
+		private int find(Object key, int hash) {
+			for (int slot = hash & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+				if (hashes[slot] == hash && key.equals(keys[slot])) return slot;
+			}
+			return -1;
+		}
+
+		private void insert(Object key, int hash, long value) {
+			ensureRoom();
+			int slot = emptySlot(hash);
+			keys[slot] = key;
+			hashes[slot] = hash;
+			values[slot] = value;
+		}
+
+		@Override
+		protected boolean isEmpty(int slot) {
+			return keys[slot] == null;
+		}
+
+		@Override
+		protected int hash(int slot) {
+			return hashes[slot];
+		}
+
+		@Override
+		protected void move(int fromSlot, int toSlot) {
+			keys[toSlot] = keys[fromSlot];
+			hashes[toSlot] = hashes[fromSlot];
+			values[toSlot] = values[fromSlot];
+		}
+
+		@Override
+		protected void clear(int slot) {
+			keys[slot] = null;
+		}
+
+	}
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final LongNewCreator defaultNewCreator;
+	private final LongModifier defaultModifier;
+
+	protected LongValueChangingValueCache(int maximumSize, int concurrencyLevel, LongNewCreator defaultNewCreator, LongModifier defaultModifier) {
+		int numberOfSegments = Integer.highestOneBit(Math.min(concurrencyLevel, maximumSize));
+		if (numberOfSegments < Math.min(concurrencyLevel, maximumSize)) numberOfSegments <<= 1;
+		segments = new Segment[numberOfSegments];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment((maximumSize + numberOfSegments - 1) / numberOfSegments);
+		}
+		// Segment selected by the high bits of the hash, slot within segment by the low bits
+		segmentShift = 32 - Integer.numberOfTrailingZeros(numberOfSegments);
+		this.defaultNewCreator = defaultNewCreator;
+		this.defaultModifier = defaultModifier;
+	}
+
+	private Segment segmentFor(int hash) {
+		return (segments.length == 1)?segments[0]:segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Calling {@link #modify(Object, LongNewCreator, LongModifier, boolean)} (and returning value from) with
+	 * * key (K) Provided key
+	 * * newCreator (LongNewCreator) null
+	 * * modifier (LongModifier) null
+	 * * createIfNotExists (boolean) Provided createIfNotExist
+	 *
+	 * @param key To be forwarded to modify call
+	 * @param createIfNotExists To be forwarded to modify call
+	 * @return The value now on the cache-entry
+	 */
+	@Override
+	public final long modify(K key, boolean createIfNotExists) {
+		return modify(key, null, null, createIfNotExists);
+	}
+
+	/**
+	 * Calling {@link #modify(Object, LongNewCreator, LongModifier, boolean)} (and returning value from) with
+	 * * key (K) Provided key
+	 * * newCreator (LongNewCreator) null
+	 * * modifier (LongModifier) Provided modifier
+	 * * createIfNotExists (boolean) Provided createIfNotExist
+	 *
+	 * @param key To be forwarded to modify call
+	 * @param modifier To be forwarded to modify call
+	 * @param createIfNotExists To be forwarded to modify call
+	 * @return The value now on the cache-entry
+	 */
+	@Override
+	public final long modify(K key, LongModifier modifier, boolean createIfNotExists) {
+		return modify(key, null, modifier, createIfNotExists);
+	}
+
+	@Override
+	public final long modify(K key, LongNewCreator newCreator, LongModifier modifier, boolean createIfNotExists) {
+		int hash = KeyLocks.spread(key.hashCode());
+		Segment segment = segmentFor(hash);
+		while (true) {
+			long currentValue = get(segment, key, hash);
+			long value = currentValue;
+			if (value == NO_VALUE) {
+				if (!createIfNotExists) return NO_VALUE;
+				value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				if (value == NO_VALUE) return NO_VALUE;
+			}
+
+			long newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+			synchronized(segment) {
+				int slot = segment.find(key, hash);
+				if (((slot >= 0)?segment.values[slot]:NO_VALUE) == currentValue) {
+					write(segment, slot, key, hash, newValue);
+					return newValue;
+				}
+			}
+			// Another thread changed the cache-entry in the meantime - start over
+		}
+	}
+
+	@Override
+	public void put(K key, long value) {
+		int hash = KeyLocks.spread(key.hashCode());
+		Segment segment = segmentFor(hash);
+		synchronized(segment) {
+			write(segment, segment.find(key, hash), key, hash, value);
+		}
+	}
+
+	// Called holding the segment. Slot of the cache-key, negative if not present
+	private void write(Segment segment, int slot, K key, int hash, long newValue) {
+		if (newValue == NO_VALUE) {
+			if (slot >= 0) segment.remove(slot);
+		} else if (slot >= 0) {
+			segment.values[slot] = newValue;
+			segment.referenced[slot] = true;
+		} else {
+			segment.insert(key, hash, newValue);
+		}
+	}
+
+	@Override
+	public long getIfPresent(K key) {
+		int hash = KeyLocks.spread(key.hashCode());
+		return get(segmentFor(hash), key, hash);
+	}
+
+	private long get(Segment segment, K key, int hash) {
+		synchronized(segment) {
+			int slot = segment.find(key, hash);
+			if (slot < 0) return NO_VALUE;
+			segment.referenced[slot] = true;
+			return segment.values[slot];
+		}
+	}
+
+	/**
+	 * Calling {@link #getAddIfNotPresent(Object, LongNewCreator)} (and returning value from) with
+	 * * key (K) Provided key
+	 * * newCreator (LongNewCreator) null
+	 *
+	 * @param key To be forwarded to getAddIfNotPresent call
+	 * @return The cache-value
+	 */
+	@Override
+	public final long getAddIfNotPresent(K key) {
+		return getAddIfNotPresent(key, null);
+	}
+
+	/**
+	 * Get a cache-value of a cache-entry with a provided key, adding the cache-entry if not already present
+	 * @param key The key of the cache entry
+	 * @param newCreator Used to generate the new cache-value, if it does not already exist (if null default new-creator will be used)
+	 * @return The cache-value
+	 */
+	public final long getAddIfNotPresent(K key, LongNewCreator newCreator) {
+		return modify(key, newCreator, NO_MODIFICATION, true);
+	}
+
+	@Override
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized(segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+}
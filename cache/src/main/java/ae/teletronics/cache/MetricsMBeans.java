@@ -0,0 +1,188 @@
+package ae.teletronics.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers {@link CacheMetricsMXBean} and {@link TierMetricsMXBean}s of a cache on the platform MBean-server. Each attribute is
+ * read from a fresh {@link CacheMetrics} snapshot
+ */
+class MetricsMBeans {
+
+	private static final String DOMAIN = "ae.teletronics.cache";
+
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/**
+	 * Registered as
+	 * * ae.teletronics.cache:type=ChangingValueCache,name=[name]
+	 * * ae.teletronics.cache:type=ChangingValueCache,name=[name],tier=[tier-name] for each internal cache
+	 */
+	MetricsMBeans(ChangingValueCache<?, ?> cache, String name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String cacheObjectName = DOMAIN + ":type=ChangingValueCache,name=" + ObjectName.quote(name);
+		try {
+			register(server, new ObjectName(cacheObjectName), new CacheMetricsBean(cache));
+			List<CacheMetrics.TierMetrics> tiers = cache.getMetrics().getTiers();
+			for (int i = 0; i < tiers.size(); i++) {
+				register(server, new ObjectName(cacheObjectName + ",tier=" + ObjectName.quote(tiers.get(i).getName())), new TierMetricsBean(cache, i));
+			}
+		} catch (JMException e) {
+			unregister();
+			throw new RuntimeException("Failed registering MBeans for " + name, e);
+		}
+	}
+
+	private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+		server.registerMBean(mbean, objectName);
+		registered.add(objectName);
+	}
+
+	void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName objectName : registered) {
+			try {
+				server.unregisterMBean(objectName);
+			} catch (JMException e) {
+				// Already gone
+			}
+		}
+		registered.clear();
+	}
+
+	public static class CacheMetricsBean implements CacheMetricsMXBean {
+
+		private final ChangingValueCache<?, ?> cache;
+
+		private CacheMetricsBean(ChangingValueCache<?, ?> cache) {
+			this.cache = cache;
+		}
+
+		@Override
+		public long getSize() {
+			return cache.getMetrics().getSize();
+		}
+
+		@Override
+		public long getHits() {
+			return cache.getMetrics().getHits();
+		}
+
+		@Override
+		public long getMisses() {
+			return cache.getMetrics().getMisses();
+		}
+
+		@Override
+		public long getCreations() {
+			return cache.getMetrics().getCreations();
+		}
+
+		@Override
+		public long getModifications() {
+			return cache.getMetrics().getModifications();
+		}
+
+		@Override
+		public long getInvalidations() {
+			return cache.getMetrics().getInvalidations();
+		}
+
+		@Override
+		public long getEvictions() {
+			return cache.getMetrics().getEvictions();
+		}
+
+		@Override
+		public long getPromotions() {
+			return cache.getMetrics().getPromotions();
+		}
+
+		@Override
+		public long getDemotions() {
+			return cache.getMetrics().getDemotions();
+		}
+
+		@Override
+		public long getRecordedHitCount() {
+			return cache.getMetrics().getCacheStats().hitCount();
+		}
+
+		@Override
+		public long getRecordedMissCount() {
+			return cache.getMetrics().getCacheStats().missCount();
+		}
+
+		@Override
+		public long getRecordedEvictionCount() {
+			return cache.getMetrics().getCacheStats().evictionCount();
+		}
+
+	}
+
+	public static class TierMetricsBean implements TierMetricsMXBean {
+
+		private final ChangingValueCache<?, ?> cache;
+		private final int tier;
+
+		private TierMetricsBean(ChangingValueCache<?, ?> cache, int tier) {
+			this.cache = cache;
+			this.tier = tier;
+		}
+
+		private CacheMetrics.TierMetrics getTierMetrics() {
+			return cache.getMetrics().getTiers().get(tier);
+		}
+
+		@Override
+		public String getName() {
+			return getTierMetrics().getName();
+		}
+
+		@Override
+		public long getSize() {
+			return getTierMetrics().getSize();
+		}
+
+		@Override
+		public long getHits() {
+			return getTierMetrics().getHits();
+		}
+
+		@Override
+		public long getMisses() {
+			return getTierMetrics().getMisses();
+		}
+
+		@Override
+		public long getEvictions() {
+			return getTierMetrics().getEvictions();
+		}
+
+		@Override
+		public long getEstimatedRetainedBytes() {
+			return getTierMetrics().getEstimatedRetainedBytes();
+		}
+
+		@Override
+		public Map<String, Long> getMovesTo() {
+			CacheMetrics metrics = cache.getMetrics();
+			String name = metrics.getTiers().get(tier).getName();
+			Map<String, Long> movesTo = new LinkedHashMap<String, Long>();
+			for (CacheMetrics.TierMetrics toTier : metrics.getTiers()) {
+				if (toTier.getName().equals(name)) continue;
+				movesTo.put(toTier.getName(), metrics.getMoves(name, toTier.getName()));
+			}
+			return movesTo;
+		}
+
+	}
+
+}
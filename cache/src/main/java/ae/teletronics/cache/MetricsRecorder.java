@@ -0,0 +1,174 @@
+package ae.teletronics.cache;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.common.cache.Cache;
+
+/**
+ * Records the metrics of a cache, to be read as {@link CacheMetrics}. Internal caches (tiers) are identified by their
+ * position in the list of internal caches the recorder was created with
+ */
+@ThreadSafe
+class MetricsRecorder {
+
+	private static final int MISSES = 0;
+	private static final int CREATIONS = 1;
+	private static final int MODIFICATIONS = 2;
+	private static final int INVALIDATIONS = 3;
+	private static final int TIERS_OFFSET = 4;
+
+	private final List<? extends Cache<?, ?>> tiers;
+	private final List<String> tierNames;
+	private final int firstLevelTier;
+	private final boolean[] evictionsRecorded;
+	private final AtomicLong[] retainedBytes;
+	// Only read after construction
+	private final Map<Cache<?, ?>, Integer> tierIndexes = new IdentityHashMap<Cache<?, ?>, Integer>();
+	private final StripedCounters counters;
+
+	/**
+	 * @param tiers The internal caches
+	 * @param tierNames Names of the internal caches
+	 * @param firstLevelTier Internal caches from this position on are level-caches in increasing level-order. Moves between those are
+	 * promotions or demotions
+	 * @param evictionsRecorded Internal caches reporting evictions to {@link #evicted(Cache)}. Evictions from other internal caches are
+	 * taken from their Guava {@link com.google.common.cache.CacheStats}
+	 * @param retainedBytes Estimated bytes retained by weighed internal caches
+	 */
+	MetricsRecorder(List<? extends Cache<?, ?>> tiers, List<String> tierNames, int firstLevelTier, Set<? extends Cache<?, ?>> evictionsRecorded, Map<? extends Cache<?, ?>, AtomicLong> retainedBytes) {
+		this.tiers = tiers;
+		this.tierNames = tierNames;
+		this.firstLevelTier = firstLevelTier;
+		this.evictionsRecorded = new boolean[tiers.size()];
+		this.retainedBytes = new AtomicLong[tiers.size()];
+		for (int i = 0; i < tiers.size(); i++) {
+			tierIndexes.put(tiers.get(i), i);
+			this.evictionsRecorded[i] = evictionsRecorded.contains(tiers.get(i));
+			this.retainedBytes[i] = retainedBytes.get(tiers.get(i));
+		}
+		// Per tier: hits, misses, evictions and moves to each tier
+		counters = new StripedCounters(TIERS_OFFSET + tiers.size() * (3 + tiers.size()));
+	}
+
+	private int hitsCounter(int tier) {
+		return TIERS_OFFSET + tier;
+	}
+
+	private int missesCounter(int tier) {
+		return TIERS_OFFSET + tiers.size() + tier;
+	}
+
+	private int evictionsCounter(int tier) {
+		return TIERS_OFFSET + 2 * tiers.size() + tier;
+	}
+
+	private int movesCounter(int fromTier, int toTier) {
+		return TIERS_OFFSET + (3 + fromTier) * tiers.size() + toTier;
+	}
+
+	private int tier(Cache<?, ?> cache) {
+		Integer tier = tierIndexes.get(cache);
+		return (tier != null)?tier:-1;
+	}
+
+	/**
+	 * Lookup found the cache-entry in the internal cache
+	 */
+	void hit(int tier) {
+		counters.increment(hitsCounter(tier));
+	}
+
+	/**
+	 * Lookups of several cache-entries found them in the internal cache
+	 */
+	void hits(int tier, int lookups) {
+		counters.add(hitsCounter(tier), lookups);
+	}
+
+	void hits(Cache<?, ?> cache, int lookups) {
+		int tier = tier(cache);
+		if (tier >= 0) hits(tier, lookups);
+	}
+
+	void hit(Cache<?, ?> cache) {
+		int tier = tier(cache);
+		if (tier >= 0) hit(tier);
+	}
+
+	/**
+	 * Lookup looked for the cache-entry in the internal cache, but did not find it there
+	 */
+	void tierMiss(int tier) {
+		counters.increment(missesCounter(tier));
+	}
+
+	void tierMisses(int tier, int lookups) {
+		counters.add(missesCounter(tier), lookups);
+	}
+
+	void tierMisses(Cache<?, ?> cache, int lookups) {
+		int tier = tier(cache);
+		if (tier >= 0) tierMisses(tier, lookups);
+	}
+
+	void tierMiss(Cache<?, ?> cache) {
+		int tier = tier(cache);
+		if (tier >= 0) tierMiss(tier);
+	}
+
+	/**
+	 * Lookup did not find the cache-entry in any internal cache
+	 */
+	void miss() {
+		counters.increment(MISSES);
+	}
+
+	void misses(int lookups) {
+		counters.add(MISSES, lookups);
+	}
+
+	/**
+	 * A modifier was applied to a cache-value
+	 * @param created The cache-value was created for the modification
+	 * @param removed The cache-entry existed, and was removed because the modifier returned null
+	 */
+	void modified(boolean created, boolean removed) {
+		if (created) counters.increment(CREATIONS);
+		counters.increment(MODIFICATIONS);
+		if (removed) counters.increment(INVALIDATIONS);
+	}
+
+	void moved(Cache<?, ?> from, Cache<?, ?> to) {
+		int fromTier = tier(from);
+		int toTier = tier(to);
+		if (fromTier >= 0 && toTier >= 0) counters.increment(movesCounter(fromTier, toTier));
+	}
+
+	void evicted(Cache<?, ?> cache) {
+		int tier = tier(cache);
+		if (tier >= 0) counters.increment(evictionsCounter(tier));
+	}
+
+	CacheMetrics snapshot() {
+		List<CacheMetrics.TierMetrics> tierMetrics = new ArrayList<CacheMetrics.TierMetrics>(tiers.size());
+		long[][] moves = new long[tiers.size()][tiers.size()];
+		for (int i = 0; i < tiers.size(); i++) {
+			Cache<?, ?> tier = tiers.get(i);
+			long evictions = (evictionsRecorded[i])?counters.sum(evictionsCounter(i)):tier.stats().evictionCount();
+			long estimatedRetainedBytes = (retainedBytes[i] != null)?retainedBytes[i].get():-1;
+			tierMetrics.add(new CacheMetrics.TierMetrics(tierNames.get(i), tier.size(), counters.sum(hitsCounter(i)), counters.sum(missesCounter(i)), evictions, estimatedRetainedBytes, tier.stats()));
+			for (int j = 0; j < tiers.size(); j++) {
+				moves[i][j] = counters.sum(movesCounter(i, j));
+			}
+		}
+		return new CacheMetrics(tierMetrics, moves, firstLevelTier, counters.sum(MISSES), counters.sum(CREATIONS), counters.sum(MODIFICATIONS), counters.sum(INVALIDATIONS));
+	}
+
+}
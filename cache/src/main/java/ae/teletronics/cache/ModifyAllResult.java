@@ -0,0 +1,36 @@
+package ae.teletronics.cache;
+
+/**
+ * Outcome of modifying all cache-entries in a selected set. See {@link ChangingValueCache#parallelModifyAll(com.google.common.base.Predicate, com.google.common.base.Predicate, com.google.common.base.Function, boolean, java.util.concurrent.Executor)}
+ */
+public class ModifyAllResult {
+	
+	private final long matched;
+	private final long modified;
+	
+	public ModifyAllResult(long matched, long modified) {
+		this.matched = matched;
+		this.modified = modified;
+	}
+
+	/**
+	 * @return Number of cache-entries selected
+	 */
+	public long getMatched() {
+		return matched;
+	}
+
+	/**
+	 * @return Number of the selected cache-entries that the modifier was applied to. Lower than {@link #getMatched()} if some of the
+	 * selected cache-entries were removed, or changed to no longer be accepted by the value-predicate, before it was their turn
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	@Override
+	public String toString() {
+		return "matched " + matched + ", modified " + modified;
+	}
+	
+}
@@ -0,0 +1,449 @@
+package ae.teletronics.cache;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Same as {@link LongValueChangingValueCache} with String cache-keys, but with cache-entries stored off heap, in direct byte-buffers.
+ * Meant for a large number of cache-entries, that would otherwise cost a lot of heap and make garbage-collection slow
+ *
+ * Each segment is a fixed-size open-addressing hash-table of 16-byte slots, holding hash, cache-value and the offset of the cache-key
+ * in a key-arena of the segment. The arena holds the cache-keys UTF-8 encoded (surrogates encoded one by one, as in CESU-8) after
+ * their length, one after the other. Space of removed cache-keys is reclaimed when the arena runs full, by copying the cache-keys
+ * still in use to a spare arena of the same size, and swapping the two. The spare arena is created at the first such compaction, and
+ * kept - direct memory is only freed by garbage-collection, so a new arena per compaction would pile up. If the cache-keys take up
+ * more than half of the arena, they are copied to a new arena twice as big instead. Modify and lookup do not allocate, except when
+ * an arena is created
+ *
+ * The segment of the cache-key is synchronized on only while reading or writing the cache-entry, never while new-creator and modifier
+ * run - see {@link LongValueChangingValueCache}
+ */
+@ThreadSafe
+public class OffHeapLongValueChangingValueCache implements LongValueCache<String> {
+
+	private static final LongModifier NO_MODIFICATION = new LongModifier() {
+
+		@Override
+		public long apply(long value) {
+			return value;
+		}
+
+	};
+
+	/**
+	 * Builder for building {@link OffHeapLongValueChangingValueCache} instances
+	 */
+	public static class Builder {
+
+		private int maximumSize = -1;
+		private int expectedKeyLength = 32;
+		private int concurrencyLevel = 16;
+		private LongNewCreator defaultNewCreator;
+		private LongModifier defaultModifier;
+
+		protected Builder() {
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#maximumSize(int)}. Off-heap memory for all cache-entries is allocated when the cache is built
+		 */
+		public Builder maximumSize(int maximumSize) {
+			if (maximumSize < 1) throw new IllegalArgumentException("Maximum size must be at least 1, was " + maximumSize);
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/**
+		 * Set the expected average length (in UTF-8 bytes) of cache-keys. The key-arenas are initially sized to hold maximum-size cache-keys
+		 * of this length, and grow when needed. Default is 32
+		 * @param expectedKeyLength Expected average cache-key length
+		 * @return This builder
+		 */
+		public Builder expectedKeyLength(int expectedKeyLength) {
+			if (expectedKeyLength < 1 || expectedKeyLength > Short.MAX_VALUE) throw new IllegalArgumentException("Expected key length must be between 1 and " + Short.MAX_VALUE + ", was " + expectedKeyLength);
+			this.expectedKeyLength = expectedKeyLength;
+			return this;
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#concurrencyLevel(int)}
+		 */
+		public Builder concurrencyLevel(int concurrencyLevel) {
+			if (concurrencyLevel < 1 || concurrencyLevel > (1 << 16)) throw new IllegalArgumentException("Concurrency level must be between 1 and 2^16, was " + concurrencyLevel);
+			this.concurrencyLevel = concurrencyLevel;
+			return this;
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#defaultNewCreator(LongNewCreator)}
+		 */
+		public Builder defaultNewCreator(LongNewCreator newCreator) {
+			this.defaultNewCreator = newCreator;
+			return this;
+		}
+
+		/**
+		 * See {@link LongValueChangingValueCache.Builder#defaultModifier(LongModifier)}
+		 */
+		public Builder defaultModifier(LongModifier modifier) {
+			this.defaultModifier = modifier;
+			return this;
+		}
+
+		/**
+		 * Build the {@link OffHeapLongValueChangingValueCache} instance
+		 * @return The built {@link OffHeapLongValueChangingValueCache} instance
+		 */
+		public OffHeapLongValueChangingValueCache build() {
+			if (maximumSize < 0)
+				throw new RuntimeException("No maximum size set");
+
+			return new OffHeapLongValueChangingValueCache(maximumSize, expectedKeyLength, concurrencyLevel, defaultNewCreator, defaultModifier);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link OffHeapLongValueChangingValueCache} instance
+	 *
+	 * @return The builder to be used
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	// Slot layout. Key offset 0 marks an empty slot - the arena does not use its first byte
+	private static final int SLOT_SIZE = 16;
+	private static final int HASH = 0;
+	private static final int KEY_OFFSET = 4;
+	private static final int VALUE = 8;
+	// Largest key-arena
+	private static final int MAX_ARENA_BYTES = 1 << 30;
+
+	private static class Segment extends ClockSegment {
+
+		private final ByteBuffer slots;
+		private ByteBuffer arena;
+		// Compacted into and swapped with the arena, when the arena is full. Null until the first compaction
+		private ByteBuffer spareArena;
+		// Next free byte of the arena
+		private int arenaTop = 1;
+
+		private Segment(int maxSize, int expectedKeyLength) {
+			super(maxSize);
+			long bytes = (long)(mask + 1) * SLOT_SIZE;
+			if (bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Segment of " + bytes + " bytes too big - increase concurrency level");
+			slots = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+			arena = ByteBuffer.allocateDirect((int)Math.min(MAX_ARENA_BYTES, 1 + (long)maxSize * (1 + expectedKeyLength)));
+		}
+
+		private int find(String key, int hash) {
+			for (int slot = hash & mask; !isEmpty(slot); slot = (slot + 1) & mask) {
+				int offset = slot * SLOT_SIZE;
+				if (slots.getInt(offset + HASH) == hash && keyEquals(key, slots.getInt(offset + KEY_OFFSET))) return slot;
+			}
+			return -1;
+		}
+
+		private boolean keyEquals(String key, int keyOffset) {
+			int length = encodedLength(key);
+			if (arenaLength(keyOffset) != length) return false;
+			int position = keyOffset + lengthBytes(length);
+			for (int i = 0; i < key.length(); i++) {
+				char c = key.charAt(i);
+				if (c < 0x80) {
+					if (arena.get(position++) != (byte)c) return false;
+				} else if (c < 0x800) {
+					if (arena.get(position++) != (byte)(0xc0 | (c >> 6)) || arena.get(position++) != (byte)(0x80 | (c & 0x3f))) return false;
+				} else {
+					if (arena.get(position++) != (byte)(0xe0 | (c >> 12)) || arena.get(position++) != (byte)(0x80 | ((c >> 6) & 0x3f)) || arena.get(position++) != (byte)(0x80 | (c & 0x3f))) return false;
+				}
+			}
+			return true;
+		}
+
+		private long getValue(int slot) {
+			return slots.getLong(slot * SLOT_SIZE + VALUE);
+		}
+
+		private void setValue(int slot, long value) {
+			slots.putLong(slot * SLOT_SIZE + VALUE, value);
+		}
+
+		private void insert(String key, int hash, long value) {
+			ensureRoom();
+			int length = encodedLength(key);
+			int keyOffset = allocate(lengthBytes(length) + length);
+			int position = writeLength(keyOffset, length);
+			for (int i = 0; i < key.length(); i++) {
+				char c = key.charAt(i);
+				if (c < 0x80) {
+					arena.put(position++, (byte)c);
+				} else if (c < 0x800) {
+					arena.put(position++, (byte)(0xc0 | (c >> 6)));
+					arena.put(position++, (byte)(0x80 | (c & 0x3f)));
+				} else {
+					arena.put(position++, (byte)(0xe0 | (c >> 12)));
+					arena.put(position++, (byte)(0x80 | ((c >> 6) & 0x3f)));
+					arena.put(position++, (byte)(0x80 | (c & 0x3f)));
+				}
+			}
+			int offset = emptySlot(hash) * SLOT_SIZE;
+			slots.putInt(offset + HASH, hash);
+			slots.putInt(offset + KEY_OFFSET, keyOffset);
+			slots.putLong(offset + VALUE, value);
+		}
+
+		// Offset in the arena of bytes free for a new cache-key. Space of removed cache-keys is reclaimed if the arena is full
+		private int allocate(int bytes) {
+			if (arenaTop + bytes > arena.capacity()) {
+				long used = 1 + bytes;
+				for (int slot = 0; slot <= mask; slot++) {
+					if (!isEmpty(slot)) used += arenaBytes(slots.getInt(slot * SLOT_SIZE + KEY_OFFSET));
+				}
+				long capacity = arena.capacity();
+				while (2 * used > capacity && capacity < MAX_ARENA_BYTES) {
+					capacity *= 2;
+				}
+				if (used > capacity) throw new IllegalStateException("Cache-keys of segment take up more than " + MAX_ARENA_BYTES + " bytes");
+				compact((int)Math.min(capacity, MAX_ARENA_BYTES));
+			}
+			int offset = arenaTop;
+			arenaTop += bytes;
+			return offset;
+		}
+
+		// Copy the cache-keys in use to the spare arena, or to a new one if growing
+		private void compact(int capacity) {
+			ByteBuffer oldArena = arena;
+			if (capacity == oldArena.capacity()) {
+				if (spareArena == null) spareArena = ByteBuffer.allocateDirect(capacity);
+				arena = spareArena;
+				spareArena = oldArena;
+			} else {
+				// Neither arena is reused - a spare one of the new size is created at the next compaction
+				arena = ByteBuffer.allocateDirect(capacity);
+				spareArena = null;
+			}
+			arenaTop = 1;
+			for (int slot = 0; slot <= mask; slot++) {
+				if (isEmpty(slot)) continue;
+				int oldOffset = slots.getInt(slot * SLOT_SIZE + KEY_OFFSET);
+				int bytes = arenaBytes(oldArena, oldOffset);
+				for (int i = 0; i < bytes; i++) {
+					arena.put(arenaTop + i, oldArena.get(oldOffset + i));
+				}
+				slots.putInt(slot * SLOT_SIZE + KEY_OFFSET, arenaTop);
+				arenaTop += bytes;
+			}
+		}
+
+		// Lengths below 128 take one byte, others four with the high bit set
+		private static int lengthBytes(int length) {
+			return (length < 0x80)?1:4;
+		}
+
+		private int writeLength(int keyOffset, int length) {
+			if (length < 0x80) {
+				arena.put(keyOffset, (byte)length);
+				return keyOffset + 1;
+			}
+			arena.putInt(keyOffset, length | 0x80000000);
+			return keyOffset + 4;
+		}
+
+		private int arenaLength(int keyOffset) {
+			return arenaLength(arena, keyOffset);
+		}
+
+		private static int arenaLength(ByteBuffer arena, int keyOffset) {
+			byte first = arena.get(keyOffset);
+			return (first >= 0)?first:(arena.getInt(keyOffset) & 0x7fffffff);
+		}
+
+		private int arenaBytes(int keyOffset) {
+			return arenaBytes(arena, keyOffset);
+		}
+
+		// Bytes taken up by the cache-key, including its length
+		private static int arenaBytes(ByteBuffer arena, int keyOffset) {
+			int length = arenaLength(arena, keyOffset);
+			return lengthBytes(length) + length;
+		}
+
+		@Override
+		protected boolean isEmpty(int slot) {
+			return slots.getInt(slot * SLOT_SIZE + KEY_OFFSET) == 0;
+		}
+
+		@Override
+		protected int hash(int slot) {
+			return slots.getInt(slot * SLOT_SIZE + HASH);
+		}
+
+		@Override
+		protected void move(int fromSlot, int toSlot) {
+			int from = fromSlot * SLOT_SIZE;
+			int to = toSlot * SLOT_SIZE;
+			slots.putLong(to, slots.getLong(from));
+			slots.putLong(to + 8, slots.getLong(from + 8));
+		}
+
+		@Override
+		protected void clear(int slot) {
+			slots.putInt(slot * SLOT_SIZE + KEY_OFFSET, 0);
+		}
+
+	}
+
+	// Bytes of the UTF-8 encoding of the cache-key - three for each surrogate
+	private static int encodedLength(String key) {
+		int length = key.length();
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c >= 0x80) length += (c < 0x800)?1:2;
+		}
+		return length;
+	}
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final LongNewCreator defaultNewCreator;
+	private final LongModifier defaultModifier;
+
+	protected OffHeapLongValueChangingValueCache(int maximumSize, int expectedKeyLength, int concurrencyLevel, LongNewCreator defaultNewCreator, LongModifier defaultModifier) {
+		int numberOfSegments = Integer.highestOneBit(Math.min(concurrencyLevel, maximumSize));
+		if (numberOfSegments < Math.min(concurrencyLevel, maximumSize)) numberOfSegments <<= 1;
+		segments = new Segment[numberOfSegments];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment((maximumSize + numberOfSegments - 1) / numberOfSegments, expectedKeyLength);
+		}
+		// Segment selected by the high bits of the hash, slot within segment by the low bits
+		segmentShift = 32 - Integer.numberOfTrailingZeros(numberOfSegments);
+		this.defaultNewCreator = defaultNewCreator;
+		this.defaultModifier = defaultModifier;
+	}
+
+	private Segment segmentFor(int hash) {
+		return (segments.length == 1)?segments[0]:segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * See {@link LongValueChangingValueCache#modify(Object, boolean)}
+	 */
+	@Override
+	public final long modify(String key, boolean createIfNotExists) {
+		return modify(key, null, null, createIfNotExists);
+	}
+
+	/**
+	 * See {@link LongValueChangingValueCache#modify(Object, LongModifier, boolean)}
+	 */
+	@Override
+	public final long modify(String key, LongModifier modifier, boolean createIfNotExists) {
+		return modify(key, null, modifier, createIfNotExists);
+	}
+
+	@Override
+	public final long modify(String key, LongNewCreator newCreator, LongModifier modifier, boolean createIfNotExists) {
+		int hash = KeyLocks.spread(key.hashCode());
+		Segment segment = segmentFor(hash);
+		while (true) {
+			long currentValue = get(segment, key, hash);
+			long value = currentValue;
+			if (value == NO_VALUE) {
+				if (!createIfNotExists) return NO_VALUE;
+				value = ((newCreator != null)?newCreator:defaultNewCreator).get();
+				if (value == NO_VALUE) return NO_VALUE;
+			}
+
+			long newValue = ((modifier != null)?modifier:defaultModifier).apply(value);
+			synchronized(segment) {
+				int slot = segment.find(key, hash);
+				if (((slot >= 0)?segment.getValue(slot):NO_VALUE) == currentValue) {
+					write(segment, slot, key, hash, newValue);
+					return newValue;
+				}
+			}
+			// Another thread changed the cache-entry in the meantime - start over
+		}
+	}
+
+	@Override
+	public void put(String key, long value) {
+		int hash = KeyLocks.spread(key.hashCode());
+		Segment segment = segmentFor(hash);
+		synchronized(segment) {
+			write(segment, segment.find(key, hash), key, hash, value);
+		}
+	}
+
+	// Called holding the segment. Slot of the cache-key, negative if not present
+	private void write(Segment segment, int slot, String key, int hash, long newValue) {
+		if (newValue == NO_VALUE) {
+			if (slot >= 0) segment.remove(slot);
+		} else if (slot >= 0) {
+			segment.setValue(slot, newValue);
+			segment.referenced[slot] = true;
+		} else {
+			segment.insert(key, hash, newValue);
+		}
+	}
+
+	@Override
+	public long getIfPresent(String key) {
+		int hash = KeyLocks.spread(key.hashCode());
+		return get(segmentFor(hash), key, hash);
+	}
+
+	private long get(Segment segment, String key, int hash) {
+		synchronized(segment) {
+			int slot = segment.find(key, hash);
+			if (slot < 0) return NO_VALUE;
+			segment.referenced[slot] = true;
+			return segment.getValue(slot);
+		}
+	}
+
+	/**
+	 * See {@link LongValueChangingValueCache#getAddIfNotPresent(Object)}
+	 */
+	@Override
+	public final long getAddIfNotPresent(String key) {
+		return getAddIfNotPresent(key, null);
+	}
+
+	/**
+	 * See {@link LongValueChangingValueCache#getAddIfNotPresent(Object, LongNewCreator)}
+	 */
+	public final long getAddIfNotPresent(String key, LongNewCreator newCreator) {
+		return modify(key, newCreator, NO_MODIFICATION, true);
+	}
+
+	@Override
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			synchronized(segment) {
+				size += segment.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of bytes of off-heap memory allocated for cache-entries
+	 */
+	public long getOffHeapBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			synchronized(segment) {
+				bytes += segment.slots.capacity() + segment.arena.capacity() + ((segment.spareArena != null)?segment.spareArena.capacity():0);
+			}
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,392 @@
+package ae.teletronics.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Immutable hash-map (a hash array mapped trie). {@link #plus(Object, Object)} and {@link #minus(Object)} return a new map, sharing all
+ * but the path to the changed entry with this map - O(log32 n) copying. So a map can be handed to readers as a snapshot, without copying
+ * it, and without it being affected by later changes
+ *
+ * The {@link Map} methods changing the map throw {@link UnsupportedOperationException}. Null keys and values are allowed
+ *
+ * @param <K> Type of keys
+ * @param <V> Type of values
+ */
+@Immutable
+public final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	@SuppressWarnings("rawtypes")
+	private static final PersistentHashMap EMPTY = new PersistentHashMap<Object, Object>(null, 0);
+
+	/**
+	 * @return The empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return EMPTY;
+	}
+
+	private static int hash(Object key) {
+		if (key == null) return 0;
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return (a == b) || (a != null && a.equals(b));
+	}
+
+	private static final class Leaf<K, V> implements Map.Entry<K, V> {
+
+		private final int hash;
+		private final K key;
+		private final V value;
+
+		private Leaf(int hash, K key, V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		private boolean matches(Object key, int hash) {
+			return this.hash == hash && equal(this.key, key);
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue(V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) return false;
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>)o;
+			return equal(key, other.getKey()) && equal(value, other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return ((key != null)?key.hashCode():0) ^ ((value != null)?value.hashCode():0);
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+
+	}
+
+	// Children are Leafs or Nodes. Never changed after construction
+	private static abstract class Node<K, V> {
+
+		protected final Object[] children;
+
+		protected Node(Object[] children) {
+			this.children = children;
+		}
+
+		abstract Leaf<K, V> find(Object key, int hash, int shift);
+
+		/**
+		 * @return New node with leaf added or replacing the leaf with the same key
+		 */
+		abstract Node<K, V> plus(Leaf<K, V> leaf, int shift);
+
+		/**
+		 * @return This node if key not found, null if the node becomes empty
+		 */
+		abstract Node<K, V> minus(Object key, int hash, int shift);
+
+	}
+
+	private static final class BitmapNode<K, V> extends Node<K, V> {
+
+		// Bit i set, if a child has hash-bits i at this level. Children in bit-order
+		private final int bitmap;
+
+		private BitmapNode(int bitmap, Object[] children) {
+			super(children);
+			this.bitmap = bitmap;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Leaf<K, V> find(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) return null;
+			Object child = children[index(bit)];
+			if (child instanceof Leaf) {
+				Leaf<K, V> leaf = (Leaf<K, V>)child;
+				return (leaf.matches(key, hash))?leaf:null;
+			}
+			return ((Node<K, V>)child).find(key, hash, shift + BITS);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Node<K, V> plus(Leaf<K, V> leaf, int shift) {
+			int bit = 1 << ((leaf.hash >>> shift) & MASK);
+			int index = index(bit);
+			if ((bitmap & bit) == 0) {
+				Object[] newChildren = new Object[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, index);
+				newChildren[index] = leaf;
+				System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+				return new BitmapNode<K, V>(bitmap | bit, newChildren);
+			}
+			Object child = children[index];
+			Object newChild;
+			if (child instanceof Leaf) {
+				Leaf<K, V> existing = (Leaf<K, V>)child;
+				newChild = (existing.matches(leaf.key, leaf.hash))?leaf:node(existing, leaf, shift + BITS);
+			} else {
+				newChild = ((Node<K, V>)child).plus(leaf, shift + BITS);
+			}
+			return new BitmapNode<K, V>(bitmap, replace(children, index, newChild));
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Node<K, V> minus(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) return this;
+			int index = index(bit);
+			Object child = children[index];
+			Object newChild;
+			if (child instanceof Leaf) {
+				if (!((Leaf<K, V>)child).matches(key, hash)) return this;
+				newChild = null;
+			} else {
+				newChild = ((Node<K, V>)child).minus(key, hash, shift + BITS);
+				if (newChild == child) return this;
+			}
+			if (newChild != null) return new BitmapNode<K, V>(bitmap, replace(children, index, newChild));
+			if (children.length == 1) return null;
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(children, index + 1, newChildren, index, newChildren.length - index);
+			return new BitmapNode<K, V>(bitmap & ~bit, newChildren);
+		}
+
+	}
+
+	// All hash-bits used - leafs with equal hashes
+	private static final class CollisionNode<K, V> extends Node<K, V> {
+
+		private CollisionNode(Object[] children) {
+			super(children);
+		}
+
+		private int indexOf(Object key, int hash) {
+			for (int i = 0; i < children.length; i++) {
+				@SuppressWarnings("unchecked")
+				Leaf<K, V> leaf = (Leaf<K, V>)children[i];
+				if (leaf.matches(key, hash)) return i;
+			}
+			return -1;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Leaf<K, V> find(Object key, int hash, int shift) {
+			int index = indexOf(key, hash);
+			return (index >= 0)?(Leaf<K, V>)children[index]:null;
+		}
+
+		@Override
+		Node<K, V> plus(Leaf<K, V> leaf, int shift) {
+			int index = indexOf(leaf.key, leaf.hash);
+			if (index >= 0) return new CollisionNode<K, V>(replace(children, index, leaf));
+			Object[] newChildren = new Object[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, children.length);
+			newChildren[children.length] = leaf;
+			return new CollisionNode<K, V>(newChildren);
+		}
+
+		@Override
+		Node<K, V> minus(Object key, int hash, int shift) {
+			int index = indexOf(key, hash);
+			if (index < 0) return this;
+			if (children.length == 1) return null;
+			Object[] newChildren = new Object[children.length - 1];
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(children, index + 1, newChildren, index, newChildren.length - index);
+			return new CollisionNode<K, V>(newChildren);
+		}
+
+	}
+
+	private static Object[] replace(Object[] children, int index, Object child) {
+		Object[] newChildren = children.clone();
+		newChildren[index] = child;
+		return newChildren;
+	}
+
+	private static <K, V> Node<K, V> node(Leaf<K, V> a, Leaf<K, V> b, int shift) {
+		if (shift >= 32) return new CollisionNode<K, V>(new Object[]{a, b});
+		int aBits = (a.hash >>> shift) & MASK;
+		int bBits = (b.hash >>> shift) & MASK;
+		if (aBits == bBits) return new BitmapNode<K, V>(1 << aBits, new Object[]{node(a, b, shift + BITS)});
+		return new BitmapNode<K, V>((1 << aBits) | (1 << bBits), (aBits < bBits)?new Object[]{a, b}:new Object[]{b, a});
+	}
+
+	private final Node<K, V> root;
+	private final int size;
+
+	private PersistentHashMap(Node<K, V> root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	private Leaf<K, V> find(Object key) {
+		return (root != null)?root.find(key, hash(key), 0):null;
+	}
+
+	@Override
+	public V get(Object key) {
+		Leaf<K, V> leaf = find(key);
+		return (leaf != null)?leaf.value:null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return Map with key mapped to value, and otherwise the same as this map. This map if key was already mapped to value (same instance)
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		int hash = hash(key);
+		Leaf<K, V> leaf = new Leaf<K, V>(hash, key, value);
+		if (root == null) return new PersistentHashMap<K, V>(new BitmapNode<K, V>(1 << (hash & MASK), new Object[]{leaf}), 1);
+		Leaf<K, V> existing = root.find(key, hash, 0);
+		if (existing != null && existing.value == value) return this;
+		return new PersistentHashMap<K, V>(root.plus(leaf, 0), (existing != null)?size:(size + 1));
+	}
+
+	/**
+	 * @return Map with all the mappings of map added, and otherwise the same as this map
+	 */
+	public PersistentHashMap<K, V> plusAll(Map<? extends K, ? extends V> map) {
+		PersistentHashMap<K, V> result = this;
+		for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+			result = result.plus(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/**
+	 * @return Map without key, and otherwise the same as this map. This map if key is not in it
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (root == null) return this;
+		Node<K, V> newRoot = root.minus(key, hash(key), 0);
+		if (newRoot == root) return this;
+		return (newRoot != null)?new PersistentHashMap<K, V>(newRoot, size - 1):PersistentHashMap.<K, V>empty();
+	}
+
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new EntryIterator<K, V>(root);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+		};
+	}
+
+	// Depth-first over the trie - at most 8 levels (7 bitmap-levels and a collision-level)
+	private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+		private final Object[][] childrenStack = new Object[8][];
+		private final int[] indexStack = new int[8];
+		private int depth;
+		private Leaf<K, V> next;
+
+		private EntryIterator(Node<K, V> root) {
+			if (root != null) {
+				childrenStack[0] = root.children;
+				advance();
+			} else {
+				depth = -1;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				Object[] children = childrenStack[depth];
+				if (indexStack[depth] == children.length) {
+					depth--;
+					continue;
+				}
+				Object child = children[indexStack[depth]++];
+				if (child instanceof Leaf) {
+					next = (Leaf<K, V>)child;
+					return;
+				}
+				depth++;
+				childrenStack[depth] = ((Node<K, V>)child).children;
+				indexStack[depth] = 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (next == null) throw new NoSuchElementException();
+			Leaf<K, V> result = next;
+			advance();
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
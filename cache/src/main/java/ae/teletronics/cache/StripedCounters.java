@@ -0,0 +1,62 @@
+package ae.teletronics.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A fixed number of counters, each spread over a number of stripes selected by the counting thread, so that threads counting
+ * concurrently (mostly) do not contend on the same cache-line. Reading a counter sums its stripes, and is therefore not an atomic
+ * snapshot while counting goes on
+ */
+@ThreadSafe
+class StripedCounters {
+
+	private static final int MAX_STRIPES = 64;
+	// Longs per cache-line
+	private static final int LINE = 8;
+
+	private final int counters;
+	private final int stride;
+	private final int stripeMask;
+	private final AtomicLongArray cells;
+
+	/**
+	 * @param counters Number of counters
+	 */
+	StripedCounters(int counters) {
+		this.counters = counters;
+		// Round up to whole cache-lines, plus one to separate neighbouring stripes
+		stride = ((counters + LINE - 1) / LINE + 1) * LINE;
+		int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+		if (stripes < Runtime.getRuntime().availableProcessors()) stripes <<= 1;
+		stripes = Math.min(stripes, MAX_STRIPES);
+		stripeMask = stripes - 1;
+		cells = new AtomicLongArray(stripes * stride);
+	}
+
+	/**
+	 * @return Number of counters
+	 */
+	int size() {
+		return counters;
+	}
+
+	void increment(int counter) {
+		add(counter, 1);
+	}
+
+	void add(int counter, long x) {
+		int stripe = KeyLocks.spread((int)Thread.currentThread().getId()) & stripeMask;
+		cells.getAndAdd(stripe * stride + counter, x);
+	}
+
+	long sum(int counter) {
+		long sum = 0;
+		for (int i = counter; i < cells.length(); i += stride) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+}
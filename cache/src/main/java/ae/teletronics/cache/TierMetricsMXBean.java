@@ -0,0 +1,45 @@
+package ae.teletronics.cache;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link CacheMetrics.TierMetrics} of an internal cache. See {@link ChangingValueCache#registerMBeans(String)}
+ */
+public interface TierMetricsMXBean {
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getName()}
+	 */
+	String getName();
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getSize()}
+	 */
+	long getSize();
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getHits()}
+	 */
+	long getHits();
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getMisses()}
+	 */
+	long getMisses();
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getEvictions()}
+	 */
+	long getEvictions();
+
+	/**
+	 * See {@link CacheMetrics.TierMetrics#getEstimatedRetainedBytes()}
+	 */
+	long getEstimatedRetainedBytes();
+
+	/**
+	 * @return Number of cache-entries moved from this internal cache, by name of the internal cache they were moved to. See {@link CacheMetrics#getMoves(String, String)}
+	 */
+	Map<String, Long> getMovesTo();
+
+}
@@ -0,0 +1,317 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.PrimitiveSink;
+
+/**
+ * {@link Store} decorator answering gets for keys that were never put, without getting from the decorated store. The keys put are
+ * recorded in a Bloom filter - gets for keys not in it return null right away. So absent-key gets, and the version checks of NEW puts
+ * in {@link KeyValueOptimisticLockingDBWithPluggableCache}, do not cost a store read (an I/O on a store on disk). Keys in the filter
+ * that were never put (false positives) are still got from the decorated store
+ *
+ * The filter is scalable: when it holds its expected number of keys, a filter twice the size with half the false positive probability
+ * is added, so the total false positive probability stays below twice the configured, however many keys are put. Bits are set
+ * lock-free. Keys are added to the filter before being put to the decorated store, so that a get never misses a key put. On creation
+ * the keys already in the decorated store are added
+ *
+ * @param <STOREKEY> Type of the key
+ * @param <STOREVALUECONTAINER> Type of the value-container
+ */
+@ThreadSafe
+public class BloomFilterStore<STOREKEY, STOREVALUECONTAINER> implements Store<STOREKEY, STOREVALUECONTAINER> {
+
+	/**
+	 * Builder for building {@link BloomFilterStore} instances
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 */
+	public static class Builder<STOREKEY, STOREVALUECONTAINER> {
+
+		private Store<STOREKEY, STOREVALUECONTAINER> store;
+		private Funnel<? super STOREKEY> keyFunnel = HASH_CODE_FUNNEL;
+		private long expectedKeys = 1 << 16;
+		private double falsePositiveProbability = 0.01;
+
+		protected Builder() {
+		}
+
+		/**
+		 * Set the store to decorate. Closed when the built store is closed
+		 * @param store The store
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> store(Store<STOREKEY, STOREVALUECONTAINER> store) {
+			this.store = store;
+			return this;
+		}
+
+		/**
+		 * Set how keys are fed to the hash-function of the filter. Default feeds their hash-code - so keys with equal hash-codes are
+		 * false positives for each other, and that adds about 1 in 2^32 per key put to the false positive probability
+		 * @param keyFunnel The funnel - e.g. {@link com.google.common.hash.Funnels#stringFunnel(java.nio.charset.Charset)} for string keys
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> keyFunnel(Funnel<? super STOREKEY> keyFunnel) {
+			this.keyFunnel = keyFunnel;
+			return this;
+		}
+
+		/**
+		 * Set the number of keys the first filter is sized for. Default is 65536
+		 * @param expectedKeys The number of keys
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> expectedKeys(long expectedKeys) {
+			if (expectedKeys < 1) throw new IllegalArgumentException("Expected keys must be at least 1, was " + expectedKeys);
+			this.expectedKeys = expectedKeys;
+			return this;
+		}
+
+		/**
+		 * Set the false positive probability of the first filter. Default is 0.01
+		 * @param falsePositiveProbability The probability
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> falsePositiveProbability(double falsePositiveProbability) {
+			if (!(falsePositiveProbability > 0 && falsePositiveProbability < 1)) throw new IllegalArgumentException("False positive probability must be between 0 and 1, was " + falsePositiveProbability);
+			this.falsePositiveProbability = falsePositiveProbability;
+			return this;
+		}
+
+		/**
+		 * Build the {@link BloomFilterStore} instance - adding the keys of the decorated store to the filter
+		 * @return The built {@link BloomFilterStore} instance
+		 */
+		public BloomFilterStore<STOREKEY, STOREVALUECONTAINER> build() {
+			if (store == null)
+				throw new RuntimeException("No store set");
+			if (keyFunnel == null)
+				throw new RuntimeException("No key-funnel set");
+
+			return new BloomFilterStore<STOREKEY, STOREVALUECONTAINER>(store, keyFunnel, expectedKeys, falsePositiveProbability);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link BloomFilterStore} instance
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 *
+	 * @return The builder to be used
+	 */
+	public static <STOREKEY, STOREVALUECONTAINER> Builder<STOREKEY, STOREVALUECONTAINER> builder() {
+		return new Builder<STOREKEY, STOREVALUECONTAINER>();
+	}
+
+	private static final Funnel<Object> HASH_CODE_FUNNEL = new Funnel<Object>() {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public void funnel(Object from, PrimitiveSink into) {
+			into.putInt((from != null)?from.hashCode():0);
+		}
+
+	};
+
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+	// Each added filter has this times the capacity, and this times the false positive probability, of the previous
+	private static final int GROWTH = 2;
+	private static final double TIGHTENING = 0.5;
+	// Bit-indexes are ints
+	private static final long MAX_BITS = Integer.MAX_VALUE;
+
+	// Fixed size Bloom filter - bits set lock-free
+	private static class Filter {
+
+		private final AtomicLongArray words;
+		private final long bits;
+		private final int hashes;
+		private final long capacity;
+		private final double falsePositiveProbability;
+		private final AtomicLong added = new AtomicLong();
+
+		private Filter(long capacity, double falsePositiveProbability) {
+			this.capacity = capacity;
+			this.falsePositiveProbability = falsePositiveProbability;
+			long optimalBits = (long)Math.ceil(-capacity * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+			bits = Math.max(64, Math.min(optimalBits, MAX_BITS));
+			hashes = Math.max(1, (int)Math.round((double)bits / capacity * Math.log(2)));
+			words = new AtomicLongArray((int)((bits + 63) / 64));
+		}
+
+		// Kirsch-Mitzenmacher - the bit-indexes are combinations of two hashes
+		private int bitIndex(long hash, int i) {
+			int combined = (int)hash + i * (int)(hash >>> 32);
+			return (int)(((combined < 0)?~combined:combined) % bits);
+		}
+
+		/**
+		 * @return Whether any bits were set - false if the key was (or looks as if it was) added already
+		 */
+		private boolean put(long hash) {
+			boolean changed = false;
+			for (int i = 0; i < hashes; i++) {
+				int bitIndex = bitIndex(hash, i);
+				int wordIndex = bitIndex >>> 6;
+				long mask = 1L << bitIndex;
+				while (true) {
+					long word = words.get(wordIndex);
+					if ((word & mask) != 0) break;
+					if (words.compareAndSet(wordIndex, word, word | mask)) {
+						changed = true;
+						break;
+					}
+				}
+			}
+			return changed;
+		}
+
+		private boolean mightContain(long hash) {
+			for (int i = 0; i < hashes; i++) {
+				int bitIndex = bitIndex(hash, i);
+				if ((words.get(bitIndex >>> 6) & (1L << bitIndex)) == 0) return false;
+			}
+			return true;
+		}
+
+	}
+
+	private final Store<STOREKEY, STOREVALUECONTAINER> store;
+	private final Funnel<? super STOREKEY> keyFunnel;
+	// Replaced, not changed, when a filter is added. Keys are added to the last
+	private volatile Filter[] filters;
+
+	private final AtomicLong skippedGets = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+	private final AtomicInteger filtersAdded = new AtomicInteger();
+
+	protected BloomFilterStore(Store<STOREKEY, STOREVALUECONTAINER> store, Funnel<? super STOREKEY> keyFunnel, long expectedKeys, double falsePositiveProbability) {
+		this.store = store;
+		this.keyFunnel = keyFunnel;
+		filters = new Filter[]{new Filter(expectedKeys, falsePositiveProbability)};
+		for (STOREKEY key : store.keys()) {
+			add(key);
+		}
+	}
+
+	private long hash(STOREKEY key) {
+		return HASH_FUNCTION.hashObject(key, keyFunnel).asLong();
+	}
+
+	private void add(STOREKEY key) {
+		long hash = hash(key);
+		if (mightContain(hash)) return;
+		Filter[] currentFilters = filters;
+		Filter last = currentFilters[currentFilters.length - 1];
+		if (last.put(hash) && last.added.incrementAndGet() >= last.capacity) addFilter(currentFilters);
+	}
+
+	private synchronized void addFilter(Filter[] full) {
+		// Already added by another thread
+		if (filters != full) return;
+		Filter last = full[full.length - 1];
+		Filter[] newFilters = new Filter[full.length + 1];
+		System.arraycopy(full, 0, newFilters, 0, full.length);
+		newFilters[full.length] = new Filter(last.capacity * GROWTH, last.falsePositiveProbability * TIGHTENING);
+		filters = newFilters;
+		filtersAdded.incrementAndGet();
+	}
+
+	private boolean mightContain(long hash) {
+		for (Filter filter : filters) {
+			if (filter.mightContain(hash)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Null right away if the key was never put, otherwise the value-container from the decorated store
+	 */
+	@Override
+	public STOREVALUECONTAINER get(STOREKEY key) {
+		if (!mightContain(hash(key))) {
+			skippedGets.incrementAndGet();
+			return null;
+		}
+		STOREVALUECONTAINER valueContainer = store.get(key);
+		if (valueContainer == null) falsePositives.incrementAndGet();
+		return valueContainer;
+	}
+
+	/**
+	 * Gets only the keys that may have been put from the decorated store
+	 */
+	@Override
+	public Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys) {
+		List<STOREKEY> mightBePut = new ArrayList<STOREKEY>();
+		for (STOREKEY key : keys) {
+			if (mightContain(hash(key))) {
+				mightBePut.add(key);
+			} else {
+				skippedGets.incrementAndGet();
+			}
+		}
+		if (mightBePut.isEmpty()) return Collections.emptyMap();
+		Map<STOREKEY, STOREVALUECONTAINER> valueContainers = store.getAll(mightBePut);
+		falsePositives.addAndGet(mightBePut.size() - valueContainers.size());
+		return valueContainers;
+	}
+
+	@Override
+	public void put(STOREKEY key, STOREVALUECONTAINER valueContainer) {
+		add(key);
+		store.put(key, valueContainer);
+	}
+
+	@Override
+	public Iterable<STOREKEY> keys() {
+		return store.keys();
+	}
+
+	/**
+	 * Close the decorated store
+	 */
+	@Override
+	public void close() throws IOException {
+		store.close();
+	}
+
+	/**
+	 * @return Number of gets answered without getting from the decorated store
+	 */
+	public long getSkippedGets() {
+		return skippedGets.get();
+	}
+
+	/**
+	 * @return Number of gets for keys never put, that were got from the decorated store anyway
+	 */
+	public long getFalsePositives() {
+		return falsePositives.get();
+	}
+
+	/**
+	 * @return Number of filters added because the previous were full
+	 */
+	public int getFiltersAdded() {
+		return filtersAdded.get();
+	}
+
+}
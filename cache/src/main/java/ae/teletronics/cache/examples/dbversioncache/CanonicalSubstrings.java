@@ -0,0 +1,129 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Canonical instances of substrings - like {@link String#intern()}, but a substring can be looked up without creating it. Lookups
+ * do not lock or allocate. Substrings are added by {@link #intern(String, int, int)} and never removed - intern only what is retained
+ * anyway, and let go of the instance together with it
+ *
+ * Split into segments, each a table of its own. Interning a substring already interned does not lock either, interning a new one
+ * synchronizes on its segment only
+ */
+@ThreadSafe
+final class CanonicalSubstrings {
+
+	private static final int INITIAL_SEGMENT_CAPACITY = 4;
+
+	// Open-addressing (linear probing) hash-table, at most half full. Replaced by a larger one when full. Lookups racing with an intern
+	// may not see the substring being added
+	private static class Segment {
+
+		private volatile String[] table = new String[INITIAL_SEGMENT_CAPACITY];
+		@GuardedBy("this")
+		private int size;
+
+	}
+
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	CanonicalSubstrings() {
+		this(1);
+	}
+
+	/**
+	 * @param concurrencyLevel Number of segments. Rounded up to the nearest power of two
+	 */
+	CanonicalSubstrings(int concurrencyLevel) {
+		if (concurrencyLevel < 1 || concurrencyLevel > (1 << 16)) throw new IllegalArgumentException("Concurrency level must be between 1 and 2^16, was " + concurrencyLevel);
+		int numberOfSegments = Integer.highestOneBit(concurrencyLevel);
+		if (numberOfSegments < concurrencyLevel) numberOfSegments <<= 1;
+		segments = new Segment[numberOfSegments];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+		segmentShift = 32 - Integer.numberOfTrailingZeros(numberOfSegments);
+	}
+
+	/**
+	 * @param source String holding the substring
+	 * @param start Start index of the substring (inclusive)
+	 * @param end End index of the substring (exclusive)
+	 * @return The canonical instance equal to source.substring(start, end), or null if not interned
+	 */
+	String get(String source, int start, int end) {
+		int hash = hash(source, start, end);
+		return find(segmentFor(hash).table, source, start, end, hash);
+	}
+
+	/**
+	 * Same as {@link #get(String, int, int)}, but adding the substring if not already interned. Adds source itself, if the substring
+	 * is all of it
+	 * @return The canonical instance equal to source.substring(start, end)
+	 */
+	String intern(String source, int start, int end) {
+		int hash = hash(source, start, end);
+		Segment segment = segmentFor(hash);
+		String canonical = find(segment.table, source, start, end, hash);
+		if (canonical != null) return canonical;
+
+		synchronized(segment) {
+			String[] table = segment.table;
+			canonical = find(table, source, start, end, hash);
+			if (canonical != null) return canonical;
+
+			if (2 * (segment.size + 1) > table.length) {
+				String[] largerTable = new String[2 * table.length];
+				for (String substring : table) {
+					if (substring != null) largerTable[emptySlot(largerTable, substring.hashCode())] = substring;
+				}
+				table = largerTable;
+			}
+			canonical = source.substring(start, end);
+			// Strings are immutable, so lookups seeing the reference see the entire string
+			table[emptySlot(table, hash)] = canonical;
+			segment.size++;
+			segment.table = table;
+			return canonical;
+		}
+	}
+
+	private Segment segmentFor(int hash) {
+		// Segment selected by the high bits of the (scrambled) hash, slot within segment by the low bits
+		return (segments.length == 1)?segments[0]:segments[(hash * 0x9e3779b9) >>> segmentShift];
+	}
+
+	// Same as source.substring(start, end).hashCode()
+	private static int hash(String source, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + source.charAt(i);
+		}
+		return hash;
+	}
+
+	private static int firstSlot(String[] table, int hash) {
+		return (hash ^ (hash >>> 16)) & (table.length - 1);
+	}
+
+	private static String find(String[] table, String source, int start, int end, int hash) {
+		int mask = table.length - 1;
+		String substring;
+		for (int slot = firstSlot(table, hash); (substring = table[slot]) != null; slot = (slot + 1) & mask) {
+			if (substring.hashCode() == hash && substring.length() == end - start && substring.regionMatches(0, source, start, end - start)) return substring;
+		}
+		return null;
+	}
+
+	private static int emptySlot(String[] table, int hash) {
+		int mask = table.length - 1;
+		int slot = firstSlot(table, hash);
+		while (table[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+}
@@ -0,0 +1,48 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * {@link Store} keeping the value-containers in a map - pretending to be a store on disk. Nothing survives a restart
+ */
+@ThreadSafe
+public class InMemoryStore<STOREKEY, STOREVALUECONTAINER> implements Store<STOREKEY, STOREVALUECONTAINER> {
+	
+	private final ConcurrentMap<STOREKEY, STOREVALUECONTAINER> map = new ConcurrentHashMap<STOREKEY, STOREVALUECONTAINER>();
+
+	@Override
+	public STOREVALUECONTAINER get(STOREKEY key) {
+		return map.get(key);
+	}
+
+	@Override
+	public Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys) {
+		Map<STOREKEY, STOREVALUECONTAINER> valueContainers = new HashMap<STOREKEY, STOREVALUECONTAINER>();
+		for (STOREKEY key : keys) {
+			STOREVALUECONTAINER valueContainer = map.get(key);
+			if (valueContainer != null) valueContainers.put(key, valueContainer);
+		}
+		return valueContainers;
+	}
+
+	@Override
+	public void put(STOREKEY key, STOREVALUECONTAINER valueContainer) {
+		map.put(key, valueContainer);
+	}
+
+	@Override
+	public Iterable<STOREKEY> keys() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -1,10 +1,15 @@
 package ae.teletronics.cache.examples.dbversioncache;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
-import com.google.common.collect.Interner;
-import com.google.common.collect.Interners;
+import ae.teletronics.cache.KeyLocks;
+
+import com.google.common.collect.Lists;
 
 public class KeyValueOptimisticLockingDBWithPluggableCache<STOREKEY, STOREVALUE, STOREVALUECONTAINER extends KeyValueOptimisticLockingDBWithPluggableCache.ValueContainer<STOREVALUE>> {
 	
@@ -46,35 +51,66 @@ public class KeyValueOptimisticLockingDBWithPluggableCache<STOREKEY, STOREVALUE,
 	}
 
 	
-	// Pretend that the database actually use a store on disk, making it expensive
-	// to fetch values
-	protected ConcurrentMap<STOREKEY, STOREVALUECONTAINER> store = new ConcurrentHashMap<STOREKEY, STOREVALUECONTAINER>();
+	// Expensive to fetch values from store - e.g. a MemoryMappedLogStore on disk
+	protected final Store<STOREKEY, STOREVALUECONTAINER> store;
 	// Much less expensive to fetch values from cache
 	protected Cache<STOREKEY, STOREVALUE, STOREVALUECONTAINER> cache;
 	
-	private final Interner<Integer> keyInterner;
+	private final KeyLocks keyLocks;
 	
 	public KeyValueOptimisticLockingDBWithPluggableCache() {
-		keyInterner = Interners.newWeakInterner();
+		this(KeyLocks.interning());
+	}
+	
+	public KeyValueOptimisticLockingDBWithPluggableCache(KeyLocks keyLocks) {
+		this(new InMemoryStore<STOREKEY, STOREVALUECONTAINER>(), keyLocks);
+	}
+	
+	public KeyValueOptimisticLockingDBWithPluggableCache(Store<STOREKEY, STOREVALUECONTAINER> store) {
+		this(store, KeyLocks.interning());
+	}
+	
+	public KeyValueOptimisticLockingDBWithPluggableCache(Store<STOREKEY, STOREVALUECONTAINER> store, KeyLocks keyLocks) {
+		this.store = store;
+		this.keyLocks = keyLocks;
 	}
 	
 	public void initialize(Cache<STOREKEY, STOREVALUE, STOREVALUECONTAINER> cache) {
 		this.cache = cache;		
 	}
 	
-	public void put(STOREKEY key, StoreRequest<STOREVALUE, STOREVALUECONTAINER> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
-		Object synchObject = getSynchObject(key);
-		if (synchObject != null) {
-			synchronized(synchObject) {
-				putImpl(key, storeRequest);
-			}
-		} else {
+	public void put(final STOREKEY key, final StoreRequest<STOREVALUE, STOREVALUECONTAINER> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
+		KeyLocks keyLocks = getKeyLocks();
+		if (keyLocks == null) {
 			putImpl(key, storeRequest);
+			return;
+		}
+		try {
+			keyLocks.withKeyLock(key, new Callable<Void>() {
+				
+				@Override
+				public Void call() throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
+					putImpl(key, storeRequest);
+					return null;
+				}
+				
+			});
+		} catch (AlreadyExistsException e) {
+			throw e;
+		} catch (DoesNotAlreadyExistException e) {
+			throw e;
+		} catch (VersionConflictException e) {
+			throw e;
+		} catch (Exception e) {
+			throw (e instanceof RuntimeException)?((RuntimeException)e):new RuntimeException(e);
 		}
 	}
 	
-	protected Object getSynchObject(STOREKEY key) {
-		return keyInterner.intern(key.hashCode());
+	/**
+	 * @return The key-locks to hold while putting, or null if the cache synchronizes the puts itself
+	 */
+	protected KeyLocks getKeyLocks() {
+		return keyLocks;
 	}
 	
 	protected void putImpl(STOREKEY key, StoreRequest<STOREVALUE, STOREVALUECONTAINER> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
@@ -84,6 +120,15 @@ public class KeyValueOptimisticLockingDBWithPluggableCache<STOREKEY, STOREVALUE,
 	}
 	
 	protected final STOREVALUECONTAINER versionCheck(STOREKEY key, StoreRequest<STOREVALUE, STOREVALUECONTAINER> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
+		if (storeRequest instanceof CacheFillRequest) {
+			// Not cached if a put cached the same or a newer version meanwhile. Otherwise the store is read again, holding the key-lock,
+			// since a put meanwhile may have had its version evicted from cache already
+			Long cachedVersion = cache.getVersion(key);
+			if (cachedVersion != null && cachedVersion >= storeRequest.getValueContainer().getVersion()) throw new AlreadyExistsException();
+			STOREVALUECONTAINER storeValue = store.get(key);
+			if (storeValue == null) throw new DoesNotAlreadyExistException();
+			return storeValue;
+		}
 		Long currentVersion = getCurrentVersion(key);
 		if ((storeRequest.getRequestedOperation() == StoreRequest.Operation.NEW) &&	(currentVersion != null)) {
 			throw new AlreadyExistsException();
@@ -110,34 +155,89 @@ public class KeyValueOptimisticLockingDBWithPluggableCache<STOREKEY, STOREVALUE,
 		if (cacheValue != null) {
 			returnValue = cacheValue;
 		} else {
-			final STOREVALUECONTAINER storeValue = store.get(key);
-			if (storeValue != null && putInCache) {
-				try {
-					
-						cache.put(key, new StoreRequest<STOREVALUE, STOREVALUECONTAINER>() {
-							
-							@Override
-							public STOREVALUECONTAINER getValueContainer() {
-								return storeValue;
-							}
-			
-							@Override
-							public StoreRequest.Operation getRequestedOperation() {
-								return StoreRequest.Operation.NEW;
-							}
-							
-						});
-				} catch (Exception e) {
-					// ignore
-				}
-			}
+			STOREVALUECONTAINER storeValue = store.get(key);
+			if (storeValue != null && putInCache) putInCache(key, storeValue);
 			
 			returnValue = storeValue;
 		}
-		// Simulate that the client does not receive the same object as the database tries to return to it
-		// because the object is sent over a network
+		return copy(returnValue);
+	}
+	
+	/**
+	 * Get the value-containers of several keys. The cache is looked up once for all the keys, and the store once for the keys not in
+	 * cache. Value-containers read from store are put in cache, the same way {@link #get(Object)} does
+	 * @param keys The keys. Iterated once
+	 * @return The keys with a value-container, and their value-containers
+	 */
+	public Map<STOREKEY, STOREVALUECONTAINER> get(Iterable<STOREKEY> keys) {
+		List<STOREKEY> keyList = Lists.newArrayList(keys);
+		Map<STOREKEY, STOREVALUECONTAINER> returnValues = new HashMap<STOREKEY, STOREVALUECONTAINER>(cache.getAll(keyList));
+		Set<STOREKEY> notCached = new LinkedHashSet<STOREKEY>();
+		for (STOREKEY key : keyList) {
+			if (!returnValues.containsKey(key)) notCached.add(key);
+		}
+		if (!notCached.isEmpty()) {
+			Map<STOREKEY, STOREVALUECONTAINER> storeValues = store.getAll(notCached);
+			for (Map.Entry<STOREKEY, STOREVALUECONTAINER> storeValue : storeValues.entrySet()) {
+				if (storeValue.getValue() != null) putInCache(storeValue.getKey(), storeValue.getValue());
+			}
+			returnValues.putAll(storeValues);
+		}
+		for (Map.Entry<STOREKEY, STOREVALUECONTAINER> returnValue : returnValues.entrySet()) {
+			returnValue.setValue(copy(returnValue.getValue()));
+		}
+		return returnValues;
+	}
+	
+	// Holding the key-lock like put, or inside the keyed modify of the cache if it synchronizes puts itself
+	private void putInCache(final STOREKEY key, STOREVALUECONTAINER storeValue) {
+		final StoreRequest<STOREVALUE, STOREVALUECONTAINER> fillRequest = new CacheFillRequest<STOREVALUE, STOREVALUECONTAINER>(storeValue);
+		try {
+			KeyLocks keyLocks = getKeyLocks();
+			if (keyLocks == null) {
+				cache.put(key, fillRequest);
+				return;
+			}
+			keyLocks.withKeyLock(key, new Callable<Void>() {
+				
+				@Override
+				public Void call() throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
+					cache.put(key, fillRequest);
+					return null;
+				}
+				
+			});
+		} catch (Exception e) {
+			// ignore
+		}
+	}
+	
+	// Put in cache of a value-container read from store. Not version checked (see versionCheck), and the version in store is kept
+	private static class CacheFillRequest<VALUE, VALUECONTAINER extends ValueContainer<VALUE>> implements StoreRequest<VALUE, VALUECONTAINER> {
+		
+		private final VALUECONTAINER storeValue;
+		
+		private CacheFillRequest(VALUECONTAINER storeValue) {
+			this.storeValue = storeValue;
+		}
+		
+		@Override
+		public VALUECONTAINER getValueContainer() {
+			return storeValue;
+		}
+
+		@Override
+		public StoreRequest.Operation getRequestedOperation() {
+			return StoreRequest.Operation.NEW;
+		}
+		
+	}
+	
+	// Simulate that the client does not receive the same object as the database tries to return to it
+	// because the object is sent over a network
+	private STOREVALUECONTAINER copy(STOREVALUECONTAINER valueContainer) {
 		@SuppressWarnings("unchecked")
-		STOREVALUECONTAINER clone = (returnValue != null)?(STOREVALUECONTAINER)returnValue.clone():null;
+		STOREVALUECONTAINER clone = (valueContainer != null)?(STOREVALUECONTAINER)valueContainer.clone():null;
 		return clone;
 	}
 	
@@ -154,6 +254,11 @@ public class KeyValueOptimisticLockingDBWithPluggableCache<STOREKEY, STOREVALUE,
 		
 		STOREVALUECONTAINER get(STOREKEY key);
 		
+		/**
+		 * @return The keys with a value-container in cache, and their value-containers
+		 */
+		Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys);
+		
 		Long getVersion(STOREKEY key);
 	}
 
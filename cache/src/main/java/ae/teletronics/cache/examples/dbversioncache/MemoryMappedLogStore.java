@@ -0,0 +1,561 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link Store} on disk - an append-only log split into fixed-size segment files, each memory-mapped. Every put appends a record
+ * (key and value-container, encoded by {@link Codec}s) to the active segment, and an in-memory index maps every key to the location of
+ * its newest record. A get is an index lookup and a read of one record
+ *
+ * Records replaced by newer ones are garbage. A background compactor rewrites the still live records of segments with little live
+ * data left to the end of the log, and deletes those segments
+ *
+ * On open the index is rebuilt by reading all segments, oldest first. Every record carries a CRC32 checksum - reading a segment stops
+ * at the first record that is incomplete or corrupt (e.g. a put interrupted by a crash), and the active segment is continued from there.
+ * Records are written to the mapped files, so they survive the process crashing, but they are only forced to disk when a segment is
+ * sealed, when compacting and on {@link #force()} and {@link #close()}
+ *
+ * Appends are serialized. Gets do not lock
+ *
+ * @param <STOREKEY> Type of the key
+ * @param <STOREVALUECONTAINER> Type of the value-container
+ */
+@ThreadSafe
+public class MemoryMappedLogStore<STOREKEY, STOREVALUECONTAINER> implements Store<STOREKEY, STOREVALUECONTAINER> {
+
+	/**
+	 * Conversion between objects and bytes
+	 *
+	 * @param <T> Type of the objects
+	 */
+	public interface Codec<T> {
+
+		byte[] encode(T object);
+
+		T decode(byte[] bytes);
+
+	}
+
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	public static final Codec<String> STRING_CODEC = new Codec<String>() {
+
+		@Override
+		public byte[] encode(String object) {
+			return object.getBytes(UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] bytes) {
+			return new String(bytes, UTF_8);
+		}
+
+	};
+
+	/**
+	 * Builder for building {@link MemoryMappedLogStore} instances
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 */
+	public static class Builder<STOREKEY, STOREVALUECONTAINER> {
+
+		private File directory;
+		private Codec<STOREKEY> keyCodec;
+		private Codec<STOREVALUECONTAINER> valueCodec;
+		private int segmentSize = 64 * 1024 * 1024;
+		private long compactionIntervalMillis = 1000;
+		private double compactionThreshold = 0.5;
+
+		protected Builder() {
+		}
+
+		/**
+		 * Set the directory holding the segment files. Created if it does not exist. Must not be used by other stores
+		 * @param directory The directory
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> directory(File directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		/**
+		 * Set the codec for keys. Equal keys must be encoded to the same bytes
+		 * @param keyCodec The codec
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> keyCodec(Codec<STOREKEY> keyCodec) {
+			this.keyCodec = keyCodec;
+			return this;
+		}
+
+		/**
+		 * Set the codec for value-containers
+		 * @param valueCodec The codec
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> valueCodec(Codec<STOREVALUECONTAINER> valueCodec) {
+			this.valueCodec = valueCodec;
+			return this;
+		}
+
+		/**
+		 * Set the size of new segment files. A record has to fit in a segment. Default is 64MB
+		 * @param segmentSize The size in bytes
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> segmentSize(int segmentSize) {
+			if (segmentSize < HEADER_SIZE) throw new IllegalArgumentException("Segment size must be at least " + HEADER_SIZE + ", was " + segmentSize);
+			this.segmentSize = segmentSize;
+			return this;
+		}
+
+		/**
+		 * Set the delay between background compactions. Default is 1 second
+		 * @param interval The delay (0 for no background compaction - see {@link MemoryMappedLogStore#compact()})
+		 * @param unit The unit of the delay
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> compactionInterval(long interval, TimeUnit unit) {
+			if (interval < 0) throw new IllegalArgumentException("Compaction interval must not be negative, was " + interval);
+			this.compactionIntervalMillis = unit.toMillis(interval);
+			return this;
+		}
+
+		/**
+		 * Set the fraction of live data, below which a sealed segment is compacted. Default is 0.5
+		 * @param compactionThreshold The fraction
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> compactionThreshold(double compactionThreshold) {
+			if (compactionThreshold < 0 || compactionThreshold > 1) throw new IllegalArgumentException("Compaction threshold must be between 0 and 1, was " + compactionThreshold);
+			this.compactionThreshold = compactionThreshold;
+			return this;
+		}
+
+		/**
+		 * Build the {@link MemoryMappedLogStore} instance - opening (and recovering) the segments already in the directory
+		 * @return The built {@link MemoryMappedLogStore} instance
+		 * @throws IOException If the segments could not be opened
+		 */
+		public MemoryMappedLogStore<STOREKEY, STOREVALUECONTAINER> build() throws IOException {
+			if (directory == null)
+				throw new RuntimeException("No directory set");
+			if (keyCodec == null || valueCodec == null)
+				throw new RuntimeException("Both key-codec and value-codec must be set");
+
+			return new MemoryMappedLogStore<STOREKEY, STOREVALUECONTAINER>(directory, keyCodec, valueCodec, segmentSize, compactionIntervalMillis, compactionThreshold);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link MemoryMappedLogStore} instance
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 *
+	 * @return The builder to be used
+	 */
+	public static <STOREKEY, STOREVALUECONTAINER> Builder<STOREKEY, STOREVALUECONTAINER> builder() {
+		return new Builder<STOREKEY, STOREVALUECONTAINER>();
+	}
+
+	// Record layout: record length (int), CRC32 of key length and key and value (int), key length (int), key, value
+	static final int HEADER_SIZE = 12;
+	private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+	private static class Segment {
+
+		private final int id;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		// Bytes of records still in the index
+		private final AtomicLong liveBytes = new AtomicLong();
+		// Only grows while active
+		private volatile int writePosition;
+
+		private Segment(int id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		private byte[] read(int position, int length) {
+			// Not touching the position of the shared buffer
+			ByteBuffer reader = buffer.duplicate();
+			reader.position(position);
+			byte[] bytes = new byte[length];
+			reader.get(bytes);
+			return bytes;
+		}
+
+	}
+
+	private final File directory;
+	private final Codec<STOREKEY> keyCodec;
+	private final Codec<STOREVALUECONTAINER> valueCodec;
+	private final int segmentSize;
+	private final double compactionThreshold;
+	// Location is segment id in the high 32 bits, position in the low
+	private final ConcurrentMap<STOREKEY, Long> index = new ConcurrentHashMap<STOREKEY, Long>();
+	private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	private final Object appendLock = new Object();
+	@GuardedBy("appendLock")
+	private Segment activeSegment;
+	private final Object compactionLock = new Object();
+	private final ScheduledExecutorService compactor;
+
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong compactedSegments = new AtomicLong();
+
+	protected MemoryMappedLogStore(File directory, Codec<STOREKEY> keyCodec, Codec<STOREVALUECONTAINER> valueCodec, int segmentSize, long compactionIntervalMillis, double compactionThreshold) throws IOException {
+		this.directory = directory;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.segmentSize = segmentSize;
+		this.compactionThreshold = compactionThreshold;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create directory " + directory);
+		synchronized(appendLock) {
+			recover();
+		}
+
+		if (compactionIntervalMillis > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("log-store-compactor-%d").build());
+			compactor.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException e) {
+						// Segments are left as they are - trying again next time
+					}
+				}
+
+			}, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			compactor = null;
+		}
+	}
+
+	@GuardedBy("appendLock")
+	private void recover() throws IOException {
+		String[] fileNames = directory.list(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_FILE_SUFFIX);
+			}
+
+		});
+		List<Integer> ids = new ArrayList<Integer>();
+		for (String fileName : fileNames) {
+			ids.add(Integer.valueOf(fileName.substring(0, fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+		}
+		// Newer records are in segments with higher ids
+		Collections.sort(ids);
+		for (int id : ids) {
+			File file = segmentFile(id);
+			activeSegment = openSegment(id, (int)file.length());
+			recover(activeSegment);
+		}
+		if (activeSegment == null) activeSegment = openSegment(0, segmentSize);
+	}
+
+	@GuardedBy("appendLock")
+	private void recover(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while (position + HEADER_SIZE <= buffer.capacity()) {
+			int recordLength = buffer.getInt(position);
+			int keyLength = buffer.getInt(position + 8);
+			if (recordLength < HEADER_SIZE || recordLength > buffer.capacity() - position || keyLength < 0 || keyLength > recordLength - HEADER_SIZE) break;
+			byte[] keyAndValue = segment.read(position + HEADER_SIZE, recordLength - HEADER_SIZE);
+			if (buffer.getInt(position + 4) != checksum(keyLength, keyAndValue)) break;
+
+			STOREKEY key = keyCodec.decode(Arrays.copyOfRange(keyAndValue, 0, keyLength));
+			Long replacedLocation = index.put(key, location(segment.id, position));
+			if (replacedLocation != null) release(replacedLocation);
+			segment.liveBytes.addAndGet(recordLength);
+			position += recordLength;
+		}
+		segment.writePosition = position;
+
+		if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+			// Incomplete or corrupt record - cleared, so that shorter records appended later are not followed by its remains
+			for (int i = position; i < buffer.capacity(); i++) {
+				buffer.put(i, (byte)0);
+			}
+		}
+	}
+
+	private File segmentFile(int id) {
+		return new File(directory, String.format("%010d", id) + SEGMENT_FILE_SUFFIX);
+	}
+
+	private Segment openSegment(int id, int size) throws IOException {
+		File file = segmentFile(id);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			// Mapping stays valid after the file is closed
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			Segment segment = new Segment(id, file, buffer);
+			segments.put(id, segment);
+			return segment;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static long location(int segmentId, int position) {
+		return (((long)segmentId) << 32) | position;
+	}
+
+	private static int segmentId(long location) {
+		return (int)(location >>> 32);
+	}
+
+	private static int position(long location) {
+		return (int)location;
+	}
+
+	static int checksum(int keyLength, byte[] keyAndValue) {
+		CRC32 crc = new CRC32();
+		crc.update(keyLength >>> 24);
+		crc.update(keyLength >>> 16);
+		crc.update(keyLength >>> 8);
+		crc.update(keyLength);
+		crc.update(keyAndValue);
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * The record at the location is no longer live
+	 */
+	private void release(long location) {
+		Segment segment = segments.get(segmentId(location));
+		if (segment != null) segment.liveBytes.addAndGet(-segment.buffer.getInt(position(location)));
+	}
+
+	@GuardedBy("appendLock")
+	private long append(byte[] key, byte[] value) throws IOException {
+		int recordLength = HEADER_SIZE + key.length + value.length;
+		if (recordLength > segmentSize) throw new IllegalArgumentException("Record of " + recordLength + " bytes does not fit in segments of " + segmentSize + " bytes");
+		if (recordLength > activeSegment.buffer.capacity() - activeSegment.writePosition) {
+			activeSegment.buffer.force();
+			activeSegment = openSegment(activeSegment.id + 1, segmentSize);
+		}
+
+		byte[] keyAndValue = new byte[key.length + value.length];
+		System.arraycopy(key, 0, keyAndValue, 0, key.length);
+		System.arraycopy(value, 0, keyAndValue, key.length, value.length);
+		int position = activeSegment.writePosition;
+		ByteBuffer writer = activeSegment.buffer.duplicate();
+		writer.position(position + 4);
+		writer.putInt(checksum(key.length, keyAndValue));
+		writer.putInt(key.length);
+		writer.put(keyAndValue);
+		// Record length last - until then recovery will not see the record
+		writer.putInt(position, recordLength);
+		activeSegment.writePosition = position + recordLength;
+		activeSegment.liveBytes.addAndGet(recordLength);
+		return location(activeSegment.id, position);
+	}
+
+	@Override
+	public STOREVALUECONTAINER get(STOREKEY key) {
+		while (true) {
+			Long location = index.get(key);
+			if (location == null) return null;
+			Segment segment = segments.get(segmentId(location));
+			// Segment compacted since the index lookup - the record has a new location by now
+			if (segment == null) continue;
+
+			int position = position(location);
+			int recordLength = segment.buffer.getInt(position);
+			int keyLength = segment.buffer.getInt(position + 8);
+			byte[] value = segment.read(position + HEADER_SIZE + keyLength, recordLength - HEADER_SIZE - keyLength);
+			reads.incrementAndGet();
+			bytesRead.addAndGet(recordLength);
+			return valueCodec.decode(value);
+		}
+	}
+
+	// Memory-mapped - reading a record is no system call, so there is nothing to batch
+	@Override
+	public Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys) {
+		Map<STOREKEY, STOREVALUECONTAINER> valueContainers = new HashMap<STOREKEY, STOREVALUECONTAINER>();
+		for (STOREKEY key : keys) {
+			STOREVALUECONTAINER valueContainer = get(key);
+			if (valueContainer != null) valueContainers.put(key, valueContainer);
+		}
+		return valueContainers;
+	}
+
+	@Override
+	public void put(STOREKEY key, STOREVALUECONTAINER valueContainer) {
+		byte[] keyBytes = keyCodec.encode(key);
+		byte[] valueBytes = valueCodec.encode(valueContainer);
+		synchronized(appendLock) {
+			try {
+				Long replacedLocation = index.put(key, append(keyBytes, valueBytes));
+				if (replacedLocation != null) release(replacedLocation);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not open new segment", e);
+			}
+		}
+		writes.incrementAndGet();
+		bytesWritten.addAndGet(HEADER_SIZE + keyBytes.length + valueBytes.length);
+	}
+
+	@Override
+	public Iterable<STOREKEY> keys() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	/**
+	 * Compact all sealed segments with a fraction of live data below the compaction threshold. Called by the background compactor,
+	 * but can also be called directly
+	 * @throws IOException If forcing the moved records to disk failed - the segments are then kept
+	 */
+	public void compact() throws IOException {
+		synchronized(compactionLock) {
+			List<Integer> ids = new ArrayList<Integer>(segments.keySet());
+			Collections.sort(ids);
+			for (int id : ids) {
+				Segment segment = segments.get(id);
+				boolean sealed;
+				synchronized(appendLock) {
+					sealed = (segment != activeSegment);
+				}
+				if (sealed && segment.liveBytes.get() <= compactionThreshold * segment.writePosition) compact(segment);
+			}
+		}
+	}
+
+	private void compact(Segment segment) throws IOException {
+		int position = 0;
+		while (position < segment.writePosition) {
+			int recordLength = segment.buffer.getInt(position);
+			int keyLength = segment.buffer.getInt(position + 8);
+			byte[] key = segment.read(position + HEADER_SIZE, keyLength);
+			STOREKEY decodedKey = keyCodec.decode(key);
+			long location = location(segment.id, position);
+			synchronized(appendLock) {
+				Long currentLocation = index.get(decodedKey);
+				if (currentLocation != null && currentLocation == location) {
+					byte[] value = segment.read(position + HEADER_SIZE + keyLength, recordLength - HEADER_SIZE - keyLength);
+					index.put(decodedKey, append(key, value));
+				}
+			}
+			position += recordLength;
+		}
+
+		// Moved records on disk before the segment is deleted
+		synchronized(appendLock) {
+			activeSegment.buffer.force();
+		}
+		segments.remove(segment.id);
+		segment.file.delete();
+		compactedSegments.incrementAndGet();
+	}
+
+	/**
+	 * Force all records to disk
+	 */
+	public void force() {
+		synchronized(appendLock) {
+			activeSegment.buffer.force();
+		}
+	}
+
+	/**
+	 * Stop background compaction and force all records to disk. The store must not be used afterwards
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		force();
+	}
+
+	/**
+	 * @return Number of records read by gets
+	 */
+	public long getReads() {
+		return reads.get();
+	}
+
+	/**
+	 * @return Number of bytes read by gets
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return Number of records written by puts (not counting records moved by compaction)
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	/**
+	 * @return Number of bytes written by puts (not counting records moved by compaction)
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return Number of segments compacted (and deleted)
+	 */
+	public long getCompactedSegments() {
+		return compactedSegments.get();
+	}
+
+	/**
+	 * @return Number of segment files
+	 */
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+}
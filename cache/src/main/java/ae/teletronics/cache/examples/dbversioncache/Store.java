@@ -0,0 +1,41 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * Where a {@link KeyValueOptimisticLockingDBWithPluggableCache} keeps its values. Fetching values from a store is expected to be
+ * expensive compared to fetching them from the cache
+ *
+ * Callers synchronize puts on key, so a store only has to be safe for concurrent puts of different keys (and concurrent gets of any)
+ *
+ * @param <STOREKEY> Type of the key
+ * @param <STOREVALUECONTAINER> Type of the value-container
+ */
+public interface Store<STOREKEY, STOREVALUECONTAINER> extends Closeable {
+	
+	/**
+	 * @param key The key
+	 * @return The value-container stored for the key (null if none). Callers must not modify it
+	 */
+	STOREVALUECONTAINER get(STOREKEY key);
+	
+	/**
+	 * Get the value-containers of several keys in one go - a store on disk can read them in one batch, instead of a read per key
+	 * @param keys The keys
+	 * @return The keys with a value-container stored, and their value-containers. Callers must not modify them
+	 */
+	Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys);
+	
+	/**
+	 * @param key The key
+	 * @param valueContainer Value-container to store for the key, replacing any existing
+	 */
+	void put(STOREKEY key, STOREVALUECONTAINER valueContainer);
+	
+	/**
+	 * @return All keys with a value-container stored. Weakly consistent - keys put while iterating may or may not be included
+	 */
+	Iterable<STOREKEY> keys();
+	
+}
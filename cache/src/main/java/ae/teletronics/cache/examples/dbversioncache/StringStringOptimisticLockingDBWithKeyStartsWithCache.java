@@ -1,25 +1,84 @@
 package ae.teletronics.cache.examples.dbversioncache;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ae.teletronics.cache.ChangingValueAndLevelMultiCache;
-import ae.teletronics.cache.Pair;
+import ae.teletronics.cache.KeyLocks;
+import ae.teletronics.cache.PersistentHashMap;
 
 import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.AbstractIterator;
 
 public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyValueOptimisticLockingDBWithPluggableCache<String, String, StringValueContainer> {
 	
+	/**
+	 * Cached entries of a key-prefix. Changed only holding the key-lock of the key-prefix, and read without any lock. Reads are
+	 * consistent because the map of entries is never changed, but replaced (one volatile write) by each put
+	 */
 	public static class CacheValue {
 		
-		private boolean complete;
-		private Map<String, StringValueContainer> keySuffixToValueMap;
+		/**
+		 * Weighs cache-values by their {@link CacheValue#getEstimatedRetainedBytes()}
+		 */
+		public static final Weigher<String, CacheValue> WEIGHER = new Weigher<String, CacheValue>() {
+
+			@Override
+			public int weigh(String key, CacheValue value) {
+				return (int)Math.min(value.getEstimatedRetainedBytes(), Integer.MAX_VALUE);
+			}
+			
+		};
+		
+		// Estimates for a 64-bit JVM with compressed references. Base includes the (initially empty) table of key-suffixes
+		private static final long BASE_BYTES = 64 + 48;
+		// Map leaf and its share of map nodes, value container, version and text (excluding its characters)
+		private static final long ENTRY_BYTES = 48 + 24 + 16 + 40;
+		// Key-suffix (excluding its characters) and its share of the table of key-suffixes
+		private static final long KEY_SUFFIX_BYTES = 40 + 16;
+		
+		private static long estimateEntryBytes(StringValueContainer valueContainer) {
+			String text = valueContainer.getValue();
+			return ENTRY_BYTES + ((text != null)?2L * text.length():0);
+		}
+		
+		private static long estimateKeySuffixBytes(String keySuffix) {
+			return (keySuffix != null)?(KEY_SUFFIX_BYTES + 2L * keySuffix.length()):0;
+		}
+		
+		// Set after the entries put to complete it - read it before the map, to see those entries when complete
+		private volatile boolean complete;
+		private volatile PersistentHashMap<String, StringValueContainer> keySuffixToValueMap;
+		// Kept up to date by puts, so that weighing is cheap also for large cache-values
+		private volatile long estimatedRetainedBytes = BASE_BYTES;
+		// Accesses while incomplete, counted only if completing in the background
+		private final AtomicInteger incompleteAccesses = new AtomicInteger();
+		// Key-suffixes of the map, so that reads can look them up without creating substrings. Retained by the map anyway
+		private final CanonicalSubstrings keySuffixes = new CanonicalSubstrings();
 		
 		public CacheValue() {
 			complete = false;
-			keySuffixToValueMap = new HashMap<String, StringValueContainer>();
+			keySuffixToValueMap = PersistentHashMap.empty();
 		}
 
 		public boolean isComplete() {
@@ -30,10 +89,66 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 			complete = true;
 		}
 
-		public Map<String, StringValueContainer> getKeySuffixToValueMap() {
+		/**
+		 * @return Snapshot of key-suffixes and frozen value containers. Not affected by later puts, and cannot be changed
+		 */
+		public PersistentHashMap<String, StringValueContainer> getKeySuffixToValueMap() {
 			return keySuffixToValueMap;
 		}
 		
+		/**
+		 * Must be called holding the key-lock of the key-prefix
+		 */
+		public void put(String keySuffix, StringValueContainer valueContainer) {
+			StringValueContainer previousValueContainer = keySuffixToValueMap.get(keySuffix);
+			keySuffixToValueMap = keySuffixToValueMap.plus(internKeySuffix(keySuffix), valueContainer.freeze());
+			estimatedRetainedBytes += estimateEntryBytes(valueContainer) + ((previousValueContainer != null)?-estimateEntryBytes(previousValueContainer):estimateKeySuffixBytes(keySuffix));
+		}
+		
+		/**
+		 * Must be called holding the key-lock of the key-prefix
+		 */
+		public void putAll(Map<String, StringValueContainer> keySuffixToValueMap) {
+			PersistentHashMap<String, StringValueContainer> newKeySuffixToValueMap = this.keySuffixToValueMap;
+			long newEstimatedRetainedBytes = estimatedRetainedBytes;
+			for (Map.Entry<String, StringValueContainer> entry : keySuffixToValueMap.entrySet()) {
+				StringValueContainer previousValueContainer = newKeySuffixToValueMap.get(entry.getKey());
+				newKeySuffixToValueMap = newKeySuffixToValueMap.plus(internKeySuffix(entry.getKey()), entry.getValue().freeze());
+				newEstimatedRetainedBytes += estimateEntryBytes(entry.getValue()) + ((previousValueContainer != null)?-estimateEntryBytes(previousValueContainer):estimateKeySuffixBytes(entry.getKey()));
+			}
+			this.keySuffixToValueMap = newKeySuffixToValueMap;
+			estimatedRetainedBytes = newEstimatedRetainedBytes;
+		}
+		
+		/**
+		 * Same as {@link #putAll(Map)}, but skipping the entries already present in the same or a newer version - for entries read
+		 * without holding the key-lock, that may have been put meanwhile. Must be called holding the key-lock of the key-prefix
+		 */
+		public void putAllIfNewer(Map<String, StringValueContainer> keySuffixToValueMap) {
+			Map<String, StringValueContainer> newer = new HashMap<String, StringValueContainer>();
+			for (Map.Entry<String, StringValueContainer> entry : keySuffixToValueMap.entrySet()) {
+				StringValueContainer present = this.keySuffixToValueMap.get(entry.getKey());
+				if (present == null || isNewer(entry.getValue().getVersion(), present.getVersion())) newer.put(entry.getKey(), entry.getValue());
+			}
+			putAll(newer);
+		}
+		
+		// Added before the map holding it is published, so that a read finding the map entry also finds the key-suffix
+		private String internKeySuffix(String keySuffix) {
+			return (keySuffix != null)?keySuffixes.intern(keySuffix, 0, keySuffix.length()):null;
+		}
+		
+		private static boolean isNewer(Long version, Long than) {
+			return version != null && (than == null || version > than);
+		}
+		
+		/**
+		 * @return Estimated bytes retained by this cache-value, and not by anything else
+		 */
+		public long getEstimatedRetainedBytes() {
+			return estimatedRetainedBytes;
+		}
+		
 	}
 
 	public class KeyStartsWithCache implements Cache<String, String, StringValueContainer> {
@@ -41,12 +156,15 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 		private static final String SPLIT = "!";
 		
 		private final ChangingValueAndLevelMultiCache<String, CacheValue> innerCache;
+		// Key-prefixes of the keys in store (retained by the prefix index anyway), so that reads can look them up without creating
+		// substrings. Key-suffixes are looked up in the cache-values
+		private final CanonicalSubstrings keyStarts = new CanonicalSubstrings(64);
 		
-		private KeyStartsWithCache(int cachesSize, int[] levelSplitAfter) {
-			com.google.common.cache.Cache<String, CacheValue> innerInnerCache = CacheBuilder.newBuilder().maximumSize(cachesSize).build();
+		private KeyStartsWithCache(Builder builder) {
 			ChangingValueAndLevelMultiCache.Builder<String, CacheValue> innerCacheBuilder = ChangingValueAndLevelMultiCache.builder();  
+			if (builder.cacheBytes >= 0) innerCacheBuilder.weigher(CacheValue.WEIGHER);
 			innerCacheBuilder
-					.cache(innerInnerCache)
+					.cache(innerCacheBuilder(builder))
 					.defaultModifier(new Function<CacheValue, CacheValue>() {
 
 						@Override
@@ -64,14 +182,24 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 					
 					});
 			int currentLevelIntervalStart = 0;
-			for (int currentLevelIntervalEnd : levelSplitAfter) {
-				innerInnerCache = CacheBuilder.newBuilder().maximumSize(cachesSize).build();
-				innerCacheBuilder.addCache(innerInnerCache, currentLevelIntervalStart, currentLevelIntervalEnd, "Inner Cache " + currentLevelIntervalStart + "-" + currentLevelIntervalEnd + " size");
+			for (int currentLevelIntervalEnd : builder.levelSplitAfter) {
+				innerCacheBuilder.addCache(innerCacheBuilder(builder), currentLevelIntervalStart, currentLevelIntervalEnd, "Inner Cache " + currentLevelIntervalStart + "-" + currentLevelIntervalEnd + " size");
 				currentLevelIntervalStart = currentLevelIntervalEnd+1;
 			}
+			if (builder.levelTuningPeriodMillis > 0) {
+				long[] levelCacheCapacities = new long[builder.levelSplitAfter.length];
+				Arrays.fill(levelCacheCapacities, (builder.cacheBytes >= 0)?builder.cacheBytes:builder.cacheSize);
+				innerCacheBuilder.autoTuneLevels(builder.levelTuningPeriodMillis, TimeUnit.MILLISECONDS, levelCacheCapacities);
+			}
+			if (builder.loadTimeoutMillis > 0) innerCacheBuilder.singleFlightLoads(builder.loadTimeoutMillis, TimeUnit.MILLISECONDS);
+			innerCacheBuilder.keyLocks(builder.keyLocks);
 
 			innerCache = innerCacheBuilder.build();
 		}
+		
+		private CacheBuilder<Object, Object> innerCacheBuilder(Builder builder) {
+			return (builder.cacheBytes >= 0)?CacheBuilder.newBuilder().maximumWeight(builder.cacheBytes):CacheBuilder.newBuilder().maximumSize(builder.cacheSize);
+		}
 
 		@Override
 		public void put(final String key, final StoreRequest<String, StringValueContainer> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
@@ -80,8 +208,9 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 		
 		protected void put(final String key, final StoreRequest<String, StringValueContainer> storeRequest, final boolean putInStore) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
 			try {
-				final Pair<String, String> splittedKey = splitKey(key);
-				innerCache.modify(splittedKey._1,
+				final int splitIndex = key.indexOf(SPLIT);
+				final String keyStart = keyStart(key, splitIndex);
+				CacheValue cacheValue = innerCache.modify(keyStart,
 						new Supplier<CacheValue>() {
 							
 							@Override
@@ -96,9 +225,13 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 							public CacheValue apply(CacheValue input) {
 								try {
 									// Taking advantage of the fact that the cache itself is synchronizing on key - usable if we also just add to store in that synch block
-									StringValueContainer newValue = versionCheck(key, storeRequest);
-									if (putInStore) store.put(key, newValue);
-									input.getKeySuffixToValueMap().put(splittedKey._2, newValue);
+									// Frozen, so that neither the requester nor readers of snapshots can change it
+									StringValueContainer newValue = versionCheck(key, storeRequest).freeze();
+									if (putInStore) {
+										store.put(key, newValue);
+										addToPrefixIndex(keyStart, key);
+									}
+									input.put(keySuffix(key, splitIndex, input), newValue);
 									return input;
 								} catch (Exception e) {
 									throw (e instanceof RuntimeException)?((RuntimeException)e):new RuntimeException(e);
@@ -106,6 +239,7 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 							}
 					
 						}, true);
+				noticeIncompleteAccess(keyStart, cacheValue);
 			} catch (RuntimeException e) {
 				Throwable cause = e.getCause();
 				if (cause instanceof AlreadyExistsException) throw (AlreadyExistsException)cause;
@@ -117,10 +251,44 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 
 		@Override
 		public StringValueContainer get(String key) {
-			final Pair<String, String> splittedKey = splitKey(key);
-			CacheValue cacheValue = innerCache.getIfPresent(splittedKey._1);
-			if (cacheValue != null) return cacheValue.getKeySuffixToValueMap().get(splittedKey._2);
-			return null;
+			int splitIndex = key.indexOf(SPLIT);
+			// No key with the key-prefix in store, so no entries of it in inner-cache
+			String keyStart = getKeyStart(key, splitIndex);
+			if (keyStart == null) return null;
+			CacheValue cacheValue = innerCache.getIfPresent(keyStart);
+			if (cacheValue == null) return null;
+			noticeIncompleteAccess(keyStart, cacheValue);
+			return getFrom(cacheValue, key, splitIndex);
+		}
+		
+		private StringValueContainer getFrom(CacheValue cacheValue, String key, int splitIndex) {
+			if (splitIndex < 0) return cacheValue.getKeySuffixToValueMap().get(null);
+			String keySuffix = cacheValue.keySuffixes.get(key, splitIndex + SPLIT.length(), key.length());
+			return (keySuffix != null)?cacheValue.getKeySuffixToValueMap().get(keySuffix):null;
+		}
+		
+		/**
+		 * Looks up each key-prefix once, all in one {@link ChangingValueAndLevelMultiCache#getAllPresent(Iterable)}
+		 */
+		@Override
+		public Map<String, StringValueContainer> getAll(Iterable<String> keys) {
+			Map<String, String> keyToKeyStart = new HashMap<String, String>();
+			for (String key : keys) {
+				String keyStart = getKeyStart(key, key.indexOf(SPLIT));
+				if (keyStart != null) keyToKeyStart.put(key, keyStart);
+			}
+			Map<String, CacheValue> cacheValues = innerCache.getAllPresent(keyToKeyStart.values());
+			for (Map.Entry<String, CacheValue> cacheValue : cacheValues.entrySet()) {
+				noticeIncompleteAccess(cacheValue.getKey(), cacheValue.getValue());
+			}
+			Map<String, StringValueContainer> values = new HashMap<String, StringValueContainer>();
+			for (Map.Entry<String, String> keyStart : keyToKeyStart.entrySet()) {
+				CacheValue cacheValue = cacheValues.get(keyStart.getValue());
+				if (cacheValue == null) continue;
+				StringValueContainer value = getFrom(cacheValue, keyStart.getKey(), keyStart.getKey().indexOf(SPLIT));
+				if (value != null) values.put(keyStart.getKey(), value);
+			}
+			return values;
 		}
 		
 		@Override
@@ -129,22 +297,221 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 			return (valueContainer != null)?valueContainer.getVersion():null;
 		}
 		
-		private Pair<String, String> splitKey(String key) {
-			int splitIndex = key.indexOf(SPLIT);
-			if (splitIndex < 0) return new Pair<String, String>(key, null);
-			return new Pair<String, String>(key.substring(0, splitIndex), key.substring(splitIndex + SPLIT.length()));
+		/**
+		 * @return The canonical instance of the key-prefix of key, or null if no key with it is in store
+		 */
+		private String getKeyStart(String key, int splitIndex) {
+			return keyStarts.get(key, 0, (splitIndex >= 0)?splitIndex:key.length());
+		}
+		
+		/**
+		 * @return The key-prefix of key - the canonical instance, if any
+		 */
+		private String keyStart(String key, int splitIndex) {
+			String keyStart = getKeyStart(key, splitIndex);
+			return (keyStart != null)?keyStart:key.substring(0, (splitIndex >= 0)?splitIndex:key.length());
+		}
+		
+		/**
+		 * @return The key-suffix of key (null if none) - the instance in cacheValue, if any
+		 */
+		private String keySuffix(String key, int splitIndex, CacheValue cacheValue) {
+			if (splitIndex < 0) return null;
+			String keySuffix = cacheValue.keySuffixes.get(key, splitIndex + SPLIT.length(), key.length());
+			return (keySuffix != null)?keySuffix:key.substring(splitIndex + SPLIT.length());
 		}
 
 	}
 	
+	/**
+	 * Builder for building {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} instances
+	 */
+	public static class Builder {
+		
+		private int cacheSize = -1;
+		private long cacheBytes = -1;
+		private int[] levelSplitAfter;
+		private long levelTuningPeriodMillis;
+		private long loadTimeoutMillis;
+		private Executor completionExecutor;
+		private int accessesBeforeCompletion;
+		private KeyLocks keyLocks = KeyLocks.interning();
+		private Store<String, StringValueContainer> store;
+		
+		protected Builder() {
+		}
+		
+		/**
+		 * Set the capacity of each of the caches (the default cache and the level-caches), in cache-entries (key-prefixes)
+		 * @param cacheSize The capacity in cache-entries
+		 * @return This builder
+		 */
+		public Builder cacheSize(int cacheSize) {
+			if (cacheSize < 0) throw new IllegalArgumentException("Cache size must not be negative, was " + cacheSize);
+			this.cacheSize = cacheSize;
+			return this;
+		}
+		
+		/**
+		 * Set the capacity of each of the caches in estimated retained bytes, instead of cache-entries - key-prefixes vary a lot in the
+		 * number of entries they have
+		 * @param cacheBytes The capacity in bytes
+		 * @return This builder
+		 */
+		public Builder cacheBytes(long cacheBytes) {
+			if (cacheBytes < 0) throw new IllegalArgumentException("Cache bytes must not be negative, was " + cacheBytes);
+			this.cacheBytes = cacheBytes;
+			return this;
+		}
+		
+		/**
+		 * Set the levels (number of entries of a key-prefix) ending the level-intervals of the level-caches
+		 * @param levelSplitAfter The levels, ascending
+		 * @return This builder
+		 */
+		public Builder levelSplitAfter(int... levelSplitAfter) {
+			this.levelSplitAfter = levelSplitAfter.clone();
+			return this;
+		}
+		
+		/**
+		 * Tune the level-intervals of the level-caches to the workload, see
+		 * {@link ChangingValueAndLevelMultiCache.Builder#autoTuneLevels(long, TimeUnit, long...)}. Level-intervals set by
+		 * {@link #levelSplitAfter(int...)} are the initial ones
+		 * @param period Time between tunings
+		 * @param unit Unit of period
+		 * @return This builder
+		 */
+		public Builder levelTuning(long period, TimeUnit unit) {
+			if (unit.toMillis(period) <= 0) throw new IllegalArgumentException("Period must be at least a millisecond, was " + period + " " + unit);
+			this.levelTuningPeriodMillis = unit.toMillis(period);
+			return this;
+		}
+		
+		/**
+		 * Complete the cache-values of key-prefixes in the background. A cache-value created by a put holds only the entries put since,
+		 * and is incomplete until the rest are loaded from store - otherwise done by the next {@link #getAllWithKeyStartingWith(String)},
+		 * holding the key-lock of the key-prefix, so that puts to the key-prefix wait for the load. Here the rest are loaded on the executor,
+		 * without holding the key-lock, and then merged with the entries put meanwhile by version. Completion is started by the given number
+		 * of accesses (puts and reads - also those of version checks) to an incomplete cache-value - 1 for right away when created
+		 * @param executor Executor running the completions. Completions rejected by it are left to getAllWithKeyStartingWith
+		 * @param accessesBeforeCompletion Accesses to an incomplete cache-value starting its completion
+		 * @return This builder
+		 */
+		public Builder backgroundCompletion(Executor executor, int accessesBeforeCompletion) {
+			if (executor == null) throw new IllegalArgumentException("Executor must be provided");
+			if (accessesBeforeCompletion < 1) throw new IllegalArgumentException("Accesses before completion must be at least 1, was " + accessesBeforeCompletion);
+			this.completionExecutor = executor;
+			this.accessesBeforeCompletion = accessesBeforeCompletion;
+			return this;
+		}
+		
+		/**
+		 * Load the entries of a key-prefix from store, when not in cache, without holding the key-lock of the key-prefix. The store scans
+		 * of {@link #getAllWithKeyStartingWith(String)} otherwise block modifications of all key-prefixes sharing the key-lock. Concurrent
+		 * getAllWithKeyStartingWith for the same key-prefix share one scan. See
+		 * {@link ae.teletronics.cache.ChangingValueCache.Builder#singleFlightLoads(long, TimeUnit)}
+		 * @param loadTimeout Maximum time a getAllWithKeyStartingWith waits for a scan run by another one. The one running the scan is
+		 * not limited by it
+		 * @param unit Unit of loadTimeout
+		 * @return This builder
+		 */
+		public Builder singleFlightLoads(long loadTimeout, TimeUnit unit) {
+			if (unit.toMillis(loadTimeout) <= 0) throw new IllegalArgumentException("Load timeout must be at least a millisecond, was " + loadTimeout + " " + unit);
+			this.loadTimeoutMillis = unit.toMillis(loadTimeout);
+			return this;
+		}
+		
+		/**
+		 * Set the key-locks held by puts to and loads of a key-prefix - e.g. {@link KeyLocks#reentrantLocks(int)}, when putting from
+		 * virtual threads. Default is {@link KeyLocks#interning()}
+		 * @param keyLocks The key-locks
+		 * @return This builder
+		 */
+		public Builder keyLocks(KeyLocks keyLocks) {
+			if (keyLocks == null) throw new IllegalArgumentException("Key-locks must be provided");
+			this.keyLocks = keyLocks;
+			return this;
+		}
+		
+		/**
+		 * Set the store. Default is an {@link InMemoryStore}
+		 * @param store The store
+		 * @return This builder
+		 */
+		public Builder store(Store<String, StringValueContainer> store) {
+			this.store = store;
+			return this;
+		}
+		
+		/**
+		 * Build the {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} instance
+		 * @return The built {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} instance
+		 */
+		public StringStringOptimisticLockingDBWithKeyStartsWithCache build() {
+			if (cacheSize < 0 && cacheBytes < 0)
+				throw new RuntimeException("No cache size or cache bytes set");
+			if (cacheSize >= 0 && cacheBytes >= 0)
+				throw new RuntimeException("Both cache size and cache bytes set");
+			if (levelSplitAfter == null)
+				throw new RuntimeException("No level split set");
+			
+			return new StringStringOptimisticLockingDBWithKeyStartsWithCache(this);
+		}
+		
+	}
+	
+	/**
+	 * Get a builder for building a {@link StringStringOptimisticLockingDBWithKeyStartsWithCache} instance
+	 * 
+	 * @return The builder to be used
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	// Key-prefix to all keys in store with that prefix - sorted, for paging. Only changed by puts to store, holding the key-lock of the prefix
+	private final ConcurrentMap<String, NavigableSet<String>> prefixIndex = new ConcurrentHashMap<String, NavigableSet<String>>();
+	
+	// Null if incomplete cache-values are only completed by getAllWithKeyStartingWith, see Builder.backgroundCompletion
+	private final Executor completionExecutor;
+	private final int accessesBeforeCompletion;
+	private final AtomicLong backgroundCompletions = new AtomicLong();
+	private final AtomicLong inlineCompletions = new AtomicLong();
+	
 	public StringStringOptimisticLockingDBWithKeyStartsWithCache(int cacheSize, int[] levelSplitAfter) {
-		super();
-		initialize(new KeyStartsWithCache(cacheSize, levelSplitAfter));
+		this(cacheSize, levelSplitAfter, new InMemoryStore<String, StringValueContainer>());
+	}
+	
+	public StringStringOptimisticLockingDBWithKeyStartsWithCache(int cacheSize, int[] levelSplitAfter, Store<String, StringValueContainer> store) {
+		this(builder().cacheSize(cacheSize).levelSplitAfter(levelSplitAfter).store(store));
+	}
+	
+	protected StringStringOptimisticLockingDBWithKeyStartsWithCache(Builder builder) {
+		super((builder.store != null)?builder.store:new InMemoryStore<String, StringValueContainer>(), builder.keyLocks);
+		completionExecutor = builder.completionExecutor;
+		accessesBeforeCompletion = builder.accessesBeforeCompletion;
+		initialize(new KeyStartsWithCache(builder));
+		for (String key : store.keys()) {
+			addToPrefixIndex(((KeyStartsWithCache)cache).keyStart(key, key.indexOf(KeyStartsWithCache.SPLIT)), key);
+		}
+	}
+	
+	private void addToPrefixIndex(String keyStart, String key) {
+		// Reads find the key-prefix from here on
+		keyStart = ((KeyStartsWithCache)cache).keyStarts.intern(keyStart, 0, keyStart.length());
+		NavigableSet<String> keys = prefixIndex.get(keyStart);
+		if (keys == null) {
+			keys = new ConcurrentSkipListSet<String>();
+			NavigableSet<String> existingKeys = prefixIndex.putIfAbsent(keyStart, keys);
+			if (existingKeys != null) keys = existingKeys;
+		}
+		keys.add(key);
 	}
 	
 	@Override
 	// Taking advantage of the fact that the cache itself is synchronizing on key - usable if we also just add to store in that synch block
-	protected Object getSynchObject(String key) {
+	protected KeyLocks getKeyLocks() {
 		return null;
 	}
 	
@@ -154,14 +521,20 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 		((KeyStartsWithCache)cache).put(key, storeRequest, true);
 	}
 	
-	public Map<String, StringValueContainer> getAllWithKeyStartingWith(final String keyStart) {
+	/**
+	 * @return Read-only snapshot of key-suffixes and values of all keys starting with requestedKeyStart
+	 */
+	public Map<String, StringValueContainer> getAllWithKeyStartingWith(String requestedKeyStart) {
+		// Not interned - only key-prefixes of keys in store are
+		String canonicalKeyStart = ((KeyStartsWithCache)cache).keyStarts.get(requestedKeyStart, 0, requestedKeyStart.length());
+		final String keyStart = (canonicalKeyStart != null)?canonicalKeyStart:requestedKeyStart;
 		CacheValue cacheValue = ((KeyStartsWithCache)cache).innerCache.modify(keyStart, 
 				new Supplier<CacheValue>() {
 
 					@Override
 					public CacheValue get() {
 						CacheValue newCacheValue = new CacheValue();
-						newCacheValue.getKeySuffixToValueMap().putAll(getAllFromStore(keyStart, null));
+						newCacheValue.putAll(getAllFromStore(keyStart, null));
 						newCacheValue.setComplete();
 						return newCacheValue;
 					}
@@ -172,36 +545,274 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCache extends KeyVa
 					@Override
 					public CacheValue apply(CacheValue input) {
 						if (!input.isComplete()) {
-							input.getKeySuffixToValueMap().putAll(getAllFromStore(keyStart, input.getKeySuffixToValueMap()));
+							input.putAll(getAllFromStore(keyStart, input.getKeySuffixToValueMap()));
 							input.setComplete();
+							inlineCompletions.incrementAndGet();
 						}
 						return input;
 					}
 					
 				}, true);
-		// Simulate that the client does not receive the same object as the database tries to return to it
-		// because the object is sent over a network
-		return cloneMapStringStringValueContainer(cacheValue.getKeySuffixToValueMap());
+		// No need to copy (as if sent over a network) - the snapshot and its value containers cannot change
+		return cacheValue.getKeySuffixToValueMap();
 	}
 	
-	private Map<String, StringValueContainer> getAllFromStore(String keyStart, Map<String, StringValueContainer> dontGet) {
-		Map<String, StringValueContainer> result = new HashMap<String, StringValueContainer>();
-		for (Map.Entry<String, StringValueContainer> entry : store.entrySet()) {
-			Pair<String, String> splittedEntryKey = ((KeyStartsWithCache)cache).splitKey(entry.getKey());
-			if (keyStart.equals(splittedEntryKey._1) && (dontGet == null || !dontGet.containsKey(splittedEntryKey._2))) {
-				result.put(splittedEntryKey._2, entry.getValue());
+	/**
+	 * See {@link ChangingValueAndLevelMultiCache#getEstimatedRetainedBytes()}. Empty unless built with {@link Builder#cacheBytes(long)}
+	 */
+	public Map<String, Long> getEstimatedCacheRetainedBytes() {
+		return ((KeyStartsWithCache)cache).innerCache.getEstimatedRetainedBytes();
+	}
+	
+	// Start completing the cache-value in the background, when accessed the configured number of times while incomplete
+	private void noticeIncompleteAccess(final String keyStart, final CacheValue cacheValue) {
+		if (completionExecutor == null || cacheValue.isComplete()) return;
+		if (cacheValue.incompleteAccesses.incrementAndGet() != accessesBeforeCompletion) return;
+		try {
+			completionExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					complete(keyStart, cacheValue);
+				}
+				
+			});
+		} catch (RejectedExecutionException e) {
+			// Left to getAllWithKeyStartingWith
+		}
+	}
+	
+	private void complete(String keyStart, final CacheValue cacheValue) {
+		if (cacheValue.isComplete()) return;
+		// Loaded without holding the key-lock, so that puts to the key-prefix do not wait. Keys put meanwhile are in the cache-value
+		final Map<String, StringValueContainer> loaded = getAllFromStore(keyStart, cacheValue.getKeySuffixToValueMap());
+		((KeyStartsWithCache)cache).innerCache.modify(keyStart, new Function<CacheValue, CacheValue>() {
+
+			@Override
+			public CacheValue apply(CacheValue input) {
+				// A cache-value created after the load started may miss keys put before it was created, and not loaded
+				if (input != cacheValue || input.isComplete()) return input;
+				input.putAllIfNewer(loaded);
+				input.setComplete();
+				backgroundCompletions.incrementAndGet();
+				return input;
 			}
+			
+		}, false);
+	}
+	
+	/**
+	 * @return Number of incomplete cache-values completed in the background. See {@link Builder#backgroundCompletion(Executor, int)}
+	 */
+	public long getBackgroundCompletions() {
+		return backgroundCompletions.get();
+	}
+	
+	/**
+	 * @return Number of incomplete cache-values completed by {@link #getAllWithKeyStartingWith(String)}, holding the key-lock
+	 */
+	public long getInlineCompletions() {
+		return inlineCompletions.get();
+	}
+	
+	/**
+	 * See {@link ChangingValueAndLevelMultiCache#getLevelIntervals()}
+	 */
+	public List<ChangingValueAndLevelMultiCache.Interval> getCacheLevelIntervals() {
+		return ((KeyStartsWithCache)cache).innerCache.getLevelIntervals();
+	}
+	
+	/**
+	 * Page of the entries with keys starting with a key-prefix, in key order
+	 */
+	public static class Page {
+		
+		private final Map<String, StringValueContainer> keySuffixToValueMap;
+		private final String resumeToken;
+		
+		private Page(Map<String, StringValueContainer> keySuffixToValueMap, String resumeToken) {
+			this.keySuffixToValueMap = keySuffixToValueMap;
+			this.resumeToken = resumeToken;
 		}
-		return result;
+		
+		/**
+		 * @return Key-suffixes and frozen value containers of the page, in key order
+		 */
+		public Map<String, StringValueContainer> getKeySuffixToValueMap() {
+			return keySuffixToValueMap;
+		}
+
+		/**
+		 * @return Token for getting the next page, null if this is the last page
+		 */
+		public String getResumeToken() {
+			return resumeToken;
+		}
+		
 	}
 	
-	private Map<String, StringValueContainer> cloneMapStringStringValueContainer(Map<String, StringValueContainer> toBeCloned) {
-		if (toBeCloned == null) return null;
-		Map<String, StringValueContainer> clone = new HashMap<String, StringValueContainer>(toBeCloned.size());
-		for (Map.Entry<String, StringValueContainer> entry : toBeCloned.entrySet()) {
-			clone.put(new String(entry.getKey()), entry.getValue().clone());
+	/**
+	 * Cursor over the entries with keys starting with a key-prefix, a page at a time. Pages can be fetched from several threads in
+	 * parallel - each page is fetched by one thread only, and only choosing the keys of a page is synchronized, not reading the values
+	 */
+	public class Cursor {
+		
+		private final String keyStart;
+		private final int pageSize;
+		private String resumeToken;
+		private boolean done;
+		
+		private Cursor(String keyStart, String resumeToken, int pageSize) {
+			this.keyStart = keyStart;
+			this.resumeToken = resumeToken;
+			this.pageSize = pageSize;
 		}
-		return clone;
+		
+		/**
+		 * @return Next page, null if there are no more pages
+		 */
+		public Page nextPage() {
+			List<String> keys;
+			synchronized(this) {
+				if (done) return null;
+				keys = getPageKeys(keyStart, resumeToken, pageSize);
+				if (keys.size() < pageSize) {
+					done = true;
+				} else {
+					resumeToken = keys.get(keys.size() - 1);
+				}
+			}
+			return readPage(keyStart, keys, pageSize);
+		}
+		
+	}
+	
+	/**
+	 * Calling {@link #getPageWithKeyStartingWith(String, String, int)} with
+	 * * resumeToken: null
+	 */
+	public Page getPageWithKeyStartingWith(String keyStart, int pageSize) {
+		return getPageWithKeyStartingWith(keyStart, null, pageSize);
+	}
+	
+	/**
+	 * Get a page of the entries with keys starting with keyStart. Values are taken from cache where present, and otherwise read from store.
+	 * Does not load the key-prefix into cache, so paging through a large key-prefix does not evict others
+	 * 
+	 * @param keyStart The key-prefix
+	 * @param resumeToken {@link Page#getResumeToken()} of the previous page, or null for the first page. Entries put since the previous
+	 * page are included if their keys come after it
+	 * @param pageSize Maximum number of entries in the page
+	 * @return The page
+	 */
+	public Page getPageWithKeyStartingWith(String keyStart, String resumeToken, int pageSize) {
+		List<String> keys = getPageKeys(keyStart, resumeToken, pageSize);
+		return readPage(keyStart, keys, pageSize);
+	}
+	
+	/**
+	 * Calling {@link #cursorWithKeyStartingWith(String, String, int)} with
+	 * * resumeToken: null
+	 */
+	public Cursor cursorWithKeyStartingWith(String keyStart, int pageSize) {
+		return cursorWithKeyStartingWith(keyStart, null, pageSize);
+	}
+	
+	/**
+	 * Get a cursor over the entries with keys starting with keyStart, paging as {@link #getPageWithKeyStartingWith(String, String, int)}
+	 */
+	public Cursor cursorWithKeyStartingWith(String keyStart, String resumeToken, int pageSize) {
+		checkPageArguments(keyStart, resumeToken, pageSize);
+		return new Cursor(keyStart, resumeToken, pageSize);
+	}
+	
+	private void checkPageArguments(String keyStart, String resumeToken, int pageSize) {
+		if (pageSize < 1) throw new IllegalArgumentException("Page size must be at least 1, was " + pageSize);
+		if (resumeToken != null && !resumeToken.startsWith(keyStart)) throw new IllegalArgumentException("Resume token " + resumeToken + " is not from a page of " + keyStart);
+	}
+	
+	private List<String> getPageKeys(String keyStart, String resumeToken, int pageSize) {
+		checkPageArguments(keyStart, resumeToken, pageSize);
+		List<String> pageKeys = new ArrayList<String>(Math.min(pageSize, 1024));
+		NavigableSet<String> keys = prefixIndex.get(keyStart);
+		if (keys == null) return pageKeys;
+		for (String key : (resumeToken != null)?keys.tailSet(resumeToken, false):keys) {
+			pageKeys.add(key);
+			if (pageKeys.size() == pageSize) break;
+		}
+		return pageKeys;
+	}
+	
+	private Page readPage(String keyStart, List<String> keys, int pageSize) {
+		CacheValue cacheValue = ((KeyStartsWithCache)cache).innerCache.getIfPresent(keyStart);
+		if (cacheValue != null) noticeIncompleteAccess(keyStart, cacheValue);
+		Map<String, StringValueContainer> cached = (cacheValue != null)?cacheValue.getKeySuffixToValueMap():null;
+		Map<String, StringValueContainer> keySuffixToValueMap = new LinkedHashMap<String, StringValueContainer>();
+		for (String key : keys) {
+			String keySuffix = keySuffix(key);
+			StringValueContainer value = (cached != null)?cached.get(keySuffix):null;
+			if (value == null) {
+				value = store.get(key);
+				if (value == null) continue;
+				value = value.freeze();
+			}
+			keySuffixToValueMap.put(keySuffix, value);
+		}
+		return new Page(Collections.unmodifiableMap(keySuffixToValueMap), (keys.size() == pageSize)?keys.get(keys.size() - 1):null);
+	}
+	
+	/**
+	 * Iterate the entries with keys starting with keyStart, without loading them all first. The entries in cache are returned right away,
+	 * the rest are read from store while iterating. Does not load the key-prefix into cache
+	 * 
+	 * @return Iterator of key-suffixes and frozen value containers. Weakly consistent - may or may not include entries put while iterating
+	 */
+	public Iterator<Map.Entry<String, StringValueContainer>> iterateWithKeyStartingWith(String keyStart) {
+		CacheValue cacheValue = ((KeyStartsWithCache)cache).innerCache.getIfPresent(keyStart);
+		if (cacheValue != null) noticeIncompleteAccess(keyStart, cacheValue);
+		boolean complete = cacheValue != null && cacheValue.isComplete();
+		final Map<String, StringValueContainer> cached = (cacheValue != null)?cacheValue.getKeySuffixToValueMap():PersistentHashMap.<String, StringValueContainer>empty();
+		final Iterator<Map.Entry<String, StringValueContainer>> cachedIterator = cached.entrySet().iterator();
+		if (complete) return cachedIterator;
+		NavigableSet<String> keys = prefixIndex.get(keyStart);
+		final Iterator<String> keysIterator = (keys != null)?keys.iterator():Collections.<String>emptyList().iterator();
+		return new AbstractIterator<Map.Entry<String, StringValueContainer>>() {
+
+			@Override
+			protected Map.Entry<String, StringValueContainer> computeNext() {
+				if (cachedIterator.hasNext()) return cachedIterator.next();
+				while (keysIterator.hasNext()) {
+					String key = keysIterator.next();
+					String keySuffix = keySuffix(key);
+					if (cached.containsKey(keySuffix)) continue;
+					StringValueContainer value = store.get(key);
+					if (value != null) return new AbstractMap.SimpleImmutableEntry<String, StringValueContainer>(keySuffix, value.freeze());
+				}
+				return endOfData();
+			}
+			
+		};
+	}
+	
+	// Key-suffix of a key found by a scan (null if none). Not looked up in the cache-value - scans create substrings anyway
+	private static String keySuffix(String key) {
+		int splitIndex = key.indexOf(KeyStartsWithCache.SPLIT);
+		return (splitIndex >= 0)?key.substring(splitIndex + KeyStartsWithCache.SPLIT.length()):null;
+	}
+	
+	private Map<String, StringValueContainer> getAllFromStore(String keyStart, Map<String, StringValueContainer> dontGet) {
+		Map<String, StringValueContainer> result = new HashMap<String, StringValueContainer>();
+		Set<String> keys = prefixIndex.get(keyStart);
+		if (keys == null) return result;
+		// Only the keys with the prefix. Keys added meanwhile (when not holding the key-lock of the prefix) may or may not be included
+		for (String key : keys) {
+			String keySuffix = keySuffix(key);
+			if (dontGet == null || !dontGet.containsKey(keySuffix)) {
+				StringValueContainer value = store.get(key);
+				if (value != null) result.put(keySuffix, value);
+			}
+		}
+		return result;
 	}
  
 }
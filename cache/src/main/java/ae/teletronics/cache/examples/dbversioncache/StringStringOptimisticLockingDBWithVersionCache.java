@@ -1,71 +1,27 @@
 package ae.teletronics.cache.examples.dbversioncache;
 
-import ae.teletronics.cache.ChangingValueCache;
+import java.util.Collections;
+import java.util.Map;
 
-import com.google.common.base.Function;
-import com.google.common.base.Supplier;
-import com.google.common.cache.CacheBuilder;
+import ae.teletronics.cache.KeyLocks;
+import ae.teletronics.cache.LongModifier;
+import ae.teletronics.cache.LongValueCache;
+import ae.teletronics.cache.LongValueChangingValueCache;
 
 public class StringStringOptimisticLockingDBWithVersionCache extends KeyValueOptimisticLockingDBWithPluggableCache<String, String, StringValueContainer> {
 	
 	private class VersionCache implements Cache<String, String, StringValueContainer> {
 		
-		private final ChangingValueCache<String, Long> innerCache;
+		private final LongValueCache<String> innerCache;
 		
-		private VersionCache(int cacheSize) {
-			com.google.common.cache.Cache<String, Long> innerInnerCache = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
-			ChangingValueCache.Builder<String, Long> innerCacheBuilder = ChangingValueCache.builder();  
-			innerCache = innerCacheBuilder
-					.cache(innerInnerCache)
-					.defaultModifier(new Function<Long, Long>() {
-
-						@Override
-						public Long apply(Long input) {
-							return input;
-						}
-						
-					})
-					.build();
+		private VersionCache(LongValueCache<String> innerCache) {
+			this.innerCache = innerCache;
 		}
 
+		// Called holding the key-lock - only to put in cache a version just read from store (see putImpl)
 		@Override
-		public void put(final String key, final StoreRequest<String, StringValueContainer> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
-			put(key, storeRequest, false);
-		}
-		
-		protected void put(final String key, final StoreRequest<String, StringValueContainer> storeRequest, final boolean putInStore) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
-			try {
-				innerCache.modify(key,
-						new Supplier<Long>() {
-							
-							@Override
-							public Long get() {
-								return -1L;
-							}
-							
-						},
-						new Function<Long, Long>() {
-	
-							@Override
-							public Long apply(Long input) {
-								try {
-									// Taking advantage of the fact that the cache itself is synchronizing on key - usable if we also just add to store in that synch block
-									StringValueContainer newValue = versionCheck(key, storeRequest);
-									if (putInStore) store.put(key, newValue);
-									return newValue.getVersion();
-								} catch (Exception e) {
-									throw (e instanceof RuntimeException)?((RuntimeException)e):new RuntimeException(e);
-								}
-							}
-					
-						}, true);
-			} catch (RuntimeException e) {
-				Throwable cause = e.getCause();
-				if (cause instanceof AlreadyExistsException) throw (AlreadyExistsException)cause;
-				if (cause instanceof DoesNotAlreadyExistException) throw (DoesNotAlreadyExistException)cause;
-				if (cause instanceof VersionConflictException) throw (VersionConflictException)cause;
-				throw e;
-			}
+		public void put(String key, StoreRequest<String, StringValueContainer> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
+			innerCache.put(key, versionCheck(key, storeRequest).getVersion());
 		}
 
 		@Override
@@ -73,27 +29,69 @@ public class StringStringOptimisticLockingDBWithVersionCache extends KeyValueOpt
 			return null;
 		}
 		
+		@Override
+		public Map<String, StringValueContainer> getAll(Iterable<String> keys) {
+			return Collections.emptyMap();
+		}
+		
 		@Override
 		public Long getVersion(String key) {
-			return innerCache.getIfPresent(key);
+			long version = innerCache.getIfPresent(key);
+			return (version != LongValueCache.NO_VALUE)?version:null;
 		}
 		
 	}
 	
+	private static final LongModifier NO_MODIFICATION = new LongModifier() {
+
+		@Override
+		public long apply(long input) {
+			return input;
+		}
+		
+	};
+	
 	public StringStringOptimisticLockingDBWithVersionCache(int cacheSize) {
-		super();
-		initialize(new VersionCache(cacheSize));
+		this(cacheSize, new InMemoryStore<String, StringValueContainer>());
 	}
 	
-	@Override
-	// Taking advantage of the fact that the cache itself is synchronizing on key - usable if we also just add to store in that synch block
-	protected Object getSynchObject(String key) {
-		return null;
+	public StringStringOptimisticLockingDBWithVersionCache(int cacheSize, Store<String, StringValueContainer> store) {
+		this(LongValueChangingValueCache.<String>builder()
+				.maximumSize(cacheSize)
+				.defaultModifier(NO_MODIFICATION)
+				.build(), store);
+	}
+	
+	public StringStringOptimisticLockingDBWithVersionCache(LongValueCache<String> versions) {
+		this(versions, new InMemoryStore<String, StringValueContainer>());
 	}
 	
+	/**
+	 * @param versions Cache to hold the versions - e.g. an {@link ae.teletronics.cache.OffHeapLongValueChangingValueCache} to keep a large
+	 * number of versions off heap
+	 * @param store Store to hold the values - e.g. a {@link MemoryMappedLogStore}
+	 */
+	public StringStringOptimisticLockingDBWithVersionCache(LongValueCache<String> versions, Store<String, StringValueContainer> store) {
+		this(versions, store, KeyLocks.interning());
+	}
+	
+	/**
+	 * @param versions See {@link #StringStringOptimisticLockingDBWithVersionCache(LongValueCache, Store)}
+	 * @param store See {@link #StringStringOptimisticLockingDBWithVersionCache(LongValueCache, Store)}
+	 * @param keyLocks Held while version checking and putting in store - e.g. {@link KeyLocks#reentrantLocks(int)} when putting from
+	 * virtual threads
+	 */
+	public StringStringOptimisticLockingDBWithVersionCache(LongValueCache<String> versions, Store<String, StringValueContainer> store, KeyLocks keyLocks) {
+		super(store, keyLocks);
+		initialize(new VersionCache(versions));
+	}
+	
+	@Override
 	protected void putImpl(String key, StoreRequest<String, StringValueContainer> storeRequest) throws AlreadyExistsException, DoesNotAlreadyExistException, VersionConflictException {
-		// Taking advantage of the fact that the cache itself is synchronizing on key - usable if we also just add to store in that synch block
-		((VersionCache)cache).put(key, storeRequest, true);
+		StringValueContainer newValue = versionCheck(key, storeRequest);
+		store.put(key, newValue);
+		// Holding the key-lock, so no modifier needed
+		((VersionCache)cache).innerCache.put(key, newValue.getVersion());
 	}
 
 }
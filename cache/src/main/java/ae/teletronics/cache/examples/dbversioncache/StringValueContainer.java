@@ -1,19 +1,68 @@
 package ae.teletronics.cache.examples.dbversioncache;
 
+import java.nio.ByteBuffer;
+
 public class StringValueContainer implements KeyValueOptimisticLockingDBWithPluggableCache.ValueContainer<String>, Cloneable {
 	
+	private static final byte HAS_VERSION = 1;
+	private static final byte HAS_TEXT = 2;
+	
+	/**
+	 * For storing {@link StringValueContainer}s in a {@link MemoryMappedLogStore}
+	 */
+	public static final MemoryMappedLogStore.Codec<StringValueContainer> CODEC = new MemoryMappedLogStore.Codec<StringValueContainer>() {
+
+		@Override
+		public byte[] encode(StringValueContainer object) {
+			byte[] text = (object.text != null)?object.text.getBytes(MemoryMappedLogStore.UTF_8):new byte[0];
+			ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + text.length);
+			buffer.put((byte)(((object.version != null)?HAS_VERSION:0) | ((object.text != null)?HAS_TEXT:0)));
+			buffer.putLong((object.version != null)?object.version:0);
+			buffer.put(text);
+			return buffer.array();
+		}
+
+		@Override
+		public StringValueContainer decode(byte[] bytes) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			byte flags = buffer.get();
+			long version = buffer.getLong();
+			return new StringValueContainer(((flags & HAS_VERSION) != 0)?version:null, ((flags & HAS_TEXT) != 0)?new String(bytes, 9, bytes.length - 9, MemoryMappedLogStore.UTF_8):null);
+		}
+		
+	};
+	
 	private Long version;
-	private String text;
+	private final String text;
+	// Frozen instances are shared by cache and readers, so they must not change
+	private final boolean frozen;
 	
 	public StringValueContainer(Long version, String text) {
+		this(version, text, false);
+	}
+	
+	private StringValueContainer(Long version, String text, boolean frozen) {
 		this.version = version;
 		this.text = text;
+		this.frozen = frozen;
 	}
 
 	@Override
 	public void setVersion(Long newVersion) {
+		if (frozen) throw new IllegalStateException("Frozen value container cannot change version");
 		version = newVersion;
 	}
+	
+	/**
+	 * @return Value container that cannot change - this if already frozen, otherwise a frozen copy
+	 */
+	public StringValueContainer freeze() {
+		return (frozen)?this:new StringValueContainer(version, text, true);
+	}
+	
+	public boolean isFrozen() {
+		return frozen;
+	}
 
 	@Override
 	public Long getVersion() {
@@ -25,14 +74,12 @@ public class StringValueContainer implements KeyValueOptimisticLockingDBWithPlug
 		return text;
 	}
 	
+	/**
+	 * @return Copy that can change, also if this is frozen
+	 */
 	@Override
 	public StringValueContainer clone() {
-		try {
-			return (StringValueContainer)super.clone();
-		} catch (CloneNotSupportedException e) {
-			// Not gonna happen
-			return null;
-		}
+		return new StringValueContainer(version, text, false);
 	}
 	
 }
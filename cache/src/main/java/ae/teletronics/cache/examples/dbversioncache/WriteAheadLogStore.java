@@ -0,0 +1,404 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import ae.teletronics.cache.examples.dbversioncache.MemoryMappedLogStore.Codec;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link Store} decorator making puts durable - e.g. on an {@link InMemoryStore}. Every put appends a record to a write-ahead log
+ * file and only returns when the record has been forced to disk, before putting to the decorated store
+ *
+ * Forcing is group-committed: puts append their records to a shared buffer, and a single flusher thread writes and forces everything
+ * appended since the last force in one go. After a record arrives to an idle flusher, it waits up to a batch window (or until the batch
+ * reaches the maximum batch size) for more records, before writing. While a batch is being forced, the next one builds up. Therefore
+ * the number of forces per second is bounded by the flusher, not by the number of threads putting
+ *
+ * On open the log is replayed into the decorated store, stopping at the first incomplete or corrupt record. The log is then rewritten
+ * to hold only the newest record per key, so it does not grow across restarts. Records have the same layout as in
+ * {@link MemoryMappedLogStore}
+ *
+ * @param <STOREKEY> Type of the key
+ * @param <STOREVALUECONTAINER> Type of the value-container
+ */
+@ThreadSafe
+public class WriteAheadLogStore<STOREKEY, STOREVALUECONTAINER> implements Store<STOREKEY, STOREVALUECONTAINER> {
+
+	/**
+	 * Builder for building {@link WriteAheadLogStore} instances
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 */
+	public static class Builder<STOREKEY, STOREVALUECONTAINER> {
+
+		private Store<STOREKEY, STOREVALUECONTAINER> store;
+		private File file;
+		private Codec<STOREKEY> keyCodec;
+		private Codec<STOREVALUECONTAINER> valueCodec;
+		private long batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(1);
+		private int maxBatchSize = 1024;
+
+		protected Builder() {
+		}
+
+		/**
+		 * Set the store to decorate. Closed when the built store is closed
+		 * @param store The store
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> store(Store<STOREKEY, STOREVALUECONTAINER> store) {
+			this.store = store;
+			return this;
+		}
+
+		/**
+		 * Set the log file. Created if it does not exist
+		 * @param file The file
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> file(File file) {
+			this.file = file;
+			return this;
+		}
+
+		/**
+		 * See {@link MemoryMappedLogStore.Builder#keyCodec(Codec)}
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> keyCodec(Codec<STOREKEY> keyCodec) {
+			this.keyCodec = keyCodec;
+			return this;
+		}
+
+		/**
+		 * See {@link MemoryMappedLogStore.Builder#valueCodec(Codec)}
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> valueCodec(Codec<STOREVALUECONTAINER> valueCodec) {
+			this.valueCodec = valueCodec;
+			return this;
+		}
+
+		/**
+		 * Set how long the flusher waits for more records, before writing a batch. Longer windows mean fewer forces, but puts waiting
+		 * longer. Default is 1 millisecond
+		 * @param batchWindow The window (0 for not waiting - records still group up while the previous batch is forced)
+		 * @param unit The unit of the window
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> batchWindow(long batchWindow, TimeUnit unit) {
+			if (batchWindow < 0) throw new IllegalArgumentException("Batch window must not be negative, was " + batchWindow);
+			this.batchWindowNanos = unit.toNanos(batchWindow);
+			return this;
+		}
+
+		/**
+		 * Set the number of records, at which the flusher stops waiting for more. Default is 1024
+		 * @param maxBatchSize The number of records
+		 * @return This builder
+		 */
+		public Builder<STOREKEY, STOREVALUECONTAINER> maxBatchSize(int maxBatchSize) {
+			if (maxBatchSize < 1) throw new IllegalArgumentException("Max batch size must be at least 1, was " + maxBatchSize);
+			this.maxBatchSize = maxBatchSize;
+			return this;
+		}
+
+		/**
+		 * Build the {@link WriteAheadLogStore} instance - replaying the log into the decorated store
+		 * @return The built {@link WriteAheadLogStore} instance
+		 * @throws IOException If the log could not be replayed or rewritten
+		 */
+		public WriteAheadLogStore<STOREKEY, STOREVALUECONTAINER> build() throws IOException {
+			if (store == null)
+				throw new RuntimeException("No store set");
+			if (file == null)
+				throw new RuntimeException("No file set");
+			if (keyCodec == null || valueCodec == null)
+				throw new RuntimeException("Both key-codec and value-codec must be set");
+
+			return new WriteAheadLogStore<STOREKEY, STOREVALUECONTAINER>(store, file, keyCodec, valueCodec, batchWindowNanos, maxBatchSize);
+		}
+
+	}
+
+	/**
+	 * Get a builder for building a {@link WriteAheadLogStore} instance
+	 *
+	 * @param <STOREKEY> Type of the key of the built store
+	 * @param <STOREVALUECONTAINER> Type of the value-container of the built store
+	 *
+	 * @return The builder to be used
+	 */
+	public static <STOREKEY, STOREVALUECONTAINER> Builder<STOREKEY, STOREVALUECONTAINER> builder() {
+		return new Builder<STOREKEY, STOREVALUECONTAINER>();
+	}
+
+	private final Store<STOREKEY, STOREVALUECONTAINER> store;
+	private final Codec<STOREKEY> keyCodec;
+	private final Codec<STOREVALUECONTAINER> valueCodec;
+	private final long batchWindowNanos;
+	private final int maxBatchSize;
+	private final FileOutputStream output;
+	private final FileChannel channel;
+	private final Thread flusher;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when the first record of a batch is appended, when a batch is full and on close
+	private final Condition recordsAppended = lock.newCondition();
+	// Signalled when a batch has been forced (or failed)
+	private final Condition batchForced = lock.newCondition();
+	@GuardedBy("lock")
+	private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	@GuardedBy("lock")
+	private int batchSize;
+	// Sequence number of the last record appended
+	@GuardedBy("lock")
+	private long appended;
+	// Sequence number of the last record forced to disk
+	@GuardedBy("lock")
+	private long forced;
+	@GuardedBy("lock")
+	private IOException failure;
+	@GuardedBy("lock")
+	private boolean closed;
+
+	private final AtomicLong forces = new AtomicLong();
+	private final AtomicLong recordsForced = new AtomicLong();
+
+	protected WriteAheadLogStore(Store<STOREKEY, STOREVALUECONTAINER> store, File file, Codec<STOREKEY> keyCodec, Codec<STOREVALUECONTAINER> valueCodec, long batchWindowNanos, int maxBatchSize) throws IOException {
+		this.store = store;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.batchWindowNanos = batchWindowNanos;
+		this.maxBatchSize = maxBatchSize;
+
+		recover(file);
+		output = new FileOutputStream(file, true);
+		channel = output.getChannel();
+		flusher = new ThreadFactoryBuilder().setDaemon(true).setNameFormat("write-ahead-log-flusher-%d").build().newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+
+		});
+		flusher.start();
+	}
+
+	private void recover(File file) throws IOException {
+		// Newest record per key, in the order the keys were first put
+		Map<STOREKEY, byte[]> newestRecords = new LinkedHashMap<STOREKEY, byte[]>();
+		if (file.exists()) {
+			long remaining = file.length();
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					int recordLength = input.readInt();
+					int checksum = input.readInt();
+					int keyLength = input.readInt();
+					if (recordLength < MemoryMappedLogStore.HEADER_SIZE || recordLength > remaining || keyLength < 0 || keyLength > recordLength - MemoryMappedLogStore.HEADER_SIZE) break;
+					remaining -= recordLength;
+					byte[] keyAndValue = new byte[recordLength - MemoryMappedLogStore.HEADER_SIZE];
+					input.readFully(keyAndValue);
+					if (checksum != MemoryMappedLogStore.checksum(keyLength, keyAndValue)) break;
+
+					byte[] key = new byte[keyLength];
+					byte[] value = new byte[keyAndValue.length - keyLength];
+					System.arraycopy(keyAndValue, 0, key, 0, key.length);
+					System.arraycopy(keyAndValue, keyLength, value, 0, value.length);
+					STOREKEY decodedKey = keyCodec.decode(key);
+					store.put(decodedKey, valueCodec.decode(value));
+					newestRecords.put(decodedKey, record(key, value));
+				}
+			} catch (EOFException e) {
+				// Incomplete record at the end - the put never returned
+			} finally {
+				input.close();
+			}
+		}
+
+		File rewrittenFile = new File(file.getPath() + ".rewrite");
+		FileOutputStream rewritten = new FileOutputStream(rewrittenFile);
+		try {
+			for (byte[] record : newestRecords.values()) {
+				rewritten.write(record);
+			}
+			rewritten.getChannel().force(true);
+		} finally {
+			rewritten.close();
+		}
+		if (!rewrittenFile.renameTo(file)) {
+			// Not atomic replace on every platform
+			if (!file.delete() || !rewrittenFile.renameTo(file)) throw new IOException("Could not replace " + file + " with " + rewrittenFile);
+		}
+	}
+
+	private static byte[] record(byte[] key, byte[] value) {
+		byte[] keyAndValue = new byte[key.length + value.length];
+		System.arraycopy(key, 0, keyAndValue, 0, key.length);
+		System.arraycopy(value, 0, keyAndValue, key.length, value.length);
+		ByteBuffer record = ByteBuffer.allocate(MemoryMappedLogStore.HEADER_SIZE + keyAndValue.length);
+		record.putInt(record.capacity());
+		record.putInt(MemoryMappedLogStore.checksum(key.length, keyAndValue));
+		record.putInt(key.length);
+		record.put(keyAndValue);
+		return record.array();
+	}
+
+	private void flush() {
+		while (true) {
+			byte[] bytes;
+			long batchEnd;
+			int records;
+			lock.lock();
+			try {
+				while (batchSize == 0 && !closed) {
+					recordsAppended.awaitUninterruptibly();
+				}
+				if (batchSize == 0) return;
+
+				long remainingNanos = batchWindowNanos;
+				while (batchSize < maxBatchSize && !closed && remainingNanos > 0) {
+					try {
+						remainingNanos = recordsAppended.awaitNanos(remainingNanos);
+					} catch (InterruptedException e) {
+						// Only closing stops the flusher
+					}
+				}
+				bytes = batch.toByteArray();
+				batch = new ByteArrayOutputStream();
+				records = batchSize;
+				batchSize = 0;
+				batchEnd = appended;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException writeFailure = null;
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+				forces.incrementAndGet();
+				recordsForced.addAndGet(records);
+			} catch (IOException e) {
+				writeFailure = e;
+			}
+
+			lock.lock();
+			try {
+				// A failed write leaves the log in an unknown state - all later puts fail too
+				if (writeFailure != null && failure == null) failure = writeFailure;
+				if (failure == null) forced = batchEnd;
+				batchForced.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public STOREVALUECONTAINER get(STOREKEY key) {
+		return store.get(key);
+	}
+
+	@Override
+	public Map<STOREKEY, STOREVALUECONTAINER> getAll(Iterable<STOREKEY> keys) {
+		return store.getAll(keys);
+	}
+
+	/**
+	 * Append a record to the log and wait for it to be forced to disk, then put to the decorated store
+	 * @throws RuntimeException If the log could not be written - then nothing is put to the decorated store
+	 */
+	@Override
+	public void put(STOREKEY key, STOREVALUECONTAINER valueContainer) {
+		byte[] record = record(keyCodec.encode(key), valueCodec.encode(valueContainer));
+		boolean interrupted = false;
+		lock.lock();
+		try {
+			if (closed) throw new IllegalStateException("Closed");
+			if (failure != null) throw new RuntimeException("Write-ahead log failed", failure);
+
+			batch.write(record, 0, record.length);
+			batchSize++;
+			long sequence = ++appended;
+			if (batchSize == 1 || batchSize >= maxBatchSize) recordsAppended.signal();
+			while (forced < sequence && failure == null) {
+				try {
+					batchForced.await();
+				} catch (InterruptedException e) {
+					// Already appended - has to be waited for
+					interrupted = true;
+				}
+			}
+			if (forced < sequence) throw new RuntimeException("Write-ahead log failed", failure);
+		} finally {
+			lock.unlock();
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		store.put(key, valueContainer);
+	}
+
+	@Override
+	public Iterable<STOREKEY> keys() {
+		return store.keys();
+	}
+
+	/**
+	 * Force the records appended so far, stop the flusher and close the log and the decorated store
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			recordsAppended.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		output.close();
+		store.close();
+	}
+
+	/**
+	 * @return Number of times the log has been forced to disk
+	 */
+	public long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * @return Number of records forced to disk
+	 */
+	public long getRecordsForced() {
+		return recordsForced.get();
+	}
+
+}
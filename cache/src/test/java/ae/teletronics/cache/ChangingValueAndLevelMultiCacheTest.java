@@ -1,10 +1,15 @@
 package ae.teletronics.cache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -13,6 +18,8 @@ import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.ForwardingCache;
+import com.google.common.cache.Weigher;
 
 public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 	
@@ -44,6 +51,456 @@ public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 		testLeveling(true);
 	}
 	
+	@Test
+	public void testOverlappingLevelIntervalsRejected() {
+		ChangingValueAndLevelMultiCache.Builder<String, Integer> underTestBuilder = createCacheBuilder(null, null);
+		underTestBuilder.addCache(CacheBuilder.newBuilder().<String, Integer>build(), 0, 10, "0-10");
+		underTestBuilder.addCache(CacheBuilder.newBuilder().<String, Integer>build(), 10, 20, "10-20");
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Overlapping level-intervals 0-10 and 10-20", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testLockFreeModifyRejected() {
+		try {
+			createCacheBuilder(null, null).lockFreeModify().build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Lock-free modify not supported with multiple internal caches", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testCacheForLevelDenseLevels() {
+		testCacheForLevel(new int[][]{{0, 1}, {2, 4}, {7, 7}, {8, Integer.MAX_VALUE}});
+	}
+
+	@Test
+	public void testCacheForLevelSparseLevels() {
+		testCacheForLevel(new int[][]{{Integer.MIN_VALUE, -1000000}, {0, 9}, {1000000, 1000009}, {2000000000, Integer.MAX_VALUE}});
+	}
+	
+	@Test
+	public void testParallelModifyAllVisitsMovingEntriesOnce() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator());
+		addLevelCache(underTestBuilder, 1, 1, "1");
+		addLevelCache(underTestBuilder, 2, Integer.MAX_VALUE, "2-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		for (int i = 0; i < MAX_CACHE_SIZE; i++) {
+			underTest.modify("key" + i, new AddKeyValueModifier("a", "a"), true);
+		}
+		
+		// Every visit counts up, and the first visit moves the cache-entry from level-cache "1" to level-cache "2-"
+		Function<Map<String, String>, Map<String, String>> countVisits = new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> value) {
+				String visits = value.get("visits");
+				value.put("visits", "" + ((visits != null)?(Integer.parseInt(visits) + 1):1));
+				return value;
+			}
+			
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ModifyAllResult result;
+		try {
+			result = underTest.parallelModifyAll(null, null, countVisits, false, executor);
+		} finally {
+			executor.shutdown();
+		}
+		Assert.assertEquals(MAX_CACHE_SIZE, result.getMatched());
+		Assert.assertEquals(MAX_CACHE_SIZE, result.getModified());
+		
+		for (int i = 0; i < MAX_CACHE_SIZE; i++) {
+			Pair<Cache<String, Map<String, String>>, Map<String, String>> cacheAndValue = underTest.getCacheAndValueIfPresent("key" + i);
+			Assert.assertSame(underTest.cacheForLevel(2), cacheAndValue._1);
+			Assert.assertEquals("1", cacheAndValue._2.get("visits"));
+		}
+	}
+	
+	@Test
+	public void testModifyBatchMovesBetweenLevelCaches() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).keyLocks(KeyLocks.striped(1));
+		addLevelCache(underTestBuilder, 1, 1, "1");
+		addLevelCache(underTestBuilder, 2, Integer.MAX_VALUE, "2-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		underTest.modify("key1", new AddKeyValueModifier("a", "a"), true);
+		
+		// key1 moves from level-cache "1" to "2-", key2 is created in "1"
+		Map<String, Map<String, String>> values = underTest.modifyBatch(Arrays.asList("key1", "key2"), null, new AddKeyValueModifier("b", "b"), true);
+		Assert.assertEquals(2, values.get("key1").size());
+		Assert.assertEquals(1, values.get("key2").size());
+		Assert.assertNull(underTest.cacheForLevel(1).getIfPresent("key1"));
+		Assert.assertSame(values.get("key1"), underTest.cacheForLevel(2).getIfPresent("key1"));
+		Assert.assertSame(values.get("key2"), underTest.cacheForLevel(1).getIfPresent("key2"));
+		Assert.assertSame(underTest.cacheForLevel(2), underTest.getCacheAndValueIfPresent("key1")._1);
+		Assert.assertSame(underTest.cacheForLevel(1), underTest.getCacheAndValueIfPresent("key2")._1);
+		
+		Map<String, Function<Map<String, String>, Map<String, String>>> modifiers = new HashMap<String, Function<Map<String, String>, Map<String, String>>>();
+		modifiers.put("key1", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				return null;
+			}
+			
+		});
+		modifiers.put("key2", new AddKeyValueModifier("c", "c"));
+		underTest.modifyBatch(modifiers, null, false);
+		Assert.assertNull(underTest.getCacheAndValueIfPresent("key1"));
+		Assert.assertNull(underTest.cacheForLevel(2).getIfPresent("key1"));
+		Assert.assertNull(underTest.cacheForLevel(1).getIfPresent("key2"));
+		Assert.assertSame(underTest.cacheForLevel(2), underTest.getCacheAndValueIfPresent("key2")._1);
+		Assert.assertEquals(1, underTest.size());
+	}
+	
+	@Test
+	public void testModifyBatchPutsAndRemovesPerLevelCache() {
+		CountingCache<Map<String, String>> levelCache1 = new CountingCache<Map<String, String>>();
+		CountingCache<Map<String, String>> levelCache2 = new CountingCache<Map<String, String>>();
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = ChangingValueAndLevelMultiCache.builder();
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder
+				.cache(CacheBuilder.newBuilder().<String, Map<String, String>>build())
+				.addCache(levelCache1, 1, 1, "1")
+				.addCache(levelCache2, 2, Integer.MAX_VALUE, "2-")
+				.defaultNewCreator(new EmptyMapNewCreator())
+				.levelCalculator(new MapSizeLevelCalculator())
+				.keyLocks(KeyLocks.striped(1))
+				.build();
+		List<String> keys = Arrays.asList("key1", "key2", "key3");
+		underTest.modifyBatch(keys, null, new AddKeyValueModifier("a", "a"), true);
+		Assert.assertEquals(1, levelCache1.putAlls.get());
+		
+		// All three move from level-cache "1" to "2-"
+		underTest.modifyBatch(keys, null, new AddKeyValueModifier("b", "b"), false);
+		Assert.assertEquals(1, levelCache2.putAlls.get());
+		Assert.assertEquals(1, levelCache1.invalidateAlls.get());
+		Assert.assertEquals(0, levelCache1.size());
+		Assert.assertEquals(3, levelCache2.size());
+	}
+	
+	@Test
+	public void testMetricsMovesBetweenLevelCaches() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).recordMetrics();
+		addLevelCache(underTestBuilder, 1, 1, "1");
+		addLevelCache(underTestBuilder, 2, Integer.MAX_VALUE, "2-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		
+		underTest.modify("key", new AddKeyValueModifier("a", "a"), true);
+		underTest.modify("key", new AddKeyValueModifier("b", "b"), false);
+		underTest.modify("key", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				input.remove("b");
+				return input;
+			}
+			
+		}, false);
+		Assert.assertNotNull(underTest.getIfPresent("key"));
+		
+		CacheMetrics metrics = underTest.getMetrics();
+		Assert.assertEquals(Arrays.asList(ChangingValueCache.DEFAULT_TIER_NAME, "1", "2-"), Arrays.asList(metrics.getTiers().get(0).getName(), metrics.getTiers().get(1).getName(), metrics.getTiers().get(2).getName()));
+		Assert.assertEquals(1, metrics.getCreations());
+		Assert.assertEquals(3, metrics.getModifications());
+		Assert.assertEquals(1, metrics.getMoves("1", "2-"));
+		Assert.assertEquals(1, metrics.getMoves("2-", "1"));
+		Assert.assertEquals(1, metrics.getPromotions());
+		Assert.assertEquals(1, metrics.getDemotions());
+		Assert.assertEquals(1, metrics.getTier("1").getSize());
+		Assert.assertEquals(0, metrics.getTier("2-").getSize());
+		// Found in level-cache "1" by the last modify and by getIfPresent
+		Assert.assertEquals(2, metrics.getTier("1").getHits());
+		Assert.assertEquals(1, metrics.getTier("2-").getHits());
+	}
+	
+	private static final Weigher<String, Map<String, String>> MAP_SIZE_BYTES = new Weigher<String, Map<String, String>>() {
+
+		@Override
+		public int weigh(String key, Map<String, String> value) {
+			return 100 * (1 + value.size());
+		}
+		
+	};
+	
+	private ChangingValueAndLevelMultiCache<String, Map<String, String>> createWeighedCache(long levelCacheBytes) {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = ChangingValueAndLevelMultiCache.builder();
+		return underTestBuilder
+				.weigher(MAP_SIZE_BYTES)
+				.cache(CacheBuilder.newBuilder().maximumWeight(Long.MAX_VALUE))
+				.addCache(CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(levelCacheBytes), 1, Integer.MAX_VALUE, "1-")
+				.defaultNewCreator(new EmptyMapNewCreator())
+				.levelCalculator(new MapSizeLevelCalculator())
+				.recordMetrics()
+				.build();
+	}
+	
+	@Test
+	public void testWeighedEntriesReweighedWhenModifiedInPlace() {
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = createWeighedCache(10000);
+		underTest.modify("key", new AddKeyValueModifier("a", "a"), true);
+		Assert.assertEquals(Long.valueOf(200), underTest.getEstimatedRetainedBytes().get("1-"));
+		Assert.assertEquals(Long.valueOf(0), underTest.getEstimatedRetainedBytes().get(ChangingValueCache.DEFAULT_TIER_NAME));
+		
+		// Same cache-value instance, staying in the same level-cache
+		Map<String, String> value = underTest.getIfPresent("key");
+		for (int i = 0; i < 10; i++) {
+			underTest.modify("key", new AddKeyValueModifier("b" + i, "b"), false);
+		}
+		Assert.assertSame(value, underTest.getIfPresent("key"));
+		Assert.assertEquals(Long.valueOf(1200), underTest.getEstimatedRetainedBytes().get("1-"));
+		Assert.assertEquals(1200, underTest.getMetrics().getTier("1-").getEstimatedRetainedBytes());
+		Assert.assertEquals(-1, createCacheBuilder(null, null).recordMetrics().build().getMetrics().getTiers().get(0).getEstimatedRetainedBytes());
+		
+		// Moving to the default cache
+		underTest.modify("key", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				input.clear();
+				return input;
+			}
+			
+		}, false);
+		Assert.assertEquals(Long.valueOf(0), underTest.getEstimatedRetainedBytes().get("1-"));
+		Assert.assertEquals(Long.valueOf(100), underTest.getEstimatedRetainedBytes().get(ChangingValueCache.DEFAULT_TIER_NAME));
+		underTest.modify("key", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				return null;
+			}
+			
+		}, false);
+		Assert.assertEquals(Long.valueOf(0), underTest.getEstimatedRetainedBytes().get(ChangingValueCache.DEFAULT_TIER_NAME));
+	}
+	
+	@Test
+	public void testWeighedEntriesEvictedByBytes() {
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = createWeighedCache(1000);
+		for (int i = 0; i < 4; i++) {
+			underTest.modify("small" + i, new AddKeyValueModifier("a", "a"), true);
+		}
+		Assert.assertEquals(4, underTest.size());
+		Assert.assertEquals(Long.valueOf(800), underTest.getEstimatedRetainedBytes().get("1-"));
+		
+		// Growing in place beyond the capacity in bytes evicts other cache-entries
+		for (int i = 0; i < 4; i++) {
+			underTest.modify("small0", new AddKeyValueModifier("b" + i, "b"), false);
+		}
+		Assert.assertTrue(underTest.getEstimatedRetainedBytes().get("1-") <= 1000);
+		Assert.assertTrue(underTest.size() < 4);
+		Assert.assertTrue(underTest.getMetrics().getTier("1-").getEvictions() > 0);
+	}
+	
+	@Test
+	public void testWeigherCalledOncePerModify() {
+		final AtomicInteger weighs = new AtomicInteger();
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = ChangingValueAndLevelMultiCache.builder();
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder
+				.weigher(new Weigher<String, Map<String, String>>() {
+
+					@Override
+					public int weigh(String key, Map<String, String> value) {
+						weighs.incrementAndGet();
+						return MAP_SIZE_BYTES.weigh(key, value);
+					}
+					
+				})
+				.cache(CacheBuilder.newBuilder().maximumWeight(Long.MAX_VALUE))
+				.addCache(CacheBuilder.newBuilder().maximumWeight(Long.MAX_VALUE), 1, Integer.MAX_VALUE, "1-")
+				.defaultNewCreator(new EmptyMapNewCreator())
+				.levelCalculator(new MapSizeLevelCalculator())
+				.build();
+		
+		// Created, re-weighed in place, unchanged weight, and moved
+		underTest.modify("key", new AddKeyValueModifier("a", "a"), true);
+		underTest.modify("key", new AddKeyValueModifier("b", "b"), false);
+		underTest.modify("key", new AddKeyValueModifier("b", "c"), false);
+		underTest.modify("key", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				input.clear();
+				return input;
+			}
+			
+		}, false);
+		Assert.assertEquals(4, weighs.get());
+		Assert.assertEquals(Long.valueOf(0), underTest.getEstimatedRetainedBytes().get("1-"));
+		Assert.assertEquals(Long.valueOf(100), underTest.getEstimatedRetainedBytes().get(ChangingValueCache.DEFAULT_TIER_NAME));
+	}
+	
+	@Test
+	public void testWeigherRequiresCacheBuilders() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = ChangingValueAndLevelMultiCache.builder();
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).cache(CacheBuilder.newBuilder().maximumSize(10));
+		try {
+			underTestBuilder.weigher(MAP_SIZE_BYTES);
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Weigher must be set before internal caches are added", e.getMessage());
+		}
+		
+		underTestBuilder = ChangingValueAndLevelMultiCache.builder();
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).weigher(MAP_SIZE_BYTES).cache(CacheBuilder.newBuilder().<String, Map<String, String>>build());
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Weigher requires all internal caches to be provided as cache-builders", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testGetAllPresentFromSeveralLevelCaches() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).recordMetrics();
+		addLevelCache(underTestBuilder, 1, 1, "1");
+		addLevelCache(underTestBuilder, 2, Integer.MAX_VALUE, "2-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		underTest.modify("key1", new AddKeyValueModifier("a", "a"), true);
+		underTest.modify("key2", new AddKeyValueModifier("a", "a"), true);
+		underTest.modify("key2", new AddKeyValueModifier("b", "b"), true);
+		CacheMetrics metricsBefore = underTest.getMetrics();
+		
+		Map<String, Map<String, String>> values = underTest.getAllPresent(Arrays.asList("key1", "key2", "key3"));
+		Assert.assertEquals(2, values.size());
+		Assert.assertSame(underTest.cacheForLevel(1).getIfPresent("key1"), values.get("key1"));
+		Assert.assertSame(underTest.cacheForLevel(2).getIfPresent("key2"), values.get("key2"));
+		
+		CacheMetrics metrics = underTest.getMetrics();
+		Assert.assertEquals(1, metrics.getMisses() - metricsBefore.getMisses());
+		Assert.assertEquals(1, metrics.getTier("1").getHits() - metricsBefore.getTier("1").getHits());
+		Assert.assertEquals(1, metrics.getTier("2-").getHits() - metricsBefore.getTier("2-").getHits());
+	}
+	
+	@Test
+	public void testLevelTunerBuckets() {
+		for (int level = 0; level < LevelTuner.EXACT_LEVELS; level++) {
+			Assert.assertEquals(level, LevelTuner.bucket(level));
+		}
+		int previousBucket = LevelTuner.bucket(0);
+		for (int level : new int[]{-1, 15, 16, 19, 20, 1000, 1 << 20, Integer.MAX_VALUE}) {
+			int bucket = LevelTuner.bucket(level);
+			Assert.assertTrue(bucket >= previousBucket && bucket < LevelTuner.BUCKETS);
+			Assert.assertTrue(LevelTuner.bucketFrom(bucket) <= Math.max(level, 0));
+			Assert.assertEquals(bucket, LevelTuner.bucket(LevelTuner.bucketFrom(bucket)));
+			previousBucket = bucket;
+		}
+		Assert.assertEquals(LevelTuner.BUCKETS - 1, LevelTuner.bucket(Integer.MAX_VALUE));
+	}
+	
+	@Test
+	public void testTuneLevelsMovesBoundaryToHotLevels() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).autoTuneLevels(1, TimeUnit.HOURS, MAX_CACHE_SIZE, 2);
+		addLevelCache(underTestBuilder, 0, 0, "low");
+		addLevelCache(underTestBuilder, 1, Integer.MAX_VALUE, "high");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		Cache<String, Map<String, String>> lowCache = underTest.cacheForLevel(0);
+		Cache<String, Map<String, String>> highCache = underTest.cacheForLevel(1);
+		Assert.assertFalse(underTest.tuneLevels());
+		
+		// 8 hot cache-entries at level 3 compete for the 2 places of the high level-cache, while the low level-cache is empty
+		for (int i = 0; i < 8; i++) {
+			for (String mapKey : Arrays.asList("a", "b", "c")) {
+				underTest.modify("key" + i, new AddKeyValueModifier(mapKey, mapKey), true);
+			}
+		}
+		for (int j = 0; j < 10; j++) {
+			for (int i = 0; i < 8; i++) {
+				Assert.assertNotNull(underTest.getIfPresent("key" + i));
+			}
+		}
+		Assert.assertEquals(8, highCache.size());
+		
+		Assert.assertTrue(underTest.tuneLevels());
+		List<ChangingValueAndLevelMultiCache.Interval> intervals = underTest.getLevelIntervals();
+		Assert.assertEquals(0, intervals.get(0).getFrom());
+		Assert.assertTrue(intervals.get(0).getTo() >= 3);
+		Assert.assertEquals(intervals.get(0).getTo() + 1, intervals.get(1).getFrom());
+		Assert.assertEquals(Integer.MAX_VALUE, intervals.get(1).getTo());
+		Assert.assertSame(lowCache, underTest.cacheForLevel(3));
+		// Re-homed
+		Assert.assertEquals(8, lowCache.size());
+		Assert.assertEquals(0, highCache.size());
+		for (int i = 0; i < 8; i++) {
+			Assert.assertSame(lowCache, underTest.getCacheAndValueIfPresent("key" + i)._1);
+		}
+		Assert.assertEquals(8, underTest.size());
+		
+		// Nothing to improve
+		Assert.assertFalse(underTest.tuneLevels());
+	}
+	
+	@Test
+	public void testLevelTuningRejected() {
+		try {
+			createCacheBuilder(null, null).build().tuneLevels();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("Level-tuning not enabled", e.getMessage());
+		}
+		try {
+			createCacheBuilder(null, null).autoTuneLevels(0, TimeUnit.SECONDS, 10);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("Period must be positive, was 0", e.getMessage());
+		}
+		
+		ChangingValueAndLevelMultiCache.Builder<String, Integer> underTestBuilder = createCacheBuilder(null, null);
+		underTestBuilder.autoTuneLevels(1, TimeUnit.SECONDS, 10, 10);
+		addLevelCache(underTestBuilder, 0, 10, "0-10");
+		addLevelCache(underTestBuilder, 12, 20, "12-20");
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Level-tuning requires adjacent level-intervals, not 0-10 and 12-20", e.getMessage());
+		}
+		
+		underTestBuilder = createCacheBuilder(null, null);
+		underTestBuilder.autoTuneLevels(1, TimeUnit.SECONDS, 10);
+		addLevelCache(underTestBuilder, 0, 10, "0-10");
+		addLevelCache(underTestBuilder, 11, 20, "11-20");
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("2 level-caches added, but 1 level-cache capacities given", e.getMessage());
+		}
+	}
+	
+	private void testCacheForLevel(int[][] intervals) {
+		ChangingValueAndLevelMultiCache.Builder<String, Integer> underTestBuilder = createCacheBuilder(null, null);
+		List<Cache<String, Integer>> levelCaches = new ArrayList<Cache<String, Integer>>();
+		for (int[] interval : intervals) {
+			Cache<String, Integer> levelCache = CacheBuilder.newBuilder().build();
+			levelCaches.add(levelCache);
+			underTestBuilder.addCache(levelCache, interval[0], interval[1], interval[0] + "-" + interval[1]);
+		}
+		ChangingValueAndLevelMultiCache<String, Integer> underTest = underTestBuilder.build();
+		
+		for (int i = 0; i < intervals.length; i++) {
+			for (long level : new long[]{intervals[i][0], intervals[i][0] + 1L, intervals[i][1] - 1L, intervals[i][1]}) {
+				if (level < intervals[i][0] || level > intervals[i][1]) continue;
+				Assert.assertSame("" + level, levelCaches.get(i), underTest.cacheForLevel((int)level));
+			}
+			if (intervals[i][0] != Integer.MIN_VALUE && (i == 0 || intervals[i-1][1] != intervals[i][0] - 1))
+				Assert.assertSame(underTest.cache, underTest.cacheForLevel(intervals[i][0] - 1));
+			if (intervals[i][1] != Integer.MAX_VALUE && (i == intervals.length - 1 || intervals[i+1][0] != intervals[i][1] + 1))
+				Assert.assertSame(underTest.cache, underTest.cacheForLevel(intervals[i][1] + 1));
+		}
+	}
+	
 	private void testLeveling(boolean heaviestFirst) {
 		// Create 3 inner-caches with leve-intervals 0-1, 2-4 and 5-infinite
 		final int[] LEVEL_SPLIT_AFTER = new int[]{1, 4, Integer.MAX_VALUE};
@@ -56,13 +513,17 @@ public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 		
 		int currentLevelIntervalStart = 0;
 		for (int currentLevelIntervalEnd : LEVEL_SPLIT_AFTER) {
-			Cache<String, Map<String, String>> innerCache = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build();
-			LEVEL_CACHES.add(innerCache);
-			underTestBuilder.addCache(innerCache, currentLevelIntervalStart, currentLevelIntervalEnd, "Inner Cache " + currentLevelIntervalStart + "-" + currentLevelIntervalEnd + " size");
+			LEVEL_CACHES.add(addLevelCache(underTestBuilder, currentLevelIntervalStart, currentLevelIntervalEnd, "Inner Cache " + currentLevelIntervalStart + "-" + currentLevelIntervalEnd + " size"));
 			currentLevelIntervalStart = currentLevelIntervalEnd+1;
 		}
 		
 		final ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		// Level-caches built by the cache itself
+		currentLevelIntervalStart = 0;
+		for (int i = 0; i < LEVEL_SPLIT_AFTER.length; i++) {
+			if (LEVEL_CACHES.get(i) == null) LEVEL_CACHES.set(i, underTest.cacheForLevel(currentLevelIntervalStart));
+			currentLevelIntervalStart = LEVEL_SPLIT_AFTER[i]+1;
+		}
 		
 		// Generate entries for the cache and add them to the cache
 		// * 2*max-cache-size entries for each inner-cache
@@ -139,7 +600,41 @@ public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 		}
 	}
 	
-	private class EmptyMapNewCreator implements Supplier<Map<String, String>> {
+	/**
+	 * Add a level-cache with max-size {@link #MAX_CACHE_SIZE}
+	 * @return The level-cache added (or null if it is built by the cache under test)
+	 */
+	protected <V> Cache<String, V> addLevelCache(ChangingValueAndLevelMultiCache.Builder<String, V> underTestBuilder, int levelFrom, int levelTo, String name) {
+		Cache<String, V> innerCache = CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE).build();
+		underTestBuilder.addCache(innerCache, levelFrom, levelTo, name);
+		return innerCache;
+	}
+	
+	// Counts the calls adding or removing several cache-entries
+	private static class CountingCache<V> extends ForwardingCache.SimpleForwardingCache<String, V> {
+		
+		private final AtomicInteger putAlls = new AtomicInteger();
+		private final AtomicInteger invalidateAlls = new AtomicInteger();
+		
+		private CountingCache() {
+			super(CacheBuilder.newBuilder().<String, V>build());
+		}
+		
+		@Override
+		public void putAll(Map<? extends String, ? extends V> m) {
+			putAlls.incrementAndGet();
+			super.putAll(m);
+		}
+		
+		@Override
+		public void invalidateAll(Iterable<?> keys) {
+			invalidateAlls.incrementAndGet();
+			super.invalidateAll(keys);
+		}
+		
+	}
+	
+	protected class EmptyMapNewCreator implements Supplier<Map<String, String>> {
 
 		@Override
 		public Map<String, String> get() {
@@ -148,12 +643,12 @@ public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 		
 	}
 	
-	private class AddKeyValueModifier implements Function<Map<String, String>, Map<String, String>> {
+	protected class AddKeyValueModifier implements Function<Map<String, String>, Map<String, String>> {
 		
 		private String addKey;
 		private String addValue;
 		
-		private AddKeyValueModifier(String addKey, String addValue) {
+		protected AddKeyValueModifier(String addKey, String addValue) {
 			this.addKey = addKey;
 			this.addValue = addValue;
 		}
@@ -166,7 +661,7 @@ public class ChangingValueAndLevelMultiCacheTest extends ChangingValueCaheTest {
 		
 	}
 	
-	private class MapSizeLevelCalculator implements ChangingValueAndLevelMultiCache.BiFunction<String, Map<String, String>, Integer> {
+	protected class MapSizeLevelCalculator implements ChangingValueAndLevelMultiCache.BiFunction<String, Map<String, String>, Integer> {
 
 		@Override
 		public Integer apply(String key, Map<String, String> value) {
@@ -0,0 +1,127 @@
+package ae.teletronics.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Same tests as {@link ChangingValueAndLevelMultiCacheTest}, but with all internal caches provided as cache-builders, so that the
+ * location of cache-entries is tracked
+ */
+public class ChangingValueAndLevelMultiCacheWithLocationsTest extends ChangingValueAndLevelMultiCacheTest {
+	
+	@Override
+	protected <V> ChangingValueAndLevelMultiCache.Builder<String, V> createCacheBuilder(Supplier<V> defaultNewCreator, Function<V, V> defaultModifier) {
+		ChangingValueAndLevelMultiCache.Builder<String, V> underTestBuilder = super.createCacheBuilder(defaultNewCreator, defaultModifier);
+		return underTestBuilder.cache(CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE));
+	}
+	
+	@Override
+	protected <V> Cache<String, V> addLevelCache(ChangingValueAndLevelMultiCache.Builder<String, V> underTestBuilder, int levelFrom, int levelTo, String name) {
+		underTestBuilder.addCache(CacheBuilder.newBuilder().maximumSize(MAX_CACHE_SIZE), levelFrom, levelTo, name);
+		return null;
+	}
+	
+	@Test
+	public void testLocationsTracked() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator());
+		addLevelCache(underTestBuilder, 1, 1, "1");
+		addLevelCache(underTestBuilder, 2, Integer.MAX_VALUE, "2-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		Assert.assertNotNull(underTest.locations);
+		
+		underTest.modify("key", new AddKeyValueModifier("a", "a"), true);
+		Pair<Cache<String, Map<String, String>>, Map<String, String>> cacheAndValue = underTest.getCacheAndValueIfPresent("key");
+		Assert.assertSame(underTest.cacheForLevel(1), cacheAndValue._1);
+		// Reading does not create new pairs
+		Assert.assertSame(cacheAndValue, underTest.getCacheAndValueIfPresent("key"));
+		
+		underTest.modify("key", new AddKeyValueModifier("b", "b"), true);
+		cacheAndValue = underTest.getCacheAndValueIfPresent("key");
+		Assert.assertSame(underTest.cacheForLevel(2), cacheAndValue._1);
+		Assert.assertNull(underTest.cacheForLevel(1).getIfPresent("key"));
+		Assert.assertEquals(2, cacheAndValue._2.size());
+		
+		underTest.modify("key", new Function<Map<String, String>, Map<String, String>>() {
+
+			@Override
+			public Map<String, String> apply(Map<String, String> input) {
+				return null;
+			}
+			
+		}, false);
+		Assert.assertNull(underTest.getCacheAndValueIfPresent("key"));
+		Assert.assertFalse(underTest.locations.containsKey("key"));
+	}
+	
+	@Test
+	public void testMetricsEvictions() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).recordMetrics();
+		addLevelCache(underTestBuilder, 1, Integer.MAX_VALUE, "1-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		
+		for (int i = 0; i < 3 * MAX_CACHE_SIZE; i++) {
+			underTest.modify("key" + i, new AddKeyValueModifier("a", "a"), true);
+		}
+		
+		CacheMetrics metrics = underTest.getMetrics();
+		Assert.assertEquals(3 * MAX_CACHE_SIZE - underTest.size(), metrics.getTier("1-").getEvictions());
+		Assert.assertEquals(0, metrics.getTier(ChangingValueCache.DEFAULT_TIER_NAME).getEvictions());
+		Assert.assertEquals(3 * MAX_CACHE_SIZE, metrics.getCreations());
+	}
+	
+	@Test
+	public void testLocationsForgottenOnEviction() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator());
+		addLevelCache(underTestBuilder, 1, Integer.MAX_VALUE, "1-");
+		ChangingValueAndLevelMultiCache<String, Map<String, String>> underTest = underTestBuilder.build();
+		
+		Map<String, Map<String, String>> present = new HashMap<String, Map<String, String>>();
+		for (int i = 0; i < 100 * MAX_CACHE_SIZE; i++) {
+			present.put("key" + i, underTest.modify("key" + i, new AddKeyValueModifier("a", "a"), true));
+		}
+		
+		Assert.assertEquals(underTest.size(), underTest.locations.size());
+		for (Map.Entry<String, Map<String, String>> entry : present.entrySet()) {
+			Assert.assertEquals(underTest.locations.containsKey(entry.getKey()), underTest.getIfPresent(entry.getKey()) != null);
+		}
+	}
+	
+	@Test
+	public void testWeakOrSoftCacheBuildersRejected() {
+		ChangingValueAndLevelMultiCache.Builder<String, Map<String, String>> underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).addCache(CacheBuilder.newBuilder().softValues(), 1, Integer.MAX_VALUE, "1-");
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Weak keys, weak values and soft values not supported when all internal caches are provided as cache-builders", e.getMessage());
+		}
+		
+		underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).cache(CacheBuilder.newBuilder().weakValues());
+		try {
+			underTestBuilder.build();
+			Assert.fail();
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Weak keys, weak values and soft values not supported when all internal caches are provided as cache-builders", e.getMessage());
+		}
+		
+		// Locations not tracked, when an internal cache is not provided as cache-builder
+		underTestBuilder = createCacheBuilder(new EmptyMapNewCreator(), null);
+		underTestBuilder.levelCalculator(new MapSizeLevelCalculator()).addCache(CacheBuilder.newBuilder().weakKeys(), 1, 1, "1");
+		underTestBuilder.addCache(CacheBuilder.newBuilder().<String, Map<String, String>>build(), 2, Integer.MAX_VALUE, "2-");
+		Assert.assertNull(underTestBuilder.build().locations);
+	}
+	
+}
@@ -2,6 +2,21 @@ package ae.teletronics.cache;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -10,6 +25,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class ChangingValueCaheTest {
 
@@ -170,8 +186,257 @@ public class ChangingValueCaheTest {
 		assertEquals(5, underTest.getIfPresent("Dont modify 5").intValue());
 	}
 	
+	@Test
+	public void testParallelModifyAll() {
+		for (int i = 0; i < MAX_CACHE_SIZE; i++) {
+			underTest.getAddIfNotPresent("key" + i, new ConstantNewCreator(i));
+		}
+		
+		// Modify (add one) to all entries with an even value
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ModifyAllResult result;
+		try {
+			result = underTest.parallelModifyAll(null, new Predicate<Integer>() {
+	
+				@Override
+				public boolean apply(Integer input) {
+					return input % 2 == 0;
+				}
+				
+			}, null, false, executor);
+		} finally {
+			executor.shutdown();
+		}
+		
+		assertEquals(MAX_CACHE_SIZE / 2, result.getMatched());
+		assertEquals(MAX_CACHE_SIZE / 2, result.getModified());
+		for (int i = 0; i < MAX_CACHE_SIZE; i++) {
+			assertEquals(i + (((i % 2) == 0)?1:0), underTest.getIfPresent("key" + i).intValue());
+		}
+	}
+	
+	@Test
+	public void testModifyBatch() {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).keyLocks(KeyLocks.striped(2)).build();
+		underTest.getAddIfNotPresent("key1", new ConstantNewCreator(10));
+		
+		Map<String, Integer> values = underTest.modifyBatch(Arrays.asList("key1", "key2", "key3", "key2"), null, null, true);
+		assertEquals(Arrays.asList("key1", "key2", "key3"), new ArrayList<String>(values.keySet()));
+		assertEquals(11, values.get("key1").intValue());
+		assertEquals(1, values.get("key2").intValue());
+		assertEquals(1, values.get("key3").intValue());
+		
+		Map<String, Function<Integer, Integer>> modifiers = new HashMap<String, Function<Integer, Integer>>();
+		modifiers.put("key1", new Function<Integer, Integer>() {
+
+			@Override
+			public Integer apply(Integer input) {
+				return null;
+			}
+			
+		});
+		modifiers.put("key2", new AddOneModifier());
+		modifiers.put("key4", new AddOneModifier());
+		values = underTest.modifyBatch(modifiers, null, false);
+		assertEquals(3, values.size());
+		assertNull(values.get("key1"));
+		assertEquals(2, values.get("key2").intValue());
+		assertNull(values.get("key4"));
+		
+		assertNull(underTest.getIfPresent("key1"));
+		assertEquals(2, underTest.getIfPresent("key2").intValue());
+		assertEquals(1, underTest.getIfPresent("key3").intValue());
+		assertNull(underTest.getIfPresent("key4"));
+	}
+	
+	@Test
+	public void testModifyAsyncInOrder() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).asyncExecutor(executor).build();
+			List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>();
+			for (int i = 0; i < 1000; i++) {
+				futures.add(underTest.modifyAsync("key" + (i % 2), null, null));
+			}
+			
+			// Modifications of the same cache-key are done in the order they were queued
+			for (int i = 0; i < futures.size(); i++) {
+				assertEquals((i / 2) + 1, futures.get(i).get().intValue());
+			}
+			assertEquals(500, underTest.getIfPresent("key0").intValue());
+			assertEquals(500, underTest.getIfPresent("key1").intValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testModifyAsyncOnDefaultExecutor() throws Exception {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).build();
+		List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>();
+		for (int i = 0; i < 1000; i++) {
+			futures.add(underTest.modifyAsync("key" + (i % 10), null, null));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			assertEquals((i / 10) + 1, futures.get(i).get().intValue());
+		}
+		assertEquals(100, underTest.getIfPresent("key9").intValue());
+	}
+	
+	@Test
+	public void testModifyAsyncMaxMailboxDepth() throws Exception {
+		final List<Runnable> scheduled = new ArrayList<Runnable>();
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).asyncExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				scheduled.add(command);
+			}
+			
+		}).maxMailboxDepth(2).build();
+		
+		ListenableFuture<Integer> first = underTest.modifyAsync("key", null, null);
+		ListenableFuture<Integer> second = underTest.modifyAsync("key", null, null);
+		ListenableFuture<Integer> rejected = underTest.modifyAsync("key", null, null);
+		ListenableFuture<Integer> otherKey = underTest.modifyAsync("other key", null, null);
+		try {
+			rejected.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertFalse(first.isDone());
+		assertEquals(2, scheduled.size());
+		
+		for (Runnable runnable : scheduled) {
+			runnable.run();
+		}
+		assertEquals(1, first.get().intValue());
+		assertEquals(2, second.get().intValue());
+		assertEquals(1, otherKey.get().intValue());
+		
+		// Room in the mailbox again
+		scheduled.clear();
+		ListenableFuture<Integer> third = underTest.modifyAsync("key", null, null);
+		scheduled.get(0).run();
+		assertEquals(3, third.get().intValue());
+	}
+	
+	@Test
+	public void testModifyAsyncRejectedByExecutor() throws Exception {
+		final List<Runnable> scheduled = new ArrayList<Runnable>();
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).asyncExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				// Accepts the first drain only
+				if (!scheduled.isEmpty()) throw new RejectedExecutionException("Saturated");
+				scheduled.add(command);
+			}
+			
+		}).build();
+		
+		List<ListenableFuture<Integer>> futures = new ArrayList<ListenableFuture<Integer>>();
+		for (int i = 0; i < 200; i++) {
+			futures.add(underTest.modifyAsync("key", null, null));
+		}
+		assertFalse(futures.get(199).isDone());
+		
+		// The drain gives other cache-keys a turn after some modifications - the rest fail, when scheduling the rest is rejected
+		scheduled.get(0).run();
+		int modified = 0;
+		for (ListenableFuture<Integer> future : futures) {
+			try {
+				int value = future.get();
+				assertEquals(++modified, value);
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof RejectedExecutionException);
+			}
+		}
+		assertTrue(modified > 0 && modified < 200);
+		assertEquals(modified, underTest.getIfPresent("key").intValue());
+		
+		// Failed right away, not modified by the calling thread
+		ListenableFuture<Integer> rejected = underTest.modifyAsync("key", null, null);
+		assertTrue(rejected.isDone());
+		try {
+			rejected.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		assertEquals(modified, underTest.getIfPresent("key").intValue());
+	}
+	
+	@Test
+	public void testMetrics() throws Exception {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).recordMetrics().build();
+		
+		assertNull(underTest.getIfPresent("key"));
+		assertEquals(1, underTest.modify("key", true).intValue());
+		assertEquals(2, underTest.modify("key", false).intValue());
+		assertEquals(2, underTest.getIfPresent("key").intValue());
+		assertNull(underTest.modify("key", new Function<Integer, Integer>() {
+
+			@Override
+			public Integer apply(Integer input) {
+				return null;
+			}
+			
+		}, false));
+		
+		CacheMetrics metrics = underTest.getMetrics();
+		assertEquals(3, metrics.getHits());
+		assertEquals(2, metrics.getMisses());
+		assertEquals(1, metrics.getCreations());
+		assertEquals(3, metrics.getModifications());
+		assertEquals(1, metrics.getInvalidations());
+		assertEquals(0, metrics.getSize());
+		assertEquals(3, metrics.getTier(ChangingValueCache.DEFAULT_TIER_NAME).getHits());
+		
+		String name = "testMetrics-" + System.identityHashCode(underTest);
+		ObjectName objectName = new ObjectName("ae.teletronics.cache:type=ChangingValueCache,name=" + ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		underTest.registerMBeans(name);
+		try {
+			assertEquals(3L, server.getAttribute(objectName, "Modifications"));
+			assertEquals(3L, server.getAttribute(new ObjectName(objectName + ",tier=" + ObjectName.quote(ChangingValueCache.DEFAULT_TIER_NAME)), "Hits"));
+		} finally {
+			underTest.unregisterMBeans();
+		}
+		assertFalse(server.isRegistered(objectName));
+	}
+	
+	@Test
+	public void testGetAllPresent() {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).recordMetrics().build();
+		underTest.modify("a", true);
+		underTest.modify("b", true);
+		underTest.modify("b", false);
+		CacheMetrics metricsBefore = underTest.getMetrics();
+		
+		Map<String, Integer> expected = new HashMap<String, Integer>();
+		expected.put("a", 1);
+		expected.put("b", 2);
+		assertEquals(expected, underTest.getAllPresent(Arrays.asList("a", "b", "c", "a")));
+		assertTrue(underTest.getAllPresent(new ArrayList<String>()).isEmpty());
+		
+		CacheMetrics metrics = underTest.getMetrics();
+		assertEquals(2, metrics.getHits() - metricsBefore.getHits());
+		assertEquals(1, metrics.getMisses() - metricsBefore.getMisses());
+	}
+	
 	@Test
 	public void testConcurrency() {
+		testConcurrency(underTest);
+	}
+	
+	@Test
+	public void testConcurrencyStripedKeyLocks() {
+		testConcurrency(createCacheBuilder(new ZeroNewCreator(), new AddOneModifier()).keyLocks(KeyLocks.striped(4)).build());
+	}
+	
+	private void testConcurrency(final ChangingValueCache<String, Integer> underTest) {
 		Runnable task = new Runnable() {
 
 			@Override
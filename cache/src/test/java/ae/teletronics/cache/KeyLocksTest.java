@@ -0,0 +1,81 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+public class KeyLocksTest {
+
+	@Test
+	public void testStripedRoundsUpToPowerOfTwo() {
+		assertEquals(1, distinctSynchObjects(KeyLocks.striped(1), 10000));
+		assertEquals(8, distinctSynchObjects(KeyLocks.striped(5), 10000));
+		assertEquals(64, distinctSynchObjects(KeyLocks.striped(64), 10000));
+	}
+
+	@Test
+	public void testStripedSpreadsSequentialHashCodes() {
+		// Sequential hash-codes only differing in their high bits must not all end up in the same stripe
+		KeyLocks underTest = KeyLocks.striped(16);
+		Set<Object> synchObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		for (int i = 0; i < 16; i++) {
+			synchObjects.add(underTest.getSynchObject(new FixedHashCode(i << 24)));
+		}
+		assertTrue("" + synchObjects.size(), synchObjects.size() > 1);
+	}
+
+	@Test
+	public void testSameKeySameSynchObject() {
+		for (KeyLocks underTest : new KeyLocks[]{KeyLocks.interning(), KeyLocks.striped(256), KeyLocks.reentrantLocks(256)}) {
+			for (int i = 0; i < 1000; i++) {
+				assertSame(underTest.getSynchObject("key" + i), underTest.getSynchObject("key" + i));
+			}
+		}
+	}
+
+	@Test
+	public void testReentrantLocksAreTheSynchObjects() {
+		KeyLocks underTest = KeyLocks.reentrantLocks(5);
+		assertEquals(8, distinctSynchObjects(underTest, 10000));
+		for (int i = 0; i < 100; i++) {
+			assertTrue(underTest.getLock("key" + i) instanceof ReentrantLock);
+			assertSame(underTest.getLock("key" + i), underTest.getSynchObject("key" + i));
+		}
+		assertNull(KeyLocks.interning().getLock("key"));
+		assertNull(KeyLocks.striped(8).getLock("key"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStripedRejectsNoStripes() {
+		KeyLocks.striped(0);
+	}
+
+	private int distinctSynchObjects(KeyLocks keyLocks, int keys) {
+		Set<Object> synchObjects = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		for (int i = 0; i < keys; i++) {
+			synchObjects.add(keyLocks.getSynchObject("key" + i));
+		}
+		return synchObjects.size();
+	}
+
+	private static class FixedHashCode {
+
+		private final int hashCode;
+
+		private FixedHashCode(int hashCode) {
+			this.hashCode = hashCode;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+/**
+ * Same tests as {@link ChangingValueCaheTest}, but with lock-free modify
+ */
+public class LockFreeModifyChangingValueCacheTest extends ChangingValueCaheTest {
+
+	@Override
+	protected <V> ChangingValueCache.Builder<String, V> createCacheBuilder(Supplier<V> defaultNewCreator, Function<V, V> defaultModifier) {
+		return super.createCacheBuilder(defaultNewCreator, defaultModifier).lockFreeModify();
+	}
+	
+	@Test
+	public void testConcurrencyContended() throws InterruptedException {
+		final ChangingValueCache<String, Long> underTest = createCacheBuilder(new Supplier<Long>() {
+
+			@Override
+			public Long get() {
+				return 0L;
+			}
+			
+		}, new Function<Long, Long>() {
+
+			@Override
+			public Long apply(Long input) {
+				return input + 1;
+			}
+			
+		}).build();
+		
+		final int NO_THREADS = 8;
+		final int NO_MODIFICATIONS_PER_THREAD = 10000;
+		Thread[] threads = new Thread[NO_THREADS];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < NO_MODIFICATIONS_PER_THREAD; j++) {
+						underTest.modify("key" + (j % 3), true);
+					}
+				}
+				
+			});
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		
+		assertEquals(NO_THREADS * NO_MODIFICATIONS_PER_THREAD, underTest.getIfPresent("key0") + underTest.getIfPresent("key1") + underTest.getIfPresent("key2"));
+	}
+	
+}
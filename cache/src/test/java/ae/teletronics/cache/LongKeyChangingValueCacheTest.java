@@ -0,0 +1,159 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+public class LongKeyChangingValueCacheTest {
+	
+	private static final int MAX_CACHE_SIZE = 100;
+	
+	private static final Supplier<Integer> ZERO = new Supplier<Integer>() {
+		
+		@Override
+		public Integer get() {
+			return 0;
+		}
+		
+	};
+	
+	private static final Function<Integer, Integer> ADD_ONE = new Function<Integer, Integer>() {
+		
+		@Override
+		public Integer apply(Integer value) {
+			return value + 1;
+		}
+		
+	};
+	
+	private static final Function<Integer, Integer> REMOVE = new Function<Integer, Integer>() {
+		
+		@Override
+		public Integer apply(Integer value) {
+			return null;
+		}
+		
+	};
+	
+	private LongKeyChangingValueCache<Integer> underTest;
+	
+	@Before
+	public void before() {
+		LongKeyChangingValueCache.Builder<Integer> underTestBuilder = LongKeyChangingValueCache.builder();
+		underTest = underTestBuilder.maximumSize(MAX_CACHE_SIZE).concurrencyLevel(4).defaultNewCreator(ZERO).defaultModifier(ADD_ONE).build();
+	}
+	
+	@Test
+	public void testModify() {
+		assertNull(underTest.modify(1L, false));
+		assertNull(underTest.getIfPresent(1L));
+		assertEquals(1, underTest.modify(1L, true).intValue());
+		assertEquals(2, underTest.modify(1L, false).intValue());
+		assertEquals(2, underTest.getIfPresent(1L).intValue());
+		assertEquals(2, underTest.getAddIfNotPresent(1L).intValue());
+		assertEquals(0, underTest.getAddIfNotPresent(Long.MIN_VALUE).intValue());
+		assertEquals(2, underTest.size());
+		
+		assertNull(underTest.modify(1L, REMOVE, false));
+		assertNull(underTest.getIfPresent(1L));
+		assertEquals(1, underTest.size());
+	}
+	
+	@Test
+	public void testBoundedSize() {
+		for (long key = 0; key < 10 * MAX_CACHE_SIZE; key++) {
+			underTest.modify(key << 32, true);
+			assertEquals(1, underTest.getIfPresent(key << 32).intValue());
+			assertTrue(underTest.size() <= MAX_CACHE_SIZE);
+		}
+	}
+	
+	@Test
+	public void testSameAsMapWithoutEviction() {
+		LongKeyChangingValueCache<Integer> underTest = LongKeyChangingValueCache.<Integer>builder().maximumSize(1000).concurrencyLevel(1).defaultNewCreator(ZERO).build();
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(500) * 1000003L;
+			if (random.nextInt(3) == 0) {
+				underTest.modify(key, REMOVE, false);
+				expected.remove(key);
+			} else {
+				underTest.modify(key, ADD_ONE, true);
+				expected.put(key, (expected.containsKey(key))?(expected.get(key) + 1):1);
+			}
+		}
+		assertEquals(expected.size(), underTest.size());
+		for (int i = 0; i < 500; i++) {
+			assertEquals(expected.get(i * 1000003L), underTest.getIfPresent(i * 1000003L));
+		}
+	}
+	
+	@Test
+	public void testModifierRunsWithoutSegmentLock() throws InterruptedException {
+		final LongKeyChangingValueCache<Integer> oneSegment = LongKeyChangingValueCache.<Integer>builder().maximumSize(MAX_CACHE_SIZE).concurrencyLevel(1).defaultNewCreator(ZERO).build();
+		oneSegment.modify(2L, ADD_ONE, true);
+		
+		final Integer[] otherValue = new Integer[1];
+		assertEquals(1, oneSegment.modify(1L, new Function<Integer, Integer>() {
+			
+			@Override
+			public Integer apply(Integer value) {
+				// Would deadlock, if the segment was held
+				Thread reader = new Thread(new Runnable() {
+					
+					@Override
+					public void run() {
+						otherValue[0] = oneSegment.getIfPresent(2L);
+					}
+					
+				});
+				reader.start();
+				try {
+					reader.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return value + 1;
+			}
+			
+		}, true).intValue());
+		assertEquals(1, otherValue[0].intValue());
+	}
+	
+	@Test
+	public void testModifierModifyingOtherKeysOfSameSegment() {
+		final LongKeyChangingValueCache<Integer> oneSegment = LongKeyChangingValueCache.<Integer>builder().maximumSize(4).concurrencyLevel(1).defaultNewCreator(ZERO).build();
+		for (long key = 1; key <= 4; key++) {
+			oneSegment.modify(key, ADD_ONE, true);
+		}
+		
+		// Adding keys evicts and moves cache-entries, while the modifier of key 1 runs
+		assertEquals(2, oneSegment.modify(1L, new Function<Integer, Integer>() {
+			
+			private long nextKey = 5;
+			
+			@Override
+			public Integer apply(Integer value) {
+				if (nextKey < 10) oneSegment.modify(nextKey++, ADD_ONE, true);
+				return value + 1;
+			}
+			
+		}, true).intValue());
+		assertEquals(2, oneSegment.getIfPresent(1L).intValue());
+		assertTrue(oneSegment.size() <= 4);
+		for (long key = 2; key < 10; key++) {
+			Integer value = oneSegment.getIfPresent(key);
+			assertTrue(value == null || value == 1);
+		}
+	}
+	
+}
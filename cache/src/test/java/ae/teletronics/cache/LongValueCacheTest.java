@@ -0,0 +1,201 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link LongValueCache}, run against each implementation by the subclasses
+ */
+public abstract class LongValueCacheTest {
+	
+	protected static final int MAX_CACHE_SIZE = 100;
+	
+	protected static final LongNewCreator ZERO = new LongNewCreator() {
+		
+		@Override
+		public long get() {
+			return 0;
+		}
+		
+	};
+	
+	protected static final LongModifier ADD_ONE = new LongModifier() {
+		
+		@Override
+		public long apply(long value) {
+			return value + 1;
+		}
+		
+	};
+	
+	protected static final LongModifier REMOVE = new LongModifier() {
+		
+		@Override
+		public long apply(long value) {
+			return LongValueCache.NO_VALUE;
+		}
+		
+	};
+	
+	protected LongValueCache<String> underTest;
+	
+	protected abstract LongValueCache<String> createCache(int maximumSize, int concurrencyLevel, LongNewCreator defaultNewCreator, LongModifier defaultModifier);
+	
+	@Before
+	public void before() {
+		underTest = createCache(MAX_CACHE_SIZE, 4, ZERO, ADD_ONE);
+	}
+	
+	@Test
+	public void testModify() {
+		assertEquals(LongValueCache.NO_VALUE, underTest.modify("key", false));
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("key"));
+		assertEquals(1, underTest.modify("key", true));
+		assertEquals(2, underTest.modify("key", false));
+		assertEquals(2, underTest.getIfPresent("key"));
+		assertEquals(2, underTest.getAddIfNotPresent("key"));
+		assertEquals(0, underTest.getAddIfNotPresent("other key"));
+		assertEquals(2, underTest.size());
+		
+		assertEquals(LongValueCache.NO_VALUE, underTest.modify("key", REMOVE, false));
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("key"));
+		assertEquals(1, underTest.size());
+	}
+	
+	@Test
+	public void testPut() {
+		underTest.put("key", 5);
+		assertEquals(5, underTest.getIfPresent("key"));
+		underTest.put("key", 7);
+		assertEquals(8, underTest.modify("key", false));
+		assertEquals(1, underTest.size());
+		
+		underTest.put("key", LongValueCache.NO_VALUE);
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("key"));
+		underTest.put("other key", LongValueCache.NO_VALUE);
+		assertEquals(0, underTest.size());
+	}
+	
+	@Test
+	public void testBoundedSize() {
+		for (int i = 0; i < 10 * MAX_CACHE_SIZE; i++) {
+			underTest.modify("key" + i, true);
+			// The most recently added is never the one evicted
+			assertEquals(1, underTest.getIfPresent("key" + i));
+			assertTrue(underTest.size() <= MAX_CACHE_SIZE);
+		}
+	}
+	
+	@Test
+	public void testSameAsMapWithoutEviction() {
+		LongValueCache<String> underTest = createCache(1000, 1, ZERO, null);
+		Map<String, Long> expected = new HashMap<String, Long>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			String key = "key" + random.nextInt(500);
+			if (random.nextInt(3) == 0) {
+				underTest.modify(key, REMOVE, false);
+				expected.remove(key);
+			} else {
+				underTest.modify(key, ADD_ONE, true);
+				expected.put(key, (expected.containsKey(key))?(expected.get(key) + 1):1L);
+			}
+		}
+		assertEquals(expected.size(), underTest.size());
+		for (int i = 0; i < 500; i++) {
+			String key = "key" + i;
+			assertEquals((expected.containsKey(key))?expected.get(key):LongValueCache.NO_VALUE, underTest.getIfPresent(key));
+		}
+	}
+	
+	@Test
+	public void testConcurrency() throws InterruptedException {
+		Runnable task = new Runnable() {
+
+			@Override
+			public void run() {
+				for (int i = 0; i < 1000; i++) {
+					underTest.modify("key" + (i % 10), true);
+				}
+			}
+			
+		};
+		
+		Thread[] threads = new Thread[10];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(task);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1000, underTest.getIfPresent("key" + i));
+		}
+	}
+	
+	@Test
+	public void testModifierRunsWithoutSegmentLock() throws InterruptedException {
+		final LongValueCache<String> oneSegment = createCache(MAX_CACHE_SIZE, 1, ZERO, null);
+		oneSegment.modify("other key", ADD_ONE, true);
+		
+		final long[] otherValue = new long[1];
+		assertEquals(1, oneSegment.modify("key", new LongModifier() {
+			
+			@Override
+			public long apply(long value) {
+				// Would deadlock, if the segment was held
+				Thread reader = new Thread(new Runnable() {
+					
+					@Override
+					public void run() {
+						otherValue[0] = oneSegment.getIfPresent("other key");
+					}
+					
+				});
+				reader.start();
+				try {
+					reader.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return value + 1;
+			}
+			
+		}, true));
+		assertEquals(1, otherValue[0]);
+	}
+	
+	@Test
+	public void testModifierRunAgainIfChangedMeanwhile() {
+		underTest.modify("key", true);
+		final AtomicInteger calls = new AtomicInteger();
+		assertEquals(12, underTest.modify("key", new LongModifier() {
+			
+			@Override
+			public long apply(long value) {
+				if (calls.incrementAndGet() == 1) underTest.modify("key", new LongModifier() {
+					
+					@Override
+					public long apply(long value) {
+						return value + 10;
+					}
+					
+				}, false);
+				return value + 1;
+			}
+			
+		}, false));
+		assertEquals(2, calls.get());
+		assertEquals(12, underTest.getIfPresent("key"));
+	}
+	
+}
@@ -0,0 +1,18 @@
+package ae.teletronics.cache;
+
+import org.junit.Test;
+
+public class LongValueChangingValueCacheTest extends LongValueCacheTest {
+	
+	@Override
+	protected LongValueCache<String> createCache(int maximumSize, int concurrencyLevel, LongNewCreator defaultNewCreator, LongModifier defaultModifier) {
+		LongValueChangingValueCache.Builder<String> underTestBuilder = LongValueChangingValueCache.builder();
+		return underTestBuilder.maximumSize(maximumSize).concurrencyLevel(concurrencyLevel).defaultNewCreator(defaultNewCreator).defaultModifier(defaultModifier).build();
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void testNoMaximumSizeRejected() {
+		LongValueChangingValueCache.<String>builder().build();
+	}
+	
+}
@@ -0,0 +1,84 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Same tests as {@link LongValueChangingValueCacheTest} (see {@link LongValueCacheTest}), plus the ones of cache-keys kept off heap
+ */
+public class OffHeapLongValueChangingValueCacheTest extends LongValueCacheTest {
+	
+	@Override
+	protected LongValueCache<String> createCache(int maximumSize, int concurrencyLevel, LongNewCreator defaultNewCreator, LongModifier defaultModifier) {
+		return OffHeapLongValueChangingValueCache.builder().maximumSize(maximumSize).expectedKeyLength(4).concurrencyLevel(concurrencyLevel).defaultNewCreator(defaultNewCreator).defaultModifier(defaultModifier).build();
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void testNoMaximumSizeRejected() {
+		OffHeapLongValueChangingValueCache.builder().build();
+	}
+	
+	@Test
+	public void testLongAndNonAsciiKeysCached() {
+		StringBuilder longKey = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			longKey.append("long key ");
+		}
+		assertEquals(1, underTest.modify(longKey.toString(), true));
+		assertEquals(2, underTest.modify(longKey.toString(), true));
+		assertEquals(2, underTest.getIfPresent(longKey.toString()));
+		assertEquals(1, underTest.modify("n\u00f8gle \u6f22\u5b57 \ud83d\ude00", true));
+		assertEquals(1, underTest.getIfPresent("n\u00f8gle \u6f22\u5b57 \ud83d\ude00"));
+		assertEquals(2, underTest.size());
+		
+		// Keys only differing in characters are told apart
+		underTest.modify("abcdefgh", true);
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("abcdefgi"));
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("abcdefg"));
+		assertEquals(LongValueCache.NO_VALUE, underTest.getIfPresent("n\u00f8gle \u6f22\u5b57 \ud83d\ude01"));
+		assertEquals(1, underTest.getIfPresent("abcdefgh"));
+	}
+	
+	@Test
+	public void testSpaceOfRemovedKeysReclaimed() {
+		OffHeapLongValueChangingValueCache underTest = OffHeapLongValueChangingValueCache.builder().maximumSize(10).expectedKeyLength(8).concurrencyLevel(1).defaultNewCreator(ZERO).defaultModifier(ADD_ONE).build();
+		long offHeapBytes = 0;
+		for (int i = 0; i < 10000; i++) {
+			underTest.modify("key" + i, true);
+			if (i >= 5) underTest.modify("key" + (i - 5), REMOVE, false);
+			// The key-arena may have grown to fit five keys, but not since
+			if (i == 2000) offHeapBytes = underTest.getOffHeapBytes();
+		}
+		assertEquals(offHeapBytes, underTest.getOffHeapBytes());
+		for (int i = 9995; i < 10000; i++) {
+			assertEquals(1, underTest.getIfPresent("key" + i));
+		}
+	}
+	
+	@Test
+	public void testArenasReusedWhenCompacting() throws Exception {
+		OffHeapLongValueChangingValueCache underTest = OffHeapLongValueChangingValueCache.builder().maximumSize(10).expectedKeyLength(8).concurrencyLevel(1).defaultNewCreator(ZERO).defaultModifier(ADD_ONE).build();
+		Object segment = ((Object[])field(underTest, "segments"))[0];
+		Set<Object> arenas = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		for (int i = 0; i < 10000; i++) {
+			underTest.modify("key" + i, true);
+			if (i >= 5) underTest.modify("key" + (i - 5), REMOVE, false);
+			// Once grown to fit five keys, compacted back and forth between the same two arenas
+			if (i >= 2000) arenas.add(field(segment, "arena"));
+		}
+		assertEquals(2, arenas.size());
+	}
+	
+	private static Object field(Object object, String name) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(object);
+	}
+	
+}
@@ -0,0 +1,114 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+
+	// Equal hash-codes, so that all hash-bits are used and collision-nodes are needed
+	private static class CollidingKey {
+
+		private final int id;
+
+		private CollidingKey(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return 42;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return (o instanceof CollidingKey) && ((CollidingKey)o).id == id;
+		}
+
+	}
+
+	@Test
+	public void testPlusAndMinus() {
+		PersistentHashMap<String, String> empty = PersistentHashMap.empty();
+		PersistentHashMap<String, String> one = empty.plus("a", "1");
+		PersistentHashMap<String, String> two = one.plus("b", "2");
+		PersistentHashMap<String, String> replaced = two.plus("a", "3");
+
+		assertTrue(empty.isEmpty());
+		assertEquals(1, one.size());
+		assertEquals("1", one.get("a"));
+		assertNull(one.get("b"));
+		assertEquals(2, two.size());
+		assertEquals("1", two.get("a"));
+		assertEquals("2", two.get("b"));
+		assertEquals(2, replaced.size());
+		assertEquals("3", replaced.get("a"));
+		assertSame(replaced, replaced.plus("a", replaced.get("a")));
+
+		PersistentHashMap<String, String> removed = replaced.minus("a");
+		assertEquals(1, removed.size());
+		assertFalse(removed.containsKey("a"));
+		assertSame(removed, removed.minus("a"));
+		assertTrue(removed.minus("b").isEmpty());
+
+		// Earlier versions not affected
+		assertEquals("1", two.get("a"));
+		assertEquals(2, two.size());
+	}
+
+	@Test
+	public void testNullKeyAndValue() {
+		PersistentHashMap<String, String> underTest = PersistentHashMap.<String, String>empty().plus(null, "x").plus("y", null);
+		assertEquals("x", underTest.get(null));
+		assertTrue(underTest.containsKey("y"));
+		assertNull(underTest.get("y"));
+		assertFalse(underTest.minus(null).containsKey(null));
+	}
+
+	@Test
+	public void testManyEntriesSameAsHashMap() {
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		PersistentHashMap<Integer, Integer> underTest = PersistentHashMap.empty();
+		for (int i = 0; i < 10000; i++) {
+			expected.put(i * 31, i);
+			underTest = underTest.plus(i * 31, i);
+		}
+		assertEquals(expected, underTest);
+		assertEquals(underTest, expected);
+		assertEquals(expected.hashCode(), underTest.hashCode());
+
+		for (int i = 0; i < 10000; i += 3) {
+			expected.remove(i * 31);
+			underTest = underTest.minus(i * 31);
+		}
+		assertEquals(expected.size(), underTest.size());
+		assertEquals(expected, new HashMap<Integer, Integer>(underTest));
+	}
+
+	@Test
+	public void testCollidingKeys() {
+		PersistentHashMap<CollidingKey, Integer> underTest = PersistentHashMap.empty();
+		for (int i = 0; i < 10; i++) {
+			underTest = underTest.plus(new CollidingKey(i), i);
+		}
+		underTest = underTest.plus(new CollidingKey(5), 50).minus(new CollidingKey(3));
+		assertEquals(9, underTest.size());
+		assertEquals(Integer.valueOf(50), underTest.get(new CollidingKey(5)));
+		assertNull(underTest.get(new CollidingKey(3)));
+		int count = 0;
+		for (Map.Entry<CollidingKey, Integer> entry : underTest.entrySet()) {
+			assertEquals(entry.getValue(), underTest.get(entry.getKey()));
+			count++;
+		}
+		assertEquals(9, count);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testPutRejected() {
+		PersistentHashMap.<String, String>empty().plus("a", "1").put("b", "2");
+	}
+
+}
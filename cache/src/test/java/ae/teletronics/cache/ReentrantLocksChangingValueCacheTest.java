@@ -0,0 +1,89 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+
+/**
+ * Same tests as {@link ChangingValueCaheTest}, but locking {@link KeyLocks#reentrantLocks(int)} instead of synchronizing
+ */
+public class ReentrantLocksChangingValueCacheTest extends ChangingValueCaheTest {
+
+	@Override
+	protected <V> ChangingValueCache.Builder<String, V> createCacheBuilder(Supplier<V> defaultNewCreator, Function<V, V> defaultModifier) {
+		return super.createCacheBuilder(defaultNewCreator, defaultModifier).keyLocks(KeyLocks.reentrantLocks(16));
+	}
+	
+	@Test
+	public void testWaitingModifyParksInsteadOfBlocking() throws Exception {
+		final CountDownLatch modifying = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		final ChangingValueCache<String, Integer> underTest = createCacheBuilder(new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return 0;
+			}
+			
+		}, new Function<Integer, Integer>() {
+
+			@Override
+			public Integer apply(Integer input) {
+				return input + 1;
+			}
+			
+		}).build();
+		
+		Thread holder = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				underTest.modify("key", new Function<Integer, Integer>() {
+
+					@Override
+					public Integer apply(Integer input) {
+						modifying.countDown();
+						try {
+							released.await();
+						} catch (InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+						return input + 1;
+					}
+					
+				}, true);
+			}
+			
+		});
+		holder.start();
+		assertTrue(modifying.await(10, TimeUnit.SECONDS));
+		
+		Thread waiter = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				underTest.modify("key", true);
+			}
+			
+		});
+		waiter.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (waiter.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+			assertTrue(waiter.getState() != Thread.State.BLOCKED);
+			Thread.sleep(1);
+		}
+		assertEquals(Thread.State.WAITING, waiter.getState());
+		
+		released.countDown();
+		holder.join();
+		waiter.join();
+		assertEquals(2, underTest.getIfPresent("key").intValue());
+	}
+	
+}
@@ -0,0 +1,194 @@
+package ae.teletronics.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+
+/**
+ * Same tests as {@link ChangingValueCaheTest}, but with single-flight loads
+ */
+public class SingleFlightLoadsChangingValueCacheTest extends ChangingValueCaheTest {
+
+	@Override
+	protected <V> ChangingValueCache.Builder<String, V> createCacheBuilder(Supplier<V> defaultNewCreator, Function<V, V> defaultModifier) {
+		return super.createCacheBuilder(defaultNewCreator, defaultModifier).singleFlightLoads(10, TimeUnit.SECONDS);
+	}
+
+	// Blocks until released, counting its calls
+	private static class BlockingNewCreator implements Supplier<Integer> {
+
+		private final Integer newValue;
+		private final RuntimeException failure;
+		private final CountDownLatch entered = new CountDownLatch(1);
+		private final CountDownLatch released = new CountDownLatch(1);
+		private final AtomicInteger calls = new AtomicInteger();
+
+		private BlockingNewCreator(Integer newValue, RuntimeException failure) {
+			this.newValue = newValue;
+			this.failure = failure;
+		}
+
+		@Override
+		public Integer get() {
+			calls.incrementAndGet();
+			entered.countDown();
+			try {
+				released.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			if (failure != null) throw failure;
+			return newValue;
+		}
+
+	}
+
+	private static class AddOneModifier implements Function<Integer, Integer> {
+
+		@Override
+		public Integer apply(Integer value) {
+			return value + 1;
+		}
+
+	}
+
+	private static Thread startModify(final ChangingValueCache<String, Integer> underTest, final String key, final Supplier<Integer> newCreator, final AtomicReference<Object> result) {
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					result.set(underTest.modify(key, newCreator, true));
+				} catch (RuntimeException e) {
+					result.set(e);
+				}
+			}
+
+		});
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testConcurrentMissesShareOneLoadOutsideLock() throws Exception {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(null, new AddOneModifier()).keyLocks(KeyLocks.striped(1)).build();
+		BlockingNewCreator newCreator = new BlockingNewCreator(10, null);
+
+		Thread[] threads = new Thread[4];
+		AtomicReference<Object> firstResult = new AtomicReference<Object>();
+		threads[0] = startModify(underTest, "key", newCreator, firstResult);
+		assertTrue(newCreator.entered.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < threads.length; i++) {
+			threads[i] = startModify(underTest, "key", newCreator, new AtomicReference<Object>());
+		}
+
+		// Sharing the only stripe, but not waiting for the load
+		assertEquals(1, underTest.modify("other key", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return 0;
+			}
+
+		}, true).intValue());
+		assertNull(firstResult.get());
+
+		newCreator.released.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, newCreator.calls.get());
+		assertEquals(10 + threads.length, underTest.getIfPresent("key").intValue());
+	}
+
+	@Test
+	public void testLoadFailurePropagatesToAllWaiters() throws Exception {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(null, new AddOneModifier()).build();
+		BlockingNewCreator newCreator = new BlockingNewCreator(null, new IllegalStateException("load failed"));
+
+		AtomicReference<Object> firstResult = new AtomicReference<Object>();
+		AtomicReference<Object> secondResult = new AtomicReference<Object>();
+		Thread first = startModify(underTest, "key", newCreator, firstResult);
+		assertTrue(newCreator.entered.await(10, TimeUnit.SECONDS));
+		Thread second = startModify(underTest, "key", newCreator, secondResult);
+		Thread.sleep(50);
+		newCreator.released.countDown();
+		first.join();
+		second.join();
+
+		assertTrue(firstResult.get() instanceof IllegalStateException);
+		assertTrue(secondResult.get() instanceof IllegalStateException);
+		assertNull(underTest.getIfPresent("key"));
+
+		// Not remembered
+		assertEquals(1, underTest.modify("key", new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return 0;
+			}
+
+		}, true).intValue());
+	}
+
+	@Test
+	public void testLoadTimeoutOnlyFailsWaiters() throws Exception {
+		ChangingValueCache<String, Integer> underTest = super.createCacheBuilder(null, new AddOneModifier()).singleFlightLoads(200, TimeUnit.MILLISECONDS).build();
+		BlockingNewCreator newCreator = new BlockingNewCreator(10, null);
+
+		AtomicReference<Object> firstResult = new AtomicReference<Object>();
+		AtomicReference<Object> secondResult = new AtomicReference<Object>();
+		Thread first = startModify(underTest, "key", newCreator, firstResult);
+		assertTrue(newCreator.entered.await(10, TimeUnit.SECONDS));
+		Thread second = startModify(underTest, "key", newCreator, secondResult);
+		second.join();
+		assertTrue(secondResult.get() instanceof UncheckedTimeoutException);
+
+		// Not the one running the load - it installs the loaded value when done
+		newCreator.released.countDown();
+		first.join();
+		assertEquals(Integer.valueOf(11), firstResult.get());
+		assertEquals(11, underTest.getIfPresent("key").intValue());
+	}
+
+	@Test
+	public void testLoadedValueNotInstalledIfModifiedDuringLoad() throws Exception {
+		ChangingValueCache<String, Integer> underTest = createCacheBuilder(new Supplier<Integer>() {
+
+			@Override
+			public Integer get() {
+				return 0;
+			}
+
+		}, new AddOneModifier()).build();
+		BlockingNewCreator newCreator = new BlockingNewCreator(10, null);
+
+		AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread thread = startModify(underTest, "key", newCreator, result);
+		assertTrue(newCreator.entered.await(10, TimeUnit.SECONDS));
+		// Created holding the key-lock, not waiting for the load - which may have missed it
+		assertEquals(1, underTest.modifyBatch(Arrays.asList("key"), null, null, true).get("key").intValue());
+		newCreator.released.countDown();
+		thread.join();
+
+		assertEquals(Integer.valueOf(2), result.get());
+		assertEquals(2, underTest.getIfPresent("key").intValue());
+		assertEquals(1, newCreator.calls.get());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testLockFreeModifyRejected() {
+		createCacheBuilder(null, new AddOneModifier()).lockFreeModify().build();
+	}
+
+}
@@ -0,0 +1,106 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ae.teletronics.cache.examples.dbversioncache.KeyValueOptimisticLockingDBWithPluggableCache.StoreRequest;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Funnels;
+
+public class BloomFilterStoreTest {
+
+	// Counting the gets reaching it
+	private static class CountingStore extends InMemoryStore<String, StringValueContainer> {
+
+		private final AtomicInteger gets = new AtomicInteger();
+
+		@Override
+		public StringValueContainer get(String key) {
+			gets.incrementAndGet();
+			return super.get(key);
+		}
+
+	}
+
+	private static BloomFilterStore<String, StringValueContainer> create(CountingStore store, long expectedKeys) {
+		BloomFilterStore.Builder<String, StringValueContainer> builder = BloomFilterStore.builder();
+		return builder
+				.store(store)
+				.keyFunnel(Funnels.stringFunnel(Charsets.UTF_8))
+				.expectedKeys(expectedKeys)
+				.build();
+	}
+
+	@Test
+	public void testAbsentKeysNotGotFromStore() {
+		CountingStore store = new CountingStore();
+		store.put("before", new StringValueContainer(0L, "before"));
+		BloomFilterStore<String, StringValueContainer> underTest = create(store, 100);
+		underTest.put("after", new StringValueContainer(0L, "after"));
+
+		assertEquals("before", underTest.get("before").getValue());
+		assertEquals("after", underTest.get("after").getValue());
+		assertEquals(2, store.gets.get());
+
+		int absentGets = 0;
+		for (int i = 0; i < 1000; i++) {
+			assertNull(underTest.get("absent" + i));
+			absentGets++;
+		}
+		assertEquals(absentGets, underTest.getSkippedGets() + underTest.getFalsePositives());
+		assertEquals(2 + underTest.getFalsePositives(), store.gets.get());
+		assertTrue(underTest.getSkippedGets() > 950);
+	}
+
+	@Test
+	public void testFilterGrowsBeyondExpectedKeys() {
+		CountingStore store = new CountingStore();
+		BloomFilterStore<String, StringValueContainer> underTest = create(store, 100);
+		for (int i = 0; i < 10000; i++) {
+			underTest.put("key" + i, new StringValueContainer(0L, "value" + i));
+		}
+		assertTrue(underTest.getFiltersAdded() >= 6);
+
+		// No false negatives
+		for (int i = 0; i < 10000; i++) {
+			assertEquals("value" + i, underTest.get("key" + i).getValue());
+		}
+		// Total false positive probability below twice the configured 0.01 - with some margin for chance
+		for (int i = 0; i < 10000; i++) {
+			assertNull(underTest.get("absent" + i));
+		}
+		assertTrue(underTest.getFalsePositives() < 300);
+	}
+
+	@Test
+	public void testNewPutsVersionCheckedWithoutStoreGets() throws Exception {
+		CountingStore store = new CountingStore();
+		StringStringOptimisticLockingDBWithVersionCache db = new StringStringOptimisticLockingDBWithVersionCache(10, create(store, 100));
+		assertNull(db.get("X"));
+		db.put("X", new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return new StringValueContainer(-1L, "x");
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return StoreRequest.Operation.NEW;
+			}
+
+		});
+		assertEquals(0, store.gets.get());
+		assertEquals("x", db.get("X").getValue());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNoStoreRejected() {
+		BloomFilterStore.<String, StringValueContainer>builder().build();
+	}
+
+}
@@ -0,0 +1,92 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CanonicalSubstringsTest {
+	
+	private final CanonicalSubstrings underTest = new CanonicalSubstrings();
+	
+	@Test
+	public void testGetAndIntern() {
+		String key = "prefix!suffix";
+		assertNull(underTest.get(key, 0, 6));
+		String prefix = underTest.intern(key, 0, 6);
+		assertEquals("prefix", prefix);
+		assertSame(prefix, underTest.get(key, 0, 6));
+		assertSame(prefix, underTest.get("some prefix", 5, 11));
+		assertSame(prefix, underTest.intern("prefix", 0, 6));
+		assertNull(underTest.get(key, 7, 13));
+		assertNull(underTest.get(key, 0, 5));
+		
+		assertEquals("", underTest.intern(key, 6, 6));
+		assertSame(underTest.intern(key, 6, 6), underTest.get("", 0, 0));
+	}
+	
+	@Test
+	public void testManySubstrings() {
+		String[] canonicals = new String[10000];
+		for (int i = 0; i < canonicals.length; i++) {
+			String source = "key" + i + "!";
+			canonicals[i] = underTest.intern(source, 0, source.length() - 1);
+		}
+		for (int i = 0; i < canonicals.length; i++) {
+			String source = "!key" + i;
+			assertSame(canonicals[i], underTest.get(source, 1, source.length()));
+		}
+	}
+	
+	@Test
+	public void testConcurrentIntern() throws InterruptedException {
+		final String[][] canonicals = new String[4][1000];
+		Thread[] threads = new Thread[canonicals.length];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < canonicals[thread].length; i++) {
+						String source = "key" + i;
+						String canonical = underTest.get(source, 0, source.length());
+						canonicals[thread][i] = (canonical != null)?canonical:underTest.intern(source, 0, source.length());
+					}
+				}
+				
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (int i = 0; i < canonicals[0].length; i++) {
+			for (int t = 1; t < threads.length; t++) {
+				assertSame(canonicals[0][i], canonicals[t][i]);
+			}
+		}
+	}
+	
+	@Test
+	public void testInternOfWholeSourceAddsSource() {
+		String source = new String("prefix");
+		assertSame(source, underTest.intern(source, 0, source.length()));
+		assertSame(source, underTest.get("prefix!suffix", 0, 6));
+	}
+	
+	@Test
+	public void testManySubstringsInSegments() {
+		CanonicalSubstrings segmented = new CanonicalSubstrings(16);
+		String[] canonicals = new String[10000];
+		for (int i = 0; i < canonicals.length; i++) {
+			String source = "key" + i + "!";
+			canonicals[i] = segmented.intern(source, 0, source.length() - 1);
+		}
+		for (int i = 0; i < canonicals.length; i++) {
+			String source = "!key" + i;
+			assertSame(canonicals[i], segmented.get(source, 1, source.length()));
+			assertSame(canonicals[i], segmented.intern(source, 1, source.length()));
+		}
+	}
+	
+}
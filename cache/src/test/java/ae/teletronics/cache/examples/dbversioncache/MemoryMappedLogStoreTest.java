@@ -0,0 +1,199 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryMappedLogStoreTest {
+
+	private File directory;
+	private MemoryMappedLogStore<String, StringValueContainer> underTest;
+
+	@Before
+	public void before() throws IOException {
+		directory = createTempDirectory();
+	}
+
+	@After
+	public void after() throws IOException {
+		if (underTest != null) underTest.close();
+		deleteRecursively(directory);
+	}
+
+	static File createTempDirectory() throws IOException {
+		File directory = File.createTempFile("log-store", "");
+		directory.delete();
+		directory.mkdir();
+		return directory;
+	}
+
+	static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private MemoryMappedLogStore<String, StringValueContainer> open(int segmentSize, long compactionIntervalMillis) throws IOException {
+		if (underTest != null) underTest.close();
+		MemoryMappedLogStore.Builder<String, StringValueContainer> builder = MemoryMappedLogStore.builder();
+		underTest = builder
+				.directory(directory)
+				.keyCodec(MemoryMappedLogStore.STRING_CODEC)
+				.valueCodec(StringValueContainer.CODEC)
+				.segmentSize(segmentSize)
+				.compactionInterval(compactionIntervalMillis, TimeUnit.MILLISECONDS)
+				.build();
+		return underTest;
+	}
+
+	private static Set<String> keys(MemoryMappedLogStore<String, StringValueContainer> store) {
+		Set<String> keys = new HashSet<String>();
+		for (String key : store.keys()) {
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	@Test
+	public void testPutAndGet() throws IOException {
+		open(4096, 0);
+		assertNull(underTest.get("key"));
+		underTest.put("key", new StringValueContainer(0L, "value"));
+		underTest.put("other key", new StringValueContainer(null, null));
+		underTest.put("key", new StringValueContainer(1L, "new value"));
+
+		assertEquals(Long.valueOf(1), underTest.get("key").getVersion());
+		assertEquals("new value", underTest.get("key").getValue());
+		assertNull(underTest.get("other key").getVersion());
+		assertNull(underTest.get("other key").getValue());
+		assertEquals(new HashSet<String>(Arrays.asList("key", "other key")), keys(underTest));
+		assertEquals(4, underTest.getReads());
+		assertEquals(3, underTest.getWrites());
+	}
+
+	@Test
+	public void testRecoveryOnOpen() throws IOException {
+		open(256, 0);
+		for (int i = 0; i < 100; i++) {
+			underTest.put("key" + (i % 10), new StringValueContainer((long)i, "value" + i));
+		}
+		assertTrue(underTest.getSegmentCount() > 1);
+
+		open(256, 0);
+		assertEquals(10, keys(underTest).size());
+		for (int i = 90; i < 100; i++) {
+			assertEquals("value" + i, underTest.get("key" + (i % 10)).getValue());
+		}
+	}
+
+	@Test
+	public void testIncompleteRecordIgnoredOnRecovery() throws IOException {
+		open(4096, 0);
+		underTest.put("a", new StringValueContainer(0L, "value a"));
+		long recordLength = underTest.getBytesWritten();
+		underTest.put("b", new StringValueContainer(0L, "value b"));
+		underTest.close();
+		underTest = null;
+
+		// As if the process crashed while writing the value of b
+		File[] segmentFiles = directory.listFiles();
+		assertEquals(1, segmentFiles.length);
+		RandomAccessFile segmentFile = new RandomAccessFile(segmentFiles[0], "rw");
+		try {
+			segmentFile.seek(2 * recordLength - 1);
+			segmentFile.write('X');
+		} finally {
+			segmentFile.close();
+		}
+
+		open(4096, 0);
+		assertEquals("value a", underTest.get("a").getValue());
+		assertNull(underTest.get("b"));
+		underTest.put("c", new StringValueContainer(0L, "c"));
+
+		open(4096, 0);
+		assertEquals(new HashSet<String>(Arrays.asList("a", "c")), keys(underTest));
+		assertEquals("value a", underTest.get("a").getValue());
+		assertEquals("c", underTest.get("c").getValue());
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		open(256, 0);
+		for (int i = 0; i < 1000; i++) {
+			underTest.put("key" + (i % 3), new StringValueContainer((long)i, "value" + i));
+		}
+		int segmentsBefore = underTest.getSegmentCount();
+		underTest.compact();
+		assertTrue(underTest.getCompactedSegments() > 0);
+		assertTrue(underTest.getSegmentCount() < segmentsBefore);
+		assertEquals(underTest.getSegmentCount(), directory.listFiles().length);
+
+		open(256, 0);
+		assertEquals(3, keys(underTest).size());
+		for (int i = 997; i < 1000; i++) {
+			assertEquals("value" + i, underTest.get("key" + (i % 3)).getValue());
+		}
+	}
+
+	@Test
+	public void testConcurrentPutsAndGetsWithBackgroundCompaction() throws Exception {
+		open(1024, 1);
+		final int NO_THREADS = 4;
+		final int NO_KEYS_PER_THREAD = 10;
+		final int NO_PUTS_PER_THREAD = 5000;
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[NO_THREADS];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					// Each thread owns its keys - stores are only put concurrently for different keys
+					for (int i = 0; i < NO_PUTS_PER_THREAD; i++) {
+						String key = "key" + thread + "-" + (i % NO_KEYS_PER_THREAD);
+						underTest.put(key, new StringValueContainer((long)i, "value" + i));
+						StringValueContainer value = underTest.get(key);
+						if (value == null || value.getVersion() != i) failed[0] = true;
+					}
+				}
+
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertFalse(failed[0]);
+		assertTrue(underTest.getCompactedSegments() > 0);
+
+		open(1024, 0);
+		assertEquals(NO_THREADS * NO_KEYS_PER_THREAD, keys(underTest).size());
+		for (int t = 0; t < NO_THREADS; t++) {
+			for (int i = NO_PUTS_PER_THREAD - NO_KEYS_PER_THREAD; i < NO_PUTS_PER_THREAD; i++) {
+				assertEquals(Long.valueOf(i), underTest.get("key" + t + "-" + (i % NO_KEYS_PER_THREAD)).getVersion());
+			}
+		}
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNoDirectoryRejected() throws IOException {
+		MemoryMappedLogStore.<String, StringValueContainer>builder().keyCodec(MemoryMappedLogStore.STRING_CODEC).valueCodec(StringValueContainer.CODEC).build();
+	}
+
+}
@@ -2,17 +2,28 @@ package ae.teletronics.cache.examples.dbversioncache;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.cache.Cache;
+import com.google.common.collect.Iterables;
 
 import ae.teletronics.cache.ChangingValueAndLevelMultiCache;
+import ae.teletronics.cache.KeyLocks;
 import ae.teletronics.cache.Pair;
 import ae.teletronics.cache.examples.dbversioncache.KeyValueOptimisticLockingDBWithPluggableCache.AlreadyExistsException;
 import ae.teletronics.cache.examples.dbversioncache.KeyValueOptimisticLockingDBWithPluggableCache.DoesNotAlreadyExistException;
@@ -57,6 +68,16 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCacheTest {
 			}
 		}
 		
+		private CanonicalSubstrings getKeyStarts() {
+			try {
+				Field keyStartsField = StringStringOptimisticLockingDBWithKeyStartsWithCache.KeyStartsWithCache.class.getDeclaredField("keyStarts");
+				keyStartsField.setAccessible(true);
+				return (CanonicalSubstrings)keyStartsField.get(getCache());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -199,6 +220,694 @@ public class StringStringOptimisticLockingDBWithKeyStartsWithCacheTest {
 		}
 	}
 	
+	@Test
+	public void testGetAllWithKeyStartingWithOnlyReadsKeysWithPrefix() throws Exception {
+		final int[] storeReads = new int[1];
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>() {
+			
+			@Override
+			public StringValueContainer get(String key) {
+				storeReads[0]++;
+				return super.get(key);
+			}
+			
+		};
+		for (int i = 0; i < 100; i++) {
+			store.put("p" + i + SPLIT + "a", new StringValueContainer(0L, "a" + i));
+			store.put("p" + i + SPLIT + "b", new StringValueContainer(0L, "b" + i));
+		}
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = new StringStringOptimisticLockingDBWithKeyStartsWithCache(CACHES_SIZE, LEVEL_SPLIT_AFTER, store);
+		
+		Map<String, StringValueContainer> result = underTest.getAllWithKeyStartingWith("p1");
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals("a1", result.get("a").getValue());
+		Assert.assertEquals("b1", result.get("b").getValue());
+		Assert.assertEquals(2, storeReads[0]);
+		
+		// Keys put through the DB are indexed too
+		underTest.put("p2" + SPLIT + "c", new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return new StringValueContainer(-1L, "c2");
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return StoreRequest.Operation.NEW;
+			}
+			
+		});
+		storeReads[0] = 0;
+		result = underTest.getAllWithKeyStartingWith("p2");
+		Assert.assertEquals(3, result.size());
+		Assert.assertEquals("c2", result.get("c").getValue());
+		Assert.assertTrue(storeReads[0] <= 3);
+		
+		Assert.assertTrue(underTest.getAllWithKeyStartingWith("p100").isEmpty());
+	}
+	
+	@Test
+	public void testGetAllWithKeyStartingWithReturnsSnapshot() throws Exception {
+		underTest.put("p" + SPLIT + "a", newRequest("a"));
+		Map<String, StringValueContainer> snapshot = underTest.getAllWithKeyStartingWith("p");
+		
+		underTest.put("p" + SPLIT + "b", newRequest("b"));
+		final StringValueContainer a = underTest.get("p" + SPLIT + "a");
+		underTest.put("p" + SPLIT + "a", new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return new StringValueContainer(a.getVersion(), "a2");
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return StoreRequest.Operation.UPDATE;
+			}
+			
+		});
+		
+		// Not affected by later puts
+		Assert.assertEquals(1, snapshot.size());
+		Assert.assertEquals("a", snapshot.get("a").getValue());
+		Assert.assertEquals(Long.valueOf(0), snapshot.get("a").getVersion());
+		
+		Map<String, StringValueContainer> newSnapshot = underTest.getAllWithKeyStartingWith("p");
+		Assert.assertEquals(2, newSnapshot.size());
+		Assert.assertEquals("a2", newSnapshot.get("a").getValue());
+		Assert.assertEquals(Long.valueOf(1), newSnapshot.get("a").getVersion());
+		
+		// Readers cannot change what the cache holds
+		try {
+			newSnapshot.get("b").setVersion(10L);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			newSnapshot.remove("b");
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		Assert.assertEquals(Long.valueOf(0), underTest.get("p" + SPLIT + "b").getVersion());
+	}
+	
+	@Test
+	public void testPagesWithKeyStartingWith() throws Exception {
+		for (int i = 0; i < 25; i++) {
+			underTest.put("p" + SPLIT + String.format("%02d", i), newRequest("v" + i));
+		}
+		underTest.put("q" + SPLIT + "x", newRequest("x"));
+		
+		List<String> keySuffixes = new ArrayList<String>();
+		StringStringOptimisticLockingDBWithKeyStartsWithCache.Page page = underTest.getPageWithKeyStartingWith("p", 10);
+		while (true) {
+			Assert.assertTrue(page.getKeySuffixToValueMap().size() <= 10);
+			for (Map.Entry<String, StringValueContainer> entry : page.getKeySuffixToValueMap().entrySet()) {
+				keySuffixes.add(entry.getKey());
+				Assert.assertEquals("v" + Integer.parseInt(entry.getKey()), entry.getValue().getValue());
+			}
+			if (page.getResumeToken() == null) break;
+			page = underTest.getPageWithKeyStartingWith("p", page.getResumeToken(), 10);
+		}
+		Assert.assertEquals(25, keySuffixes.size());
+		for (int i = 0; i < 25; i++) {
+			Assert.assertEquals(String.format("%02d", i), keySuffixes.get(i));
+		}
+		Assert.assertTrue(underTest.getPageWithKeyStartingWith("r", 10).getKeySuffixToValueMap().isEmpty());
+	}
+	
+	@Test
+	public void testCursorConsumedInParallel() throws Exception {
+		final int NO_KEYS = 1000;
+		for (int i = 0; i < NO_KEYS; i++) {
+			underTest.put("p" + SPLIT + i, newRequest("v" + i));
+		}
+		final StringStringOptimisticLockingDBWithKeyStartsWithCache.Cursor cursor = underTest.cursorWithKeyStartingWith("p", 7);
+		final Map<String, StringValueContainer> result = new ConcurrentHashMap<String, StringValueContainer>();
+		final int[] duplicates = new int[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					StringStringOptimisticLockingDBWithKeyStartsWithCache.Page page;
+					while ((page = cursor.nextPage()) != null) {
+						for (Map.Entry<String, StringValueContainer> entry : page.getKeySuffixToValueMap().entrySet()) {
+							if (result.put(entry.getKey(), entry.getValue()) != null) {
+								synchronized(duplicates) {
+									duplicates[0]++;
+								}
+							}
+						}
+					}
+				}
+				
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, duplicates[0]);
+		Assert.assertEquals(NO_KEYS, result.size());
+		Assert.assertEquals("v123", result.get("123").getValue());
+		Assert.assertNull(cursor.nextPage());
+	}
+	
+	@Test
+	public void testIterateWithKeyStartingWithStreamsRemainderFromStore() throws Exception {
+		final List<String> storeReads = new ArrayList<String>();
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>() {
+			
+			@Override
+			public StringValueContainer get(String key) {
+				storeReads.add(key);
+				return super.get(key);
+			}
+			
+		};
+		for (int i = 0; i < 5; i++) {
+			store.put("p" + SPLIT + "stored" + i, new StringValueContainer(0L, "stored" + i));
+		}
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = new StringStringOptimisticLockingDBWithKeyStartsWithCache(CACHES_SIZE, LEVEL_SPLIT_AFTER, store);
+		// Puts cache the key-prefix, but incomplete
+		underTest.put("p" + SPLIT + "cached", newRequest("cached"));
+		storeReads.clear();
+		
+		Iterator<Map.Entry<String, StringValueContainer>> iterator = underTest.iterateWithKeyStartingWith("p");
+		Map.Entry<String, StringValueContainer> first = iterator.next();
+		Assert.assertEquals("cached", first.getKey());
+		Assert.assertTrue(storeReads.isEmpty());
+		
+		Map<String, String> rest = new HashMap<String, String>();
+		while (iterator.hasNext()) {
+			Map.Entry<String, StringValueContainer> entry = iterator.next();
+			rest.put(entry.getKey(), entry.getValue().getValue());
+		}
+		Assert.assertEquals(5, rest.size());
+		Assert.assertEquals("stored3", rest.get("stored3"));
+		Assert.assertEquals(5, storeReads.size());
+		
+		// Complete key-prefix entirely from cache
+		Assert.assertEquals(6, underTest.getAllWithKeyStartingWith("p").size());
+		storeReads.clear();
+		int count = 0;
+		for (iterator = underTest.iterateWithKeyStartingWith("p"); iterator.hasNext(); iterator.next()) {
+			count++;
+		}
+		Assert.assertEquals(6, count);
+		Assert.assertTrue(storeReads.isEmpty());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testResumeTokenFromOtherKeyPrefixRejected() {
+		underTest.getPageWithKeyStartingWith("p", "q" + SPLIT + "x", 10);
+	}
+	
+	@Test
+	public void testGetsConsistentWithHeavyPutsOnSameKeyPrefix() throws Exception {
+		final int NO_WRITERS = 4;
+		final int NO_READERS = 4;
+		final int NO_SUFFIXES_PER_WRITER = 4;
+		final int NO_UPDATES_PER_WRITER = 20000;
+		for (int i = 0; i < NO_WRITERS * NO_SUFFIXES_PER_WRITER; i++) {
+			underTest.put("p" + SPLIT + i, newRequest("v0"));
+		}
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		
+		Thread[] writers = new Thread[NO_WRITERS];
+		for (int t = 0; t < writers.length; t++) {
+			final int writer = t;
+			writers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						// Each writer owns its key-suffixes, so updates do not conflict - but all are on the same key-prefix
+						for (int i = 0; i < NO_UPDATES_PER_WRITER; i++) {
+							String key = "p" + SPLIT + (writer * NO_SUFFIXES_PER_WRITER + i % NO_SUFFIXES_PER_WRITER);
+							final StringValueContainer current = underTest.get(key);
+							underTest.put(key, new StoreRequest<String, StringValueContainer>() {
+
+								@Override
+								public StringValueContainer getValueContainer() {
+									return new StringValueContainer(current.getVersion(), "v" + (current.getVersion() + 1));
+								}
+
+								@Override
+								public StoreRequest.Operation getRequestedOperation() {
+									return StoreRequest.Operation.UPDATE;
+								}
+								
+							});
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, e.toString());
+					}
+				}
+				
+			});
+		}
+		
+		Thread[] readers = new Thread[NO_READERS];
+		for (int t = 0; t < readers.length; t++) {
+			final int reader = t;
+			readers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					long[] lastVersions = new long[NO_WRITERS * NO_SUFFIXES_PER_WRITER];
+					int i = reader;
+					while (writing.get() && failure.get() == null) {
+						int suffix = i++ % lastVersions.length;
+						StringValueContainer value = underTest.get("p" + SPLIT + suffix);
+						if (value == null || !value.getValue().equals("v" + value.getVersion()) || value.getVersion() < lastVersions[suffix]) {
+							failure.compareAndSet(null, "Read " + ((value != null)?(value.getVersion() + "/" + value.getValue()):null) + " after version " + lastVersions[suffix]);
+						} else {
+							lastVersions[suffix] = value.getVersion();
+						}
+						if (i % 64 == 0) {
+							for (Map.Entry<String, StringValueContainer> entry : underTest.getAllWithKeyStartingWith("p").entrySet()) {
+								if (!entry.getValue().getValue().equals("v" + entry.getValue().getVersion())) {
+									failure.compareAndSet(null, "Snapshot had " + entry.getValue().getVersion() + "/" + entry.getValue().getValue());
+								}
+							}
+						}
+					}
+				}
+				
+			});
+		}
+		
+		for (Thread thread : readers) {
+			thread.start();
+		}
+		for (Thread thread : writers) {
+			thread.start();
+		}
+		for (Thread thread : writers) {
+			thread.join();
+		}
+		writing.set(false);
+		for (Thread thread : readers) {
+			thread.join();
+		}
+		
+		Assert.assertNull(failure.get());
+		for (int i = 0; i < NO_WRITERS * NO_SUFFIXES_PER_WRITER; i++) {
+			Assert.assertEquals(Long.valueOf(NO_UPDATES_PER_WRITER / NO_SUFFIXES_PER_WRITER), underTest.get("p" + SPLIT + i).getVersion());
+		}
+	}
+	
+	@Test
+	public void testCacheSizedInBytes() throws Exception {
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheBytes(1 << 20).levelSplitAfter(LEVEL_SPLIT_AFTER).build();
+		underTest.put("p" + SPLIT + "a", newRequest("a"));
+		long oneEntryBytes = sum(underTest.getEstimatedCacheRetainedBytes());
+		Assert.assertTrue(oneEntryBytes > 0);
+		
+		// Growing the same cache-value in place
+		for (int i = 0; i < 100; i++) {
+			underTest.put("p" + SPLIT + i, newRequest("value" + i));
+		}
+		long manyEntriesBytes = sum(underTest.getEstimatedCacheRetainedBytes());
+		Assert.assertTrue(manyEntriesBytes > 50 * oneEntryBytes);
+		Assert.assertEquals(101, underTest.getAllWithKeyStartingWith("p").size());
+		
+		Assert.assertTrue(this.underTest.getEstimatedCacheRetainedBytes().isEmpty());
+	}
+	
+	@Test
+	public void testCacheLevelsTunedInBackground() throws Exception {
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheSize(CACHES_SIZE).levelSplitAfter(LEVEL_SPLIT_AFTER).levelTuning(10, TimeUnit.MILLISECONDS).build();
+		List<ChangingValueAndLevelMultiCache.Interval> initialIntervals = underTest.getCacheLevelIntervals();
+		Assert.assertEquals(3, initialIntervals.get(1).getFrom());
+		
+		// Twice as many key-prefixes above level 2 as fit in the level-cache, none below
+		for (int p = 0; p < 2 * CACHES_SIZE; p++) {
+			for (int i = 0; i < ((p < CACHES_SIZE)?4:8); i++) {
+				underTest.put("p" + p + SPLIT + i, newRequest("value" + i));
+			}
+		}
+		// Tunings while putting may move the boundary anywhere, but reading all key-prefixes moves it to between levels 4 and 8
+		long timeout = System.currentTimeMillis() + 10000;
+		int levelFrom = underTest.getCacheLevelIntervals().get(1).getFrom();
+		while (!(levelFrom > 4 && levelFrom <= 8) && System.currentTimeMillis() < timeout) {
+			for (int p = 0; p < 2 * CACHES_SIZE; p++) {
+				Assert.assertEquals((p < CACHES_SIZE)?4:8, underTest.getAllWithKeyStartingWith("p" + p).size());
+			}
+			Thread.sleep(1);
+			levelFrom = underTest.getCacheLevelIntervals().get(1).getFrom();
+		}
+		Assert.assertTrue(levelFrom > 4 && levelFrom <= 8);
+		for (int p = 0; p < 2 * CACHES_SIZE; p++) {
+			Assert.assertEquals((p < CACHES_SIZE)?4:8, underTest.getAllWithKeyStartingWith("p" + p).size());
+		}
+	}
+	
+	@Test
+	public void testIncompleteCompletedInBackground() throws Exception {
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>();
+		for (int i = 0; i < 10; i++) {
+			store.put("p" + SPLIT + i, new StringValueContainer(0L, "stored" + i));
+		}
+		final List<Runnable> completions = new ArrayList<Runnable>();
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheSize(CACHES_SIZE).levelSplitAfter(LEVEL_SPLIT_AFTER).store(store).backgroundCompletion(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				completions.add(command);
+			}
+			
+		}, 3).build();
+		
+		// Put, and two reads of the incomplete cache-value
+		underTest.put("p" + SPLIT + "new", newRequest("new"));
+		Assert.assertEquals("new", underTest.get("p" + SPLIT + "new").getValue());
+		Assert.assertTrue(completions.isEmpty());
+		Assert.assertEquals(2, underTest.getPageWithKeyStartingWith("p", 2).getKeySuffixToValueMap().size());
+		Assert.assertEquals(1, completions.size());
+		underTest.get("p" + SPLIT + "new");
+		Assert.assertEquals(1, completions.size());
+		
+		completions.get(0).run();
+		Assert.assertEquals(1, underTest.getBackgroundCompletions());
+		Map<String, StringValueContainer> all = underTest.getAllWithKeyStartingWith("p");
+		Assert.assertEquals(11, all.size());
+		Assert.assertEquals("stored9", all.get("9").getValue());
+		Assert.assertEquals(0, underTest.getInlineCompletions());
+		
+		// Left to getAllWithKeyStartingWith, when not completed in the background
+		underTest.put("q" + SPLIT + "new", newRequest("new"));
+		underTest.get("q" + SPLIT + "new");
+		underTest.get("q" + SPLIT + "new");
+		Assert.assertEquals(2, completions.size());
+		Assert.assertEquals(1, underTest.getAllWithKeyStartingWith("q").size());
+		Assert.assertEquals(1, underTest.getInlineCompletions());
+		completions.get(1).run();
+		Assert.assertEquals(1, underTest.getBackgroundCompletions());
+	}
+	
+	@Test
+	public void testPutAllIfNewerKeepsNewerPuts() {
+		CacheValue cacheValue = new CacheValue();
+		cacheValue.put("a", new StringValueContainer(2L, "put meanwhile"));
+		Map<String, StringValueContainer> loaded = new HashMap<String, StringValueContainer>();
+		loaded.put("a", new StringValueContainer(1L, "loaded before"));
+		loaded.put("b", new StringValueContainer(0L, "loaded"));
+		cacheValue.putAllIfNewer(loaded);
+		Assert.assertEquals("put meanwhile", cacheValue.getKeySuffixToValueMap().get("a").getValue());
+		Assert.assertEquals("loaded", cacheValue.getKeySuffixToValueMap().get("b").getValue());
+		
+		loaded.put("a", new StringValueContainer(3L, "loaded after"));
+		cacheValue.putAllIfNewer(loaded);
+		Assert.assertEquals("loaded after", cacheValue.getKeySuffixToValueMap().get("a").getValue());
+	}
+	
+	@Test
+	public void testMultiGetFetchesMissesInOneBatch() throws Exception {
+		final int[] storeGets = new int[1];
+		final List<Integer> storeBatches = new ArrayList<Integer>();
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>() {
+			
+			@Override
+			public StringValueContainer get(String key) {
+				storeGets[0]++;
+				return super.get(key);
+			}
+			
+			@Override
+			public Map<String, StringValueContainer> getAll(Iterable<String> keys) {
+				int batchSize = 0;
+				for (@SuppressWarnings("unused") String key : keys) {
+					batchSize++;
+				}
+				storeBatches.add(batchSize);
+				return super.getAll(keys);
+			}
+			
+		};
+		for (int i = 0; i < 3; i++) {
+			store.put("stored" + SPLIT + i, new StringValueContainer(0L, "stored" + i));
+		}
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = new StringStringOptimisticLockingDBWithKeyStartsWithCache(CACHES_SIZE, LEVEL_SPLIT_AFTER, store);
+		underTest.put("p" + SPLIT + "a", newRequest("a"));
+		underTest.put("q" + SPLIT + "b", newRequest("b"));
+		storeGets[0] = 0;
+		
+		List<String> keys = new ArrayList<String>();
+		keys.add("p" + SPLIT + "a");
+		keys.add("q" + SPLIT + "b");
+		keys.add("q" + SPLIT + "absent");
+		for (int i = 0; i < 3; i++) {
+			keys.add("stored" + SPLIT + i);
+		}
+		// Keys that can only be iterated once
+		Map<String, StringValueContainer> values = underTest.get(Iterables.consumingIterable(new ArrayList<String>(keys)));
+		Assert.assertEquals(5, values.size());
+		Assert.assertEquals("a", values.get("p" + SPLIT + "a").getValue());
+		Assert.assertEquals("stored2", values.get("stored" + SPLIT + "2").getValue());
+		// Read again one at a time, holding the key-lock, before put in cache
+		Assert.assertEquals(3, storeGets[0]);
+		Assert.assertEquals(Arrays.asList(4), storeBatches);
+		// Read from store are now in cache
+		Assert.assertEquals(5, underTest.get(keys).size());
+		Assert.assertEquals(Arrays.asList(4, 1), storeBatches);
+		// Copies, as if sent over a network
+		Assert.assertNotSame(values.get("p" + SPLIT + "a"), underTest.get(keys).get("p" + SPLIT + "a"));
+		Assert.assertNotSame(values.get("stored" + SPLIT + "0"), underTest.get(keys).get("stored" + SPLIT + "0"));
+	}
+	
+	@Test
+	public void testMultiGetDoesNotCacheVersionReplacedMeanwhile() throws Exception {
+		final String key = "stored" + SPLIT + "0";
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>() {
+			
+			@Override
+			public Map<String, StringValueContainer> getAll(Iterable<String> keys) {
+				Map<String, StringValueContainer> values = super.getAll(keys);
+				// As if put by another thread, whose version was evicted from cache before the multi-get puts in cache
+				put(key, new StringValueContainer(1L, "replaced"));
+				return values;
+			}
+			
+		};
+		store.put(key, new StringValueContainer(0L, "stored"));
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = new StringStringOptimisticLockingDBWithKeyStartsWithCache(CACHES_SIZE, LEVEL_SPLIT_AFTER, store);
+		
+		Assert.assertEquals(Long.valueOf(0), underTest.get(Arrays.asList(key)).get(key).getVersion());
+		final StringValueContainer cached = underTest.get(key);
+		Assert.assertEquals(Long.valueOf(1), cached.getVersion());
+		Assert.assertEquals("replaced", cached.getValue());
+		underTest.put(key, new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return new StringValueContainer(cached.getVersion(), "updated");
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return StoreRequest.Operation.UPDATE;
+			}
+			
+		});
+		Assert.assertEquals(Long.valueOf(2), underTest.get(key).getVersion());
+	}
+	
+	@Test
+	public void testConcurrentGetAllWithKeyStartingWithShareOneScan() throws Exception {
+		final Map<String, Integer> storeGets = new ConcurrentHashMap<String, Integer>();
+		final CountDownLatch scanning = new CountDownLatch(1);
+		final CountDownLatch released = new CountDownLatch(1);
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>() {
+			
+			@Override
+			public StringValueContainer get(String key) {
+				Integer gets = storeGets.get(key);
+				storeGets.put(key, (gets != null)?(gets + 1):1);
+				scanning.countDown();
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return super.get(key);
+			}
+			
+		};
+		for (int i = 0; i < 3; i++) {
+			store.put("p" + SPLIT + i, new StringValueContainer(0L, "stored" + i));
+		}
+		final StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheSize(CACHES_SIZE).levelSplitAfter(LEVEL_SPLIT_AFTER).singleFlightLoads(10, TimeUnit.SECONDS).store(store).build();
+		
+		final List<Map<String, StringValueContainer>> results = Collections.synchronizedList(new ArrayList<Map<String, StringValueContainer>>());
+		Thread[] readers = new Thread[2];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					results.add(underTest.getAllWithKeyStartingWith("p"));
+				}
+				
+			});
+			readers[i].start();
+			if (i == 0) Assert.assertTrue(scanning.await(10, TimeUnit.SECONDS));
+		}
+		released.countDown();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals(3, results.get(0).size());
+		Assert.assertEquals(3, results.get(1).size());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(Integer.valueOf(1), storeGets.get("p" + SPLIT + i));
+		}
+	}
+	
+	@Test
+	public void testConcurrentPutsWithReentrantKeyLocks() throws Exception {
+		final StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheSize(CACHES_SIZE).levelSplitAfter(LEVEL_SPLIT_AFTER).keyLocks(KeyLocks.reentrantLocks(4)).build();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread[] writers = new Thread[4];
+		for (int i = 0; i < writers.length; i++) {
+			final int writer = i;
+			writers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 100; j++) {
+							underTest.put("p" + (j % 3) + SPLIT + writer + "-" + j, newRequest("value" + j));
+						}
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+				
+			});
+			writers[i].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		
+		Assert.assertNull(failure.get());
+		int entries = 0;
+		for (int p = 0; p < 3; p++) {
+			entries += underTest.getAllWithKeyStartingWith("p" + p).size();
+		}
+		Assert.assertEquals(writers.length * 100, entries);
+		Assert.assertEquals("value7", underTest.get("p1" + SPLIT + "2-7").getValue());
+	}
+	
+	@Test
+	public void testOnlyKeyStartsOfStoredKeysInterned() throws Exception {
+		Assert.assertTrue(underTest.getAllWithKeyStartingWith("absent").isEmpty());
+		Assert.assertNull(underTest.get("absent" + SPLIT + "a"));
+		Assert.assertNull(underTest.getKeyStarts().get("absent", 0, "absent".length()));
+		try {
+			underTest.put("failed" + SPLIT + "a", new StoreRequest<String, StringValueContainer>() {
+
+				@Override
+				public StringValueContainer getValueContainer() {
+					return new StringValueContainer(0L, "a");
+				}
+
+				@Override
+				public StoreRequest.Operation getRequestedOperation() {
+					return StoreRequest.Operation.UPDATE;
+				}
+				
+			});
+			Assert.fail();
+		} catch (DoesNotAlreadyExistException e) {
+			// expected
+		}
+		Assert.assertNull(underTest.getKeyStarts().get("failed", 0, "failed".length()));
+		
+		underTest.put("p" + SPLIT + "a", newRequest("a"));
+		String keyStart = underTest.getKeyStarts().get("p" + SPLIT + "a", 0, 1);
+		Assert.assertEquals("p", keyStart);
+		// Key-suffixes held by the cache-value
+		CacheValue cacheValue = underTest.getInnerCache().getIfPresent(keyStart);
+		Assert.assertEquals("a", cacheValue.getKeySuffixToValueMap().get("a").getValue());
+		Assert.assertEquals("a", underTest.get("p" + SPLIT + "a").getValue());
+		Assert.assertNull(underTest.get("p" + SPLIT + "b"));
+	}
+	
+	@Test
+	public void testBuilderCombinesFeatures() throws Exception {
+		InMemoryStore<String, StringValueContainer> store = new InMemoryStore<String, StringValueContainer>();
+		store.put("p" + SPLIT + "stored", new StringValueContainer(0L, "stored"));
+		final List<Runnable> completions = new ArrayList<Runnable>();
+		StringStringOptimisticLockingDBWithKeyStartsWithCache underTest = StringStringOptimisticLockingDBWithKeyStartsWithCache.builder()
+				.cacheBytes(1 << 20)
+				.levelSplitAfter(LEVEL_SPLIT_AFTER)
+				.levelTuning(1, TimeUnit.HOURS)
+				.singleFlightLoads(10, TimeUnit.SECONDS)
+				.keyLocks(KeyLocks.reentrantLocks(4))
+				.backgroundCompletion(new Executor() {
+
+					@Override
+					public void execute(Runnable command) {
+						completions.add(command);
+					}
+					
+				}, 1)
+				.store(store)
+				.build();
+		
+		underTest.put("p" + SPLIT + "new", newRequest("new"));
+		Assert.assertEquals(1, completions.size());
+		completions.get(0).run();
+		Assert.assertEquals(1, underTest.getBackgroundCompletions());
+		Assert.assertTrue(sum(underTest.getEstimatedCacheRetainedBytes()) > 0);
+		Assert.assertEquals(2, underTest.getAllWithKeyStartingWith("p").size());
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void testBuilderWithoutCacheSizeRejected() {
+		StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().levelSplitAfter(LEVEL_SPLIT_AFTER).build();
+	}
+	
+	@Test(expected = RuntimeException.class)
+	public void testBuilderWithCacheSizeAndCacheBytesRejected() {
+		StringStringOptimisticLockingDBWithKeyStartsWithCache.builder().cacheSize(CACHES_SIZE).cacheBytes(1 << 20).levelSplitAfter(LEVEL_SPLIT_AFTER).build();
+	}
+	
+	private static long sum(Map<String, Long> bytes) {
+		long sum = 0;
+		for (Long tierBytes : bytes.values()) {
+			sum += tierBytes;
+		}
+		return sum;
+	}
+	
+	private static StoreRequest<String, StringValueContainer> newRequest(final String text) {
+		return new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return new StringValueContainer(-1L, text);
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return StoreRequest.Operation.NEW;
+			}
+			
+		};
+	}
+	
 	private class MyRunnable implements Runnable {
 
 		private final String[] keyPrefixes;
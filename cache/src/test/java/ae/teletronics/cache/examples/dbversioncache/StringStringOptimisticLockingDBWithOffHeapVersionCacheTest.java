@@ -0,0 +1,12 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import ae.teletronics.cache.OffHeapLongValueChangingValueCache;
+
+public class StringStringOptimisticLockingDBWithOffHeapVersionCacheTest extends StringStringOptimisticLockingDBWithVersionCacheTest {
+
+	@Override
+	protected StringStringOptimisticLockingDBWithVersionCache createUnderTest() {
+		return new StringStringOptimisticLockingDBWithVersionCache(OffHeapLongValueChangingValueCache.builder().maximumSize(1000).build());
+	}
+	
+}
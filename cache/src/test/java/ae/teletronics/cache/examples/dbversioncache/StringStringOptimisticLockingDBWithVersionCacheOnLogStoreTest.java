@@ -0,0 +1,38 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+
+public class StringStringOptimisticLockingDBWithVersionCacheOnLogStoreTest extends StringStringOptimisticLockingDBWithVersionCacheTest {
+	
+	private File directory;
+	private MemoryMappedLogStore<String, StringValueContainer> store;
+
+	@Override
+	protected StringStringOptimisticLockingDBWithVersionCache createUnderTest() {
+		try {
+			directory = MemoryMappedLogStoreTest.createTempDirectory();
+			MemoryMappedLogStore.Builder<String, StringValueContainer> storeBuilder = MemoryMappedLogStore.builder();
+			store = storeBuilder
+					.directory(directory)
+					.keyCodec(MemoryMappedLogStore.STRING_CODEC)
+					.valueCodec(StringValueContainer.CODEC)
+					.segmentSize(1024)
+					.compactionInterval(1, TimeUnit.MILLISECONDS)
+					.build();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return new StringStringOptimisticLockingDBWithVersionCache(1000, store);
+	}
+	
+	@After
+	public void after() throws IOException {
+		store.close();
+		MemoryMappedLogStoreTest.deleteRecursively(directory);
+	}
+	
+}
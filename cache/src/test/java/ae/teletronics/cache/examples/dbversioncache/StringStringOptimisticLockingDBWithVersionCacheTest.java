@@ -17,7 +17,11 @@ public class StringStringOptimisticLockingDBWithVersionCacheTest {
 	
 	@Before
 	public void before() {
-		underTest = new StringStringOptimisticLockingDBWithVersionCache(1000);
+		underTest = createUnderTest();
+	}
+	
+	protected StringStringOptimisticLockingDBWithVersionCache createUnderTest() {
+		return new StringStringOptimisticLockingDBWithVersionCache(1000);
 	}
 	
 	@Test
@@ -0,0 +1,183 @@
+package ae.teletronics.cache.examples.dbversioncache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ae.teletronics.cache.examples.dbversioncache.KeyValueOptimisticLockingDBWithPluggableCache.StoreRequest;
+
+public class WriteAheadLogStoreTest {
+
+	private File directory;
+	private File file;
+	private WriteAheadLogStore<String, StringValueContainer> underTest;
+
+	@Before
+	public void before() throws IOException {
+		directory = MemoryMappedLogStoreTest.createTempDirectory();
+		file = new File(directory, "wal.log");
+	}
+
+	@After
+	public void after() throws IOException {
+		if (underTest != null) underTest.close();
+		MemoryMappedLogStoreTest.deleteRecursively(directory);
+	}
+
+	private WriteAheadLogStore<String, StringValueContainer> open(long batchWindowMillis, int maxBatchSize) throws IOException {
+		if (underTest != null) underTest.close();
+		WriteAheadLogStore.Builder<String, StringValueContainer> builder = WriteAheadLogStore.builder();
+		underTest = builder
+				.store(new InMemoryStore<String, StringValueContainer>())
+				.file(file)
+				.keyCodec(MemoryMappedLogStore.STRING_CODEC)
+				.valueCodec(StringValueContainer.CODEC)
+				.batchWindow(batchWindowMillis, TimeUnit.MILLISECONDS)
+				.maxBatchSize(maxBatchSize)
+				.build();
+		return underTest;
+	}
+
+	@Test
+	public void testPutForcedBeforeReturning() throws IOException {
+		open(0, 1);
+		underTest.put("key", new StringValueContainer(0L, "value"));
+		assertEquals(1, underTest.getForces());
+		assertEquals(1, underTest.getRecordsForced());
+		assertTrue(file.length() > 0);
+		assertEquals("value", underTest.get("key").getValue());
+	}
+
+	@Test
+	public void testRecoveryOnOpen() throws IOException {
+		open(0, 1);
+		for (int i = 0; i < 100; i++) {
+			underTest.put("key" + (i % 10), new StringValueContainer((long)i, "value" + i));
+		}
+		long lengthBefore = file.length();
+
+		open(0, 1);
+		for (int i = 90; i < 100; i++) {
+			assertEquals(Long.valueOf(i), underTest.get("key" + (i % 10)).getVersion());
+		}
+		// Rewritten to hold only the newest record per key
+		assertTrue(file.length() < lengthBefore / 5);
+
+		underTest.put("key0", new StringValueContainer(100L, "value100"));
+		open(0, 1);
+		assertEquals("value100", underTest.get("key0").getValue());
+		assertEquals("value91", underTest.get("key1").getValue());
+	}
+
+	@Test
+	public void testIncompleteRecordIgnoredOnRecovery() throws IOException {
+		open(0, 1);
+		underTest.put("a", new StringValueContainer(0L, "value a"));
+		underTest.put("b", new StringValueContainer(0L, "value b"));
+		underTest.close();
+		underTest = null;
+
+		// As if the process crashed in the middle of writing b
+		RandomAccessFile logFile = new RandomAccessFile(file, "rw");
+		try {
+			logFile.setLength(logFile.length() - 3);
+		} finally {
+			logFile.close();
+		}
+
+		open(0, 1);
+		assertEquals("value a", underTest.get("a").getValue());
+		assertNull(underTest.get("b"));
+		underTest.put("c", new StringValueContainer(0L, "value c"));
+
+		open(0, 1);
+		assertEquals("value a", underTest.get("a").getValue());
+		assertNull(underTest.get("b"));
+		assertEquals("value c", underTest.get("c").getValue());
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		open(20, 1024);
+		final int NO_THREADS = 16;
+		final int NO_PUTS_PER_THREAD = 20;
+		Thread[] threads = new Thread[NO_THREADS];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < NO_PUTS_PER_THREAD; i++) {
+						underTest.put("key" + thread, new StringValueContainer((long)i, "value" + i));
+					}
+				}
+
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(NO_THREADS * NO_PUTS_PER_THREAD, underTest.getRecordsForced());
+		// Each force covers the puts of many threads
+		assertTrue(underTest.getForces() <= NO_THREADS * NO_PUTS_PER_THREAD / 4);
+
+		open(0, 1);
+		for (int t = 0; t < NO_THREADS; t++) {
+			assertEquals(Long.valueOf(NO_PUTS_PER_THREAD - 1), underTest.get("key" + t).getVersion());
+		}
+	}
+
+	@Test
+	public void testVersionsRecoveredByDB() throws Exception {
+		StringStringOptimisticLockingDBWithVersionCache db = new StringStringOptimisticLockingDBWithVersionCache(10, open(0, 16));
+		db.put("X", create("x"));
+		db.put("X", update(db.get("X"), "xx"));
+
+		db = new StringStringOptimisticLockingDBWithVersionCache(10, open(0, 16));
+		StringValueContainer value = db.get("X");
+		assertEquals(Long.valueOf(1), value.getVersion());
+		assertEquals("xx", value.getValue());
+		db.put("X", update(value, "xxx"));
+		assertEquals(Long.valueOf(2), db.get("X").getVersion());
+	}
+
+	private static StoreRequest<String, StringValueContainer> create(String text) {
+		return request(new StringValueContainer(-1L, text), StoreRequest.Operation.NEW);
+	}
+
+	private static StoreRequest<String, StringValueContainer> update(StringValueContainer current, String text) {
+		return request(new StringValueContainer(current.getVersion(), text), StoreRequest.Operation.UPDATE);
+	}
+
+	private static StoreRequest<String, StringValueContainer> request(final StringValueContainer valueContainer, final StoreRequest.Operation operation) {
+		return new StoreRequest<String, StringValueContainer>() {
+
+			@Override
+			public StringValueContainer getValueContainer() {
+				return valueContainer;
+			}
+
+			@Override
+			public StoreRequest.Operation getRequestedOperation() {
+				return operation;
+			}
+
+		};
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testNoStoreRejected() throws IOException {
+		WriteAheadLogStore.<String, StringValueContainer>builder().file(file).keyCodec(MemoryMappedLogStore.STRING_CODEC).valueCodec(StringValueContainer.CODEC).build();
+	}
+
+}